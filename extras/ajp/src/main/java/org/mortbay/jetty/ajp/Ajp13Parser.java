@@ -669,6 +669,30 @@ public class Ajp13Parser implements Parser
         _buffer = _header;
     }
 
+    /* ------------------------------------------------------------------------------- */
+    public int returnBuffers()
+    {
+        if (_state == STATE_START && _buffers != null)
+        {
+            if (_body != null && !_body.hasContent())
+            {
+                if (_buffer == _body)
+                    _buffer = _header;
+                _buffers.returnBuffer(_body);
+                _body = null;
+            }
+
+            if (_header != null && _body == null && !_header.hasContent())
+            {
+                _buffers.returnBuffer(_header);
+                _header = null;
+                _buffer = null;
+            }
+        }
+
+        return (_header == null ? 0 : 1) + (_body == null ? 0 : 1);
+    }
+
     /* ------------------------------------------------------------------------------- */
     Buffer getHeaderBuffer()
     {
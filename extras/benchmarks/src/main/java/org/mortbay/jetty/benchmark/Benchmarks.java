@@ -0,0 +1,49 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/* ------------------------------------------------------------ */
+/** Run the Jetty micro benchmarks.
+ * <p>
+ * This is the main class of <code>target/benchmarks.jar</code>, which is built by 
+ * <code>mvn -Pbenchmarks install</code>.  It accepts the normal JMH command line options 
+ * (eg a regular expression of the benchmarks to run) and always adds the GC profiler, 
+ * so that the bytes allocated per operation (<code>gc.alloc.rate.norm</code>) are reported 
+ * alongside the times:
+ * <pre>
+ * java -jar extras/benchmarks/target/benchmarks.jar HttpParser
+ * </pre>
+ * 
+ * @author gregw
+ */
+public class Benchmarks
+{
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        Options options = new OptionsBuilder()
+            .parent(cmd)
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,161 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.io.ByteArrayEndPoint;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Handler;
+import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.LocalConnector;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.jetty.handler.ContextHandlerCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/** ContextHandlerCollection benchmark.
+ * <p>
+ * Dispatches a request through a {@link ContextHandlerCollection} of one root context
+ * per virtual host, plus a "/static" context for any host and a root context for
+ * a wildcard domain and for any host.  The request host either matches a virtual host,
+ * matches only the wildcard domain or matches no virtual host, so the lookup cost can
+ * be compared as the number of virtual hosts grows.
+ *
+ * @author gregw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class ContextHandlerCollectionBenchmark
+{
+    @Param({"1","10","100","1000","10000"})
+    int _hosts;
+
+    @Param({"host","wildcard","default"})
+    String _match;
+
+    Server _server;
+    ContextHandlerCollection _contexts;
+    Request _request;
+    HttpServletResponse _response;
+    String _target;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        _server=new Server();
+        LocalConnector connector=new LocalConnector();
+        _server.setConnectors(new Connector[]{connector});
+
+        _contexts=new ContextHandlerCollection();
+        Handler[] handlers=new Handler[_hosts+3];
+        for (int i=0;i<_hosts;i++)
+            handlers[i]=newContext("/",new String[]{"host"+i+".example.com"});
+        handlers[_hosts]=newContext("/static",null);
+        handlers[_hosts+1]=newContext("/",new String[]{"*.wildcard.com"});
+        handlers[_hosts+2]=newContext("/",null);
+        _contexts.setHandlers(handlers);
+        _server.setHandler(_contexts);
+        _server.start();
+
+        CurrentConnection connection=new CurrentConnection(connector,_server);
+        _request=connection.getRequest();
+        _response=connection.getResponse();
+        _target="/path/info";
+
+        if ("host".equals(_match))
+            _request.setServerName("host"+(_hosts/2)+".example.com");
+        else if ("wildcard".equals(_match))
+            _request.setServerName("www.wildcard.com");
+        else
+            _request.setServerName("www.other.com");
+    }
+
+    /* ------------------------------------------------------------ */
+    @TearDown
+    public void tearDown() throws Exception
+    {
+        CurrentConnection.clear();
+        _server.stop();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public boolean handle() throws Exception
+    {
+        _request.setHandled(false);
+        _contexts.handle(_target,_request,_response,Handler.REQUEST);
+        return _request.isHandled();
+    }
+
+    /* ------------------------------------------------------------ */
+    private static ContextHandler newContext(String contextPath, String[] vhosts)
+    {
+        ContextHandler context=new ContextHandler(contextPath);
+        context.setVirtualHosts(vhosts);
+        context.setHandler(new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch)
+                throws IOException, ServletException
+            {
+                HttpConnection.getCurrentConnection().getRequest().setHandled(true);
+            }
+        });
+        return context;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A connection that is the current connection of the benchmark thread,
+     * so that handlers can be called without parsing a request.
+     */
+    static class CurrentConnection extends HttpConnection
+    {
+        CurrentConnection(Connector connector, Server server)
+        {
+            super(connector,new ByteArrayEndPoint(),server);
+            setCurrentConnection(this);
+        }
+
+        static void clear()
+        {
+            setCurrentConnection(null);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+
+package org.mortbay.jetty.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.io.View;
+import org.mortbay.jetty.HttpFields;
+import org.mortbay.jetty.HttpHeaders;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/** HttpFields benchmark.
+ * <p>
+ * Puts the fields of a typical request into a reused {@link HttpFields} from parsed
+ * name and value buffers, as is done by {@link org.mortbay.jetty.HttpConnection}, and then 
+ * looks up the fields that a typical request handling looks up.  As the fields are recycled,
+ * the allocation reported by the GC profiler is the header handling allocation per request.
+ * 
+ * @author gregw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class HttpFieldsBenchmark
+{
+    final static String[][] REQUEST_FIELDS = 
+    {
+        {"Host","www.example.com"},
+        {"User-Agent","Mozilla/5.0 (X11; Linux x86_64; rv:5.0) Gecko/20100101 Firefox/5.0"},
+        {"Accept","text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"},
+        {"Accept-Language","en-us,en;q=0.5"},
+        {"Accept-Encoding","gzip, deflate"},
+        {"Accept-Charset","ISO-8859-1,utf-8;q=0.7,*;q=0.7"},
+        {"Connection","keep-alive"},
+        {"Cookie","JSESSIONID=1s8rtmq1dzclm1q6r7fwbvxnnh"},
+        {"X-Forwarded-For","10.0.0.1"},
+    };
+
+    HttpFields _fields;
+    Buffer[] _names;
+    Buffer[] _values;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp()
+    {
+        _fields=new HttpFields();
+        _names=new Buffer[REQUEST_FIELDS.length];
+        _values=new Buffer[REQUEST_FIELDS.length];
+        for (int i=0;i<REQUEST_FIELDS.length;i++)
+        {
+            // Views of a header buffer, as passed by the HttpParser
+            _names[i]=new View.CaseInsensitive(new ByteArrayBuffer(REQUEST_FIELDS[i][0]));
+            _values[i]=new View.CaseInsensitive(new ByteArrayBuffer(REQUEST_FIELDS[i][1]));
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int putGet()
+    {
+        _fields.clear();
+        for (int i=0;i<_names.length;i++)
+            _fields.add(_names[i],_values[i]);
+
+        int hash=0;
+        hash+=_fields.getStringField(HttpHeaders.HOST_BUFFER).length();
+        hash+=_fields.getStringField(HttpHeaders.CONNECTION_BUFFER).length();
+        hash+=_fields.getStringField(HttpHeaders.COOKIE_BUFFER).length();
+        hash+=_fields.getStringField("User-Agent").length();
+        hash+=_fields.getStringField("X-Forwarded-For").length();
+        if (_fields.getStringField(HttpHeaders.CONTENT_TYPE_BUFFER)==null)
+            hash++;
+        return hash;
+    }
+}
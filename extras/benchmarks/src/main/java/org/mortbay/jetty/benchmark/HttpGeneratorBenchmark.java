@@ -0,0 +1,128 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+
+package org.mortbay.jetty.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.io.ByteArrayEndPoint;
+import org.mortbay.io.SimpleBuffers;
+import org.mortbay.io.View;
+import org.mortbay.jetty.HttpFields;
+import org.mortbay.jetty.HttpGenerator;
+import org.mortbay.jetty.HttpHeaderValues;
+import org.mortbay.jetty.HttpHeaders;
+import org.mortbay.jetty.MimeTypes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/** HttpGenerator benchmark.
+ * <p>
+ * Generates responses into a {@link ByteArrayEndPoint}, whose output is discarded 
+ * after each operation. The {@link HttpFields} and buffers are reused between operations.
+ * 
+ * @author gregw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class HttpGeneratorBenchmark
+{
+    final static int CHUNKS=8;
+    
+    ByteArrayEndPoint _endp;
+    HttpGenerator _generator;
+    HttpFields _fields;
+    Buffer _content;
+    View _chunk;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        _endp=new ByteArrayEndPoint(new byte[0],65536);
+        _endp.setGrowOutput(true);
+        Buffer header=new ByteArrayBuffer(4096);
+        Buffer buffer=new ByteArrayBuffer(8192);
+        _generator=new HttpGenerator(new SimpleBuffers(new Buffer[]{header,buffer}),_endp,header.capacity(),buffer.capacity());
+        _fields=new HttpFields();
+
+        byte[] content=new byte[1024];
+        for (int i=0;i<content.length;i++)
+            content[i]=(byte)('a'+i%26);
+        _content=new ByteArrayBuffer(content);
+        _chunk=new View(_content);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Generate the header of a response with a content length and no content.
+     */
+    @Benchmark
+    public int header() throws IOException
+    {
+        _endp.reset();
+        _generator.reset(false);
+        _fields.clear();
+        
+        _generator.setResponse(200,null);
+        _fields.put(HttpHeaders.CONTENT_TYPE_BUFFER,MimeTypes.TEXT_HTML_UTF_8_BUFFER);
+        _fields.putLongField(HttpHeaders.CONTENT_LENGTH_BUFFER,0);
+        _fields.put(HttpHeaders.CACHE_CONTROL_BUFFER,HttpHeaderValues.NO_CACHE_BUFFER);
+        _fields.putDateField(HttpHeaders.LAST_MODIFIED_BUFFER,1300000000000L);
+        _fields.put("X-Custom-Header","custom value");
+        _generator.completeHeader(_fields,HttpGenerator.LAST);
+        _generator.complete();
+        return _endp.getOut().length();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Generate a response of several flushed chunks of content.
+     */
+    @Benchmark
+    public int chunked() throws IOException
+    {
+        _endp.reset();
+        _generator.reset(false);
+        _fields.clear();
+        
+        _generator.setResponse(200,null);
+        _fields.put(HttpHeaders.CONTENT_TYPE_BUFFER,MimeTypes.TEXT_HTML_UTF_8_BUFFER);
+        for (int i=0;i<CHUNKS;i++)
+        {
+            _chunk.update(0,_content.putIndex());
+            _generator.addContent(_chunk,HttpGenerator.MORE);
+            if (_generator.isState(HttpGenerator.STATE_HEADER))
+                _generator.completeHeader(_fields,HttpGenerator.MORE);
+            _generator.flush();
+        }
+        _generator.complete();
+        return _endp.getOut().length();
+    }
+}
@@ -0,0 +1,207 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.io.ByteArrayEndPoint;
+import org.mortbay.io.SimpleBuffers;
+import org.mortbay.jetty.HttpParser;
+import org.mortbay.util.StringUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/** HttpParser benchmark.
+ * <p>
+ * Parses a corpus of requests from a {@link ByteArrayEndPoint} with {@link HttpParser#parseNext()},
+ * as is done by {@link org.mortbay.jetty.HttpConnection}. The buffers are reused between operations,
+ * so the allocation reported is that of the parser itself.
+ * 
+ * @author gregw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class HttpParserBenchmark
+{
+    final static String CRLF="\015\012";
+    
+    @Param({"smallGet","largeCookies","chunkedPost","pipelined"})
+    String _corpus;
+    
+    ByteArrayEndPoint _endp;
+    HttpParser _parser;
+    Handler _handler;
+    int _messages;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        String request;
+        _messages=1;
+        if ("smallGet".equals(_corpus))
+            request=smallGet();
+        else if ("largeCookies".equals(_corpus))
+            request=largeCookies();
+        else if ("chunkedPost".equals(_corpus))
+            request=chunkedPost();
+        else if ("pipelined".equals(_corpus))
+        {
+            _messages=10;
+            StringBuffer buf = new StringBuffer();
+            for (int i=0;i<_messages;i++)
+                buf.append(smallGet());
+            request=buf.toString();
+        }
+        else
+            throw new IllegalArgumentException(_corpus);
+
+        _endp=new ByteArrayEndPoint(request.getBytes(StringUtil.__ISO_8859_1),0);
+        _handler=new Handler();
+        Buffer header=new ByteArrayBuffer(8192);
+        Buffer body=new ByteArrayBuffer(16384);
+        _parser=new HttpParser(new SimpleBuffers(new Buffer[]{header,body}),_endp,_handler,header.capacity(),body.capacity());
+
+        // check the corpus parses as expected
+        if (parse()!=_messages)
+            throw new IllegalStateException("Bad corpus "+_corpus);
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int parse() throws IOException
+    {
+        _endp.reset();
+        _parser.reset(false);
+        _handler._messages=0;
+        for (int i=0;i<_messages;i++)
+        {
+            if (i>0)
+                _parser.reset(false);
+            while (!_parser.isComplete())
+                _parser.parseNext();
+        }
+        return _handler._messages;
+    }
+
+    /* ------------------------------------------------------------ */
+    static String smallGet()
+    {
+        return "GET /context/path/info.html?query=value HTTP/1.1"+CRLF+
+        "Host: www.example.com"+CRLF+
+        "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:5.0) Gecko/20100101 Firefox/5.0"+CRLF+
+        "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8"+CRLF+
+        "Accept-Language: en-us,en;q=0.5"+CRLF+
+        "Accept-Encoding: gzip, deflate"+CRLF+
+        "Accept-Charset: ISO-8859-1,utf-8;q=0.7,*;q=0.7"+CRLF+
+        "Connection: keep-alive"+CRLF+
+        CRLF;
+    }
+
+    /* ------------------------------------------------------------ */
+    static String largeCookies()
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append("GET /context/path/info.html HTTP/1.1").append(CRLF);
+        buf.append("Host: www.example.com").append(CRLF);
+        buf.append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:5.0) Gecko/20100101 Firefox/5.0").append(CRLF);
+        buf.append("Accept: */*").append(CRLF);
+        buf.append("Cookie: JSESSIONID=1s8rtmq1dzclm1q6r7fwbvxnnh");
+        for (int i=0;i<40;i++)
+            buf.append("; preference").append(i).append("=").append("0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef");
+        buf.append(CRLF);
+        buf.append("Connection: keep-alive").append(CRLF);
+        buf.append(CRLF);
+        return buf.toString();
+    }
+
+    /* ------------------------------------------------------------ */
+    static String chunkedPost()
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append("POST /context/upload HTTP/1.1").append(CRLF);
+        buf.append("Host: www.example.com").append(CRLF);
+        buf.append("Content-Type: application/octet-stream").append(CRLF);
+        buf.append("Transfer-Encoding: chunked").append(CRLF);
+        buf.append("Connection: keep-alive").append(CRLF);
+        buf.append(CRLF);
+        for (int c=0;c<8;c++)
+        {
+            buf.append("400").append(CRLF);
+            for (int i=0;i<1024;i++)
+                buf.append((char)('a'+(i+c)%26));
+            buf.append(CRLF);
+        }
+        buf.append("0").append(CRLF);
+        buf.append(CRLF);
+        return buf.toString();
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class Handler extends HttpParser.EventHandler
+    {
+        int _messages;
+        int _headers;
+        long _content;
+
+        /* ------------------------------------------------------------ */
+        public void startRequest(Buffer method, Buffer url, Buffer version) throws IOException
+        {
+            _headers=0;
+            _content=0;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void startResponse(Buffer version, int status, Buffer reason) throws IOException
+        {
+        }
+
+        /* ------------------------------------------------------------ */
+        public void parsedHeader(Buffer name, Buffer value) throws IOException
+        {
+            _headers++;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void content(Buffer ref) throws IOException
+        {
+            _content+=ref.length();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void messageComplete(long contentLength) throws IOException
+        {
+            _messages++;
+        }
+    }
+}
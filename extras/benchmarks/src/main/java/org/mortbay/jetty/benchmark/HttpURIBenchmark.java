@@ -0,0 +1,77 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+
+package org.mortbay.jetty.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.jetty.HttpURI;
+import org.mortbay.util.StringUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/** HttpURI benchmark.
+ * <p>
+ * Parses a raw request URI into a reused {@link HttpURI} and gets the decoded path and
+ * query, as is done for every request.
+ * 
+ * @author gregw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class HttpURIBenchmark
+{
+    @Param({
+        "/context/path/info.html",
+        "/context/servlet/path;jsessionid=1s8rtmq1dzclm1q6r7fwbvxnnh?query=value&other=value",
+        "http://www.example.com:8080/context/path%20with%20spaces/info.html?query=a%20value",
+    })
+    String _uri;
+
+    byte[] _raw;
+    HttpURI _httpURI;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        _raw=_uri.getBytes(StringUtil.__ISO_8859_1);
+        _httpURI=new HttpURI();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int parse()
+    {
+        _httpURI.parse(_raw,0,_raw.length);
+        String path=_httpURI.getDecodedPath();
+        String query=_httpURI.getQuery();
+        return path.length()+(query==null?0:query.length());
+    }
+}
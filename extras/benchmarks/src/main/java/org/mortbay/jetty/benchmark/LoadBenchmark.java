@@ -0,0 +1,542 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+
+package org.mortbay.jetty.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.LocalConnector;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.bio.SocketConnector;
+import org.mortbay.jetty.client.ContentExchange;
+import org.mortbay.jetty.client.HttpClient;
+import org.mortbay.jetty.client.HttpExchange;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.jetty.servlet.Context;
+import org.mortbay.jetty.servlet.DefaultServlet;
+import org.mortbay.jetty.servlet.ServletHolder;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.thread.ThreadPool;
+import org.mortbay.util.IO;
+import org.mortbay.util.ajax.Continuation;
+import org.mortbay.util.ajax.ContinuationSupport;
+
+/* ------------------------------------------------------------ */
+/** End to end load benchmark.
+ * <p>
+ * Starts a {@link Server} with a {@link SelectChannelConnector}, a {@link SocketConnector} and
+ * a {@link LocalConnector} for each client thread, which serves:
+ * <dl>
+ * <dt>static</dt><dd>a 4KB static file from the {@link DefaultServlet}</dd>
+ * <dt>servlet</dt><dd>a small response from a servlet</dd>
+ * <dt>longpoll</dt><dd>a request that is suspended with a {@link Continuation} until it times out</dd>
+ * </dl>
+ * Each scenario is driven through each connector by a fixed number of client threads, each sending
+ * one request at a time. The network connectors are driven by the {@link HttpClient}. The 
+ * local connectors are driven directly, so they measure the server without the network and client.
+ * After a warmup, the throughput, the 50th, 99th and 99.9th percentile latencies and the bytes 
+ * allocated per request are reported.  The bytes allocated are those of the whole JVM, including 
+ * the client, as reported by the JVM per thread. Each client thread counts its own allocations 
+ * before it exits, and the other threads are counted if they are alive at the end of the run.
+ * <p>
+ * Usage:<pre>
+ * java -cp extras/benchmarks/target/benchmarks.jar org.mortbay.jetty.benchmark.LoadBenchmark 
+ *   [--connectors=select,socket,local] [--scenarios=static,servlet,longpoll] 
+ *   [--threadPool=queued|concurrent|executor] [--maxThreads=250]
+ *   [--concurrency=50] [--requests=100000] [--warmup=20000] [--poll=20]
+ * </pre>
+ * 
+ * @author gregw
+ */
+public class LoadBenchmark
+{
+    final static int STATIC_SIZE=4096;
+    
+    String[] _connectors={"select","socket","local"};
+    String[] _scenarios={"static","servlet","longpoll"};
+    String _threadPool="queued";
+    int _maxThreads=250;
+    int _concurrency=50;
+    int _requests=100000;
+    int _warmup=20000;
+    int _poll=20;
+
+    Server _server;
+    SelectChannelConnector _select;
+    SocketConnector _socket;
+    LocalConnector[] _local;
+    HttpClient _client;
+    File _docroot;
+
+    /* ------------------------------------------------------------ */
+    public static void main(String[] args) throws Exception
+    {
+        LoadBenchmark benchmark = new LoadBenchmark();
+        for (int i=0;i<args.length;i++)
+            benchmark.configure(args[i]);
+        
+        benchmark.start();
+        try
+        {
+            benchmark.run();
+        }
+        finally
+        {
+            benchmark.stop();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    void configure(String arg)
+    {
+        int e=arg.indexOf('=');
+        if (!arg.startsWith("--") || e<0)
+            throw new IllegalArgumentException("Unknown argument: "+arg);
+        String name=arg.substring(2,e);
+        String value=arg.substring(e+1);
+        
+        if ("connectors".equals(name))
+            _connectors=value.split(",");
+        else if ("scenarios".equals(name))
+            _scenarios=value.split(",");
+        else if ("threadPool".equals(name))
+            _threadPool=value;
+        else if ("maxThreads".equals(name))
+            _maxThreads=Integer.parseInt(value);
+        else if ("concurrency".equals(name))
+            _concurrency=Integer.parseInt(value);
+        else if ("requests".equals(name))
+            _requests=Integer.parseInt(value);
+        else if ("warmup".equals(name))
+            _warmup=Integer.parseInt(value);
+        else if ("poll".equals(name))
+            _poll=Integer.parseInt(value);
+        else
+            throw new IllegalArgumentException("Unknown argument: "+arg);
+    }
+
+    /* ------------------------------------------------------------ */
+    ThreadPool newThreadPool()
+    {
+        if ("queued".equals(_threadPool))
+        {
+            QueuedThreadPool pool = new QueuedThreadPool(_maxThreads);
+            pool.setMaxIdleTimeMs(600000);
+            return pool;
+        }
+        if ("concurrent".equals(_threadPool))
+        {
+            org.mortbay.thread.concurrent.QueuedThreadPool pool = new org.mortbay.thread.concurrent.QueuedThreadPool(_maxThreads);
+            pool.setMaxIdleTimeMs(600000);
+            return pool;
+        }
+        if ("executor".equals(_threadPool))
+            return new org.mortbay.thread.concurrent.ThreadPool(_maxThreads,_maxThreads,600000,TimeUnit.MILLISECONDS);
+        throw new IllegalArgumentException("Unknown threadPool: "+_threadPool);
+    }
+
+    /* ------------------------------------------------------------ */
+    void start() throws Exception
+    {
+        _docroot=File.createTempFile("benchmark",".dir");
+        _docroot.delete();
+        _docroot.mkdir();
+        byte[] content=new byte[STATIC_SIZE];
+        Arrays.fill(content,(byte)'x');
+        FileOutputStream out = new FileOutputStream(new File(_docroot,"static.txt"));
+        out.write(content);
+        out.close();
+        
+        _server=new Server();
+        _server.setThreadPool(newThreadPool());
+        
+        _select=new SelectChannelConnector();
+        _select.setHost("127.0.0.1");
+        _select.setPort(0);
+        _select.setAcceptQueueSize(_concurrency*2);
+        _socket=new SocketConnector();
+        _socket.setHost("127.0.0.1");
+        _socket.setPort(0);
+        _socket.setAcceptQueueSize(_concurrency*2);
+        _local=new LocalConnector[_concurrency];
+        Connector[] connectors = new Connector[2+_concurrency];
+        connectors[0]=_select;
+        connectors[1]=_socket;
+        for (int i=0;i<_concurrency;i++)
+            connectors[2+i]=_local[i]=new LocalConnector();
+        _server.setConnectors(connectors);
+        
+        Context context = new Context(_server,"/",Context.NO_SESSIONS);
+        context.setResourceBase(_docroot.getAbsolutePath());
+        context.addServlet(new ServletHolder(new SmallServlet()),"/servlet");
+        context.addServlet(new ServletHolder(new LongPollServlet(_poll)),"/longpoll");
+        context.addServlet(new ServletHolder(new DefaultServlet()),"/");
+        
+        _server.start();
+        
+        _client=new HttpClient();
+        _client.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        _client.setMaxConnectionsPerAddress(_concurrency);
+        _client.setThreadPool(new QueuedThreadPool(_concurrency*2+16));
+        _client.start();
+    }
+
+    /* ------------------------------------------------------------ */
+    void stop() throws Exception
+    {
+        if (_client!=null)
+            _client.stop();
+        if (_server!=null)
+            _server.stop();
+        if (_docroot!=null)
+            IO.delete(_docroot);
+    }
+
+    /* ------------------------------------------------------------ */
+    void run() throws Exception
+    {
+        System.err.println("threadPool="+_threadPool+" maxThreads="+_maxThreads+" concurrency="+_concurrency+
+                " requests="+_requests+" warmup="+_warmup+" poll="+_poll+"ms");
+        System.err.println(String.format("%-9s %-9s %10s %10s %9s %9s %9s %12s %7s",
+                "connector","scenario","requests","req/s","p50(ms)","p99(ms)","p999(ms)","bytes/req","errors"));
+        
+        for (int c=0;c<_connectors.length;c++)
+        {
+            for (int s=0;s<_scenarios.length;s++)
+            {
+                String path="/"+_scenarios[s]+(_scenarios[s].equals("static")?".txt":"");
+                load(_connectors[c],path,_warmup);
+                Result result=load(_connectors[c],path,_requests);
+                System.err.println(String.format("%-9s %-9s %10d %10.0f %9.3f %9.3f %9.3f %12d %7d",
+                        _connectors[c],_scenarios[s],result._requests,result.getThroughput(),
+                        result.getPercentile(0.5),result.getPercentile(0.99),result.getPercentile(0.999),
+                        result.getBytesPerRequest(),result._errors));
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Send requests with a fixed number of client threads.
+     * @param connector The connector type to send the requests to
+     * @param path The path of the requests
+     * @param requests The total number of requests
+     * @return The result
+     */
+    Result load(final String connector, final String path, int requests) throws Exception
+    {
+        final int perClient=Math.max(1,requests/_concurrency);
+        final Result result=new Result(perClient*_concurrency);
+        final CountDownLatch ready=new CountDownLatch(_concurrency);
+        final CountDownLatch go=new CountDownLatch(1);
+        final CountDownLatch done=new CountDownLatch(_concurrency);
+        final long[] clients=new long[_concurrency];
+        
+        for (int i=0;i<_concurrency;i++)
+        {
+            final int client=i;
+            Thread thread = new Thread("client-"+i)
+            {
+                public void run()
+                {
+                    // count the allocations of this thread before it exits
+                    long allocated=-1;
+                    try
+                    {
+                        Client c = newClient(connector,client,path);
+                        ready.countDown();
+                        go.await();
+                        allocated=getAllocatedBytes(getId());
+                        for (int r=0;r<perClient;r++)
+                        {
+                            long start=System.nanoTime();
+                            boolean ok=c.request();
+                            result._latencies[client*perClient+r]=System.nanoTime()-start;
+                            if (!ok)
+                                result.error();
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        e.printStackTrace();
+                        result.error();
+                    }
+                    finally
+                    {
+                        if (allocated>=0)
+                            result.allocated(getAllocatedBytes(getId())-allocated);
+                        done.countDown();
+                    }
+                }
+            };
+            thread.setDaemon(true);
+            clients[i]=thread.getId();
+            thread.start();
+        }
+        
+        ready.await();
+        Map<Long,Long> allocated=getAllocatedBytes(clients);
+        long start=System.nanoTime();
+        go.countDown();
+        done.await();
+        result._nanos=System.nanoTime()-start;
+        if (allocated==null)
+            result._allocated=-1;
+        else
+        {
+            // add the allocations of the other threads
+            for (Map.Entry<Long,Long> entry : getAllocatedBytes(clients).entrySet())
+            {
+                Long before=allocated.get(entry.getKey());
+                result.allocated(entry.getValue()-(before==null?0:before));
+            }
+        }
+        return result;
+    }
+
+    /* ------------------------------------------------------------ */
+    Client newClient(String connector, int client, String path) throws IOException
+    {
+        if ("select".equals(connector))
+            return new HttpClientClient(_select.getLocalPort(),path);
+        if ("socket".equals(connector))
+            return new HttpClientClient(_socket.getLocalPort(),path);
+        if ("local".equals(connector))
+            return new LocalClient(_local[client],path);
+        throw new IllegalArgumentException("Unknown connector: "+connector);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The bean that reports the bytes allocated by threads, or null if not supported by the JVM.
+     */
+    static com.sun.management.ThreadMXBean getAllocationMXBean()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean)threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported())
+            return null;
+        if (!sunThreads.isThreadAllocatedMemoryEnabled())
+            sunThreads.setThreadAllocatedMemoryEnabled(true);
+        return sunThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param id The id of a live thread
+     * @return The bytes allocated by the thread, or -1 if not supported by the JVM.
+     */
+    static long getAllocatedBytes(long id)
+    {
+        com.sun.management.ThreadMXBean threads = getAllocationMXBean();
+        return threads==null?-1:threads.getThreadAllocatedBytes(id);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param exclude The ids of threads not to report
+     * @return The bytes allocated by each live thread, as a map from the thread id,
+     * or null if not supported by the JVM.
+     */
+    static Map<Long,Long> getAllocatedBytes(long[] exclude)
+    {
+        com.sun.management.ThreadMXBean threads = getAllocationMXBean();
+        if (threads==null)
+            return null;
+        
+        long[] ids=threads.getAllThreadIds();
+        long[] allocated=threads.getThreadAllocatedBytes(ids);
+        Map<Long,Long> map=new HashMap<Long,Long>();
+        loop: for (int i=0;i<ids.length;i++)
+        {
+            if (allocated[i]<0)
+                continue;
+            for (int j=0;j<exclude.length;j++)
+                if (exclude[j]==ids[i])
+                    continue loop;
+            map.put(ids[i],allocated[i]);
+        }
+        return map;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class Result
+    {
+        final long[] _latencies;
+        final int _requests;
+        long _nanos;
+        long _allocated;
+        int _errors;
+
+        /* ------------------------------------------------------------ */
+        Result(int requests)
+        {
+            _requests=requests;
+            _latencies=new long[requests];
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void error()
+        {
+            _errors++;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized void allocated(long bytes)
+        {
+            _allocated+=bytes;
+        }
+
+        /* ------------------------------------------------------------ */
+        double getThroughput()
+        {
+            return _requests*1000000000.0/_nanos;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param percentile The percentile between 0.0 and 1.0 
+         * @return The latency in ms.
+         */
+        double getPercentile(double percentile)
+        {
+            long[] sorted=_latencies.clone();
+            Arrays.sort(sorted);
+            int index=(int)Math.ceil(percentile*sorted.length)-1;
+            return sorted[Math.max(0,index)]/1000000.0;
+        }
+
+        /* ------------------------------------------------------------ */
+        synchronized long getBytesPerRequest()
+        {
+            return _allocated<0?-1:_allocated/_requests;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    interface Client
+    {
+        /**
+         * Send a request and wait for the response.
+         * @return true if the response was a 200
+         */
+        boolean request() throws Exception;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    class HttpClientClient implements Client
+    {
+        final String _url;
+
+        /* ------------------------------------------------------------ */
+        HttpClientClient(int port, String path)
+        {
+            _url="http://127.0.0.1:"+port+path;
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean request() throws Exception
+        {
+            ContentExchange exchange = new ContentExchange();
+            exchange.setURL(_url);
+            _client.send(exchange);
+            int status=exchange.waitForDone();
+            return status==HttpExchange.STATUS_COMPLETED && exchange.getResponseStatus()==200;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class LocalClient implements Client
+    {
+        final LocalConnector _connector;
+        final String _request;
+
+        /* ------------------------------------------------------------ */
+        LocalClient(LocalConnector connector, String path)
+        {
+            _connector=connector;
+            _request="GET "+path+" HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean request() throws Exception
+        {
+            _connector.clear();
+            ByteArrayBuffer response=_connector.getResponses(new ByteArrayBuffer(_request),false);
+            return response.length()>12 && response.peek(response.getIndex()+9)=='2';
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class SmallServlet extends HttpServlet
+    {
+        private static final long serialVersionUID=1L;
+
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            response.setContentType("text/plain");
+            response.getWriter().print("Hello World\n");
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    static class LongPollServlet extends HttpServlet
+    {
+        private static final long serialVersionUID=1L;
+
+        final long _poll;
+
+        /* ------------------------------------------------------------ */
+        LongPollServlet(long poll)
+        {
+            _poll=poll;
+        }
+
+        /* ------------------------------------------------------------ */
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException
+        {
+            // Wait for an event that never comes, so the poll always times out.
+            Continuation continuation = ContinuationSupport.getContinuation(request,null);
+            continuation.suspend(_poll);
+            response.setContentType("text/plain");
+            response.getWriter().print("No events\n");
+        }
+    }
+}
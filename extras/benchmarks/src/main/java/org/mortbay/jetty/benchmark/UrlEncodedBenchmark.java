@@ -0,0 +1,86 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+
+package org.mortbay.jetty.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mortbay.util.MultiMap;
+import org.mortbay.util.StringUtil;
+import org.mortbay.util.UrlEncoded;
+import org.mortbay.util.Utf8StringBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/* ------------------------------------------------------------ */
+/** UrlEncoded benchmark.
+ * <p>
+ * Decodes a typical form or query string, both from a String (as for query strings) and
+ * from UTF-8 bytes (as for form content), into a reused {@link MultiMap}.
+ * 
+ * @author gregw
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=5, time=1)
+@Fork(1)
+public class UrlEncodedBenchmark
+{
+    final static String FORM=
+        "name=Joe+Bloggs&email=joe%40example.com&address=1+Main+St%2C+Springfield"+
+        "&country=AU&subscribe=on&comment=Caf%C3%A9+au+lait+is+%E2%82%AC3&id=12345"+
+        "&item=apple&item=orange&item=pear&empty=&token=a3f5c7e9b1d2";
+
+    byte[] _raw;
+    MultiMap _map;
+    Utf8StringBuffer _buffer;
+
+    /* ------------------------------------------------------------ */
+    @Setup
+    public void setUp() throws Exception
+    {
+        _raw=FORM.getBytes(StringUtil.__ISO_8859_1);
+        _map=new MultiMap();
+        _buffer=new Utf8StringBuffer();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int decodeString()
+    {
+        _map.clear();
+        UrlEncoded.decodeTo(FORM,_map,StringUtil.__UTF8);
+        return _map.size();
+    }
+
+    /* ------------------------------------------------------------ */
+    @Benchmark
+    public int decodeUtf8()
+    {
+        _map.clear();
+        UrlEncoded.decodeUtf8To(_raw,0,_raw.length,_map,_buffer);
+        return _map.size();
+    }
+}
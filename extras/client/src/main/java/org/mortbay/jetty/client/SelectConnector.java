@@ -168,6 +168,8 @@ class SelectConnector extends AbstractLifeCycle implements HttpClient.Connector,
                 buffers.setHeaderBufferSize( sslEngine.getSession().getApplicationBufferSize());
                 buffers.setRequestBufferSize( sslEngine.getSession().getApplicationBufferSize());
                 buffers.setResponseBufferSize(sslEngine.getSession().getApplicationBufferSize());
+                buffers.setUseBufferPool(_httpClient.getUseBufferPool());
+                buffers.setMaxBufferPoolSize(_httpClient.getMaxBufferPoolSize());
 
                 try
                 {
@@ -33,6 +33,7 @@ import org.mortbay.io.nio.SelectorManager;
 import org.mortbay.jetty.EofException;
 import org.mortbay.jetty.nio.SelectChannelConnector;
 import org.mortbay.log.Log;
+import org.mortbay.thread.Timeout;
 
 /* ------------------------------------------------------------ */
 /**
@@ -61,6 +62,19 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
     private boolean _handshook=false;
     private boolean _allowRenegotiate=false;
 
+    // handshake tasks
+    private static final int __TASK_NONE=0;     // no delegated task offloaded
+    private static final int __TASK_RUNNING=1;  // task running, endpoint dispatched
+    private static final int __TASK_PARKED=2;   // task running, endpoint undispatched 
+    private static final int __TASK_DONE=3;     // task done while endpoint dispatched
+    private static final long __TASK_RETRY=10;  // ms to wait when the handshake queue is full
+    private SslSelectChannelConnector _connector;
+    private int _task=__TASK_NONE;
+    private boolean _taskCheck;
+    private boolean _taskRan;
+    private final long _created=System.currentTimeMillis();
+    private boolean _handshakeRecorded;
+
 
     // ssl
     protected SSLSession _session;
@@ -106,6 +120,16 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
         _allowRenegotiate = allowRenegotiate;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @param connector The connector that runs the delegated tasks of the initial handshake and
+     * records handshake statistics, or null to run delegated tasks on the filling thread.
+     */
+    void setConnector(SslSelectChannelConnector connector)
+    {
+        _connector=connector;
+    }
+
     /* ------------------------------------------------------------ */
     // TODO get rid of these dumps
     public void dump()
@@ -267,6 +291,17 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
      */
     public int fill(Buffer buffer) throws IOException
     {
+        boolean resume;
+        synchronized (this)
+        {
+            // wait for an offloaded handshake task
+            if (_task==__TASK_RUNNING || _task==__TASK_PARKED)
+                return 0;
+            _task=__TASK_NONE;
+            resume=_taskRan;
+            _taskRan=false;
+        }
+        
         ByteBuffer bbuf=extractInputBuffer(buffer);
         int size=buffer.length();
         HandshakeStatus initialStatus = _engine.getHandshakeStatus();
@@ -274,7 +309,17 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
         {
             try
             {
-                unwrap(bbuf);
+                if (_taskCheck)
+                {
+                    // check the result of an offloaded task for the jvm bug below
+                    _taskCheck=false;
+                    if (_engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP)
+                        return -1;
+                }
+                
+                // continue the handshake from where an offloaded task left it
+                if (!resume)
+                    unwrap(bbuf);
 
                 int wraps=0;
                 loop: while (true)
@@ -305,6 +350,20 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
 
                         case NEED_TASK:
                         {
+                            if (!_handshook && _connector!=null && _connector.getHandshakeThreads()>0)
+                            {
+                                // run the tasks of the initial handshake on the connector executor
+                                _taskCheck=initialStatus==HandshakeStatus.NOT_HANDSHAKING && wraps==0;
+                                if (!runDelegatedTasks())
+                                    break loop;
+                                
+                                // the task was run by this thread 
+                                if (_taskCheck && _engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP)
+                                    return -1;
+                                _taskCheck=false;
+                                break;
+                            }
+                            
                             Runnable task;
                             while ((task=_engine.getDelegatedTask())!=null)
                             {
@@ -346,6 +405,7 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
                                     }
                                     
                                     _outNIOBuffer.setPutIndex(put+_result.bytesProduced());
+                                    handshakeFinished();
                                 }
                                 finally
                                 {
@@ -465,6 +525,14 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
 
                 case NEED_TASK:
                 {
+                    if (!_handshook && _connector!=null && _connector.getHandshakeThreads()>0)
+                    {
+                        // run the tasks of the initial handshake on the connector executor
+                        if (!runDelegatedTasks())
+                            break loop;
+                        break;
+                    }
+                    
                     Runnable task;
                     while ((task=_engine.getDelegatedTask())!=null)
                     {
@@ -494,6 +562,7 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
                                     _closing=true;
                             }
                             _outNIOBuffer.setPutIndex(put+_result.bytesProduced());
+                            handshakeFinished();
                         }
                         finally
                         {
@@ -531,6 +600,131 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
         }
     }
     
+    /* ------------------------------------------------------------ */
+    /* 
+     * @see org.mortbay.jetty.nio.SelectChannelConnector.ConnectorEndPoint#undispatch()
+     */
+    public void undispatch()
+    {
+        boolean redispatch=false;
+        synchronized (this)
+        {
+            // stay dispatched while an offloaded handshake task runs
+            if (_task==__TASK_RUNNING)
+            {
+                _task=__TASK_PARKED;
+                return;
+            }
+            if (_task==__TASK_DONE)
+            {
+                _task=__TASK_NONE;
+                redispatch=true;
+            }
+        }
+        
+        if (redispatch)
+            redispatch();
+        else
+            super.undispatch();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Run the delegated tasks of the engine with the handshake executor of the connector.
+     * The endpoint stays dispatched while they run and is dispatched again when they are done,
+     * as no IO can progress the handshake until then. If the handshake threads are too busy 
+     * to queue the tasks, they are queued again after a short wait.
+     * @return True if the tasks were run by the calling thread, false if they are being
+     * run or waiting to be run by another thread.
+     */
+    private boolean runDelegatedTasks()
+    {
+        synchronized (this)
+        {
+            // the tasks may have been offloaded by a fill or flush already
+            if (_task==__TASK_RUNNING || _task==__TASK_PARKED)
+                return false;
+            _task=__TASK_RUNNING;
+        }
+        
+        final Runnable tasks=new Runnable()
+        {
+            public void run()
+            {
+                boolean redispatch=false;
+                try
+                {
+                    Runnable task;
+                    while ((task=_engine.getDelegatedTask())!=null)
+                        task.run();
+                }
+                finally
+                {
+                    synchronized (SslHttpChannelEndPoint.this)
+                    {
+                        _taskRan=true;
+                        redispatch=_task==__TASK_PARKED;
+                        _task=redispatch?__TASK_NONE:__TASK_DONE;
+                    }
+                }
+                if (redispatch)
+                    redispatch();
+            }
+        };
+        
+        if (!_connector.executeHandshakeTask(tasks))
+        {
+            // The queue is full, so the endpoint waits without a thread and tries again later
+            _selectSet.scheduleTimeout(new Timeout.Task()
+            {
+                public void expired()
+                {
+                    if (isOpen() && !_connector.executeHandshakeTask(tasks))
+                        _selectSet.scheduleTimeout(this,__TASK_RETRY);
+                }
+            },__TASK_RETRY);
+            _selectSet.wakeup();
+        }
+        
+        synchronized (this)
+        {
+            if (_task!=__TASK_DONE)
+                return false;
+            _task=__TASK_NONE;
+            _taskRan=false;
+            return true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private void redispatch()
+    {
+        try
+        {
+            if (_selectSet.getManager().dispatch(this))
+                return;
+        }
+        catch(IOException e)
+        {
+            Log.ignore(e);
+        }
+        
+        Log.warn("dispatch failed!");
+        run();
+    }
+
+    /* ------------------------------------------------------------ */
+    private void handshakeFinished()
+    {
+        if (!_handshakeRecorded && _result.getHandshakeStatus()==HandshakeStatus.FINISHED)
+        {
+            _handshakeRecorded=true;
+            // a resumed session was created before this connection
+            if (_connector!=null)
+                _connector.handshakeCompleted(System.currentTimeMillis()-_created,_engine.getSession().getCreationTime()<_created);
+        }
+    }
+
     /* ------------------------------------------------------------ */
     private void checkRenegotiate() throws IOException
     {
@@ -601,6 +795,7 @@ public class SslHttpChannelEndPoint extends SelectChannelConnector.ConnectorEndP
             _result=null;
             _result=_engine.unwrap(_inBuffer,buffer);
             _inNIOBuffer.skip(_result.bytesConsumed());
+            handshakeFinished();
         }
         finally
         {
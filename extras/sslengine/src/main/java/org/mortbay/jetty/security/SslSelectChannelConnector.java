@@ -27,8 +27,16 @@ import java.security.Security;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
@@ -36,6 +44,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -117,6 +126,21 @@ public class SslSelectChannelConnector extends SelectChannelConnector
     private ConcurrentLinkedQueue<Buffer> _applicationBuffers = new ConcurrentLinkedQueue<Buffer>();
     private boolean _allowRenegotiate=false;
     
+    private int _handshakeThreads=Runtime.getRuntime().availableProcessors();
+    private int _maxHandshakeTasks=1024;
+    private transient ThreadPoolExecutor _handshakeExecutor;
+    private int _sslSessionCacheSize=-1;
+    private int _sslSessionTimeout=-1;
+    private SSLContext _sslContext;
+    private final AtomicLong _handshakes=new AtomicLong();
+    private final AtomicLong _handshakesResumed=new AtomicLong();
+    private final AtomicLong _handshakesDurationTotal=new AtomicLong();
+    private final AtomicLong _handshakesDurationMax=new AtomicLong();
+    private final AtomicLong _handshakeTasks=new AtomicLong();
+    private final AtomicLong _handshakeTasksDurationTotal=new AtomicLong();
+    private final AtomicLong _handshakeTasksDeferred=new AtomicLong();
+    private volatile long _handshakesStartedAt=System.currentTimeMillis();
+    
     /* ------------------------------------------------------------ */
     /* (non-Javadoc)
      * @see org.mortbay.jetty.AbstractBuffers#getBuffer(int)
@@ -310,7 +334,319 @@ public class SslSelectChannelConnector extends SelectChannelConnector
     {
         _allowRenegotiate = allowRenegotiate;
     }
-    
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of threads that run the delegated tasks of SSL handshakes.
+     */
+    public int getHandshakeThreads()
+    {
+        return _handshakeThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the number of threads that run the delegated tasks (eg key exchange computations) 
+     * of initial SSL handshakes. This limits the number of handshakes that use CPU at once, 
+     * and keeps expensive handshakes from holding threads of the thread pool.  
+     * @param handshakeThreads The number of handshake threads, or 0 to run the delegated 
+     * tasks on the thread that fills the connection (default number of processors).
+     */
+    public void setHandshakeThreads(int handshakeThreads)
+    {
+        _handshakeThreads=handshakeThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of handshake tasks queued for the handshake threads.
+     */
+    public int getMaxHandshakeTasks()
+    {
+        return _maxHandshakeTasks;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxHandshakeTasks The maximum number of handshake tasks queued for the handshake
+     * threads. When the queue is full, a connection waits without a thread and tries to queue
+     * its tasks again after a short delay.
+     */
+    public void setMaxHandshakeTasks(int maxHandshakeTasks)
+    {
+        _maxHandshakeTasks=maxHandshakeTasks;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of SSL sessions kept for resumption, or -1 for the default of the JVM.
+     */
+    public int getSslSessionCacheSize()
+    {
+        return _sslSessionCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the size of the server session cache of the SSLContext. A client that presents a 
+     * cached session resumes it with an abbreviated handshake rather than a full key exchange.
+     * @param sslSessionCacheSize The maximum number of SSL sessions kept for resumption, 0 for
+     * no limit or -1 for the default of the JVM.
+     */
+    public void setSslSessionCacheSize(int sslSessionCacheSize)
+    {
+        _sslSessionCacheSize=sslSessionCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The time in seconds that SSL sessions are kept for resumption, or -1 for the default of the JVM.
+     */
+    public int getSslSessionTimeout()
+    {
+        return _sslSessionTimeout;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param sslSessionTimeout The time in seconds that SSL sessions are kept for resumption, 
+     * 0 for no limit or -1 for the default of the JVM.
+     */
+    public void setSslSessionTimeout(int sslSessionTimeout)
+    {
+        _sslSessionTimeout=sslSessionTimeout;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The SSLContext used by the connector. 
+     */
+    public SSLContext getSslContext()
+    {
+        return _context!=null?_context:_sslContext;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the SSLContext used by the connector instead of one created from the keystore and 
+     * truststore. The server session cache belongs to the SSLContext, so connectors given the
+     * same context share their SSL sessions, and a client may resume on one connector a session 
+     * negotiated with another. The session cache size and timeout of the last started connector 
+     * apply.
+     * @param sslContext The SSLContext, or null to create one when started.
+     */
+    public void setSslContext(SSLContext sslContext)
+    {
+        _sslContext=sslContext;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of SSL sessions held in the server session cache.
+     */
+    public int getSslSessionsCached()
+    {
+        SSLContext context=_context;
+        if (context==null)
+            return 0;
+        int sessions=0;
+        for (Enumeration<byte[]> ids=context.getServerSessionContext().getIds();ids.hasMoreElements();ids.nextElement())
+            sessions++;
+        return sessions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of completed initial handshakes since statsReset() called.
+     */
+    public long getHandshakes()
+    {
+        return _handshakes.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of completed initial handshakes that resumed a cached SSL session 
+     * since statsReset() called.
+     */
+    public long getHandshakesResumed()
+    {
+        return _handshakesResumed.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of completed initial handshakes that negotiated a new SSL session 
+     * since statsReset() called.
+     */
+    public long getHandshakesFull()
+    {
+        return _handshakes.get()-_handshakesResumed.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The average number of initial handshakes completed per second since statsReset() called.
+     */
+    public long getHandshakesPerSecond()
+    {
+        long duration=System.currentTimeMillis()-_handshakesStartedAt;
+        return duration<=0?0:(_handshakes.get()*1000/duration);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The average time in ms from accepting a connection until its initial handshake 
+     * completed, since statsReset() called.
+     */
+    public long getHandshakesDurationAve()
+    {
+        long handshakes=_handshakes.get();
+        return handshakes==0?0:(_handshakesDurationTotal.get()/handshakes);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum time in ms from accepting a connection until its initial handshake 
+     * completed, since statsReset() called.
+     */
+    public long getHandshakesDurationMax()
+    {
+        return _handshakesDurationMax.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of offloaded handshake tasks run since statsReset() called.
+     */
+    public long getHandshakeTasks()
+    {
+        return _handshakeTasks.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times handshake tasks could not be queued because the queue was
+     * full, since statsReset() called.
+     */
+    public long getHandshakeTasksDeferred()
+    {
+        return _handshakeTasksDeferred.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The average time in ms that offloaded handshake tasks waited and ran
+     * since statsReset() called.
+     */
+    public long getHandshakeTasksDurationAve()
+    {
+        long tasks=_handshakeTasks.get();
+        return tasks==0?0:(_handshakeTasksDurationTotal.get()/tasks);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of delegated handshake tasks waiting for a handshake thread.
+     */
+    public int getHandshakeTasksQueued()
+    {
+        ThreadPoolExecutor executor=_handshakeExecutor;
+        return executor==null?0:executor.getQueue().size();
+    }
+
+    /* ------------------------------------------------------------ */
+    /* 
+     * @see org.mortbay.jetty.AbstractConnector#statsReset()
+     */
+    public void statsReset()
+    {
+        super.statsReset();
+        _handshakes.set(0);
+        _handshakesResumed.set(0);
+        _handshakesDurationTotal.set(0);
+        _handshakesDurationMax.set(0);
+        _handshakeTasks.set(0);
+        _handshakeTasksDurationTotal.set(0);
+        _handshakeTasksDeferred.set(0);
+        _handshakesStartedAt=System.currentTimeMillis();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Run the delegated tasks of a handshake on a handshake thread.
+     * If there is no handshake thread, or the connector has been stopped, the task is run 
+     * by the calling thread.
+     * @param task The task that runs the delegated tasks.
+     * @return True if the task was run or queued, false if the queue of tasks is full.
+     */
+    boolean executeHandshakeTask(final Runnable task)
+    {
+        ThreadPoolExecutor executor=_handshakeExecutor;
+        if (executor==null)
+        {
+            task.run();
+            return true;
+        }
+        
+        final long queued=System.currentTimeMillis();
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        task.run();
+                    }
+                    finally
+                    {
+                        _handshakeTasks.incrementAndGet();
+                        _handshakeTasksDurationTotal.addAndGet(System.currentTimeMillis()-queued);
+                    }
+                }
+            });
+            return true;
+        }
+        catch(RejectedExecutionException e)
+        {
+            if (!executor.isShutdown())
+            {
+                _handshakeTasksDeferred.incrementAndGet();
+                return false;
+            }
+            task.run();
+            return true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param duration The time in ms from accepting a connection until its initial handshake completed.
+     * @param resumed True if the handshake resumed a cached SSL session.
+     */
+    void handshakeCompleted(long duration, boolean resumed)
+    {
+        _handshakes.incrementAndGet();
+        if (resumed)
+            _handshakesResumed.incrementAndGet();
+        _handshakesDurationTotal.addAndGet(duration);
+        long max=_handshakesDurationMax.get();
+        while (duration>max && !_handshakesDurationMax.compareAndSet(max,duration))
+            max=_handshakesDurationMax.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return false, as content must pass through the SSLEngine and
+     * cannot be transferred directly from a file to the channel.
+     */
+    public boolean getUseFileTransfer()
+    {
+        return false;
+    }
+
     /**
      * 
      * @deprecated As of Java Servlet API 2.0, with no replacement.
@@ -541,6 +877,7 @@ public class SslSelectChannelConnector extends SelectChannelConnector
     {
         SslHttpChannelEndPoint endp = new SslHttpChannelEndPoint(this,channel,selectSet,key,createSSLEngine());
         endp.setAllowRenegotiate(_allowRenegotiate);
+        endp.setConnector(this);
         return endp;
     }
 
@@ -595,16 +932,53 @@ public class SslSelectChannelConnector extends SelectChannelConnector
    
     protected void doStart() throws Exception
     {
-        _context=createSSLContext();
+        _context=_sslContext!=null?_sslContext:createSSLContext();
+        SSLSessionContext sessions=_context.getServerSessionContext();
+        if (sessions!=null)
+        {
+            if (_sslSessionCacheSize>=0)
+                sessions.setSessionCacheSize(_sslSessionCacheSize);
+            if (_sslSessionTimeout>=0)
+                sessions.setSessionTimeout(_sslSessionTimeout);
+        }
+        
         SSLEngine engine=_context.createSSLEngine();
         SSLSession session=engine.getSession();
         if (getHeaderBufferSize()<session.getApplicationBufferSize())
             setHeaderBufferSize(session.getApplicationBufferSize());
         if (getRequestBufferSize()<session.getApplicationBufferSize())
             setRequestBufferSize(session.getApplicationBufferSize());
+        
+        if (_handshakeThreads>0)
+        {
+            _handshakeExecutor=new ThreadPoolExecutor(_handshakeThreads,_handshakeThreads,
+                60,TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(_maxHandshakeTasks>0?_maxHandshakeTasks:Integer.MAX_VALUE),
+                new ThreadFactory()
+                {
+                    final AtomicInteger _id=new AtomicInteger();
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread=new Thread(runnable,"SslHandshake-"+_id.incrementAndGet()+" "+SslSelectChannelConnector.this);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        _handshakesStartedAt=System.currentTimeMillis();
         super.doStart();
     }
 
+    /* ------------------------------------------------------------ */
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+        ThreadPoolExecutor executor=_handshakeExecutor;
+        _handshakeExecutor=null;
+        if (executor!=null)
+            executor.shutdown();
+    }
+
     protected SSLContext createSSLContext() throws Exception
     {
         if (_truststore==null)
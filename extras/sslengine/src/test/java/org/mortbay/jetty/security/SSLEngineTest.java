@@ -31,6 +31,7 @@ import java.net.Socket;
 import java.net.URL;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.concurrent.CountDownLatch;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -146,7 +147,149 @@ public class SSLEngineTest extends TestCase
         String response = IO.toString(client.getInputStream());
         System.err.println("response "+response.length());
         assertTrue(response.length()>102400);
+        
+        // the initial handshake tasks were run by the handshake executor
+        assertEquals(1,connector.getHandshakes());
+        assertTrue(connector.getHandshakeTasks()>0);
     }
+
+    /**
+     * Resume a cached SSL session with a second connection.
+     * 
+     * @throws Exception
+     */
+    public void testSessionResumption() throws Exception
+    {
+        Server server=new Server();
+        SslSelectChannelConnector connector=new SslSelectChannelConnector();
+
+        String keystore = System.getProperty("user.dir")+File.separator+"src"+File.separator+"test"+File.separator+"resources"+File.separator+"keystore";
+        
+        connector.setPort(0);
+        connector.setKeystore(keystore);
+        connector.setPassword("storepwd");
+        connector.setKeyPassword("keypwd");
+        connector.setSslSessionCacheSize(100);
+        connector.setSslSessionTimeout(60);
+
+        server.setConnectors(new Connector[]
+        { connector });
+        server.setHandler(new HelloWorldHandler());
+        server.start();
+        try
+        {
+            assertEquals(100,connector.getSslContext().getServerSessionContext().getSessionCacheSize());
+            assertEquals(60,connector.getSslContext().getServerSessionContext().getSessionTimeout());
+            
+            SSLContext ctx=SSLContext.getInstance("TLS");
+            ctx.init(null,s_dummyTrustManagers,new java.security.SecureRandom());
+
+            for (int i=0;i<2;i++)
+            {
+                Socket client=ctx.getSocketFactory().createSocket("localhost",connector.getLocalPort());
+                OutputStream os=client.getOutputStream();
+                os.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes());
+                os.flush();
+                assertTrue(IO.toString(client.getInputStream()).startsWith("HTTP/1.1 200"));
+                client.close();
+            }
+
+            assertEquals(2,connector.getHandshakes());
+            assertEquals(1,connector.getHandshakesFull());
+            assertEquals(1,connector.getHandshakesResumed());
+            assertTrue(connector.getSslSessionsCached()>0);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+    /**
+     * Wait without a thread for the handshake threads when their queue is full.
+     * 
+     * @throws Exception
+     */
+    public void testHandshakeQueueFull() throws Exception
+    {
+        Server server=new Server();
+        final SslSelectChannelConnector connector=new SslSelectChannelConnector();
+
+        String keystore = System.getProperty("user.dir")+File.separator+"src"+File.separator+"test"+File.separator+"resources"+File.separator+"keystore";
+        
+        connector.setPort(0);
+        connector.setKeystore(keystore);
+        connector.setPassword("storepwd");
+        connector.setKeyPassword("keypwd");
+        connector.setHandshakeThreads(1);
+        connector.setMaxHandshakeTasks(1);
+
+        server.setConnectors(new Connector[]
+        { connector });
+        server.setHandler(new HelloWorldHandler());
+        server.start();
+        final CountDownLatch busy=new CountDownLatch(1);
+        try
+        {
+            // occupy the handshake thread and fill its queue
+            Runnable block=new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        busy.await();
+                    }
+                    catch(InterruptedException e)
+                    {
+                    }
+                }
+            };
+            assertTrue(connector.executeHandshakeTask(block));
+            assertTrue(connector.executeHandshakeTask(block));
+            
+            final SSLContext ctx=SSLContext.getInstance("TLS");
+            ctx.init(null,s_dummyTrustManagers,new java.security.SecureRandom());
+            final String[] response=new String[1];
+            Thread client=new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Socket client=ctx.getSocketFactory().createSocket("localhost",connector.getLocalPort());
+                        client.setSoTimeout(10000);
+                        OutputStream os=client.getOutputStream();
+                        os.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes());
+                        os.flush();
+                        response[0]=IO.toString(client.getInputStream());
+                        client.close();
+                    }
+                    catch(IOException e)
+                    {
+                        response[0]=e.toString();
+                    }
+                }
+            };
+            client.start();
+            
+            // the handshake waits for the queue, not the calling thread
+            for (int i=0;i<100 && connector.getHandshakeTasksDeferred()==0;i++)
+                Thread.sleep(50);
+            assertTrue(connector.getHandshakeTasksDeferred()>0);
+            assertEquals(0,connector.getHandshakes());
+            
+            busy.countDown();
+            client.join(10000);
+            assertTrue(response[0],response[0].startsWith("HTTP/1.1 200"));
+            assertEquals(1,connector.getHandshakes());
+        }
+        finally
+        {
+            busy.countDown();
+            server.stop();
+        }
+    }
+
     // ~ Methods
     // ----------------------------------------------------------------
 
@@ -144,6 +144,7 @@ public class SslRenegotiateTest extends TestCase
             _outPacketB = ByteBuffer.allocate(session.getPacketBufferSize());
             _inAppB = ByteBuffer.allocate(session.getApplicationBufferSize());
             _inPacketB = ByteBuffer.allocate(session.getPacketBufferSize());
+            _inPacketB.flip();
             
             
             _outAppB.put("GET /1 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StringUtil.__ISO_8859_1));
@@ -262,26 +263,38 @@ public class SslRenegotiateTest extends TestCase
     
     private void doUnwrap() throws Exception
     {
-        _inPacketB.clear();
-        int l=_socket.read(_inPacketB);
-        // System.err.println("read "+l);
-        if (l<0)
-            throw new IOException("EOF");
-        
-        _inPacketB.flip();
+        // packets left over from the last read are unwrapped before reading more
+        if (!_inPacketB.hasRemaining())
+            doRead();
 
         SSLEngineResult result;
         do
         {
             result =_engine.unwrap(_inPacketB,_inAppB);
 //            System.err.println("unwrapped "+result.bytesConsumed()+" to "+result.bytesProduced()+" "+_engine.getHandshakeStatus());
-            
+            if (result.getStatus()==SSLEngineResult.Status.BUFFER_UNDERFLOW)
+            {
+                doRead();
+                continue;
+            }
         }
-        while(result.bytesConsumed()>0 &&
+        while(result.getStatus()==SSLEngineResult.Status.BUFFER_UNDERFLOW ||
+              result.bytesConsumed()>0 &&
               _inPacketB.remaining()>0 && 
               (_engine.getHandshakeStatus()==HandshakeStatus.NEED_UNWRAP || _engine.getHandshakeStatus()==HandshakeStatus.NOT_HANDSHAKING));
         
     }
+    
+    private void doRead() throws Exception
+    {
+        _inPacketB.compact();
+        int l=_socket.read(_inPacketB);
+        // System.err.println("read "+l);
+        if (l<0)
+            throw new IOException("EOF");
+        
+        _inPacketB.flip();
+    }
 
     private static class HelloWorldHandler extends AbstractHandler
     {
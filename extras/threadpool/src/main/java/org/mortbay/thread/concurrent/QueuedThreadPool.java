@@ -0,0 +1,682 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.thread.concurrent;
+
+import java.io.Serializable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.mortbay.component.AbstractLifeCycle;
+import org.mortbay.log.Log;
+import org.mortbay.thread.ThreadPool;
+
+/* ------------------------------------------------------------ */
+/** A lock free pool of threads.
+ * <p>
+ * A java 5 version of {@link org.mortbay.thread.QueuedThreadPool} with the same
+ * configuration and statistics, but without a lock shared by the dispatching and
+ * pool threads. Jobs are queued on a non blocking queue and idle threads are
+ * kept on a non blocking stack, from which a dispatched job wakes the most recently
+ * idle thread. Idle threads are parked rather than waiting on a monitor.
+ * <p>
+ * If no thread is idle and the number of queued jobs is more than
+ * {@link #getSpawnOrShrinkAt()}, a new thread is spawned up to {@link #getMaxThreads()}.
+ * A thread that is idle for longer than {@link #getMaxIdleTimeMs()} while more than
+ * {@link #getSpawnOrShrinkAt()} threads are idle is stopped, down to {@link #getMinThreads()}.
+ *
+ * @author gregw
+ */
+public class QueuedThreadPool extends AbstractLifeCycle implements Serializable, ThreadPool
+{
+    private String _name;
+    private transient ConcurrentHashMap<PoolThread,Boolean> _threads;
+    private transient ConcurrentLinkedQueue<Runnable> _jobs;
+    private final AtomicInteger _threadsStarted = new AtomicInteger();
+    private final AtomicInteger _queued = new AtomicInteger();
+    private final AtomicInteger _idleThreads = new AtomicInteger();
+    private final AtomicReference<Idle> _idle = new AtomicReference<Idle>();
+    private final AtomicLong _lastShrink = new AtomicLong();
+    private volatile int _maxQueued;
+
+    private final Object _joinLock = new Object();
+
+    private boolean _daemon;
+    private final AtomicInteger _id = new AtomicInteger();
+    private int _maxIdleTimeMs=60000;
+    private int _maxThreads=250;
+    private int _minThreads=2;
+    private int _lowThreads=0;
+    private int _priority= Thread.NORM_PRIORITY;
+    private int _spawnOrShrinkAt=0;
+    private int _maxStopTimeMs;
+
+    /* ------------------------------------------------------------------- */
+    public QueuedThreadPool()
+    {
+        _name="qtp-"+hashCode();
+    }
+
+    /* ------------------------------------------------------------------- */
+    public QueuedThreadPool(int maxThreads)
+    {
+        this();
+        setMaxThreads(maxThreads);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Run job.
+     * @return true
+     */
+    public boolean dispatch(Runnable job)
+    {
+        if (!isRunning() || job==null)
+            return false;
+
+        _jobs.offer(job);
+        int queued=_queued.incrementAndGet();
+        if (queued>_maxQueued)
+            _maxQueued=queued;
+
+        // Wake the most recently idle thread
+        Idle idle;
+        while ((idle=popIdle())!=null)
+        {
+            if (idle.wake())
+            {
+                _idleThreads.decrementAndGet();
+                LockSupport.unpark(idle._thread);
+                return true;
+            }
+        }
+
+        if (queued>_spawnOrShrinkAt)
+            startThread();
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the number of idle threads in the pool.
+     * @see #getThreads
+     * @return Number of threads
+     */
+    public int getIdleThreads()
+    {
+        return _idleThreads.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return low resource threads threshhold
+     */
+    public int getLowThreads()
+    {
+        return _lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return maximum queue size
+     */
+    public int getMaxQueued()
+    {
+        return _maxQueued;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the maximum thread idle time.
+     * @see #setMaxIdleTimeMs
+     * @return Max idle time in ms.
+     */
+    public int getMaxIdleTimeMs()
+    {
+        return _maxIdleTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the maximum number of threads.
+     * @see #setMaxThreads
+     * @return maximum number of threads.
+     */
+    public int getMaxThreads()
+    {
+        return _maxThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the minimum number of threads.
+     * @see #setMinThreads
+     * @return minimum number of threads.
+     */
+    public int getMinThreads()
+    {
+        return _minThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The name of the QueuedThreadPool.
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the number of threads in the pool.
+     * @see #getIdleThreads
+     * @return Number of threads
+     */
+    public int getThreads()
+    {
+        return _threadsStarted.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the priority of the pool threads.
+     *  @return the priority of the pool threads.
+     */
+    public int getThreadsPriority()
+    {
+        return _priority;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getQueueSize()
+    {
+        return _queued.get();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the spawnOrShrinkAt  The number of queued jobs (or idle threads) needed
+     * before the thread pool is grown (or shrunk)
+     */
+    public int getSpawnOrShrinkAt()
+    {
+        return _spawnOrShrinkAt;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param spawnOrShrinkAt The number of queued jobs (or idle threads) needed
+     * before the thread pool is grown (or shrunk)
+     */
+    public void setSpawnOrShrinkAt(int spawnOrShrinkAt)
+    {
+        _spawnOrShrinkAt=spawnOrShrinkAt;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return maximum total time that stop() will wait for threads to die.
+     */
+    public int getMaxStopTimeMs()
+    {
+        return _maxStopTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param stopTimeMs maximum total time that stop() will wait for threads to die.
+     */
+    public void setMaxStopTimeMs(int stopTimeMs)
+    {
+        _maxStopTimeMs = stopTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isDaemon()
+    {
+        return _daemon;
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isLowOnThreads()
+    {
+        return _queued.get()>_lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    public void join() throws InterruptedException
+    {
+        synchronized (_joinLock)
+        {
+            while (isRunning())
+                _joinLock.wait();
+        }
+
+        while (isStopping())
+            Thread.sleep(100);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void setDaemon(boolean daemon)
+    {
+        _daemon=daemon;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param lowThreads low resource threads threshhold
+     */
+    public void setLowThreads(int lowThreads)
+    {
+        _lowThreads = lowThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the maximum thread idle time.
+     * Threads that are idle for longer than this period may be
+     * stopped.
+     * @see #getMaxIdleTimeMs
+     * @param maxIdleTimeMs Max idle time in ms.
+     */
+    public void setMaxIdleTimeMs(int maxIdleTimeMs)
+    {
+        _maxIdleTimeMs=maxIdleTimeMs;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the maximum number of threads.
+     * @see #getMaxThreads
+     * @param maxThreads maximum number of threads.
+     */
+    public void setMaxThreads(int maxThreads)
+    {
+        if (isStarted() && maxThreads<_minThreads)
+            throw new IllegalArgumentException("!minThreads<maxThreads");
+        _maxThreads=maxThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the minimum number of threads.
+     * @see #getMinThreads
+     * @param minThreads minimum number of threads
+     */
+    public void setMinThreads(int minThreads)
+    {
+        if (isStarted() && (minThreads<=0 || minThreads>_maxThreads))
+            throw new IllegalArgumentException("!0<=minThreads<maxThreads");
+        _minThreads=minThreads;
+        while (isStarted() && _threadsStarted.get()<_minThreads)
+        {
+            if (!startThread())
+                break;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name Name of the QueuedThreadPool to use when naming Threads.
+     */
+    public void setName(String name)
+    {
+        _name= name;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Set the priority of the pool threads.
+     *  @param priority the new thread priority.
+     */
+    public void setThreadsPriority(int priority)
+    {
+        _priority=priority;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Start the QueuedThreadPool.
+     * Construct the minimum number of threads.
+     */
+    protected void doStart() throws Exception
+    {
+        if (_maxThreads<_minThreads || _minThreads<=0)
+            throw new IllegalArgumentException("!0<minThreads<maxThreads");
+
+        _threads=new ConcurrentHashMap<PoolThread,Boolean>();
+        _jobs=new ConcurrentLinkedQueue<Runnable>();
+        _queued.set(0);
+        _maxQueued=0;
+        _idleThreads.set(0);
+        _idle.set(null);
+        _lastShrink.set(0);
+
+        for (int i=0;i<_minThreads;i++)
+            startThread();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop the QueuedThreadPool.
+     * New jobs are no longer accepted, idle threads are interrupted
+     * and stopJob is called on active threads.
+     * The method then waits
+     * min(getMaxStopTimeMs(),getMaxIdleTimeMs()), for all jobs to
+     * stop.
+     */
+    protected void doStop() throws Exception
+    {
+        super.doStop();
+
+        long start=System.currentTimeMillis();
+        for (int i=0;i<100;i++)
+        {
+            for (PoolThread thread : _threads.keySet())
+                stopJob(thread,null);
+
+            Thread.yield();
+            if (_threadsStarted.get()==0 || (_maxStopTimeMs>0 && _maxStopTimeMs < (System.currentTimeMillis()-start)))
+               break;
+
+            try
+            {
+                Thread.sleep(i*100);
+            }
+            catch(InterruptedException e){}
+        }
+
+        if (_threadsStarted.get()>0)
+            Log.warn(_threadsStarted.get()+" threads could not be stopped");
+
+        _jobs.clear();
+        _queued.set(0);
+
+        synchronized (_joinLock)
+        {
+            _joinLock.notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Start a new thread if the maximum number of threads has not been reached.
+     * @return true if a thread was started.
+     */
+    protected boolean startThread()
+    {
+        while (true)
+        {
+            int threads=_threadsStarted.get();
+            if (threads>=_maxThreads)
+            {
+                Log.debug("Max threads for {}",this);
+                return false;
+            }
+            if (_threadsStarted.compareAndSet(threads,threads+1))
+                break;
+        }
+
+        boolean started=false;
+        try
+        {
+            PoolThread thread = new PoolThread();
+            thread.setName(thread.hashCode()+"@"+_name+"-"+_id.incrementAndGet());
+            _threads.put(thread,Boolean.TRUE);
+            thread.start();
+            started=true;
+        }
+        finally
+        {
+            if (!started)
+                _threadsStarted.decrementAndGet();
+        }
+        return true;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Stop a Job.
+     * This method is called by the Pool if a job needs to be stopped.
+     * The default implementation interrupts the thread and should be extended by a
+     * derived thread pool class if special action is required.
+     * @param thread The thread allocated to the job, or null if no thread allocated.
+     * @param job The job object passed to run.
+     */
+    protected void stopJob(Thread thread, Object job)
+    {
+        thread.interrupt();
+    }
+
+    /* ------------------------------------------------------------ */
+    public String dump()
+    {
+        StringBuilder buf = new StringBuilder();
+        for (PoolThread thread : _threads.keySet())
+            buf.append(thread.getName()).append(" ").append(thread.toString()).append('\n');
+        return buf.toString();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param name The thread name to interrupt.
+     * @return true if the thread was found and interrupted.
+     */
+    public boolean interruptThread(String name)
+    {
+        for (PoolThread thread : _threads.keySet())
+        {
+            if (name.equals(thread.getName()))
+            {
+                thread.interrupt();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return _name+"{"+getIdleThreads()+"<="+getThreads()+"<="+_maxThreads+","+getQueueSize()+"}";
+    }
+
+    /* ------------------------------------------------------------ */
+    private void pushIdle(Idle idle)
+    {
+        while (true)
+        {
+            Idle head=_idle.get();
+
+            // Discard entries abandoned by their threads
+            if (head!=null && !head.isIdle())
+            {
+                _idle.compareAndSet(head,head._next);
+                continue;
+            }
+
+            idle._next=head;
+            if (_idle.compareAndSet(head,idle))
+                return;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Unlink the entries abandoned by their threads from the idle stack.
+     * Entries are only ever abandoned and never made idle again, so an entry
+     * is only unlinked while it is abandoned and no idle entry is lost.
+     */
+    private void purgeIdle()
+    {
+        Idle head=_idle.get();
+        while (head!=null && !head.isIdle())
+        {
+            _idle.compareAndSet(head,head._next);
+            head=_idle.get();
+        }
+
+        Idle idle=head;
+        while (idle!=null)
+        {
+            Idle next=idle._next;
+            if (next!=null && !next.isIdle())
+                idle._next=next._next;
+            else
+                idle=next;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of entries, idle or abandoned, on the idle stack.
+     */
+    int getIdleEntries()
+    {
+        int entries=0;
+        for (Idle idle=_idle.get();idle!=null;idle=idle._next)
+            entries++;
+        return entries;
+    }
+
+    /* ------------------------------------------------------------ */
+    private Idle popIdle()
+    {
+        while (true)
+        {
+            Idle head=_idle.get();
+            if (head==null)
+                return null;
+            if (_idle.compareAndSet(head,head._next))
+                return head;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Should a thread whose idle period has expired exit.
+     * Only one thread is stopped per idle period.
+     * Must be called while the thread is counted as idle.
+     */
+    private boolean shrink()
+    {
+        int threads=_threadsStarted.get();
+        if (threads>_minThreads && (threads>_maxThreads || _idleThreads.get()>_spawnOrShrinkAt))
+        {
+            long now=System.currentTimeMillis();
+            long last=_lastShrink.get();
+            if ((now-last)>_maxIdleTimeMs && _lastShrink.compareAndSet(last,now))
+            {
+                if (_threadsStarted.compareAndSet(threads,threads-1))
+                    return true;
+                _lastShrink.set(last);
+            }
+        }
+        return false;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** An entry in the stack of idle threads.
+     * An entry is woken at most once, either by a dispatch or by its own
+     * thread abandoning it.
+     */
+    private static class Idle extends AtomicBoolean
+    {
+        final Thread _thread;
+        volatile Idle _next;
+
+        Idle(Thread thread)
+        {
+            super(true);
+            _thread=thread;
+        }
+
+        boolean isIdle()
+        {
+            return get();
+        }
+
+        boolean wake()
+        {
+            return compareAndSet(true,false);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Pool Thread class.
+     */
+    public class PoolThread extends Thread
+    {
+        /* ------------------------------------------------------------ */
+        PoolThread()
+        {
+            setDaemon(_daemon);
+            setPriority(_priority);
+        }
+
+        /* ------------------------------------------------------------ */
+        /** QueuedThreadPool run.
+         * Loop getting jobs and handling them until idle or stopped.
+         */
+        public void run()
+        {
+            boolean shrunk=false;
+            try
+            {
+                while (isRunning())
+                {
+                    // Run any queued job
+                    Runnable job=_jobs.poll();
+                    if (job!=null)
+                    {
+                        _queued.decrementAndGet();
+                        job.run();
+                        continue;
+                    }
+
+                    // We are idle
+                    Idle idle=new Idle(this);
+                    _idleThreads.incrementAndGet();
+                    pushIdle(idle);
+
+                    // Wait for a dispatch unless a job was queued before we were idle
+                    boolean expired=false;
+                    if (_jobs.isEmpty() && isRunning())
+                    {
+                        long idle_nanos=_maxIdleTimeMs*1000000L;
+                        long parked=System.nanoTime();
+                        LockSupport.parkNanos(idle_nanos);
+                        expired=(System.nanoTime()-parked)>=idle_nanos;
+                    }
+
+                    // Abandon the entry if not woken by a dispatch
+                    if (idle.wake())
+                    {
+                        // Should we shrink?
+                        boolean shrink=expired && shrink();
+                        _idleThreads.decrementAndGet();
+                        purgeIdle();
+                        if (shrink)
+                        {
+                            shrunk=true;
+                            return;
+                        }
+                    }
+
+                    Thread.interrupted();
+                }
+            }
+            finally
+            {
+                _threads.remove(this);
+                if (!shrunk)
+                    _threadsStarted.decrementAndGet();
+
+                // we died with queued jobs! make sure they are run
+                if (isRunning() && (_threadsStarted.get()<_minThreads || !_jobs.isEmpty()))
+                    startThread();
+            }
+        }
+    }
+}
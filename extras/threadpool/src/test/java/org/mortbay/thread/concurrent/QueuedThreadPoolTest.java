@@ -0,0 +1,235 @@
+//========================================================================
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.thread.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class QueuedThreadPoolTest extends TestCase
+{
+    volatile long _sleep=100;
+    final AtomicInteger _jobs=new AtomicInteger();
+
+    Runnable _job = new Runnable()
+    {
+        public void run()
+        {
+            try 
+            {
+                Thread.sleep(_sleep);
+            }
+            catch(Exception e)
+            {
+                e.printStackTrace();
+            }
+            _jobs.incrementAndGet();
+        }
+    };
+
+    public void testQueuedThreadPool() throws Exception
+    {
+        _sleep=100;
+        QueuedThreadPool tp= new QueuedThreadPool();
+        tp.setMinThreads(5);
+        tp.setMaxThreads(10);
+        tp.setMaxIdleTimeMs(1000);
+        tp.setSpawnOrShrinkAt(2);
+        tp.setThreadsPriority(Thread.NORM_PRIORITY-1);
+
+        tp.start();
+        Thread.sleep(500);
+
+        assertEquals(5,tp.getThreads());
+        assertEquals(5,tp.getIdleThreads());
+        tp.dispatch(_job);
+        tp.dispatch(_job);
+        assertEquals(5,tp.getThreads());
+        assertEquals(3,tp.getIdleThreads());
+        Thread.sleep(500);
+        assertEquals(5,tp.getThreads());
+        assertEquals(5,tp.getIdleThreads());
+
+        for (int i=0;i<100;i++)
+            tp.dispatch(_job);
+
+        assertTrue(tp.getQueueSize()>10);
+        assertTrue(tp.getIdleThreads()<=1);
+        assertTrue(tp.isLowOnThreads());
+
+        Thread.sleep(2000);
+
+        assertEquals(102,_jobs.get());
+        assertEquals(0,tp.getQueueSize());
+        assertTrue(tp.getMaxQueued()>10);
+        int threads=tp.getThreads();
+        assertTrue(threads>5);
+
+        Thread.sleep(1500);
+        assertTrue(tp.getThreads()<threads);
+        assertTrue(tp.getThreads()>=5);
+        tp.stop();
+        assertEquals(0,tp.getThreads());
+    }
+
+    public void testShrink() throws Exception
+    {
+        QueuedThreadPool tp= new QueuedThreadPool();
+        tp.setMinThreads(2);
+        tp.setMaxThreads(10);
+        tp.setMaxIdleTimeMs(400);
+        tp.setSpawnOrShrinkAt(2);
+
+        tp.start();
+        Thread.sleep(100);
+        assertEquals(2,tp.getThreads());
+        assertEquals(2,tp.getIdleThreads());
+        _sleep=200;
+        for (int i=0;i<22;i++)
+            tp.dispatch(_job);
+        Thread.sleep(100);
+        assertEquals(10,tp.getThreads());
+        assertEquals(0,tp.getIdleThreads());
+
+        _sleep=1;
+        for (int i=0;i<500;i++)
+        {
+            tp.dispatch(_job);
+            Thread.sleep(10);
+        }
+        assertEquals(2,tp.getThreads());
+        assertEquals(2,tp.getIdleThreads());
+        tp.stop();
+    }
+
+    public void testNoShrinkUnderLoad() throws Exception
+    {
+        final AtomicInteger started=new AtomicInteger();
+        QueuedThreadPool tp= new QueuedThreadPool()
+        {
+            protected boolean startThread()
+            {
+                boolean start=super.startThread();
+                if (start)
+                    started.incrementAndGet();
+                return start;
+            }
+        };
+        tp.setMinThreads(2);
+        tp.setMaxThreads(4);
+        tp.setMaxIdleTimeMs(100);
+
+        tp.start();
+        Thread.sleep(50);
+
+        // keep all the threads busy for several idle periods
+        _sleep=50;
+        for (int i=0;i<40;i++)
+            tp.dispatch(_job);
+        for (int i=0;i<100 && _jobs.get()<40;i++)
+            Thread.sleep(50);
+        assertEquals(40,_jobs.get());
+        assertEquals(4,tp.getThreads());
+        assertEquals(4,started.get());
+
+        // then shrink when idle
+        Thread.sleep(1000);
+        assertEquals(2,tp.getThreads());
+        tp.stop();
+    }
+
+    public void testPurgeIdle() throws Exception
+    {
+        QueuedThreadPool tp= new QueuedThreadPool();
+        tp.setMinThreads(4);
+        tp.setMaxThreads(4);
+        tp.setMaxIdleTimeMs(20);
+
+        tp.start();
+        _sleep=1;
+        for (int i=0;i<4;i++)
+            tp.dispatch(_job);
+
+        // threads abandon their entries every idle period
+        Thread.sleep(500);
+        assertEquals(4,tp.getThreads());
+        assertTrue(tp.getIdleEntries()<=4);
+        tp.stop();
+    }
+
+    public void testConcurrentDispatch() throws Exception
+    {
+        final QueuedThreadPool tp= new QueuedThreadPool();
+        tp.setMinThreads(4);
+        tp.setMaxThreads(16);
+        tp.start();
+
+        final int dispatchers=8;
+        final int jobs=10000;
+        final CountDownLatch latch=new CountDownLatch(dispatchers*jobs);
+        Thread[] threads=new Thread[dispatchers];
+        for (int t=0;t<dispatchers;t++)
+        {
+            threads[t]=new Thread()
+            {
+                public void run()
+                {
+                    for (int i=0;i<jobs;i++)
+                    {
+                        tp.dispatch(new Runnable()
+                        {
+                            public void run()
+                            {
+                                latch.countDown();
+                            }
+                        });
+                    }
+                }
+            };
+            threads[t].start();
+        }
+
+        assertTrue(latch.await(30,TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(0,tp.getQueueSize());
+        assertEquals(tp.getThreads(),tp.getIdleThreads());
+        assertTrue(tp.getThreads()<=16);
+        tp.stop();
+    }
+
+    public void testMaxStopTime() throws Exception
+    {
+        QueuedThreadPool tp= new QueuedThreadPool();
+        tp.setMaxStopTimeMs(500);
+        tp.start();
+        tp.dispatch(new Runnable(){
+            public void run () {
+                while (true) {
+                    try {
+                        Thread.sleep(10000);
+                    } catch (InterruptedException ie) {}
+                }
+            }
+        });
+
+        long beforeStop = System.currentTimeMillis();
+        tp.stop();
+        long afterStop = System.currentTimeMillis();
+        assertTrue(tp.isStopped());
+        assertTrue(afterStop - beforeStop < 1000);
+    }
+}
@@ -0,0 +1,322 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.io;
+
+import java.util.Arrays;
+
+/* ------------------------------------------------------------------------------- */
+/** Shared pool of buffers.
+ * <p>
+ * Buffers are pooled in size classes, which are the powers of 2 between the
+ * minimum and maximum pooled sizes plus any extra sizes passed to the constructor, so that
+ * commonly requested sizes are pooled exactly.  A request is served with a buffer of the
+ * smallest class that is large enough. Requests larger than the largest class
+ * are not pooled.
+ * <p>
+ * The pool is shared by all threads. To reduce contention the free lists are
+ * striped, with one stripe for each available processor, and a thread uses the
+ * stripe selected by its identity, only taking the lock of another stripe if its own
+ * is empty. The total bytes retained by all stripes is bounded by {@link #getMaxRetainedBytes()}.
+ *
+ * @author gregw
+ */
+public abstract class BufferPool implements Buffers
+{
+    private final int[] _classes;
+    private final Stripe[] _stripes;
+    private final int _maxRetainedBytes;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param minSize The size of the smallest size class
+     * @param maxSize The size of the largest size class
+     * @param sizes Extra size classes, eg the configured header and buffer sizes, or null.
+     * @param maxRetainedBytes The maximum total capacity of the buffers retained by the pool.
+     */
+    public BufferPool(int minSize, int maxSize, int[] sizes, int maxRetainedBytes)
+    {
+        int count=0;
+        int[] classes=new int[64+(sizes==null?0:sizes.length)];
+        for (int size=minSize;size>0 && size<=maxSize;size<<=1)
+            classes[count++]=size;
+        for (int i=0;sizes!=null && i<sizes.length;i++)
+        {
+            boolean found=false;
+            for (int j=0;!found && j<count;j++)
+                found=classes[j]==sizes[i];
+            if (!found && sizes[i]>0)
+                classes[count++]=sizes[i];
+        }
+        _classes=new int[count];
+        System.arraycopy(classes,0,_classes,0,count);
+        Arrays.sort(_classes);
+
+        int stripes=1;
+        while (stripes<Runtime.getRuntime().availableProcessors())
+            stripes<<=1;
+        _stripes=new Stripe[stripes];
+        for (int i=0;i<stripes;i++)
+            _stripes[i]=new Stripe(_classes.length,maxRetainedBytes/stripes);
+        _maxRetainedBytes=maxRetainedBytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Create a new buffer.
+     * @param size The capacity of the buffer.
+     */
+    protected abstract Buffer newBuffer(int size);
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The sizes of the pooled buffers in ascending order.
+     */
+    public int[] getSizeClasses()
+    {
+        return (int[])_classes.clone();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum total capacity of the buffers retained by the pool.
+     */
+    public int getMaxRetainedBytes()
+    {
+        return _maxRetainedBytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total capacity of the buffers retained by the pool.
+     */
+    public long getRetainedBytes()
+    {
+        long bytes=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                bytes+=_stripes[i]._retained;
+            }
+        }
+        return bytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of new buffers allocated.
+     */
+    public long getAllocations()
+    {
+        long count=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                count+=_stripes[i]._allocations;
+            }
+        }
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of requests served by a pooled buffer.
+     */
+    public long getHits()
+    {
+        long count=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                count+=_stripes[i]._hits;
+            }
+        }
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of requests of a pooled size that could not be served by a pooled buffer.
+     */
+    public long getMisses()
+    {
+        long count=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                count+=_stripes[i]._misses;
+            }
+        }
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the allocation, hit and miss counters.
+     */
+    public void statsReset()
+    {
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                _stripes[i]._allocations=0;
+                _stripes[i]._hits=0;
+                _stripes[i]._misses=0;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Discard all the retained buffers.
+     */
+    public void clear()
+    {
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe stripe=_stripes[i];
+            synchronized(stripe)
+            {
+                for (int c=0;c<_classes.length;c++)
+                {
+                    for (int b=stripe._counts[c];b-->0;)
+                        stripe._free[c][b]=null;
+                    stripe._counts[c]=0;
+                }
+                stripe._retained=0;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public Buffer getBuffer(int size)
+    {
+        int c=sizeClass(size);
+        int home=stripe();
+        Stripe stripe=_stripes[home];
+        if (c<0)
+        {
+            synchronized(stripe)
+            {
+                stripe._allocations++;
+            }
+            return newBuffer(size);
+        }
+
+        for (int i=0;i<_stripes.length;i++)
+        {
+            Stripe s=_stripes[(home+i)&(_stripes.length-1)];
+            synchronized(s)
+            {
+                int count=s._counts[c];
+                if (count>0)
+                {
+                    Buffer buffer=s._free[c][--count];
+                    s._free[c][count]=null;
+                    s._counts[c]=count;
+                    s._retained-=_classes[c];
+                    s._hits++;
+                    return buffer;
+                }
+            }
+        }
+
+        synchronized(stripe)
+        {
+            stripe._misses++;
+            stripe._allocations++;
+        }
+        return newBuffer(_classes[c]);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void returnBuffer(Buffer buffer)
+    {
+        buffer.clear();
+        if (buffer.isVolatile() || buffer.isImmutable())
+            return;
+
+        int size=buffer.capacity();
+        int c=sizeClass(size);
+        if (c<0 || _classes[c]!=size)
+            return;
+
+        Stripe stripe=_stripes[stripe()];
+        synchronized(stripe)
+        {
+            if (stripe._retained+size>stripe._maxRetained)
+                return;
+
+            Buffer[] free=stripe._free[c];
+            int count=stripe._counts[c];
+            if (count==free.length)
+            {
+                Buffer[] grown=new Buffer[free.length*2];
+                System.arraycopy(free,0,grown,0,count);
+                free=stripe._free[c]=grown;
+            }
+            free[count]=buffer;
+            stripe._counts[c]=count+1;
+            stripe._retained+=size;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the index of the smallest size class at least as large as size, or -1.
+     */
+    private int sizeClass(int size)
+    {
+        for (int c=0;c<_classes.length;c++)
+            if (_classes[c]>=size)
+                return c;
+        return -1;
+    }
+
+    /* ------------------------------------------------------------ */
+    private int stripe()
+    {
+        int h=System.identityHashCode(Thread.currentThread());
+        h^=(h>>>16);
+        return h&(_stripes.length-1);
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        return "BufferPool@"+Integer.toHexString(hashCode())+"{"+getRetainedBytes()+"/"+_maxRetainedBytes+"}";
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Stripe
+    {
+        final Buffer[][] _free;
+        final int[] _counts;
+        final int _maxRetained;
+        int _retained;
+        long _allocations;
+        long _hits;
+        long _misses;
+
+        Stripe(int classes, int maxRetained)
+        {
+            _free=new Buffer[classes][4];
+            _counts=new int[classes];
+            _maxRetained=maxRetained;
+        }
+    }
+}
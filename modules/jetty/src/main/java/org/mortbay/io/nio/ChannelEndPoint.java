@@ -20,6 +20,7 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SocketChannel;
@@ -291,6 +292,23 @@ public class ChannelEndPoint implements EndPoint
         return length;
     }
 
+    /* ------------------------------------------------------------ */
+    /** Transfer file content directly to the channel.
+     * The bytes are written with {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * so that (if supported by the OS) they are never copied into a user space buffer. 
+     * Any buffered header must have been flushed before this call.
+     * @param file The file channel to read from.
+     * @param position The position within the file of the first byte to transfer
+     * @param count The maximum number of bytes to transfer
+     * @return the number of bytes written, which may be less than count for non blocking channels.
+     * @throws IOException
+     */
+    public long transferFrom(FileChannel file, long position, long count) throws IOException
+    {
+        return file.transferTo(position,count,_channel);
+    }
+
+    /* ------------------------------------------------------------ */
     /**
      * @return Returns the channel.
      */
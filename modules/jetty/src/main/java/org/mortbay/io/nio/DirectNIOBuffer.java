@@ -60,14 +60,23 @@ public class DirectNIOBuffer extends AbstractBuffer implements NIOBuffer
     }
 
     /**
+     * Create a read only buffer mapped onto a file.
+     * The mapping remains valid after the file is closed.
      * @param file
      */
     public DirectNIOBuffer(File file) throws IOException
     {
         super(READONLY,NON_VOLATILE);
         FileInputStream fis = new FileInputStream(file);
-        FileChannel fc = fis.getChannel();
-        _buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        try
+        {
+            FileChannel fc = fis.getChannel();
+            _buf = fc.map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        finally
+        {
+            fis.close();
+        }
         setGetIndex(0);
         setPutIndex((int)file.length());
         _access=IMMUTABLE;
@@ -16,6 +16,7 @@ package org.mortbay.io.nio;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
@@ -45,6 +46,9 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
     protected int _interestOps;
     protected boolean _readBlocked;
     protected boolean _writeBlocked;
+    protected boolean _readScheduled;
+    protected boolean _writeScheduled;
+    protected Runnable _scheduledTask;
     protected Connection _connection;
 
     private Timeout.Task _timeoutTask = new IdleTask();
@@ -72,14 +76,21 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
     /* ------------------------------------------------------------ */
     void dispatch() throws IOException
     {
-        boolean dispatch_done = true;
+        if (dispatch(_manager.isDelaySelectKeyUpdate()))
+            dispatchToPool();
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * Dispatch this endpoint, already in the dispatched state, to the thread pool.
+     * @throws IOException
+     */
+    void dispatchToPool() throws IOException
+    {
+        boolean dispatch_done = false;
         try
         {
-            if (dispatch(_manager.isDelaySelectKeyUpdate()))
-            {
-                dispatch_done= false;
-                dispatch_done = _manager.dispatch((Runnable)this);
-            }
+            dispatch_done = _manager.dispatch((Runnable)this);
         }
         finally
         {
@@ -102,6 +113,8 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
      */
     public boolean dispatch(boolean assumeShortDispatch) throws IOException
     {
+        Runnable task=null;
+        
         // If threads are blocked on this
         synchronized (this)
         {
@@ -109,6 +122,9 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
             {
                 _readBlocked=false;
                 _writeBlocked=false;
+                _readScheduled=false;
+                _writeScheduled=false;
+                _scheduledTask=null;
                 this.notifyAll();
                 return false;
             }
@@ -127,28 +143,57 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
                 _key.interestOps(0);
                 return false;
             }
-
-            if (!assumeShortDispatch)
-                _key.interestOps(0);
-
-            // Otherwise if we are still dispatched
-            if (_dispatched)
+            
+            // If a task is scheduled for when we are readable or writable
+            if (_readScheduled || _writeScheduled)
             {
+                if (!(_readScheduled && _key.isReadable() || _writeScheduled && _key.isWritable()))
+                {
+                    // only the scheduled op is of interest until the task has run
+                    _interestOps=_readScheduled?SelectionKey.OP_READ:SelectionKey.OP_WRITE;
+                    _key.interestOps(_interestOps);
+                    return false;
+                }
+                
+                task=_scheduledTask;
+                _scheduledTask=null;
+                _readScheduled=false;
+                _writeScheduled=false;
+
                 // we are not interested in further selecting
                 _key.interestOps(0);
-                return false;
             }
-
-            // Remove writeable op
-            if ((_key.readyOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE && (_key.interestOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE)
+            else
             {
+                if (!assumeShortDispatch)
+                    _key.interestOps(0);
+
+                // Otherwise if we are still dispatched
+                if (_dispatched)
+                {
+                    // we are not interested in further selecting
+                    _key.interestOps(0);
+                    return false;
+                }
+
                 // Remove writeable op
-                _interestOps = _key.interestOps() & ~SelectionKey.OP_WRITE;
-                _key.interestOps(_interestOps);
-                _writable = true; // Once writable is in ops, only removed with dispatch.
-            }
+                if ((_key.readyOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE && (_key.interestOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE)
+                {
+                    // Remove writeable op
+                    _interestOps = _key.interestOps() & ~SelectionKey.OP_WRITE;
+                    _key.interestOps(_interestOps);
+                    _writable = true; // Once writable is in ops, only removed with dispatch.
+                }
 
-            _dispatched = true;
+                _dispatched = true;
+            }
+        }
+        
+        // run the scheduled task without holding the lock
+        if (task!=null)
+        {
+            task.run();
+            return false;
         }
         return true;
     }
@@ -223,6 +268,16 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
         return l;
     }
 
+    /* ------------------------------------------------------------ */
+    /*
+     */
+    public long transferFrom(FileChannel file, long position, long count) throws IOException
+    {
+        long l = super.transferFrom(file, position, count);
+        _writable = l > 0;
+        return l;
+    }
+
     /* ------------------------------------------------------------ */
     /*
      * Allows thread to block waiting for further events.
@@ -316,6 +371,65 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
         _writable=false;
         updateKey();
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Schedule a task to be run when the endpoint is readable.
+     * This allows a dispatched endpoint to wait for input without a thread 
+     * blocking in {@link #blockReadable(long)}.  The task is run by the selector
+     * thread, so it should be short (eg resuming a continuation).
+     * Until the task is run, the endpoint is not selected when writable.
+     * @param task The task to run when the endpoint is readable.
+     */
+    public void scheduleReadable(Runnable task)
+    {
+        synchronized (this)
+        {
+            _scheduledTask=task;
+            _readScheduled=true;
+            _writeScheduled=false;
+            updateKey();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Schedule a task to be run when the endpoint is writable.
+     * This allows a dispatched endpoint to wait for output to be flushed without
+     * a thread blocking in {@link #blockWritable(long)}.  The task is run by the 
+     * selector thread, so it should be short (eg resuming a continuation).
+     * Until the task is run, the endpoint is not selected when readable.
+     * @param task The task to run when the endpoint is writable.
+     */
+    public void scheduleWritable(Runnable task)
+    {
+        synchronized (this)
+        {
+            _scheduledTask=task;
+            _readScheduled=false;
+            _writeScheduled=true;
+            updateKey();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Cancel a task scheduled by {@link #scheduleReadable(Runnable)} or 
+     * {@link #scheduleWritable(Runnable)}.
+     */
+    public void cancelScheduled()
+    {
+        synchronized (this)
+        {
+            if (_scheduledTask!=null)
+            {
+                _scheduledTask=null;
+                _readScheduled=false;
+                _writeScheduled=false;
+                updateKey();
+            }
+        }
+    }
     
     /* ------------------------------------------------------------ */
     /**
@@ -331,9 +445,13 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
             if (getChannel().isOpen())
             {
                 ops = ((_key!=null && _key.isValid())?_key.interestOps():-1);
-                _interestOps = 
-                    ((!_dispatched || _readBlocked)  ? SelectionKey.OP_READ  : 0) 
-                |   ((!_writable   || _writeBlocked) ? SelectionKey.OP_WRITE : 0);
+                if (_readScheduled || _writeScheduled)
+                    // only the scheduled op is of interest until the task has run
+                    _interestOps = _readScheduled ? SelectionKey.OP_READ : SelectionKey.OP_WRITE;
+                else
+                    _interestOps = 
+                        ((!_dispatched || _readBlocked)  ? SelectionKey.OP_READ  : 0) 
+                    |   ((!_writable   || _writeBlocked) ? SelectionKey.OP_WRITE : 0);
             }
             if(_interestOps == ops && getChannel().isOpen())
                 return;
@@ -468,7 +586,7 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
     /* ------------------------------------------------------------ */
     public String toString()
     {
-        return "SCEP@" + hashCode() + "[d=" + _dispatched + ",io=" + _interestOps + ",w=" + _writable + ",b=" + _readBlocked + "|" + _writeBlocked + "]";
+        return "SCEP@" + hashCode() + "[d=" + _dispatched + ",io=" + _interestOps + ",w=" + _writable + ",b=" + _readBlocked + "|" + _writeBlocked + ",s=" + _readScheduled + "|" + _writeScheduled + "]";
     }
 
     /* ------------------------------------------------------------ */
@@ -483,6 +601,15 @@ public class SelectChannelEndPoint extends ChannelEndPoint implements Runnable
         return _selectSet;
     }
 
+    /* ------------------------------------------------------------ */
+    public SelectionKey getSelectionKey()
+    {
+        synchronized (this)
+        {
+            return _key;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
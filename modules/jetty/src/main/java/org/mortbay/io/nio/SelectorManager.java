@@ -32,6 +32,7 @@ import org.mortbay.io.Connection;
 import org.mortbay.io.EndPoint;
 import org.mortbay.log.Log;
 import org.mortbay.thread.Timeout;
+import org.mortbay.thread.TimeoutWheel;
 
 
 /* ------------------------------------------------------------ */
@@ -52,6 +53,10 @@ public abstract class SelectorManager extends AbstractLifeCycle
     private static final int __BUSY_KEY=Integer.getInteger("org.mortbay.io.nio.BUSY_KEY",-1).intValue();
     
     private boolean _delaySelectKeyUpdate=true;
+    private boolean _useTimeoutWheel;
+    private boolean _acceptSharding;
+    private int _acceptBatch=1;
+    private boolean _executeInline;
     private long _maxIdleTime;
     private long _lowResourcesConnections;
     private long _lowResourcesMaxIdleTime;
@@ -107,6 +112,170 @@ public abstract class SelectorManager extends AbstractLifeCycle
         return _delaySelectKeyUpdate;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the idle and retry timeouts of each select set use a {@link TimeoutWheel}.
+     */
+    public boolean getUseTimeoutWheel()
+    {
+        return _useTimeoutWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param useTimeoutWheel If true, the idle and retry timeouts of each select set use a 
+     * {@link TimeoutWheel} rather than a sorted {@link Timeout} list, so that scheduling a
+     * timeout is not proportional to the number of connections. Must be set before start.
+     */
+    public void setUseTimeoutWheel(boolean useTimeoutWheel)
+    {
+        _useTimeoutWheel=useTimeoutWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if each select set accepts connections directly.
+     */
+    public boolean isAcceptSharding()
+    {
+        return _acceptSharding;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param acceptSharding If true, a server channel is registered with every select set,
+     * so that connections are accepted in parallel by all the selecting threads and each
+     * accepted connection stays with the select set that accepted it. If false (the default), 
+     * a server channel is registered with one select set, which hands accepted connections 
+     * round robin to the other sets. Must be set before the server channel is registered.
+     * <p>
+     * All the select sets share the one server channel, so every set is woken 
+     * when a connection arrives and all but one of them find nothing to accept.  
+     * Sharding trades these wasted wakeups, counted by {@link #getAcceptMisses()},
+     * for not handing connections between threads, so it only pays when accepting 
+     * is the bottleneck and connections arrive in bursts that can be batched
+     * (see {@link #setAcceptBatch(int)}).
+     */
+    public void setAcceptSharding(boolean acceptSharding)
+    {
+        _acceptSharding=acceptSharding;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of connections accepted each time a server channel is selected.
+     */
+    public int getAcceptBatch()
+    {
+        return _acceptBatch;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param acceptBatch The maximum number of connections accepted each time a server channel
+     * is selected. Connections accepted in a batch for another select set are registered
+     * with a single wakeup of that set.
+     */
+    public void setAcceptBatch(int acceptBatch)
+    {
+        _acceptBatch=acceptBatch<1?1:acceptBatch;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of connections accepted by all select sets.
+     */
+    public long getAccepts()
+    {
+        long accepts=0;
+        SelectSet[] sets=_selectSet;
+        if (sets!=null)
+            for (int i=0;i<sets.length;i++)
+                accepts+=sets[i].getAccepts();
+        return accepts;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of times that a select set was woken to accept
+     * a connection that had already been accepted by another set.  This is 
+     * only non zero if accepts are sharded.
+     */
+    public long getAcceptMisses()
+    {
+        long misses=0;
+        SelectSet[] sets=_selectSet;
+        if (sets!=null)
+            for (int i=0;i<sets.length;i++)
+                misses+=sets[i].getAcceptMisses();
+        return misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The rate in connections per second that each select set accepted 
+     * connections over its last monitor period.
+     */
+    public int[] getAcceptRates()
+    {
+        SelectSet[] sets=_selectSet;
+        if (sets==null)
+            return new int[0];
+        int[] rates=new int[sets.length];
+        for (int i=0;i<sets.length;i++)
+            rates[i]=sets[i].getAcceptRate();
+        return rates;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if a selecting thread handles a ready endpoint itself.
+     */
+    public boolean isExecuteInline()
+    {
+        return _executeInline;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param executeInline If true, a thread that selects endpoints ready to be handled 
+     * dispatches all but the last of them, hands over selecting to another thread and then 
+     * handles the last endpoint itself, so that it avoids a dispatch and handles the endpoint 
+     * with hot CPU caches.  If false, all ready endpoints are dispatched to the thread pool.
+     */
+    public void setExecuteInline(boolean executeInline)
+    {
+        _executeInline=executeInline;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of endpoints handled by the thread that selected them.
+     */
+    public long getInlineExecutions()
+    {
+        long executions=0;
+        SelectSet[] sets=_selectSet;
+        if (sets!=null)
+            for (int i=0;i<sets.length;i++)
+                executions+=sets[i].getInlineExecutions();
+        return executions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of selected endpoints dispatched to the thread pool.
+     */
+    public long getDispatchedExecutions()
+    {
+        long executions=0;
+        SelectSet[] sets=_selectSet;
+        if (sets!=null)
+            for (int i=0;i<sets.length;i++)
+                executions+=sets[i].getDispatchedExecutions();
+        return executions;
+    }
+
     /* ------------------------------------------------------------ */
     /** Register a channel
      * @param channel
@@ -134,6 +303,16 @@ public abstract class SelectorManager extends AbstractLifeCycle
      */
     public void register(ServerSocketChannel acceptChannel) throws IOException
     {
+        if (_acceptSharding)
+        {
+            for (int i=0;i<_selectSet.length;i++)
+            {
+                _selectSet[i].addChange(acceptChannel);
+                _selectSet[i].wakeup();
+            }
+            return;
+        }
+        
         int s=_set++; 
         s=s%_selectSets;
         SelectSet set=_selectSet[s];
@@ -299,15 +478,35 @@ public abstract class SelectorManager extends AbstractLifeCycle
         private int _jvmFix0;
         private int _jvmFix1;
         private int _jvmFix2;
+        private volatile long _accepts;
+        private volatile long _acceptMisses;
+        private long _acceptsStart;
+        private volatile int _acceptRate;
+        private transient boolean[] _wakeups;
+        private transient SelectChannelEndPoint _inline;
+        private final Object _producerLock=new Object();
+        private boolean _producing;
+        private int _producersWaiting;
+        private volatile long _inlineExecutions; // incremented under _producerLock
+        private volatile long _dispatchedExecutions; // incremented under _producerLock
+        private final Runnable _producer=new Runnable()
+        {
+            public void run()
+            {
+                while (isRunning() && produce(false))
+                    ;
+            }
+        };
         
         /* ------------------------------------------------------------ */
         SelectSet(int acceptorID) throws Exception
         {
             _setID=acceptorID;
+            _wakeups=new boolean[_selectSets];
 
-            _idleTimeout = new Timeout(this);
+            _idleTimeout = _useTimeoutWheel?new TimeoutWheel(this):new Timeout(this);
             _idleTimeout.setDuration(getMaxIdleTime());
-            _retryTimeout = new Timeout(this);
+            _retryTimeout = _useTimeoutWheel?new TimeoutWheel(this):new Timeout(this);
             _retryTimeout.setDuration(0L);
 
             // create a selector;
@@ -351,10 +550,135 @@ public abstract class SelectorManager extends AbstractLifeCycle
         /* ------------------------------------------------------------ */
         /**
          * Select and dispatch tasks found from changes and the selector.
+         * If {@link SelectorManager#isExecuteInline()}, the calling thread may instead 
+         * wait for another thread to finish selecting, or handle a selected endpoint itself.
          * 
          * @throws IOException
          */
         public void doSelect() throws IOException
+        {
+            if (_executeInline)
+                produce(true);
+            else
+                select();
+        }
+        
+        /* ------------------------------------------------------------ */
+        /**
+         * Select as the single producing thread of this set and handle the endpoint 
+         * kept by the select. Before handling the endpoint, selecting is handed over to 
+         * a thread waiting to produce or to a new producer dispatched to the thread pool.
+         * If neither is possible, the endpoint is dispatched to the thread pool instead and 
+         * this thread remains the producer.
+         * @param wait If true, wait for another producing thread to finish producing.
+         * @return True if this thread selected and has no endpoint to handle, so may keep producing.
+         */
+        private boolean produce(boolean wait)
+        {
+            synchronized (_producerLock)
+            {
+                if (_producing)
+                {
+                    if (!wait)
+                        return false;
+                    try
+                    {
+                        _producersWaiting++;
+                        _producerLock.wait(__MONITOR_PERIOD);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Log.ignore(e);
+                    }
+                    finally
+                    {
+                        _producersWaiting--;
+                    }
+                    if (_producing)
+                        return false;
+                }
+                _producing=true;
+            }
+            
+            SelectChannelEndPoint inline=null;
+            try
+            {
+                if (_selector!=null)
+                    select();
+            }
+            catch (IOException e)
+            {
+                Log.ignore(e);
+            }
+            finally
+            {
+                inline=_inline;
+                _inline=null;
+                
+                boolean handedOver=false;
+                synchronized (_producerLock)
+                {
+                    _producing=false;
+                    if (inline!=null && _producersWaiting>0)
+                    {
+                        _producerLock.notify();
+                        handedOver=true;
+                    }
+                }
+                
+                // If no thread is waiting to produce, start one. If there is no 
+                // thread for it, the endpoint is dispatched instead and this thread 
+                // keeps selecting, as an endpoint handled here could block waiting 
+                // for a select that would never happen.
+                if (inline!=null && !handedOver)
+                {
+                    boolean dispatched=false;
+                    try
+                    {
+                        dispatched=dispatch(_producer);
+                    }
+                    catch (IOException e)
+                    {
+                        Log.warn(e);
+                    }
+                    
+                    if (!dispatched)
+                    {
+                        synchronized (_producerLock)
+                        {
+                            _dispatchedExecutions++;
+                        }
+                        try
+                        {
+                            inline.dispatchToPool();
+                        }
+                        catch (IOException e)
+                        {
+                            Log.warn(e);
+                        }
+                        inline=null;
+                    }
+                }
+            }
+            
+            if (inline==null)
+                return true;
+            
+            synchronized (_producerLock)
+            {
+                _inlineExecutions++;
+            }
+            inline.run();
+            return false;
+        }
+        
+        /* ------------------------------------------------------------ */
+        /**
+         * Select and dispatch tasks found from changes and the selector.
+         * 
+         * @throws IOException
+         */
+        private void select() throws IOException
         {
             SelectionKey key=null;
             
@@ -520,6 +844,9 @@ public abstract class SelectorManager extends AbstractLifeCycle
                     if (now>_monitorNext)
                     {
                         _selects=(int)(_selects*__MONITOR_PERIOD/(now-_monitorStart));
+                        long accepts=_accepts;
+                        _acceptRate=(int)((accepts-_acceptsStart)*1000/(now-_monitorStart));
+                        _acceptsStart=accepts;
                         _pausing=_selects>__MAX_SELECTS;
                         if (_pausing)
                             _paused++;
@@ -666,35 +993,34 @@ public abstract class SelectorManager extends AbstractLifeCycle
                         if (att instanceof SelectChannelEndPoint)
                         {
                             SelectChannelEndPoint endpoint = (SelectChannelEndPoint)att;
-                            endpoint.dispatch();
+                            if (endpoint.dispatch(_delaySelectKeyUpdate))
+                            {
+                                if (!_executeInline)
+                                {
+                                    synchronized (_producerLock)
+                                    {
+                                        _dispatchedExecutions++;
+                                    }
+                                    endpoint.dispatchToPool();
+                                }
+                                else
+                                {
+                                    // keep the last ready endpoint to handle after selecting
+                                    if (_inline!=null)
+                                    {
+                                        synchronized (_producerLock)
+                                        {
+                                            _dispatchedExecutions++;
+                                        }
+                                        _inline.dispatchToPool();
+                                    }
+                                    _inline=endpoint;
+                                }
+                            }
                         }
                         else if (key.isAcceptable())
                         {
-                            SocketChannel channel = acceptChannel(key);
-                            if (channel==null)
-                                continue;
-
-                            channel.configureBlocking(false);
-
-                            // TODO make it reluctant to leave 0
-                            _nextSet=++_nextSet%_selectSet.length;
-
-                            // Is this for this selectset
-                            if (_nextSet==_setID)
-                            {
-                                // bind connections to this select set.
-                                SelectionKey cKey = channel.register(_selectSet[_nextSet].getSelector(), SelectionKey.OP_READ);
-                                SelectChannelEndPoint endpoint=newEndPoint(channel,_selectSet[_nextSet],cKey);
-                                cKey.attach(endpoint);
-                                if (endpoint != null)
-                                    endpoint.dispatch();
-                            }
-                            else
-                            {
-                                // nope - give it to another.
-                                _selectSet[_nextSet].addChange(channel);
-                                _selectSet[_nextSet].wakeup();
-                            }
+                            accept(key);
                         }
                         else if (key.isConnectable())
                         {
@@ -777,6 +1103,117 @@ public abstract class SelectorManager extends AbstractLifeCycle
             }
         }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * Accept a batch of connections from a selected server channel.
+         * If accepts are not sharded, the connections are handed round robin to the 
+         * select sets and each other set is woken up once for the batch.
+         */
+        private void accept(SelectionKey key) throws IOException
+        {
+            SelectSet[] sets=_selectSet;
+            if (sets==null)
+                return;
+            try
+            {
+                for (int a=0;a<_acceptBatch;a++)
+                {
+                    SocketChannel channel = acceptChannel(key);
+                    if (channel==null)
+                    {
+                        // another set accepted the connection first
+                        if (a==0)
+                            _acceptMisses++;
+                        break;
+                    }
+                    _accepts++;
+
+                    channel.configureBlocking(false);
+
+                    // TODO make it reluctant to leave 0
+                    int set=_setID;
+                    if (!_acceptSharding)
+                        set=_nextSet=++_nextSet%sets.length;
+
+                    // Is this for this selectset
+                    if (set==_setID)
+                    {
+                        // bind connections to this select set.
+                        SelectionKey cKey = channel.register(getSelector(), SelectionKey.OP_READ);
+                        SelectChannelEndPoint endpoint=newEndPoint(channel,this,cKey);
+                        cKey.attach(endpoint);
+                        if (endpoint != null)
+                            endpoint.dispatch();
+                    }
+                    else
+                    {
+                        // nope - give it to another.
+                        sets[set].addChange(channel);
+                        _wakeups[set]=true;
+                    }
+                }
+            }
+            finally
+            {
+                for (int i=0;i<_wakeups.length;i++)
+                {
+                    if (_wakeups[i])
+                    {
+                        _wakeups[i]=false;
+                        sets[i].wakeup();
+                    }
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of endpoints handled by the thread that selected them.
+         */
+        public long getInlineExecutions()
+        {
+            return _inlineExecutions;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of selected endpoints dispatched to the thread pool.
+         */
+        public long getDispatchedExecutions()
+        {
+            return _dispatchedExecutions;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of connections accepted by this select set.
+         */
+        public long getAccepts()
+        {
+            return _accepts;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of times this select set was woken to accept a 
+         * connection that had already been accepted by another set.
+         */
+        public long getAcceptMisses()
+        {
+            return _acceptMisses;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The rate in connections per second that this select set accepted
+         * connections over its last monitor period.
+         */
+        public int getAcceptRate()
+        {
+            return _acceptRate;
+        }
+
+        /* ------------------------------------------------------------ */
         private void renewSelector()
         {
             synchronized (this) 
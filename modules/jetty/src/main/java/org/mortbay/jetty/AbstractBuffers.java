@@ -18,11 +18,15 @@ import java.util.ArrayList;
 
 import org.mortbay.component.AbstractLifeCycle;
 import org.mortbay.io.Buffer;
+import org.mortbay.io.BufferPool;
 import org.mortbay.io.Buffers;
 
 /* ------------------------------------------------------------ */
 /** Abstract Buffer pool.
  * simple unbounded pool of buffers.
+ * By default each thread keeps a few buffers of the configured sizes. If 
+ * {@link #setUseBufferPool(boolean)} is true, a {@link BufferPool} shared by all
+ * threads and bounded by {@link #setMaxBufferPoolSize(int)} is used instead.
  * @author gregw
  *
  */
@@ -37,6 +41,10 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
     final static private int __RESPONSE=2;
     final static private int __OTHER=3;
     final private int[] _pool={2,1,1,2};
+    
+    private boolean _useBufferPool=false;
+    private int _maxBufferPoolSize=16*1024*1024;
+    private transient BufferPool _bufferPool;
 
     private final ThreadLocal _buffers=new ThreadLocal()
     {
@@ -55,6 +63,10 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
 
     public Buffer getBuffer(final int size )
     {
+        final BufferPool pool=_bufferPool;
+        if (pool!=null)
+            return pool.getBuffer(size);
+        
         final int set = (size==_headerBufferSize)?__HEADER
                 :(size==_responseBufferSize)?__RESPONSE
                         :(size==_requestBufferSize)?__REQUEST:__OTHER;
@@ -77,6 +89,13 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
 
     public void returnBuffer( Buffer buffer )
     {
+        final BufferPool pool=_bufferPool;
+        if (pool!=null)
+        {
+            pool.returnBuffer(buffer);
+            return;
+        }
+        
         buffer.clear();
         if (buffer.isVolatile() || buffer.isImmutable())
             return;
@@ -125,6 +144,71 @@ public abstract class AbstractBuffers extends AbstractLifeCycle implements Buffe
             _pool[__REQUEST]=0;
         }
 
+        if (_useBufferPool)
+        {
+            int[] sizes={_headerBufferSize,_requestBufferSize,_responseBufferSize};
+            _bufferPool=new BufferPool(1024,64*1024,sizes,_maxBufferPoolSize)
+            {
+                protected Buffer newBuffer(int size)
+                {
+                    return AbstractBuffers.this.newBuffer(size);
+                }
+            };
+        }
+    }
+
+    protected void doStop()
+        throws Exception
+    {
+        if (_bufferPool!=null)
+            _bufferPool.clear();
+        _bufferPool=null;
+        super.doStop();
+    }
+
+    /**
+     * @return True if a buffer pool shared by all threads is used.
+     */
+    public boolean getUseBufferPool()
+    {
+        return _useBufferPool;
+    }
+
+    /**
+     * @param useBufferPool If true, a bounded {@link BufferPool} shared by all threads
+     * is used instead of per thread buffers.
+     */
+    public void setUseBufferPool( boolean useBufferPool )
+    {
+        if (isStarted())
+            throw new IllegalStateException();
+        _useBufferPool = useBufferPool;
+    }
+
+    /**
+     * @return The maximum total size in bytes of the buffers retained by the buffer pool.
+     */
+    public int getMaxBufferPoolSize()
+    {
+        return _maxBufferPoolSize;
+    }
+
+    /**
+     * @param maxBufferPoolSize The maximum total size in bytes of the buffers retained by the buffer pool.
+     */
+    public void setMaxBufferPoolSize( int maxBufferPoolSize )
+    {
+        if (isStarted())
+            throw new IllegalStateException();
+        _maxBufferPoolSize = maxBufferPoolSize;
+    }
+
+    /**
+     * @return The buffer pool, or null if it is not used or not started.
+     */
+    public BufferPool getBufferPool()
+    {
+        return _bufferPool;
     }
 
     /**
@@ -66,6 +66,8 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
     private String _forwardedServerHeader = "X-Forwarded-Server";         // default to mod_proxy_http header
     private String _forwardedForHeader = "X-Forwarded-For";               // default to mod_proxy_http header
     private boolean _reuseAddress=true;
+    private int _cookieCacheSize=0;
+    private transient CookieCache _cookieCache;
     
     protected int _maxIdleTime=200000; 
     protected int _lowResourceMaxIdleTime=-1; 
@@ -89,6 +91,11 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
     transient int _connectionsRequestsMin;       // min requests per connection
     transient int _connectionsRequestsMax;       // max requests per connection
 
+    transient long _fieldsReused;                // header fields reused from previous messages
+    transient long _fieldsAllocated;             // header fields newly allocated
+
+    transient int _idleBuffers;                  // buffers held by idle connections
+
     
     /* ------------------------------------------------------------------------------- */
     /** 
@@ -273,12 +280,69 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         _soLingerTime = soLingerTime;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of Cookie headers whose parsed cookies are cached
+     * for all connections, or 0 if the cache is not used.
+     */
+    public int getCookieCacheSize()
+    {
+        return _cookieCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param cookieCacheSize The maximum number of Cookie headers whose parsed cookies
+     * are cached in a {@link CookieCache} shared by all connections, or 0 to only reuse 
+     * the cookies of the previous request on the same connection.
+     */
+    public void setCookieCacheSize(int cookieCacheSize)
+    {
+        if (isRunning())
+            throw new IllegalStateException();
+        _cookieCacheSize=cookieCacheSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The cache of parsed cookies shared by all connections or null.
+     */
+    public CookieCache getCookieCache()
+    {
+        return _cookieCache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of requests that found their parsed cookies in the cookie cache.
+     * Maintained regardless of setStatsOn.
+     */
+    public long getCookieCacheHits()
+    {
+        CookieCache cache=_cookieCache;
+        return cache==null?0:cache.getHits();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of requests that parsed their cookies and added them to the cookie cache.
+     * Maintained regardless of setStatsOn.
+     */
+    public long getCookieCacheMisses()
+    {
+        CookieCache cache=_cookieCache;
+        return cache==null?0:cache.getMisses();
+    }
+    
     /* ------------------------------------------------------------ */
     protected void doStart() throws Exception
     {
         if (_server==null)
             throw new IllegalStateException("No server");
         
+        if (_cookieCacheSize>0)
+            _cookieCache=new CookieCache(_cookieCacheSize);
+        
         // open listener port
         open();
         
@@ -320,6 +384,8 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         
         super.doStop();
         
+        _cookieCache=null;
+        
         Thread[] acceptors=null;
         synchronized(this)
         {
@@ -849,6 +915,21 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
      */
     public int getConnectionsRequestsMax() {return _connectionsRequestsMax;}
 
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return Number of request and response header fields that reused a field 
+     * recycled from a previous message, on connections closed since statsReset() 
+     * called. Undefined if setStatsOn(false).
+     */
+    public long getHttpFieldsReused() {return _fieldsReused;}
+
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return Number of request and response header fields that allocated a new field,
+     * on connections closed since statsReset() called. Undefined if setStatsOn(false).
+     */
+    public long getHttpFieldsAllocated() {return _fieldsAllocated;}
+
 
     
     /* ------------------------------------------------------------ */
@@ -872,6 +953,13 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
 
         _connectionsRequestsMin=0;
         _connectionsRequestsMax=0;
+        
+        _fieldsReused=0;
+        _fieldsAllocated=0;
+        
+        CookieCache cache=_cookieCache;
+        if (cache!=null)
+            cache.statsReset();
     }
     
     /* ------------------------------------------------------------ */
@@ -902,6 +990,23 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         return (_statsStartedAt!=-1)?(System.currentTimeMillis()-_statsStartedAt):0;
     }
     
+    /* ------------------------------------------------------------ */
+    /** 
+     * @return Number of buffers held by connections that are idle. Idle connections
+     * normally return their buffers, so this is the number of buffers that could not be
+     * returned because they held data. Maintained regardless of setStatsOn.
+     */
+    public int getIdleBuffers() {return _idleBuffers;}
+
+    /* ------------------------------------------------------------ */
+    void idleBuffers(int delta)
+    {
+        synchronized(_statsLock)
+        {
+            _idleBuffers+=delta;
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     protected void connectionOpened(HttpConnection connection)
     {
@@ -922,9 +1027,15 @@ public abstract class AbstractConnector extends AbstractBuffers implements Conne
         {
             long duration=System.currentTimeMillis()-connection.getTimeStamp();
             int requests=connection.getRequests();
+            HttpFields request_fields=connection.getRequestFields();
+            HttpFields response_fields=connection.getResponseFields();
+            long reused=request_fields.getFieldsReused()+response_fields.getFieldsReused();
+            long allocated=request_fields.getFieldsAllocated()+response_fields.getFieldsAllocated();
             synchronized(_statsLock)
             {
                 _requests+=requests;
+                _fieldsReused+=reused;
+                _fieldsAllocated+=allocated;
                 _connections++;
                 _connectionsOpen--;
                 _connectionsDurationTotal+=duration;
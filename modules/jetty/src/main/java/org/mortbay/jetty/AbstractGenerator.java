@@ -175,6 +175,33 @@ public abstract class AbstractGenerator implements Generator
         _method=null;
     }
 
+    /* ------------------------------------------------------------------------------- */
+    /** Return empty buffers while idle.
+     * If the generator is idle and its buffers hold no data, they are returned to the 
+     * {@link Buffers} and will be acquired again when the next response is generated.
+     * @return The number of buffers still held by the generator.
+     */
+    public int returnBuffers()
+    {
+        synchronized(this)
+        {
+            if (isIdle())
+            {
+                if (_header != null && _header.length()==0)
+                {
+                    _buffers.returnBuffer(_header);
+                    _header = null;
+                }
+                if (_buffer != null && _buffer.length()==0)
+                {
+                    _buffers.returnBuffer(_buffer);
+                    _buffer = null;
+                }
+            }
+            return (_header==null?0:1)+(_buffer==null?0:1);
+        }
+    }
+
     /* ------------------------------------------------------------------------------- */
     public void resetBuffer()
     {                   
@@ -400,6 +427,15 @@ public abstract class AbstractGenerator implements Generator
         }
     }
     
+    /* ------------------------------------------------------------ */
+    /** Account for content written directly to the endpoint.
+     * @param length The number of content bytes written without passing through the generator buffers.
+     */
+    void contentTransferred(long length)
+    {
+        _contentWritten+=length;
+    }
+    
     /* ------------------------------------------------------------ */
     public boolean isBufferFull()
     {
@@ -0,0 +1,388 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty;
+
+import java.util.Arrays;
+
+import javax.servlet.http.Cookie;
+
+import org.mortbay.io.Buffer;
+
+/* ------------------------------------------------------------------------------- */
+/** Cache of parsed cookies.
+ * <p>
+ * The cache is shared by all the connections of a connector and maps the raw bytes of
+ * a Cookie header to the cookies parsed from it, so that the same header sent on
+ * different connections (eg by a load balancer or an AJP proxy) is only parsed once.
+ * Headers are hashed and compared byte by byte, without converting them to Strings.
+ * <p>
+ * The cached cookies are never passed to the application. As {@link Cookie} instances
+ * are mutable, {@link #get(Buffer)} returns clones of them.
+ * <p>
+ * The cache is bounded by {@link #getMaxEntries()} and is striped to reduce
+ * contention, with one lock per stripe. When a stripe is full an entry is evicted
+ * with the clock algorithm, so entries that were hit since the hand last passed are
+ * given a second chance.
+ *
+ * @author gregw
+ */
+public class CookieCache
+{
+    private final Stripe[] _stripes;
+    private final int _maxEntries;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxEntries The maximum number of Cookie headers cached.
+     */
+    public CookieCache(int maxEntries)
+    {
+        this(maxEntries,defaultStripes(maxEntries));
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxEntries The maximum number of Cookie headers cached.
+     * @param stripes The number of independently locked stripes, rounded up to a power of 2.
+     */
+    public CookieCache(int maxEntries, int stripes)
+    {
+        if (maxEntries<=0)
+            throw new IllegalArgumentException("maxEntries="+maxEntries);
+        if (stripes<=0)
+            throw new IllegalArgumentException("stripes="+stripes);
+
+        int bits=0;
+        while ((1<<bits)<stripes)
+            bits++;
+        stripes=1<<bits;
+        _stripes=new Stripe[stripes];
+        for (int i=0;i<stripes;i++)
+            _stripes[i]=new Stripe((maxEntries+stripes-1)/stripes,bits);
+        _maxEntries=maxEntries;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* A stripe per CPU, with at least 16 entries per stripe */
+    private static int defaultStripes(int maxEntries)
+    {
+        int stripes=1;
+        while (stripes<Runtime.getRuntime().availableProcessors() && stripes*16<=maxEntries)
+            stripes<<=1;
+        return stripes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of Cookie headers cached.
+     */
+    public int getMaxEntries()
+    {
+        return _maxEntries;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of independently locked stripes of the cache.
+     */
+    public int getStripes()
+    {
+        return _stripes.length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of Cookie headers cached.
+     */
+    public int getSize()
+    {
+        int size=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                size+=_stripes[i]._size;
+            }
+        }
+        return size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lookups that found parsed cookies.
+     */
+    public long getHits()
+    {
+        long count=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                count+=_stripes[i]._hits;
+            }
+        }
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of lookups that did not find parsed cookies.
+     */
+    public long getMisses()
+    {
+        long count=0;
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                count+=_stripes[i]._misses;
+            }
+        }
+        return count;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the hit and miss counts.
+     */
+    public void statsReset()
+    {
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                _stripes[i]._hits=0;
+                _stripes[i]._misses=0;
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove all the entries.
+     */
+    public void clear()
+    {
+        for (int i=0;i<_stripes.length;i++)
+        {
+            synchronized(_stripes[i])
+            {
+                _stripes[i].clear();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get parsed cookies.
+     * @param header The raw value of a Cookie header.
+     * @return Clones of the cookies parsed from the header, or null if the header is not cached.
+     */
+    public Cookie[] get(Buffer header)
+    {
+        int hash=hash(header);
+        Stripe stripe=_stripes[hash&(_stripes.length-1)];
+        Cookie[] cookies=null;
+        synchronized(stripe)
+        {
+            Entry entry=stripe.get(header,hash);
+            if (entry==null)
+            {
+                stripe._misses++;
+                return null;
+            }
+            stripe._hits++;
+            entry._referenced=true;
+            cookies=entry._cookies;
+        }
+        return copy(cookies);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Cache parsed cookies.
+     * @param header The raw value of a Cookie header. The bytes are copied.
+     * @param cookies The cookies parsed from the header. They are cloned, so the
+     * caller may pass them to the application.
+     */
+    public void put(Buffer header, Cookie[] cookies)
+    {
+        int hash=hash(header);
+        Stripe stripe=_stripes[hash&(_stripes.length-1)];
+        byte[] key=header.asArray();
+        cookies=copy(cookies);
+        synchronized(stripe)
+        {
+            stripe.put(key,hash,cookies);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Case sensitive hash of the buffer content, with the high bits spread into the 
+     * low bits used to select the stripe and bucket */
+    private static int hash(Buffer buffer)
+    {
+        int hash=0;
+        byte[] array=buffer.array();
+        if (array!=null)
+        {
+            for (int i=buffer.getIndex(),e=buffer.putIndex();i<e;i++)
+                hash=31*hash+array[i];
+        }
+        else
+        {
+            for (int i=buffer.getIndex(),e=buffer.putIndex();i<e;i++)
+                hash=31*hash+buffer.peek(i);
+        }
+        return hash^(hash>>>16);
+    }
+
+    /* ------------------------------------------------------------ */
+    private static Cookie[] copy(Cookie[] cookies)
+    {
+        if (cookies==null)
+            return null;
+        Cookie[] copy=new Cookie[cookies.length];
+        for (int i=0;i<cookies.length;i++)
+            copy[i]=(Cookie)cookies[i].clone();
+        return copy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Entry
+    {
+        final byte[] _key;
+        final int _hash;
+        Cookie[] _cookies;
+        Entry _next;
+        boolean _referenced;
+
+        Entry(byte[] key, int hash, Cookie[] cookies)
+        {
+            _key=key;
+            _hash=hash;
+            _cookies=cookies;
+        }
+
+        boolean matches(Buffer header, int hash)
+        {
+            if (_hash!=hash || _key.length!=header.length())
+                return false;
+            int index=header.getIndex();
+            byte[] array=header.array();
+            if (array!=null)
+            {
+                for (int i=_key.length;i-->0;)
+                    if (_key[i]!=array[index+i])
+                        return false;
+            }
+            else
+            {
+                for (int i=_key.length;i-->0;)
+                    if (_key[i]!=header.peek(index+i))
+                        return false;
+            }
+            return true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static class Stripe
+    {
+        final Entry[] _table;
+        final Entry[] _clock;
+        final int _shift;
+        int _hand;
+        int _size;
+        long _hits;
+        long _misses;
+
+        Stripe(int capacity, int shift)
+        {
+            int buckets=1;
+            while (buckets<capacity*2)
+                buckets<<=1;
+            _table=new Entry[buckets];
+            _clock=new Entry[capacity];
+            _shift=shift;
+        }
+
+        /* The bucket is selected by the hash bits above those that selected the stripe */
+        int bucket(int hash)
+        {
+            return (hash>>>_shift)&(_table.length-1);
+        }
+
+        Entry get(Buffer header, int hash)
+        {
+            Entry entry=_table[bucket(hash)];
+            while (entry!=null && !entry.matches(header,hash))
+                entry=entry._next;
+            return entry;
+        }
+
+        void put(byte[] key, int hash, Cookie[] cookies)
+        {
+            int bucket=bucket(hash);
+            for (Entry entry=_table[bucket];entry!=null;entry=entry._next)
+            {
+                if (entry._hash==hash && Arrays.equals(entry._key,key))
+                {
+                    entry._cookies=cookies;
+                    return;
+                }
+            }
+
+            Entry entry=new Entry(key,hash,cookies);
+            if (_size<_clock.length)
+                _clock[_size++]=entry;
+            else
+            {
+                // Advance the clock hand to an entry that has not been hit since the last pass
+                while (_clock[_hand]._referenced)
+                {
+                    _clock[_hand]._referenced=false;
+                    _hand=(_hand+1)%_clock.length;
+                }
+                remove(_clock[_hand]);
+                _clock[_hand]=entry;
+                _hand=(_hand+1)%_clock.length;
+            }
+            entry._next=_table[bucket];
+            _table[bucket]=entry;
+        }
+
+        void remove(Entry entry)
+        {
+            int bucket=bucket(entry._hash);
+            Entry e=_table[bucket];
+            if (e==entry)
+                _table[bucket]=entry._next;
+            else
+            {
+                while (e._next!=entry)
+                    e=e._next;
+                e._next=entry._next;
+            }
+            entry._next=null;
+        }
+
+        void clear()
+        {
+            Arrays.fill(_table,null);
+            Arrays.fill(_clock,null);
+            _size=0;
+            _hand=0;
+        }
+    }
+}
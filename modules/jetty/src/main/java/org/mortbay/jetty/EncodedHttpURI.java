@@ -7,6 +7,7 @@ import org.mortbay.util.StringUtil;
 import org.mortbay.util.TypeUtil;
 import org.mortbay.util.URIUtil;
 import org.mortbay.util.UrlEncoded;
+import org.mortbay.util.UrlEncodedIndex;
 import org.mortbay.util.Utf8StringBuffer;
 
 public class EncodedHttpURI extends HttpURI
@@ -134,6 +135,13 @@ public class EncodedHttpURI extends HttpURI
             encoding=_encoding;
         UrlEncoded.decodeTo(StringUtil.toString(_raw,_query+1,_fragment-_query-1,encoding),parameters,encoding);
     }
+
+    public boolean indexQueryTo(UrlEncodedIndex index)
+    {
+        if (!StringUtil.isUTF8(_encoding))
+            return false;
+        return super.indexQueryTo(index);
+    }
     
     public String toString()
     {
@@ -71,6 +71,8 @@ public interface Generator
 
     void reset(boolean returnBuffers);
 
+    int returnBuffers();
+
     void resetBuffer();
 
     void sendError(int code, String reason, String content, boolean close) throws IOException;
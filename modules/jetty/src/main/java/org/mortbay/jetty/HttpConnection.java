@@ -15,9 +15,13 @@
 
 package org.mortbay.jetty;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+
 import javax.servlet.ServletInputStream;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletResponse;
@@ -27,7 +31,9 @@ import org.mortbay.io.BufferCache.CachedBuffer;
 import org.mortbay.io.Connection;
 import org.mortbay.io.EndPoint;
 import org.mortbay.io.RuntimeIOException;
+import org.mortbay.io.nio.ChannelEndPoint;
 import org.mortbay.io.nio.SelectChannelEndPoint;
+import org.mortbay.jetty.nio.NIOConnector;
 import org.mortbay.log.Log;
 import org.mortbay.resource.Resource;
 import org.mortbay.util.QuotedStringTokenizer;
@@ -63,6 +69,7 @@ public class HttpConnection implements Connection
     private int _requests;
     private boolean _handling;
     private boolean _destroy;
+    private int _idleBuffers;
 
     protected final Connector _connector;
     protected final EndPoint _endp;
@@ -159,10 +166,31 @@ public class HttpConnection implements Connection
                 if (_responseFields != null)
                     _responseFields.destroy();
 
+                setIdleBuffers(0);
             }
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of buffers held by this connection while it is idle.
+     */
+    public int getIdleBuffers()
+    {
+        return _idleBuffers;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void setIdleBuffers(int buffers)
+    {
+        if (buffers!=_idleBuffers)
+        {
+            if (_connector instanceof AbstractConnector)
+                ((AbstractConnector)_connector).idleBuffers(buffers-_idleBuffers);
+            _idleBuffers=buffers;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return the parser used by this connection
@@ -384,6 +412,7 @@ public class HttpConnection implements Connection
                         throw new IllegalStateException(); // TODO delete this
                                                            // check
                     _handling = true;
+                    setIdleBuffers(0);
                 }
 
                 setCurrentConnection(this);
@@ -482,6 +511,16 @@ public class HttpConnection implements Connection
                     no_progress = 0;
                 }
 
+                // Return empty buffers while idle, they are acquired again on the next fill
+                if (!more_in_buffer && _parser.isIdle() && _generator.isIdle() && !_endp.isBufferingOutput())
+                {
+                    synchronized (this)
+                    {
+                        if (!_destroy)
+                            setIdleBuffers(_parser.returnBuffers()+_generator.returnBuffers());
+                    }
+                }
+
                 Continuation continuation = _request.getContinuation();
                 if (continuation != null && continuation.isPending())
                 {
@@ -803,8 +842,13 @@ public class HttpConnection implements Connection
                     _expect = HttpHeaderValues.CACHE.getOrdinal(value);
                     break;
 
+                case HttpHeaders.ACCEPT_ORDINAL:
+                case HttpHeaders.ACCEPT_CHARSET_ORDINAL:
                 case HttpHeaders.ACCEPT_ENCODING_ORDINAL:
+                case HttpHeaders.CACHE_CONTROL_ORDINAL:
+                case HttpHeaders.PRAGMA_ORDINAL:
                 case HttpHeaders.USER_AGENT_ORDINAL:
+                    // Intern well known values, so their strings are shared by all requests
                     value = HttpHeaderValues.CACHE.lookup(value);
                     break;
 
@@ -1084,13 +1128,42 @@ public class HttpConnection implements Connection
 
                 content = c.getBuffer();
                 if (content == null)
+                {
+                    File file = getTransferableFile(c.getResource());
+                    if (file != null)
+                    {
+                        transferContent(file);
+                        return;
+                    }
                     content = c.getInputStream();
+                }
             }
             else if (content instanceof Resource)
             {
                 resource = (Resource)content;
                 _responseFields.putDateField(HttpHeaders.LAST_MODIFIED_BUFFER,resource.lastModified());
-                content = resource.getInputStream();
+                File file = getTransferableFile(resource);
+                if (file != null)
+                {
+                    try
+                    {
+                        transferContent(file);
+                    }
+                    finally
+                    {
+                        resource.release();
+                    }
+                    return;
+                }
+                try
+                {
+                    content = resource.getInputStream();
+                }
+                catch (IOException e)
+                {
+                    resource.release();
+                    throw e;
+                }
             }
 
             if (content instanceof Buffer)
@@ -1123,17 +1196,98 @@ public class HttpConnection implements Connection
                 }
                 finally
                 {
+                    in.close();
                     if (resource != null)
                         resource.release();
-                    else
-                        in.close();
-
                 }
             }
             else
                 throw new IllegalArgumentException("unknown content type?");
 
         }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The file of the resource if it can be sent with
+         * {@link #transferContent(File)}, or null if the content must be copied via the generator.
+         */
+        private File getTransferableFile(Resource resource) throws IOException
+        {
+            if (resource == null || _generator.isHead() || !(_endp instanceof ChannelEndPoint) || 
+                !(_connector instanceof NIOConnector) || !((NIOConnector)_connector).getUseFileTransfer())
+                return null;
+            
+            File file = resource.getFile();
+            if (file == null || !file.isFile() || file.length() <= 0)
+                return null;
+            return file;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Send a file directly to the channel.
+         * The response header is committed and flushed, then the file content
+         * is written with {@link ChannelEndPoint#transferFrom(FileChannel, long, long)}
+         * so that it is never copied into the generator buffers.
+         */
+        private void transferContent(File file) throws IOException
+        {
+            FileInputStream in = new FileInputStream(file);
+            try
+            {
+                FileChannel channel = in.getChannel();
+                long length = channel.size();
+                _responseFields.putLongField(HttpHeaders.CONTENT_LENGTH_BUFFER,length);
+                commitResponse(HttpGenerator.MORE);
+
+                // flush the header before any content
+                HttpGenerator generator = (HttpGenerator)_generator;
+                while (!generator.isEmpty())
+                {
+                    if (!_endp.isOpen())
+                        throw new EofException();
+                    if (generator.flush() <= 0 && !_endp.isBlocking() && !_endp.blockWritable(_maxIdleTime))
+                    {
+                        _endp.close();
+                        throw new EofException("timeout");
+                    }
+                }
+
+                ChannelEndPoint endp = (ChannelEndPoint)_endp;
+                long position = 0;
+                try
+                {
+                    while (position < length)
+                    {
+                        long written = endp.transferFrom(channel,position,length - position);
+                        if (written > 0)
+                            position += written;
+                        else if (!_endp.isOpen())
+                            throw new EofException();
+                        else if (position >= channel.size())
+                            break; // file truncated, so complete will close the connection
+                        else if (!_endp.isBlocking() && !_endp.blockWritable(_maxIdleTime))
+                        {
+                            _endp.close();
+                            throw new EofException("timeout");
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw (e instanceof EofException)?e:new EofException(e);
+                }
+                finally
+                {
+                    _generator.contentTransferred(position);
+                }
+                
+                commitResponse(HttpGenerator.LAST);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
     }
 
     /* ------------------------------------------------------------ */
@@ -195,13 +195,20 @@ public class HttpFields
     public final static Buffer __01Jan1970_BUFFER = new ByteArrayBuffer(__01Jan1970);
     public final static String __01Jan1970_COOKIE = formatDate(0,true).trim();
 
+    /* -------------------------------------------------------------- */
+    /** The number of recycled fields above which fields not used by the last message are discarded */
+    public final static int __maxRecycledFields = Integer.getInteger("org.mortbay.jetty.HttpFields.maxRecycledFields",64).intValue();
+    
     /* -------------------------------------------------------------- */
     protected ArrayList _fields = new ArrayList(20);
     protected int _revision;
     protected HashMap _bufferMap = new HashMap(32);
+    protected StringMap _nameMap = new StringMap(true);
     protected SimpleDateFormat _dateReceive[] = new SimpleDateFormat[__dateReceive.length];
     private StringBuffer _dateBuffer;
     private Calendar _calendar;
+    private long _fieldsReused;
+    private long _fieldsAllocated;
 
     /* ------------------------------------------------------------ */
     /**
@@ -300,7 +307,11 @@ public class HttpFields
     /* ------------------------------------------------------------ */
     private Field getField(String name)
     {
-        return (Field) _bufferMap.get(HttpHeaders.CACHE.lookup(name));
+        // Avoid creating a buffer to lookup names that are not well known 
+        CachedBuffer known = HttpHeaders.CACHE.get(name);
+        if (known!=null)
+            return (Field) _bufferMap.get(known);
+        return (Field) _nameMap.get(name);
     }
 
     /* ------------------------------------------------------------ */
@@ -331,7 +342,6 @@ public class HttpFields
      */
     public String getStringField(String name)
     {
-        // TODO - really reuse strings from previous requests!
         Field field = getField(name);
         if (field != null && field._revision == _revision) return field.getValue();
         return null;
@@ -345,10 +355,9 @@ public class HttpFields
      */
     public String getStringField(Buffer name)
     {
-        // TODO - really reuse strings from previous requests!
         Field field = getField(name);
         if (field != null && field._revision == _revision) 
-            return BufferUtil.to8859_1_String(field._value);
+            return field.getValue();
         return null;
     }
 
@@ -366,6 +375,23 @@ public class HttpFields
         return null;
     }
 
+    /* -------------------------------------------------------------- */
+    /**
+     * @return the value of a field, or null if not found or if there are multiple
+     *         fields of the same name.
+     * @param name the case-insensitive field name
+     */
+    public Buffer getSingleValue(Buffer name)
+    {
+        Field field = getField(name);
+        if (field == null || field._revision != _revision)
+            return null;
+        for (Field f = field._next; f != null; f = f._next)
+            if (f._revision == _revision)
+                return null;
+        return field._value;
+    }
+
     /* -------------------------------------------------------------- */
     /**
      * Get multi headers
@@ -546,6 +572,7 @@ public class HttpFields
         // Look for value to replace.
         if (field != null)
         {
+            _fieldsReused++;
             field.reset(value, numValue, _revision);
             field = field._next;
             while (field != null)
@@ -558,9 +585,10 @@ public class HttpFields
         else
         {
             // new value;
+            _fieldsAllocated++;
             field = new Field(name, value, numValue, _revision);
             _fields.add(field);
-            _bufferMap.put(field.getNameBuffer(), field);
+            putField(field);
         }
     }
 
@@ -658,10 +686,14 @@ public class HttpFields
         }
 
         if (field != null)
+        {
+            _fieldsReused++;
             field.reset(value, numValue, _revision);
+        }
         else
         {
             // create the field
+            _fieldsAllocated++;
             field = new Field(name, value, numValue, _revision);
 
             // look for chain to add too
@@ -671,12 +703,24 @@ public class HttpFields
                 last._next = field;
             }
             else
-                _bufferMap.put(field.getNameBuffer(), field);
+                putField(field);
 
             _fields.add(field);
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** Map the first field of a name.
+     * Names that are not well known are also mapped by string, so they can be
+     * looked up without creating a buffer.
+     */
+    private void putField(Field field)
+    {
+        _bufferMap.put(field.getNameBuffer(), field);
+        if (field.getNameOrdinal()<0)
+            _nameMap.put(field.getName(), field);
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Remove a field.
@@ -1099,12 +1143,34 @@ public class HttpFields
         return null;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times a field was set or added by reusing a field
+     * recycled from a previous message.
+     */
+    public long getFieldsReused()
+    {
+        return _fieldsReused;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times a field was set or added by allocating a new field.
+     */
+    public long getFieldsAllocated()
+    {
+        return _fieldsAllocated;
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Clear the header.
      */
     public void clear()
     {
+        if (_fields.size() > __maxRecycledFields)
+            discard(_revision);
+        
         _revision++;
         if (_revision > 1000000)
         {
@@ -1117,6 +1183,37 @@ public class HttpFields
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /** Discard the fields that are not of the given revision.
+     * Fields are kept after a {@link #clear()} so that they can be reused by the next 
+     * message with the same header names. Fields of names not used by the last message 
+     * are discarded, so that the number of fields kept is bounded.
+     */
+    private void discard(int revision)
+    {
+        for (int i = _fields.size(); i-- > 0;)
+        {
+            Field field = (Field) _fields.get(i);
+            if (field == null || field._revision == revision)
+                continue;
+
+            _fields.remove(i);
+            if (field._prev != null)
+                field._prev._next = field._next;
+            else if (field._next != null)
+                putField(field._next);
+            else
+            {
+                _bufferMap.remove(field.getNameBuffer());
+                if (field.getNameOrdinal()<0)
+                    _nameMap.remove(field.getName());
+            }
+            if (field._next != null)
+                field._next._prev = field._prev;
+            field.destroy();
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * Destroy the header. Help the garbage collector by null everything that we can.
@@ -1134,6 +1231,7 @@ public class HttpFields
                 }
             }
         }
+        _nameMap.clear();
         _fields = null;
         _dateBuffer = null;
         _calendar = null;
@@ -76,8 +76,17 @@ public class HttpHeaderValues extends BufferCache
         int index=100;
         CACHE.add("gzip",index++);
         CACHE.add("gzip,deflate",index++);
+        CACHE.add("gzip, deflate",index++);
         CACHE.add("deflate",index++);
         
+        // Common Accept, Accept-Charset and Cache-Control values
+        CACHE.add("*/*",index++);
+        CACHE.add("text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",index++);
+        CACHE.add("application/xml,application/xhtml+xml,text/html;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5",index++);
+        CACHE.add("ISO-8859-1,utf-8;q=0.7,*;q=0.7",index++);
+        CACHE.add("ISO-8859-1,utf-8;q=0.7,*;q=0.3",index++);
+        CACHE.add("max-age=0",index++);
+        
         try
         {
             InputStream ua = HttpHeaderValues.class.getResourceAsStream("/org/mortbay/jetty/useragents");
@@ -999,6 +999,38 @@ public class HttpParser implements Parser
         }
     }
 
+    /* ------------------------------------------------------------------------------- */
+    /** Return empty buffers while idle.
+     * If the parser is idle and its buffers hold no data, they are returned to the 
+     * {@link Buffers} and will be acquired again when the parser next fills.
+     * @return The number of buffers still held by the parser.
+     */
+    public int returnBuffers()
+    {
+        synchronized (this) 
+        {
+            if (_state==STATE_START && _buffers!=null)
+            {
+                if (_body!=null && !_body.hasContent())
+                {
+                    if (_buffer==_body)
+                        _buffer=_header;
+                    _buffers.returnBuffer(_body);
+                    _body=null;
+                }
+
+                if (_header!=null && _body==null && !_header.hasContent())
+                {
+                    _buffers.returnBuffer(_header);
+                    _header=null;
+                    _buffer=null;
+                }
+            }
+
+            return (_header==null?0:1)+(_body==null?0:1);
+        }
+    }
+
     /* ------------------------------------------------------------------------------- */
     public void setState(int state)
     {
@@ -21,6 +21,7 @@ import org.mortbay.util.StringUtil;
 import org.mortbay.util.TypeUtil;
 import org.mortbay.util.URIUtil;
 import org.mortbay.util.UrlEncoded;
+import org.mortbay.util.UrlEncodedIndex;
 import org.mortbay.util.Utf8StringBuffer;
 
 
@@ -564,6 +565,17 @@ public class HttpURI
             UrlEncoded.decodeTo(toUtf8String(_query+1,_fragment-_query-1),parameters,encoding);
     }
 
+    /* ------------------------------------------------------------ */
+    /** Index the UTF-8 query parameters without decoding them.
+     * @param index The index of the query, which refers to the raw bytes of this URI.
+     * @return true if the query was indexed, false if the query is not UTF-8 encoded.
+     */
+    public boolean indexQueryTo(UrlEncodedIndex index)
+    {
+        index.index(_raw,_query+1,_query==_fragment?0:(_fragment-_query-1));
+        return true;
+    }
+
     public void clear()
     {
         _scheme=_authority=_host=_port=_path=_param=_query=_fragment=_end=0;
@@ -26,6 +26,8 @@ public interface Parser
 
     void reset(boolean returnBuffers);
 
+    int returnBuffers();
+
     boolean isComplete();
 
     long parseAvailable() throws IOException;
@@ -66,6 +66,7 @@ import org.mortbay.util.QuotedStringTokenizer;
 import org.mortbay.util.StringUtil;
 import org.mortbay.util.URIUtil;
 import org.mortbay.util.UrlEncoded;
+import org.mortbay.util.UrlEncodedIndex;
 import org.mortbay.util.ajax.Continuation;
 
 /* ------------------------------------------------------------ */
@@ -105,6 +106,7 @@ public class Request implements HttpServletRequest
 {
     private static final Collection __defaultLocale = Collections.singleton(Locale.getDefault());
     private static final int __NONE=0, _STREAM=1, __READER=2;
+    private static final int __maxIndexedFormContentSize = Integer.getInteger("org.mortbay.jetty.Request.maxIndexedFormContentSize",8192).intValue();
     
     private boolean _handled =false;
     private HttpConnection _connection;
@@ -135,6 +137,9 @@ public class Request implements HttpServletRequest
     private MultiMap _parameters;
     private MultiMap _baseParameters;
     private boolean _paramsExtracted;
+    private boolean _paramsIndexed;
+    private UrlEncodedIndex _queryIndex;
+    private UrlEncodedIndex _formIndex;
     private int _inputState=__NONE;
     private BufferedReader _reader;
     private String _readerEncoding;
@@ -228,6 +233,13 @@ public class Request implements HttpServletRequest
             _baseParameters.clear();
         _parameters=null;
         _paramsExtracted=false;
+        if (_paramsIndexed)
+        {
+            _queryIndex.clear();
+            if (_formIndex!=null)
+                _formIndex.clear();
+        }
+        _paramsIndexed=false;
         _inputState=__NONE;
         
         _cookiesExtracted=false;
@@ -387,6 +399,27 @@ public class Request implements HttpServletRequest
             return _cookies;
         }
 
+        // Check if a single cookie header has been parsed by any connection
+        CookieCache cache = null;
+        Buffer header = null;
+        if (_connection.getConnector() instanceof AbstractConnector)
+        {
+            cache = ((AbstractConnector)_connection.getConnector()).getCookieCache();
+            if (cache != null)
+                header = _connection.getRequestFields().getSingleValue(HttpHeaders.COOKIE_BUFFER);
+            if (header != null)
+            {
+                Cookie[] cookies = cache.get(header);
+                if (cookies != null)
+                {
+                    _cookies = cookies.length==0?null:cookies;
+                    _cookiesExtracted = true;
+                    _unparsedCookies = null;
+                    return _cookies;
+                }
+            }
+        }
+
         // Check if cookie headers match last cookies
         if (_unparsedCookies != null)
         {
@@ -662,6 +695,9 @@ public class Request implements HttpServletRequest
             _cookies=null;
             _unparsedCookies=null;
         }
+        
+        if (header != null)
+            cache.put(header, _cookies==null?new Cookie[0]:_cookies);
 
 
         if (_cookies==null || _cookies.length==0)
@@ -855,6 +891,14 @@ public class Request implements HttpServletRequest
      */
     public String getParameter(String name)
     {
+        if (!_paramsExtracted && _parameters==null && indexParameters())
+        {
+            String value=_queryIndex.getValue(name);
+            if (value==null && _formIndex!=null)
+                value=_formIndex.getValue(name);
+            return value;
+        }
+        
         if (!_paramsExtracted) 
             extractParameters();
         return (String) _parameters.getValue(name, 0);
@@ -1489,6 +1533,86 @@ public class Request implements HttpServletRequest
     }
     
 
+    /* ------------------------------------------------------------ */
+    private int getMaxFormContentSize()
+    {
+        if (_context!=null)
+            return _context.getContextHandler().getMaxFormContentSize();
+        
+        Integer size = (Integer)_connection.getConnector().getServer().getAttribute("org.mortbay.jetty.Request.maxFormContentSize");
+        if (size!=null)
+            return size.intValue();
+        return -1;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* 
+     * @return true if the form content of the request is to be decoded as parameters.
+     */
+    private boolean isFormContent()
+    {
+        String content_type = getContentType();
+        if (content_type == null || content_type.length() == 0 || _inputState!=__NONE)
+            return false;
+        content_type = HttpFields.valueParameters(content_type, null);
+        return MimeTypes.FORM_ENCODED.equalsIgnoreCase(content_type) && 
+            (HttpMethods.POST.equals(getMethod()) || HttpMethods.PUT.equals(getMethod()));
+    }
+
+    /* ------------------------------------------------------------ */
+    /*
+     * Index the parameters of the query string and of any UTF-8 form content smaller than
+     * __maxIndexedFormContentSize, so that a parameter can be decoded without extracting 
+     * all parameters.
+     * @return true if the parameters are indexed, false if they can only be extracted. 
+     */
+    private boolean indexParameters()
+    {
+        if (_paramsIndexed)
+            return true;
+        if (_uri==null || _queryEncoding!=null && !StringUtil.isUTF8(_queryEncoding))
+            return false;
+        
+        int content_length=0;
+        if (isFormContent())
+        {
+            // Larger, chunked and non UTF-8 forms are extracted with a streaming decoder
+            content_length = getContentLength();
+            String encoding = getCharacterEncoding();
+            if (content_length<0 || content_length>__maxIndexedFormContentSize || 
+                !StringUtil.isUTF8(encoding==null?UrlEncoded.ENCODING:encoding))
+                return false;
+            int maxFormContentSize=getMaxFormContentSize();
+            if (content_length>maxFormContentSize && maxFormContentSize > 0)
+                return false;
+        }
+        
+        if (_queryIndex==null)
+            _queryIndex=new UrlEncodedIndex();
+        if (!_uri.indexQueryTo(_queryIndex))
+            return false;
+        _paramsIndexed=true;
+        
+        if (content_length>0)
+        {
+            if (_formIndex==null)
+                _formIndex=new UrlEncodedIndex();
+            try
+            {
+                _formIndex.index(getInputStream(),content_length);
+            }
+            catch (IOException e)
+            {
+                _formIndex.clear();
+                if (Log.isDebugEnabled())
+                    Log.warn(e);
+                else
+                    Log.warn(e.toString());
+            }
+        }
+        return true;
+    }
+
     /* ------------------------------------------------------------ */
     /*
      * Extract Paramters from query string and/or form _content.
@@ -1510,7 +1634,14 @@ public class Request implements HttpServletRequest
         // Handle query string
         try
         {
-            if (_uri!=null && _uri.hasQuery())
+            if (_paramsIndexed)
+            {
+                // Decode the indexed query and form content
+                _queryIndex.decodeTo(_baseParameters);
+                if (_formIndex!=null)
+                    _formIndex.decodeTo(_baseParameters);
+            }
+            else if (_uri!=null && _uri.hasQuery())
             {
                 if (_queryEncoding==null)
                     _uri.decodeQueryTo(_baseParameters);
@@ -1533,47 +1664,29 @@ public class Request implements HttpServletRequest
             }
 
             // handle any _content.
-            String encoding = getCharacterEncoding();
-            String content_type = getContentType();
-            if (content_type != null && content_type.length() > 0)
+            if (isFormContent())
             {
-                content_type = HttpFields.valueParameters(content_type, null);
-
-                if (MimeTypes.FORM_ENCODED.equalsIgnoreCase(content_type) && _inputState==__NONE &&
-                        (HttpMethods.POST.equals(getMethod()) || HttpMethods.PUT.equals(getMethod())))
+                int content_length = getContentLength();
+                if (content_length != 0)
                 {
-                    int content_length = getContentLength();
-                    if (content_length != 0)
+                    try
                     {
-                        try
+                        int maxFormContentSize=getMaxFormContentSize();
+                        if (content_length>maxFormContentSize && maxFormContentSize > 0)
                         {
-                            int maxFormContentSize=-1;
-
-                            if (_context!=null)
-                                maxFormContentSize=_context.getContextHandler().getMaxFormContentSize();
-                            else
-                            {
-                                Integer size = (Integer)_connection.getConnector().getServer().getAttribute("org.mortbay.jetty.Request.maxFormContentSize");
-                                if (size!=null)
-                                    maxFormContentSize =size.intValue();
-                            }
-
-                            if (content_length>maxFormContentSize && maxFormContentSize > 0)
-                            {
-                                throw new IllegalStateException("Form too large"+content_length+">"+maxFormContentSize);
-                            }
-                            InputStream in = getInputStream();
-
-                            // Add form params to query params
-                            UrlEncoded.decodeTo(in, _baseParameters, encoding,content_length<0?maxFormContentSize:-1);
-                        }
-                        catch (IOException e)
-                        {
-                            if (Log.isDebugEnabled())
-                                Log.warn(e);
-                            else
-                                Log.warn(e.toString());
+                            throw new IllegalStateException("Form too large"+content_length+">"+maxFormContentSize);
                         }
+                        InputStream in = getInputStream();
+
+                        // Add form params to query params
+                        UrlEncoded.decodeTo(in, _baseParameters, getCharacterEncoding(),content_length<0?maxFormContentSize:-1);
+                    }
+                    catch (IOException e)
+                    {
+                        if (Log.isDebugEnabled())
+                            Log.warn(e);
+                        else
+                            Log.warn(e.toString());
                     }
                 }
             }
@@ -14,24 +14,68 @@
 
 package org.mortbay.jetty;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 import org.mortbay.component.AbstractLifeCycle;
 import org.mortbay.io.Buffer;
 import org.mortbay.io.ByteArrayBuffer;
 import org.mortbay.io.View;
+import org.mortbay.io.nio.DirectNIOBuffer;
+import org.mortbay.io.nio.NIOBuffer;
+import org.mortbay.log.Log;
 import org.mortbay.resource.Resource;
 import org.mortbay.resource.ResourceFactory;
+import org.mortbay.util.IO;
 
 
 /* ------------------------------------------------------------ */
 /** 
+ * Cache of static resource content.
+ * <p>
+ * Small files are cached in buffers held on the heap, limited by
+ * {@link #setMaxCachedFileSize(int)} and {@link #setMaxCacheSize(int)}.
+ * Files that are too large for the heap cache may be held as read only
+ * memory mapped buffers, limited separately by {@link #setMaxMappedFileSize(int)}
+ * and {@link #setMaxMappedSize(int)}, so that they are served from the
+ * operating system page cache. Mapped buffers are NIO buffers, so mapping should 
+ * only be enabled for caches used by NIO connectors.
+ * <p>
+ * A cache hit takes no lock and only records the access in the content, while loading
+ * and evicting content is synchronized on the cache and updates the map in place.  
+ * The content evicted when the cache is full is selected by a {@link Policy}, which
+ * defaults to {@link LRUPolicy}, from a sample of the cached content, so that 
+ * eviction does not order the whole cache. While the cache holds no more than
+ * {@link #setEvictionSamples(int)} contents, eviction is exact.
+ * <p>
+ * If {@link #setGzipMimeTypes(Set)} is set, a gzip compressed variant of cached content
+ * of those types is generated on the first request for it and held with the content, so
+ * that the content is compressed only once. Variants are held on the heap
+ * and counted against the heap cache size, unless the content is mapped or too large
+ * to cache on the heap, in which case they are written to the {@link #setGzipDirectory(File)}.
+ * A variant is discarded with its content, and its file is deleted once it is no longer being sent.
+ * <p>
+ * The hit, miss and eviction counters are updated without synchronization and
+ * may lose counts under heavy contention.
+ * 
  * @author Greg Wilkins
  */
 public class ResourceCache extends AbstractLifeCycle implements Serializable
@@ -39,13 +83,26 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
     private int _maxCachedFileSize =1024*1024;
     private int _maxCachedFiles=2048;
     private int _maxCacheSize =16*1024*1024;
+    private int _maxMappedFileSize=0;
+    private int _maxMappedSize=256*1024*1024;
     private MimeTypes _mimeTypes;
+    private Policy _policy=new LRUPolicy();
+    private Set _gzipMimeTypes;
+    private int _minGzipSize=0;
+    private File _gzipDirectory;
+    private int _evictionSamples=16;
     
-    protected transient Map _cache;
+    protected transient volatile Map _cache;
     protected transient int _cachedSize;
     protected transient int _cachedFiles;
-    protected transient Content _mostRecentlyUsed;
-    protected transient Content _leastRecentlyUsed;
+    protected transient int _mappedSize;
+    protected transient int _mappedFiles;
+
+    private transient long _clock;
+    private transient int _random=0x2545F491;
+    private transient volatile long _hits;
+    private transient volatile long _misses;
+    private transient volatile long _evictions;
 
 
     /* ------------------------------------------------------------ */
@@ -68,6 +125,61 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         return _cachedFiles;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the total size of the memory mapped buffers in the cache.
+     */
+    public int getMappedSize()
+    {
+        return _mappedSize;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of cached files held as memory mapped buffers.
+     */
+    public int getMappedFiles()
+    {
+        return _mappedFiles;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of lookups that returned cached content since {@link #statsReset()}.
+     */
+    public long getHits()
+    {
+        return _hits;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of lookups that did not find cached content since {@link #statsReset()}.
+     */
+    public long getMisses()
+    {
+        return _misses;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of cached contents evicted to make room for other content
+     * since {@link #statsReset()}.
+     */
+    public long getEvictions()
+    {
+        return _evictions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Reset the hit, miss and eviction counters.
+     */
+    public void statsReset()
+    {
+        _hits=0;
+        _misses=0;
+        _evictions=0;
+    }
     
     /* ------------------------------------------------------------ */
     public int getMaxCachedFileSize()
@@ -95,6 +207,47 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         flushCache();
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum size of a file that will be cached as a memory mapped buffer.
+     */
+    public int getMaxMappedFileSize()
+    {
+        return _maxMappedFileSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxMappedFileSize The maximum size of a file that will be cached as
+     * a memory mapped buffer if it is too large to be cached on the heap.  
+     * 0 (the default) disables mapping.
+     */
+    public void setMaxMappedFileSize(int maxMappedFileSize)
+    {
+        _maxMappedFileSize = maxMappedFileSize;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the maximum total size of the memory mapped buffers in the cache.
+     */
+    public int getMaxMappedSize()
+    {
+        return _maxMappedSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxMappedSize The maximum total size of the memory mapped buffers in the cache.
+     * This limit is independent of {@link #setMaxCacheSize(int)}. 
+     */
+    public void setMaxMappedSize(int maxMappedSize)
+    {
+        _maxMappedSize = maxMappedSize;
+        flushCache();
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return Returns the maxCachedFiles.
@@ -113,6 +266,108 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         _maxCachedFiles = maxCachedFiles;
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the eviction policy of the cache.
+     */
+    public Policy getPolicy()
+    {
+        return _policy;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param policy The eviction policy of the cache.
+     */
+    public void setPolicy(Policy policy)
+    {
+        if (policy==null)
+            throw new IllegalArgumentException();
+        _policy = policy;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the number of cached contents sampled to select each eviction.
+     */
+    public int getEvictionSamples()
+    {
+        return _evictionSamples;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param samples the number of cached contents sampled to select each eviction.
+     * The sampled content that the policy orders first is evicted, so larger samples
+     * approximate the policy more closely at the cost of slower misses.
+     */
+    public void setEvictionSamples(int samples)
+    {
+        if (samples<1)
+            throw new IllegalArgumentException();
+        _evictionSamples = samples;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the set of mime types for which compressed variants are cached, or null.
+     */
+    public Set getGzipMimeTypes()
+    {
+        return _gzipMimeTypes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param mimeTypes the set of mime types for which gzip compressed variants of 
+     * content are cached, or null for no compression.
+     */
+    public void setGzipMimeTypes(Set mimeTypes)
+    {
+        _gzipMimeTypes = mimeTypes;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the minimum size of content that is compressed.
+     */
+    public int getMinGzipSize()
+    {
+        return _minGzipSize;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param minGzipSize the minimum size of content that is compressed.
+     */
+    public void setMinGzipSize(int minGzipSize)
+    {
+        _minGzipSize = minGzipSize;
+        flushCache();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return the directory in which compressed variants that are too large for the heap are written, or null.
+     */
+    public File getGzipDirectory()
+    {
+        return _gzipDirectory;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param directory the directory in which compressed variants of mapped content
+     * or content too large for the heap are written. If null, such content is not compressed.
+     */
+    public void setGzipDirectory(File directory)
+    {
+        _gzipDirectory = directory;
+        flushCache();
+    }
+
     /* ------------------------------------------------------------ */
     public void flushCache()
     {
@@ -120,19 +375,18 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         {
             synchronized(this)
             {
-                ArrayList values=new ArrayList(_cache.values());
-                Iterator iter = values.iterator();
+                Iterator iter = _cache.values().iterator();
                 while(iter.hasNext())
                 {
                     Content content = (Content)iter.next();
-                    content.invalidate();
+                    content.remove();
                 }
                 
-                _cache.clear();
+                _cache=new ContentMap();
                 _cachedSize=0;
                 _cachedFiles=0;
-                _mostRecentlyUsed=null;
-                _leastRecentlyUsed=null;
+                _mappedSize=0;
+                _mappedFiles=0;
             }
         }
     }
@@ -149,42 +403,40 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
     public Content lookup(String pathInContext, ResourceFactory factory)
         throws IOException
     {
-        Content content=null;
-        
-        // Look up cache operations
-        synchronized(_cache)
-        {
-            // Look for it in the cache
-            content = (Content)_cache.get(pathInContext);
+        Content content=(Content)_cache.get(pathInContext);
+        if (content!=null && content.isValid())
+            return hit(pathInContext,content);
         
-            if (content!=null && content.isValid())
-            {
-                return content;
-            }    
-        }
+        _policy.accessed(pathInContext,null);
+        _misses++;
         Resource resource=factory.getResource(pathInContext);
         return load(pathInContext,resource);
     }
     
+    /* ------------------------------------------------------------ */
     public Content lookup(String pathInContext, Resource resource)
         throws IOException
     {
-        Content content=null;
+        Content content=(Content)_cache.get(pathInContext);
+        if (content!=null && content.isValid())
+            return hit(pathInContext,content);
         
-        // Look up cache operations
-        synchronized(_cache)
-        {
-            // Look for it in the cache
-            content = (Content)_cache.get(pathInContext);
-        
-            if (content!=null && content.isValid())
-            {
-                return content;
-            }    
-        }
+        _policy.accessed(pathInContext,null);
+        _misses++;
         return load(pathInContext,resource);
     }
 
+    /* ------------------------------------------------------------ */
+    private Content hit(String pathInContext, Content content)
+    {
+        content._accessed=++_clock;
+        content._hits++;
+        _hits++;
+        _policy.accessed(pathInContext,content);
+        return content;
+    }
+
+    /* ------------------------------------------------------------ */
     private Content load(String pathInContext, Resource resource)
         throws IOException
     {
@@ -192,25 +444,37 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         if (resource!=null && resource.exists() && !resource.isDirectory())
         {
             long len = resource.length();
-            if (len>0 && len<_maxCachedFileSize && len<_maxCacheSize)
+            boolean heap=len>0 && len<_maxCachedFileSize && len<_maxCacheSize;
+            boolean mapped=!heap && len>0 && len<=_maxMappedFileSize && len<=_maxMappedSize && resource.getFile()!=null;
+            if (heap || mapped)
             {
+                // Ask the policy before reading content that it will not admit
+                synchronized(this)
+                {
+                    if (!_policy.admit(pathInContext,victims((int)len,mapped,true,null)))
+                        return null;
+                }
+
                 content = new Content(resource);
-                fill(content);
+                if (mapped)
+                    map(content);
+                else
+                    fill(content);
 
-                synchronized(_cache)
+                synchronized(this)
                 {
                     // check that somebody else did not fill this spot.
                     Content content2 =(Content)_cache.get(pathInContext);
-                    if (content2!=null)
+                    if (content2!=null && content2._lastModified==content._lastModified)
                     {
                         content.release();
                         return content2;
                     }
 
-                    int must_be_smaller_than=_maxCacheSize-(int)len;
-                    while(_cachedSize>must_be_smaller_than || (_maxCachedFiles>0 && _cachedFiles>=_maxCachedFiles))
-                        _leastRecentlyUsed.invalidate();
-                    content.cache(pathInContext);
+                    if (content2!=null)
+                        content2.remove(_cache);
+                    evict(victims((int)content.getContentLength(),content.isMapped(),true,null));
+                    content.cache(pathInContext,_cache);
                     
                     return content;
                 }
@@ -220,14 +484,119 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         return null; 
     }
 
+    /* ------------------------------------------------------------ */
+    /** Find the content that must be evicted to make room.
+     * Each victim is the content that the policy orders first from a sample of
+     * the cached content.
+     * Must be called while synchronized on the cache.
+     * @param len The length of the content to be cached.
+     * @param mapped True if the content is memory mapped, false if it is on the heap.
+     * @param file True if a file is to be cached, false if only the size of the cache grows.
+     * @param keep Content that must not be evicted, or null.
+     * @return The list of content to evict.
+     */
+    private List victims(int len, boolean mapped, boolean file, Content keep)
+    {
+        int size=mapped?_mappedSize:_cachedSize;
+        int must_be_smaller_than=(mapped?_maxMappedSize:_maxCacheSize)-len;
+        int files=_cachedFiles;
+        int max_files=file?_maxCachedFiles:(_maxCachedFiles+1);
+
+        if (size<=must_be_smaller_than && (_maxCachedFiles<=0 || files<max_files))
+            return Collections.EMPTY_LIST;
+
+        ContentMap cache=(ContentMap)_cache;
+        List victims=new ArrayList();
+        Set chosen=new HashSet();
+        if (keep!=null)
+            chosen.add(keep);
+        List sample=new ArrayList(_evictionSamples);
+        while (true)
+        {
+            boolean too_big=size>must_be_smaller_than;
+            boolean too_many=_maxCachedFiles>0 && files>=max_files;
+            if (!too_big && !too_many)
+                break;
+
+            // Only content that frees the needed space may be evicted, unless there are too many files.
+            // If a sample holds no such content, the next sample is taken from the following buckets.
+            Content victim=null;
+            int bucket=nextRandom()&(cache.buckets()-1);
+            for (int scanned=0;victim==null && scanned<cache.buckets();)
+            {
+                sample.clear();
+                int buckets=cache.sample(sample,_evictionSamples,bucket);
+                bucket+=buckets;
+                scanned+=buckets;
+                victim=victim(sample,chosen,mapped,too_many);
+            }
+            if (victim==null)
+                break;
+
+            chosen.add(victim);
+            victims.add(victim);
+            size-=mapped?victim.getMappedSize():victim.getHeapSize();
+            files--;
+        }
+        return victims;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The content from the candidates that the policy orders first, or null if none may be evicted.
+     */
+    private Content victim(java.util.Collection candidates, Set chosen, boolean mapped, boolean too_many)
+    {
+        Content victim=null;
+        for (Iterator i=candidates.iterator();i.hasNext();)
+        {
+            Content content=(Content)i.next();
+            if (chosen.contains(content))
+                continue;
+            if (!too_many && (mapped?content.getMappedSize():content.getHeapSize())==0)
+                continue;
+            if (victim==null || _policy.compare(content,victim)<0)
+                victim=content;
+        }
+        return victim;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Remove evicted content from the cache.
+     * Must be called while synchronized on the cache.
+     */
+    private void evict(List victims)
+    {
+        for (int i=0;i<victims.size();i++)
+        {
+            ((Content)victims.get(i)).remove(_cache);
+            _evictions++;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Must be called while synchronized on the cache.
+     */
+    private int nextRandom()
+    {
+        // xorshift
+        int r=_random;
+        r^=r<<13;
+        r^=r>>>17;
+        r^=r<<5;
+        _random=r;
+        return r&0x7fffffff;
+    }
 
     /* ------------------------------------------------------------ */
     public synchronized void doStart()
         throws Exception
     {
-        _cache=new HashMap();
+        _cache=new ContentMap();
         _cachedSize=0;
         _cachedFiles=0;
+        _mappedSize=0;
+        _mappedFiles=0;
     }
 
     /* ------------------------------------------------------------ */
@@ -258,6 +627,22 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         }
     }
     
+    /* ------------------------------------------------------------ */
+    /** Fill the content with a read only memory mapped buffer of its file.
+     */
+    protected void map(Content content)
+        throws IOException
+    {
+        try
+        {
+            content.setBuffer(new DirectNIOBuffer(content.getResource().getFile()));
+        }
+        finally
+        {
+            content.getResource().release();
+        }
+    }
+    
     /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
     /** MetaData associated with a context Resource.
@@ -267,39 +652,40 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         String _key;
         Resource _resource;
         long _lastModified;
-        Content _prev;
-        Content _next;
+        volatile long _accessed;
+        volatile int _hits;
         
         Buffer _lastModifiedBytes;
         Buffer _contentType;
         Buffer _buffer;
+        boolean _mapped;
+        GzipContent _gzip;
+        boolean _gzipDone;
 
         /* ------------------------------------------------------------ */
         Content(Resource resource)
         {
             _resource=resource;
 
-            _next=this;
-            _prev=this;
             _contentType=_mimeTypes.getMimeByExtension(_resource.toString());
             
             _lastModified=resource.lastModified();
         }
 
         /* ------------------------------------------------------------ */
-        void cache(String pathInContext)
+        /** Add this content to a cache map.
+         * Must be called while synchronized on the cache.
+         */
+        void cache(String pathInContext, Map cache)
         {
             _key=pathInContext;
-            _next=_mostRecentlyUsed;
-            _mostRecentlyUsed=this;
-            if (_next!=null)
-                _next._prev=this;
-            _prev=null;
-            if (_leastRecentlyUsed==null)
-                _leastRecentlyUsed=this;
-
-            _cache.put(_key,this);
-            _cachedSize+=_buffer.length();
+            _accessed=++_clock;
+
+            cache.put(_key,this);
+            if (_mapped)
+                _mappedFiles++;
+            _mappedSize+=getMappedSize();
+            _cachedSize+=getHeapSize();
             _cachedFiles++;
             if (_lastModified!=-1)
                 _lastModifiedBytes=new ByteArrayBuffer(HttpFields.formatDate(_lastModified,false));
@@ -323,32 +709,30 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
             return _resource;
         }
         
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The time of the last access of this content, as a count of cache accesses.
+         */
+        public long getLastAccessed()
+        {
+            return _accessed;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of cache hits of this content.
+         */
+        public int getHits()
+        {
+            return _hits;
+        }
+
         /* ------------------------------------------------------------ */
         boolean isValid()
         {
-            if (_lastModified==_resource.lastModified())
-            {
-                if (_mostRecentlyUsed!=this)
-                {
-                    Content tp = _prev;
-                    Content tn = _next;
-
-                    _next=_mostRecentlyUsed;
-                    _mostRecentlyUsed=this;
-                    if (_next!=null)
-                        _next._prev=this;
-                    _prev=null;
-
-                    if (tp!=null)
-                        tp._next=tn;
-                    if (tn!=null)
-                        tn._prev=tp;
-
-                    if (_leastRecentlyUsed==this && tp!=null)
-                        _leastRecentlyUsed=tp;
-                }
+            Resource resource=_resource;
+            if (resource!=null && _lastModified==resource.lastModified())
                 return true;
-            }
 
             invalidate();
             return false;
@@ -357,31 +741,44 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         /* ------------------------------------------------------------ */
         public void invalidate()
         {
-            synchronized(this)
+            synchronized(ResourceCache.this)
+            {
+                if (_key!=null && _cache.get(_key)==this)
+                    remove(_cache);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Remove this content from a cache map.
+         * Must be called while synchronized on the cache.
+         */
+        void remove(Map cache)
+        {
+            if (_key!=null && cache.get(_key)==this)
             {
-                // Invalidate it
-                _cache.remove(_key);
-                _key=null;
-                _cachedSize=_cachedSize-(int)_buffer.length();
+                cache.remove(_key);
+                if (_mapped)
+                    _mappedFiles--;
+                _mappedSize-=getMappedSize();
+                _cachedSize-=getHeapSize();
                 _cachedFiles--;
-                
-                if (_mostRecentlyUsed==this)
-                    _mostRecentlyUsed=_next;
-                else
-                    _prev._next=_next;
-                
-                if (_leastRecentlyUsed==this)
-                    _leastRecentlyUsed=_prev;
-                else
-                    _next._prev=_prev;
-                
-                _prev=null;
-                _next=null;
-                if (_resource!=null)
-                    _resource.release();
-                _resource=null;
-                
             }
+            remove();
+        }
+                
+        /* ------------------------------------------------------------ */
+        /** Release this content without accounting for it.
+         * Must be called while synchronized on the cache.
+         */
+        void remove()
+        {
+            _key=null;
+            if (_gzip!=null)
+                _gzip.destroy();
+            _gzip=null;
+            if (_resource!=null)
+                _resource.release();
+            _resource=null;
         }
 
         /* ------------------------------------------------------------ */
@@ -419,26 +816,729 @@ public class ResourceCache extends AbstractLifeCycle implements Serializable
         public void setBuffer(Buffer buffer)
         {
             _buffer=buffer;
+            _mapped=(buffer instanceof NIOBuffer) && (((NIOBuffer)buffer).getByteBuffer() instanceof MappedByteBuffer);
         }
 
         /* ------------------------------------------------------------ */
-        public long getContentLength()
+        /**
+         * @return true if the content is held in a memory mapped buffer.
+         */
+        public boolean isMapped()
         {
-            if (_buffer==null)
-            {
-                if (_resource!=null)
-                    return _resource.length();
-                return -1;
-            }
-            return _buffer.length();
+            return _mapped;
         }
 
         /* ------------------------------------------------------------ */
-        public InputStream getInputStream() throws IOException
+        /**
+         * @return the number of bytes of heap used by this content and its compressed variant.
+         */
+        int getHeapSize()
         {
-            return _resource.getInputStream();
+            int size=_mapped?0:_buffer.length();
+            if (_gzip!=null && _gzip._buffer!=null)
+                size+=_gzip._buffer.length();
+            return size;
         }
-        
-    }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * @return the number of bytes of memory mapped by this content.
+         */
+        int getMappedSize()
+        {
+            return _mapped?_buffer.length():0;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return true if a gzip compressed variant of this content may be cached.
+         */
+        public boolean isGzippable()
+        {
+            if (_gzipMimeTypes==null || _contentType==null || !_gzipMimeTypes.contains(_contentType.toString()))
+                return false;
+            if (_buffer==null || _buffer.length()<_minGzipSize)
+                return false;
+            return !spillGzip() || _gzipDirectory!=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        private boolean spillGzip()
+        {
+            return _mapped || _buffer.length()>=_maxCachedFileSize;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Get the gzip compressed variant of this content.
+         * The variant is generated by the first call and then held until the content
+         * is removed from the cache. {@link HttpContent#release()} must be called on the 
+         * returned variant when it has been sent, so that a compressed file is not deleted
+         * while it is in use.
+         * @return The compressed content or null if the content is not gzippable, has
+         * been removed from the cache or does not compress.
+         */
+        public HttpContent getGzipContent()
+        {
+            if (!isGzippable())
+                return null;
+
+            synchronized(this)
+            {
+                if (!_gzipDone)
+                {
+                    _gzipDone=true;
+                    GzipContent gzip=null;
+                    try
+                    {
+                        gzip=compress();
+                    }
+                    catch(IOException e)
+                    {
+                        Log.warn(e.toString());
+                        Log.debug(e);
+                    }
+
+                    if (gzip!=null)
+                    {
+                        synchronized(ResourceCache.this)
+                        {
+                            if (isCached() && (gzip._buffer==null || makeRoom(gzip._buffer.length())))
+                            {
+                                _gzip=gzip;
+                                if (_gzip._buffer!=null)
+                                    _cachedSize+=_gzip._buffer.length();
+                            }
+                            else
+                                gzip.destroy();
+                        }
+                    }
+                }
+                
+                if (_gzip!=null)
+                    _gzip.use();
+                return _gzip;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Evict other content to make room on the heap for the compressed variant.
+         * Must be called while synchronized on the cache.
+         * @return True if there is room for the variant.
+         */
+        private boolean makeRoom(int len)
+        {
+            List victims=victims(len,false,false,this);
+            int size=_cachedSize;
+            for (int i=0;i<victims.size();i++)
+                size-=((Content)victims.get(i)).getHeapSize();
+            if (size+len>_maxCacheSize)
+                return false;
+            evict(victims);
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Compress the content of the resource.
+         * @return the compressed variant or null if it is no smaller than the content.
+         */
+        private GzipContent compress() throws IOException
+        {
+            Resource resource=_resource;
+            if (resource==null)
+                return null;
+
+            File file=null;
+            OutputStream out;
+            ByteArrayOutputStream bout=null;
+            if (spillGzip())
+            {
+                file=File.createTempFile("gzip",".gz",_gzipDirectory);
+                out=new FileOutputStream(file);
+            }
+            else
+                out=bout=new ByteArrayOutputStream(_buffer.length()/2);
+
+            boolean compressed=false;
+            InputStream in=null;
+            try
+            {
+                in=resource.getInputStream();
+                GZIPOutputStream gzip=new GZIPOutputStream(out);
+                IO.copy(in,gzip);
+                gzip.close();
+                compressed=true;
+            }
+            finally
+            {
+                if (in!=null)
+                    in.close();
+                out.close();
+                resource.release();
+                if (!compressed && file!=null)
+                    file.delete();
+            }
+
+            if (file!=null)
+            {
+                if (file.length()>=_buffer.length())
+                {
+                    file.delete();
+                    return null;
+                }
+                if (_lastModified>0)
+                    file.setLastModified(_lastModified);
+                return new GzipContent(Resource.newResource(file.toURL()),null,file);
+            }
+
+            if (bout.size()>=_buffer.length())
+                return null;
+            Buffer buffer=new ByteArrayBuffer(bout.toByteArray());
+            return new GzipContent(new BufferResource(resource.getName()+".gz",buffer,_lastModified),buffer,null);
+        }
+
+        /* ------------------------------------------------------------ */
+        public long getContentLength()
+        {
+            if (_buffer==null)
+            {
+                if (_resource!=null)
+                    return _resource.length();
+                return -1;
+            }
+            return _buffer.length();
+        }
+
+        /* ------------------------------------------------------------ */
+        public InputStream getInputStream() throws IOException
+        {
+            return _resource.getInputStream();
+        }
+        
+        /* ------------------------------------------------------------ */
+        /* ------------------------------------------------------------ */
+        /** Gzip compressed variant of the content.
+         * The compressed bytes are held either in a buffer or in a file.
+         * A file is deleted when the variant has been destroyed and is no longer in use.
+         */
+        class GzipContent implements HttpContent
+        {
+            final Resource _gzipResource;
+            final Buffer _buffer;
+            final File _file;
+            private int _users;
+            private boolean _destroyed;
+
+            /* ------------------------------------------------------------ */
+            GzipContent(Resource resource, Buffer buffer, File file)
+            {
+                _gzipResource=resource;
+                _buffer=buffer;
+                _file=file;
+            }
+
+            /* ------------------------------------------------------------ */
+            synchronized void use()
+            {
+                _users++;
+            }
+
+            /* ------------------------------------------------------------ */
+            synchronized void destroy()
+            {
+                _destroyed=true;
+                if (_users==0 && _file!=null)
+                    _file.delete();
+            }
+
+            /* ------------------------------------------------------------ */
+            public Buffer getContentType()
+            {
+                return _contentType;
+            }
+
+            /* ------------------------------------------------------------ */
+            public Buffer getLastModified()
+            {
+                return _lastModifiedBytes;
+            }
+
+            /* ------------------------------------------------------------ */
+            public Buffer getBuffer()
+            {
+                if (_buffer==null)
+                    return null;
+                return new View(_buffer);
+            }
+
+            /* ------------------------------------------------------------ */
+            public Resource getResource()
+            {
+                return _gzipResource;
+            }
+
+            /* ------------------------------------------------------------ */
+            public long getContentLength()
+            {
+                if (_buffer==null)
+                    return _file.length();
+                return _buffer.length();
+            }
+
+            /* ------------------------------------------------------------ */
+            public InputStream getInputStream() throws IOException
+            {
+                return _gzipResource.getInputStream();
+            }
+
+            /* ------------------------------------------------------------ */
+            public synchronized void release()
+            {
+                if (_users>0 && --_users==0 && _destroyed && _file!=null)
+                    _file.delete();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Read only resource of content held in a buffer.
+     */
+    private static class BufferResource extends Resource
+    {
+        private final String _name;
+        private final Buffer _buffer;
+        private final long _lastModified;
+
+        /* ------------------------------------------------------------ */
+        BufferResource(String name, Buffer buffer, long lastModified)
+        {
+            _name=name;
+            _buffer=buffer;
+            _lastModified=lastModified;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void release()
+        {
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean exists()
+        {
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean isDirectory()
+        {
+            return false;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long lastModified()
+        {
+            return _lastModified;
+        }
+
+        /* ------------------------------------------------------------ */
+        public long length()
+        {
+            return _buffer.length();
+        }
+
+        /* ------------------------------------------------------------ */
+        public URL getURL()
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public File getFile()
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String getName()
+        {
+            return _name;
+        }
+
+        /* ------------------------------------------------------------ */
+        public InputStream getInputStream()
+        {
+            return new ByteArrayInputStream(_buffer.array(),_buffer.getIndex(),_buffer.length());
+        }
+
+        /* ------------------------------------------------------------ */
+        public OutputStream getOutputStream() throws IOException
+        {
+            throw new IOException("Read only");
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean delete()
+        {
+            return false;
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean renameTo(Resource dest)
+        {
+            return false;
+        }
+
+        /* ------------------------------------------------------------ */
+        public String[] list()
+        {
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Resource addPath(String path) throws IOException
+        {
+            throw new IOException("Not a directory");
+        }
+
+        /* ------------------------------------------------------------ */
+        public String toString()
+        {
+            return _name;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Map of cached content that may be read without a lock.
+     * The map is a hash table of immutable entry chains, so a reader sees a consistent
+     * chain while the table is changed by a writer.  Changes are published by writing the
+     * volatile table reference. Changes must be synchronized on the cache.
+     */
+    private static class ContentMap extends AbstractMap
+    {
+        private volatile Entry[] _table=new Entry[16];
+        private int _size;
+
+        /* ------------------------------------------------------------ */
+        private static int hash(Object key)
+        {
+            int h=key.hashCode();
+            return h^(h>>>16);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object get(Object key)
+        {
+            Entry[] table=_table;
+            int hash=hash(key);
+            for (Entry e=table[hash&(table.length-1)];e!=null;e=e._next)
+                if (e._hash==hash && e._key.equals(key))
+                    return e._value;
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object put(Object key, Object value)
+        {
+            Object old=remove(key);
+            Entry[] table=_table;
+            if (_size>=table.length*3/4)
+                table=resize(table);
+            int hash=hash(key);
+            int i=hash&(table.length-1);
+            table[i]=new Entry(key,hash,value,table[i]);
+            _size++;
+            _table=table;
+            return old;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object remove(Object key)
+        {
+            Entry[] table=_table;
+            int hash=hash(key);
+            int i=hash&(table.length-1);
+            for (Entry e=table[i];e!=null;e=e._next)
+            {
+                if (e._hash==hash && e._key.equals(key))
+                {
+                    // copy the entries before the removed entry
+                    Entry head=e._next;
+                    for (Entry p=table[i];p!=e;p=p._next)
+                        head=new Entry(p._key,p._hash,p._value,head);
+                    table[i]=head;
+                    _size--;
+                    _table=table;
+                    return e._value;
+                }
+            }
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        private Entry[] resize(Entry[] table)
+        {
+            Entry[] resized=new Entry[table.length*2];
+            for (int i=0;i<table.length;i++)
+            {
+                for (Entry e=table[i];e!=null;e=e._next)
+                {
+                    int j=e._hash&(resized.length-1);
+                    resized[j]=new Entry(e._key,e._hash,e._value,resized[j]);
+                }
+            }
+            return resized;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Add a sample of the values to a list.
+         * The values of consecutive buckets are added until the sample holds at 
+         * least the sample size, or all the values have been added.
+         * @param sample The list to add the values to.
+         * @param size The sample size.
+         * @param bucket The bucket to start from.
+         * @return The number of buckets sampled.
+         */
+        int sample(List sample, int size, int bucket)
+        {
+            Entry[] table=_table;
+            int i=0;
+            while (i<table.length && sample.size()<size)
+            {
+                for (Entry e=table[(bucket+i)&(table.length-1)];e!=null;e=e._next)
+                    sample.add(e._value);
+                i++;
+            }
+            return i;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The number of buckets, which is a power of 2.
+         */
+        int buckets()
+        {
+            return _table.length;
+        }
+
+        /* ------------------------------------------------------------ */
+        public int size()
+        {
+            return _size;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** 
+         * @return A snapshot of the entries of the map.
+         */
+        public Set entrySet()
+        {
+            Entry[] table=_table;
+            Set entries=new HashSet();
+            for (int i=0;i<table.length;i++)
+                for (Entry e=table[i];e!=null;e=e._next)
+                    entries.add(e);
+            return entries;
+        }
+
+        /* ------------------------------------------------------------ */
+        private static class Entry implements Map.Entry
+        {
+            final Object _key;
+            final int _hash;
+            final Object _value;
+            final Entry _next;
+
+            Entry(Object key, int hash, Object value, Entry next)
+            {
+                _key=key;
+                _hash=hash;
+                _value=value;
+                _next=next;
+            }
+
+            public Object getKey()
+            {
+                return _key;
+            }
+
+            public Object getValue()
+            {
+                return _value;
+            }
+
+            public Object setValue(Object value)
+            {
+                throw new UnsupportedOperationException();
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Cache eviction policy.
+     * <p>
+     * The policy is a {@link Comparator} of {@link Content} that orders
+     * content by how soon it should be evicted, and may also refuse to
+     * admit new content to the cache.
+     * {@link #accessed(String, Content)} is called for every lookup without
+     * any lock held, so it must be thread safe. The other methods are called while
+     * synchronized on the cache.
+     */
+    public interface Policy extends Comparator
+    {
+        /* ------------------------------------------------------------ */
+        /** Notification of a cache lookup.
+         * @param pathInContext The key of the lookup
+         * @param content The cached content or null if the lookup missed.
+         */
+        public void accessed(String pathInContext, Content content);
+
+        /* ------------------------------------------------------------ */
+        /** Admit new content to the cache.
+         * @param pathInContext The key of the content to be cached.
+         * @param victims The list of {@link Content} that must be evicted to make room.
+         * @return true if the content may be cached.
+         */
+        public boolean admit(String pathInContext, List victims);
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Least Recently Used eviction policy.
+     */
+    public static class LRUPolicy implements Policy, Serializable
+    {
+        /* ------------------------------------------------------------ */
+        public void accessed(String pathInContext, Content content)
+        {
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean admit(String pathInContext, List victims)
+        {
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        public int compare(Object o1, Object o2)
+        {
+            long a1=((Content)o1)._accessed;
+            long a2=((Content)o2)._accessed;
+            return a1<a2?-1:(a1==a2?0:1);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Least Frequently Used eviction policy.
+     * Content with the fewest hits is evicted first and ties are broken
+     * by evicting the least recently used.
+     */
+    public static class LFUPolicy extends LRUPolicy
+    {
+        /* ------------------------------------------------------------ */
+        public int compare(Object o1, Object o2)
+        {
+            int h1=((Content)o1)._hits;
+            int h2=((Content)o2)._hits;
+            if (h1!=h2)
+                return h1<h2?-1:1;
+            return super.compare(o1,o2);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** TinyLFU admission policy.
+     * <p>
+     * The frequency of all lookups, hits and misses, is recorded in a small count-min
+     * sketch that is halved periodically so that old popularity ages out.
+     * Content is evicted in least recently used order, but new content is only
+     * admitted if it has been looked up more frequently than all the content it would
+     * displace, so a large file must be more popular than the sum of the smaller
+     * files that it would evict, and one off requests do not flush the cache.
+     * <p>
+     * The sketch is updated without locking, so frequencies are approximate.
+     */
+    public static class TinyLFUPolicy extends LRUPolicy
+    {
+        private final static int DEPTH=4;
+        private final static int[] SEEDS={0x97cb3127,0xb5ad4ece,0x6c2a1f85,0x2f5c8e63};
+
+        private final int[] _sketch;
+        private final int _mask;
+        private final int _sampleSize;
+        private transient int _samples;
+
+        /* ------------------------------------------------------------ */
+        public TinyLFUPolicy()
+        {
+            this(4096);
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param width The number of counters in each row of the sketch,
+         * rounded up to a power of 2. This should be several times the number of
+         * files that may be cached.
+         */
+        public TinyLFUPolicy(int width)
+        {
+            int w=16;
+            while (w<width)
+                w<<=1;
+            _mask=w-1;
+            _sketch=new int[w*DEPTH];
+            _sampleSize=w*10;
+        }
+
+        /* ------------------------------------------------------------ */
+        public void accessed(String pathInContext, Content content)
+        {
+            int hash=pathInContext.hashCode();
+            for (int i=0;i<DEPTH;i++)
+                _sketch[index(hash,i)]++;
+
+            if (++_samples>=_sampleSize)
+            {
+                _samples=0;
+                for (int i=_sketch.length;i-->0;)
+                    _sketch[i]=_sketch[i]>>1;
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean admit(String pathInContext, List victims)
+        {
+            if (victims.size()==0)
+                return true;
+
+            int victim_frequency=0;
+            for (int i=0;i<victims.size();i++)
+                victim_frequency+=frequency(((Content)victims.get(i)).getKey());
+            return frequency(pathInContext)>victim_frequency;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return The estimated frequency of lookups of a key.
+         */
+        public int frequency(String pathInContext)
+        {
+            int hash=pathInContext.hashCode();
+            int frequency=Integer.MAX_VALUE;
+            for (int i=0;i<DEPTH;i++)
+                frequency=Math.min(frequency,_sketch[index(hash,i)]);
+            return frequency;
+        }
+
+        /* ------------------------------------------------------------ */
+        private int index(int hash, int row)
+        {
+            int h=(hash^SEEDS[row])*0x9e3779b9;
+            h^=h>>>16;
+            return row*(_mask+1)+(h&_mask);
+        }
+    }
 }
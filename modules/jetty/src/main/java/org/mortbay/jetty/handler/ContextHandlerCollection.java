@@ -16,6 +16,7 @@ package org.mortbay.jetty.handler;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.servlet.ServletException;
@@ -27,8 +28,10 @@ import org.mortbay.jetty.HandlerContainer;
 import org.mortbay.jetty.HttpConnection;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.servlet.PathMap;
+import org.mortbay.jetty.servlet.PathTrie;
 import org.mortbay.log.Log;
 import org.mortbay.util.LazyList;
+import org.mortbay.util.StringMap;
 
 /* ------------------------------------------------------------ */
 /** ContextHandlerCollection.
@@ -39,12 +42,19 @@ import org.mortbay.util.LazyList;
  * The contexts do not need to be directly contained, only children of the contained handlers.
  * Multiple contexts may have the same context path and they are called in order until one
  * handles the request.  
+ * <p>
+ * The mapping is compiled by {@link #mapContexts()} into a dispatch table of 
+ * context path to handlers that is shared by all hosts.  A context path that has
+ * virtual hosts maps to a table of host name to the handlers for the host, then 
+ * for its wildcard domain and then for any host, so that a request is dispatched 
+ * by one context path lookup and a host lookup for each matching context path,
+ * no matter how many virtual hosts are configured.
  * 
  * @org.apache.xbean.XBean element="contexts"
  */
 public class ContextHandlerCollection extends HandlerCollection
 { 
-    private PathMap _contextMap;
+    private PathTrie _contextMap;
     private Class _contextClass = ContextHandler.class;
     
     /* ------------------------------------------------------------ */
@@ -131,8 +141,20 @@ public class ContextHandlerCollection extends HandlerCollection
                 }
             }
         }
-        _contextMap=contextMap;
-
+        
+        // Compile the context path => handlers dispatch table, where the 
+        // handlers of a context path with virtual hosts are looked up by host.
+        PathMap map=new PathMap();
+        Iterator iter=contextMap.entrySet().iterator();
+        while (iter.hasNext())
+        {
+            Map.Entry entry=(Map.Entry)iter.next();
+            Object contexts=entry.getValue();
+            if (contexts instanceof Map)
+                contexts=new VirtualHosts((Map)contexts);
+            map.put(entry.getKey(),contexts);
+        }
+        _contextMap=new PathTrie(map);
     }
     
 
@@ -169,71 +191,37 @@ public class ContextHandlerCollection extends HandlerCollection
 
         Request base_request = HttpConnection.getCurrentConnection().getRequest();
       
-        // data structure which maps a request to a context
+        // dispatch table which maps a request to a context
         // each match is called in turn until the request is handled
         // { context path => 
-        //     { virtual host => context } 
+        //     contexts or { virtual host => contexts } 
         // }
-	PathMap map = _contextMap;
-	if (map!=null && target!=null && target.startsWith("/"))
-	{
-            // first, get all contexts matched by context path
-	    Object contexts = map.getLazyMatches(target);
-
+        PathTrie map = _contextMap;
+        if (map!=null && target!=null && target.startsWith("/"))
+        {
+            // the virtual host, ignoring any trailing '.'
+            String host = request.getServerName();
+            int l=host==null?0:host.length();
+            if (l>0 && host.charAt(l-1)=='.')
+                l--;
+            
+            // get all contexts matched by context path
+            Object contexts = map.getLazyMatches(target);
             for (int i=0; i<LazyList.size(contexts); i++)
             {
-                // then, match against the virtualhost of each context
                 Map.Entry entry = (Map.Entry)LazyList.get(contexts, i);
                 Object list = entry.getValue();
-
-                if (list instanceof Map)
+                if (list instanceof VirtualHosts)
+                    list=((VirtualHosts)list).getContexts(host,l);
+                for (int j=0; j<LazyList.size(list); j++)
                 {
-                    Map hosts = (Map)list;
-                    String host = normalizeHostname(request.getServerName());
-
-                    // explicitly-defined virtual hosts, most specific
-                    list=hosts.get(host);
-                    for (int j=0; j<LazyList.size(list); j++)
-                    {
-                        Handler handler = (Handler)LazyList.get(list,j);
-                        handler.handle(target,request, response, dispatch);
-                        if (base_request.isHandled())
-                            return;
-                    }
-
-                    // wildcard for one level of names 
-                    list=hosts.get("*."+host.substring(host.indexOf(".")+1));
-                    for (int j=0; j<LazyList.size(list); j++)
-                    {
-                        Handler handler = (Handler)LazyList.get(list,j);
-                        handler.handle(target,request, response, dispatch);
-                        if (base_request.isHandled())
-                            return;
-                    }
-
-                    // no virtualhosts defined for the context, least specific
-                    // will handle any request that does not match to a specific virtual host above                    
-                    list=hosts.get("*");
-                    for (int j=0; j<LazyList.size(list); j++)
-                    {
-                        Handler handler = (Handler)LazyList.get(list,j);
-                        handler.handle(target,request, response, dispatch);
-                        if (base_request.isHandled())
-                            return;
-                    }
-                }
-                else
-                {
-                    for (int j=0; j<LazyList.size(list); j++)
-                    {
-                        Handler handler = (Handler)LazyList.get(list,j);
-                        handler.handle(target,request, response, dispatch);
-                        if (base_request.isHandled())
-                            return;
-                    }
+                    Handler handler = (Handler)LazyList.get(list,j);
+                    handler.handle(target,request, response, dispatch);
+                    if (base_request.isHandled())
+                        return;
                 }
-	    }
-	}
+            }
+        }
 	else
 	{
             // This may not work in all circumstances... but then I think it should never be called
@@ -293,17 +281,68 @@ public class ContextHandlerCollection extends HandlerCollection
             throw new IllegalArgumentException();
         _contextClass = contextClass;
     }
-    
+
+
+    /* ------------------------------------------------------------ */
     /* ------------------------------------------------------------ */
-    private String normalizeHostname( String host )
+    /** The contexts of a context path that has virtual hosts.
+     * Each explicit virtual host maps to its contexts, then those of its 
+     * wildcard domain and then those of any host.  Each wildcard domain maps
+     * to its contexts and then those of any host.
+     */
+    private static class VirtualHosts
     {
-        if ( host == null )
-            return null;
-        
-        if ( host.endsWith( "." ) )
-            return host.substring( 0, host.length() -1);
-      
-        return host;
-    }
+        private final StringMap _hosts=new StringMap();
+        private final StringMap _domains=new StringMap();
+        private final Object _any;
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @param hosts Map of virtual host to list of handlers, where "*" is any host.
+         */
+        VirtualHosts(Map hosts)
+        {
+            _any=hosts.get("*");
+            Iterator iter=hosts.entrySet().iterator();
+            while (iter.hasNext())
+            {
+                Map.Entry entry=(Map.Entry)iter.next();
+                String vhost=(String)entry.getKey();
+                if (vhost==null || "*".equals(vhost))
+                    continue;
+                Object list=LazyList.getList(entry.getValue());
+                if (vhost.startsWith("*."))
+                    _domains.put(vhost.substring(2),LazyList.addCollection(list,LazyList.getList(_any)));
+                else
+                {
+                    Object wildcard=hosts.get("*."+vhost.substring(vhost.indexOf('.')+1));
+                    list=LazyList.addCollection(list,LazyList.getList(wildcard));
+                    _hosts.put(vhost,LazyList.addCollection(list,LazyList.getList(_any)));
+                }
+            }
+        }
 
+        /* ------------------------------------------------------------ */
+        /**
+         * @param host The host name of the request, or null
+         * @param length The length of the host name, without any trailing '.'
+         * @return The contexts for the host, its wildcard domain or any host.
+         */
+        Object getContexts(String host, int length)
+        {
+            if (host==null)
+                return _any;
+            
+            // explicitly-defined virtual hosts, then wildcard for one level of names
+            Map.Entry entry=_hosts.getEntry(host,0,length);
+            if (entry==null)
+            {
+                int dot=host.indexOf('.');
+                if (dot>=length)
+                    dot=-1;
+                entry=_domains.getEntry(host,dot+1,length-dot-1);
+            }
+            return entry==null?_any:entry.getValue();
+        }
+    }
 }
@@ -15,6 +15,7 @@
 package org.mortbay.jetty.handler;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 
@@ -26,16 +27,20 @@ import org.mortbay.io.Buffer;
 import org.mortbay.io.ByteArrayBuffer;
 import org.mortbay.io.WriterOutputStream;
 import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.HttpContent;
 import org.mortbay.jetty.HttpFields;
+import org.mortbay.jetty.HttpHeaderValues;
 import org.mortbay.jetty.HttpHeaders;
 import org.mortbay.jetty.HttpMethods;
 import org.mortbay.jetty.MimeTypes;
 import org.mortbay.jetty.Request;
+import org.mortbay.jetty.ResourceCache;
 import org.mortbay.jetty.Response;
 import org.mortbay.jetty.handler.ContextHandler.SContext;
 import org.mortbay.log.Log;
 import org.mortbay.resource.FileResource;
 import org.mortbay.resource.Resource;
+import org.mortbay.util.IO;
 import org.mortbay.util.StringUtil;
 import org.mortbay.util.TypeUtil;
 import org.mortbay.util.URIUtil;
@@ -45,7 +50,9 @@ import org.mortbay.util.URIUtil;
 /** Resource Handler.
  * 
  * This handle will serve static content and handle If-Modified-Since headers.
- * No caching is done.
+ * No caching is done unless a {@link ResourceCache} is set, in which case
+ * content is served from the cache and, if the cache has gzip mime types, 
+ * compressed variants are served to clients that accept them.
  * Requests that cannot be handled are let pass (Eg no 404's)
  * 
  * @author Greg Wilkins (gregw)
@@ -59,6 +66,7 @@ public class ResourceHandler extends AbstractHandler
     MimeTypes _mimeTypes = new MimeTypes();
     ByteArrayBuffer _cacheControl;
     boolean _aliases;
+    ResourceCache _resourceCache;
 
     /* ------------------------------------------------------------ */
     public ResourceHandler()
@@ -97,6 +105,28 @@ public class ResourceHandler extends AbstractHandler
         _aliases = aliases;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The cache of resource content, or null if content is not cached.
+     */
+    public ResourceCache getResourceCache()
+    {
+        return _resourceCache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Set the cache of resource content. The cache is started and stopped with the handler.
+     * A cache with memory mapped or NIO buffers should only be used with NIO connectors.
+     * @param resourceCache The cache of resource content, or null if content is not cached.
+     */
+    public void setResourceCache(ResourceCache resourceCache)
+    {
+        if (getServer()!=null)
+            getServer().getContainer().update(this,_resourceCache,resourceCache,"resourceCache",true);
+        _resourceCache = resourceCache;
+    }
+
     /* ------------------------------------------------------------ */
     public void doStart()
     throws Exception
@@ -107,9 +137,20 @@ public class ResourceHandler extends AbstractHandler
         if (!_aliases && !FileResource.getCheckAliases())
             throw new IllegalStateException("Alias checking disabled");
         
+        if (_resourceCache!=null)
+            _resourceCache.start();
         super.doStart();
     }
 
+    /* ------------------------------------------------------------ */
+    public void doStop()
+    throws Exception
+    {
+        super.doStop();
+        if (_resourceCache!=null)
+            _resourceCache.stop();
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @return Returns the resourceBase.
@@ -308,26 +349,71 @@ public class ResourceHandler extends AbstractHandler
         if (mime==null)
             mime=_mimeTypes.getMimeByExtension(request.getPathInfo());
         
-        // set the headers
-        doResponseHeaders(response,resource,mime!=null?mime.toString():null);
-        response.setDateHeader(HttpHeaders.LAST_MODIFIED,last_modified);
-        if(skipContentBody)
-            return;
-        // Send the content
-        OutputStream out =null;
-        try {out = response.getOutputStream();}
-        catch(IllegalStateException e) {out = new WriterOutputStream(response.getWriter());}
+        // Look for cached content and its compressed variant
+        ResourceCache.Content content=null;
+        HttpContent gzip_content=null;
+        if (_resourceCache!=null)
+        {
+            content=_resourceCache.lookup(resource.toString(),resource);
+            if (content!=null && content.isGzippable())
+            {
+                response.setHeader(HttpHeaders.VARY,HttpHeaders.ACCEPT_ENCODING);
+                String accept=request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+                if (accept!=null && accept.indexOf("gzip")>=0)
+                    gzip_content=content.getGzipContent();
+            }
+        }
         
-        // See if a short direct method can be used?
-        if (out instanceof HttpConnection.Output)
+        try
         {
-            // TODO file mapped buffers
-            ((HttpConnection.Output)out).sendContent(resource.getInputStream());
+            // set the headers
+            doResponseHeaders(response,resource,mime!=null?mime.toString():null);
+            if (gzip_content!=null)
+            {
+                response.setHeader(HttpHeaders.CONTENT_ENCODING,HttpHeaderValues.GZIP);
+                response.setHeader(HttpHeaders.CONTENT_LENGTH,TypeUtil.toString(gzip_content.getContentLength()));
+            }
+            response.setDateHeader(HttpHeaders.LAST_MODIFIED,last_modified);
+            if(skipContentBody)
+                return;
+            // Send the content
+            OutputStream out =null;
+            try {out = response.getOutputStream();}
+            catch(IllegalStateException e) {out = new WriterOutputStream(response.getWriter());}
+        
+            // See if a short direct method can be used?
+            if (out instanceof HttpConnection.Output)
+            {
+                // Pass the resource, so that file content may be transferred directly to the channel 
+                if (gzip_content!=null)
+                    ((HttpConnection.Output)out).sendContent(gzip_content);
+                else if (content!=null)
+                    ((HttpConnection.Output)out).sendContent(content);
+                else
+                    ((HttpConnection.Output)out).sendContent(resource);
+            }
+            else if (gzip_content!=null)
+            {
+                InputStream in=gzip_content.getInputStream();
+                try
+                {
+                    IO.copy(in,out);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
+            else
+            {
+                // Write content normally
+                resource.writeTo(out,0,resource.length());
+            }
         }
-        else
+        finally
         {
-            // Write content normally
-            resource.writeTo(out,0,resource.length());
+            if (gzip_content!=null)
+                gzip_content.release();
         }
     }
 
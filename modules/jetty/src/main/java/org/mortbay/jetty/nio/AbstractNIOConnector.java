@@ -31,6 +31,7 @@ import org.mortbay.jetty.AbstractConnector;
 public abstract class AbstractNIOConnector extends AbstractConnector implements NIOConnector
 {
     private boolean _useDirectBuffers=true;
+    private boolean _useFileTransfer=false;
  
     /* ------------------------------------------------------------------------------- */
     public boolean getUseDirectBuffers()
@@ -48,6 +49,24 @@ public abstract class AbstractNIOConnector extends AbstractConnector implements
         _useDirectBuffers=direct;
     }
 
+    /* ------------------------------------------------------------------------------- */
+    public boolean getUseFileTransfer()
+    {
+        return _useFileTransfer;
+    }
+
+    /* ------------------------------------------------------------------------------- */
+    /**
+     * @param transfer If True, static content from a file resource is written to the 
+     * channel with {@link java.nio.channels.FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}
+     * after the response header is flushed, so that the content is not copied into the
+     * response buffers (zero-copy sendfile on most operating systems). Default is false.
+     */
+    public void setUseFileTransfer(boolean transfer)
+    {
+        _useFileTransfer=transfer;
+    }
+
     /* ------------------------------------------------------------------------------- */
     protected Buffer newBuffer(int size)
     {
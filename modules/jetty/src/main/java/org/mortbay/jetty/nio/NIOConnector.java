@@ -24,4 +24,6 @@ package org.mortbay.jetty.nio;
 public interface NIOConnector
 {
     boolean getUseDirectBuffers();
+    
+    boolean getUseFileTransfer();
 }
@@ -26,6 +26,8 @@ import org.mortbay.io.nio.SelectChannelEndPoint;
 import org.mortbay.io.nio.SelectorManager;
 import org.mortbay.io.nio.SelectorManager.SelectSet;
 import org.mortbay.jetty.HttpConnection;
+import org.mortbay.jetty.HttpGenerator;
+import org.mortbay.jetty.HttpParser;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.RetryRequest;
 import org.mortbay.log.Log;
@@ -55,6 +57,15 @@ import org.mortbay.util.ajax.Continuation;
  * thus if possible it should be read after the continuation or saved as a request attribute or as the
  * associated object of the Continuation instance.
  * </p>
+ * <p>
+ * The continuations of this connector may also wait without a thread for request content 
+ * to arrive or for response content to be flushed.  A request that reads slowly arriving 
+ * content (or writes to a slow client) can call 
+ * {@link RetryContinuation#suspendUntilReadable(long)} (or 
+ * {@link RetryContinuation#suspendUntilWritable(long)}) before each read (or write), so that
+ * the request is suspended and retried when the selector finds the connection readable 
+ * (or writable), rather than a thread blocking while it waits.
+ * </p>
  * 
  * @org.apache.xbean.XBean element="nioConnector" description="Creates an NIO based socket connector"
  * 
@@ -66,6 +77,10 @@ public class SelectChannelConnector extends AbstractNIOConnector
     protected transient ServerSocketChannel _acceptChannel;
     private long _lowResourcesConnections;
     private long _lowResourcesMaxIdleTime;
+    private boolean _useTimeoutWheel;
+    private boolean _acceptSharding;
+    private int _acceptBatch=1;
+    private boolean _executeInline;
 
     private SelectorManager _manager = new SelectorManager()
     {
@@ -301,6 +316,142 @@ public class SelectChannelConnector extends AbstractNIOConnector
         super.setLowResourceMaxIdleTime(lowResourcesMaxIdleTime); 
     }
     
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if connection idle timeouts are scheduled on a {@link org.mortbay.thread.TimeoutWheel}
+     */
+    public boolean getUseTimeoutWheel()
+    {
+        return _useTimeoutWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Schedule connection idle and continuation timeouts on a {@link org.mortbay.thread.TimeoutWheel}
+     * rather than a sorted list. This is recommended when there are many thousands of connections.
+     * @param useTimeoutWheel True to use a timing wheel.
+     */
+    public void setUseTimeoutWheel(boolean useTimeoutWheel)
+    {
+        _useTimeoutWheel=useTimeoutWheel;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if each acceptor thread accepts connections directly.
+     */
+    public boolean isAcceptSharding()
+    {
+        return _acceptSharding;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Accept connections in parallel on all acceptor threads.
+     * If true, the server socket is selected by every acceptor thread (see {@link #setAcceptors(int)})
+     * and each connection is handled by the thread that accepted it. If false, connections are 
+     * accepted by a single acceptor thread that hands them round robin to the other acceptors.
+     * Accepts are not sharded by default, as every acceptor thread shares the one server socket
+     * and so is woken for each new connection, which all but one of them fail to accept 
+     * (see {@link #getAcceptMisses()}). Sharding accepts may help when connection storms 
+     * make accepting the bottleneck, particularly with a larger {@link #setAcceptBatch(int)}.
+     * @param acceptSharding True to accept on all acceptor threads.
+     */
+    public void setAcceptSharding(boolean acceptSharding)
+    {
+        _acceptSharding=acceptSharding;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of connections accepted each time the server socket is selected.
+     */
+    public int getAcceptBatch()
+    {
+        return _acceptBatch;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param acceptBatch The maximum number of connections accepted each time the server socket
+     * is selected.
+     */
+    public void setAcceptBatch(int acceptBatch)
+    {
+        _acceptBatch=acceptBatch;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The total number of connections accepted.
+     */
+    public long getAccepts()
+    {
+        return _manager.getAccepts();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times an acceptor thread was woken to accept a connection 
+     * that had already been accepted by another acceptor thread.
+     */
+    public long getAcceptMisses()
+    {
+        return _manager.getAcceptMisses();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The rate in connections per second that each acceptor thread accepted 
+     * connections over the last second.
+     */
+    public int[] getAcceptRates()
+    {
+        return _manager.getAcceptRates();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if an acceptor thread handles a selected connection itself.
+     */
+    public boolean isExecuteInline()
+    {
+        return _executeInline;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * Handle selected connections on the selecting thread.
+     * If true, the thread that selects connections ready to be handled dispatches all but the 
+     * last of them, hands over selecting to another thread and handles the last connection itself.
+     * This avoids a dispatch for each request on a persistent connection, and may benefit 
+     * short requests that do not block.  If false, all selected connections are dispatched 
+     * to the thread pool.
+     * @param executeInline True to handle connections on the selecting thread.
+     */
+    public void setExecuteInline(boolean executeInline)
+    {
+        _executeInline=executeInline;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of selected connections handled by the thread that selected them.
+     */
+    public long getInlineExecutions()
+    {
+        return _manager.getInlineExecutions();
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of selected connections dispatched to the thread pool.
+     */
+    public long getDispatchedExecutions()
+    {
+        return _manager.getDispatchedExecutions();
+    }
+
     /* ------------------------------------------------------------ */
     /*
      * @see org.mortbay.jetty.AbstractConnector#doStart()
@@ -311,6 +462,10 @@ public class SelectChannelConnector extends AbstractNIOConnector
         _manager.setMaxIdleTime(getMaxIdleTime());
         _manager.setLowResourcesConnections(getLowResourcesConnections());
         _manager.setLowResourcesMaxIdleTime(getLowResourcesMaxIdleTime());
+        _manager.setUseTimeoutWheel(getUseTimeoutWheel());
+        _manager.setAcceptSharding(isAcceptSharding());
+        _manager.setAcceptBatch(getAcceptBatch());
+        _manager.setExecuteInline(isExecuteInline());
         _manager.start();
         open();
         _manager.register(_acceptChannel);
@@ -400,6 +555,13 @@ public class SelectChannelConnector extends AbstractNIOConnector
         boolean _parked =false;     // end point dispatched, but undispatch called.
         RetryRequest _retry;
         long _timeout;
+        Runnable _ready=new Runnable()
+        {
+            public void run()
+            {
+                resume();
+            }
+        };
 
         
         public Object getObject()
@@ -435,6 +597,7 @@ public class SelectChannelConnector extends AbstractNIOConnector
                 _pending = false;
                 _parked = false;
             }
+            _endPoint.cancelScheduled();
             
             synchronized (_endPoint.getSelectSet())
             {
@@ -466,6 +629,7 @@ public class SelectChannelConnector extends AbstractNIOConnector
                 _pending = false;
                 _parked =false;
             }
+            _endPoint.cancelScheduled();
 
             synchronized (_endPoint.getSelectSet())
             {
@@ -475,6 +639,107 @@ public class SelectChannelConnector extends AbstractNIOConnector
             return resumed;
         }
         
+        /* ------------------------------------------------------------ */
+        /** Suspend the request until request content can be read without blocking.
+         * <p>
+         * If content is available (or all content has been read), this returns
+         * true immediately.  Otherwise the request is suspended like {@link #suspend(long)} 
+         * and is retried when the selector finds the connection readable, the timeout 
+         * expires or it is resumed. When the retried request calls this method again, 
+         * it returns as {@link #suspend(long)} does for a retried request.
+         * <p>
+         * As content read before a suspend is not available to the retried request, 
+         * a request that reads content in parts must keep its progress, for example 
+         * as the object of the continuation.
+         * 
+         * @param timeout The time in ms to wait for content, or 0 to wait indefinitely.
+         * @return True if content may be read without blocking, or if resumed. 
+         * False if the timeout expired or was less than 0.
+         * @throws IOException
+         */
+        public boolean suspendUntilReadable(long timeout) throws IOException
+        {
+            if (isPending())
+                return suspend(timeout);
+            if (timeout<0)
+                return false;
+            
+            HttpConnection connection=HttpConnection.getCurrentConnection();
+            HttpParser parser=(HttpParser)connection.getParser();
+            if (parser.isState(HttpParser.STATE_END) || connection.getInputStream().available()>0 || !_endPoint.isOpen())
+                return true;
+            
+            // pend before scheduling, so that a resume from the selector is not missed
+            RetryRequest retry=pend(timeout);
+            _endPoint.scheduleReadable(_ready);
+            throw retry;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Suspend the request until response content can be written without blocking.
+         * <p>
+         * Any committed response content is flushed without blocking and if all buffered 
+         * content has been flushed (or the response is not committed and its buffer is not 
+         * full), then this returns true immediately, and content of up to the size of the 
+         * response buffer may be written without waiting to flush.  Otherwise the request is 
+         * suspended like {@link #suspend(long)} and is retried when the selector finds the 
+         * connection writable, the timeout expires or it is resumed. When the retried request
+         * calls this method again, it returns as {@link #suspend(long)} does for a retried
+         * request.
+         * 
+         * @param timeout The time in ms to wait for the connection to be writable, or 0 to wait indefinitely.
+         * @return True if content may be written without blocking, or if resumed. 
+         * False if the timeout expired or was less than 0.
+         * @throws IOException
+         */
+        public boolean suspendUntilWritable(long timeout) throws IOException
+        {
+            if (isPending())
+                return suspend(timeout);
+            if (timeout<0)
+                return false;
+            
+            HttpConnection connection=HttpConnection.getCurrentConnection();
+            HttpGenerator generator=(HttpGenerator)connection.getGenerator();
+            if (!generator.isCommitted())
+            {
+                if (!generator.isBufferFull())
+                    return true;
+                connection.commitResponse(HttpGenerator.MORE);
+            }
+            
+            if (!generator.isEmpty())
+                generator.flush();
+            if (generator.isEmpty() || !_endPoint.isOpen())
+                return true;
+            
+            // pend before scheduling, so that a resume from the selector is not missed
+            RetryRequest retry=pend(timeout);
+            _endPoint.scheduleWritable(_ready);
+            throw retry;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Make the continuation pending, as a suspend does.
+         * @param timeout The timeout of the suspend
+         * @return The RetryRequest to throw to suspend the request.
+         */
+        private RetryRequest pend(long timeout)
+        {
+            synchronized (this)
+            {
+                _new = false;
+                _resumed = false;
+                _pending = true;
+                _parked = false;
+                _timeout = timeout;
+                if (_retry==null)
+                    _retry = new RetryRequest();
+                return _retry;
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
         public void resume()
         {
             boolean redispatch=false;
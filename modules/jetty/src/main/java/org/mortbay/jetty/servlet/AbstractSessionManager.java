@@ -230,14 +230,10 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     {
         String cluster_id = getIdManager().getClusterId(nodeId);
         
-        synchronized (this)
-        {
-            Session session = getSession(cluster_id);
-            
-            if (session!=null && !session.getNodeId().equals(nodeId))
-                session.setIdChanged(true);
-            return session;
-        }
+        Session session = getSession(cluster_id);
+        if (session!=null && !session.getNodeId().equals(nodeId))
+            session.setIdChanged(true);
+        return session;
     }
 
     /* ------------------------------------------------------------ */
@@ -550,19 +546,17 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     /**
      * Add the session Registers the session with this manager and registers the
      * session ID with the sessionIDManager;
+     * Neither this manager nor the sessionIDManager is locked while the session
+     * is added, so the implementations must be thread safe, and the maximum 
+     * number of sessions is a statistic that may miss concurrent additions.
      */
     protected void addSession(Session session, boolean created)
     {
-        synchronized (_sessionIdManager)
-        {
-            _sessionIdManager.addSession(session);
-            synchronized (this)
-            {
-                addSession(session);
-                if (getSessions()>this._maxSessions)
-                    this._maxSessions=getSessions();
-            }
-        }
+        _sessionIdManager.addSession(session);
+        addSession(session);
+        int sessions=getSessions();
+        if (sessions>_maxSessions)
+            _maxSessions=sessions;
 
         if (!created)
         {
@@ -578,7 +572,9 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
     
     /* ------------------------------------------------------------ */
     /**
-     * Get a known existingsession
+     * Get a known existingsession.
+     * This is called for every request with a session ID without holding the
+     * manager lock, so implementations must be thread safe.
      * @param idInCluster The session ID in the cluster, stripped of any worker name.
      * @return A Session or null if none exists.
      */
@@ -741,6 +737,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
         protected boolean _newSession;
         protected Map _values;
         protected int _requests;
+        protected boolean _dirty;
 
         /* ------------------------------------------------------------- */
         protected Session(HttpServletRequest request)
@@ -897,6 +894,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
                 _lastAccessed=_accessed;
                 _accessed=time;
                 _requests++;
+                changed();
             }
         }
 
@@ -1020,6 +1018,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
             Object old=_values.remove(name);
             if (old!=null)
             {
+                changed();
                 unbindValue(name,old);
                 if (_sessionAttributeListeners!=null)
                 {
@@ -1055,6 +1054,7 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
             if (_values==null)
                 _values=newAttributeMap();
             Object oldValue=_values.put(name,value);
+            changed();
 
             if (oldValue==null || !value.equals(oldValue)) 
             {
@@ -1080,6 +1080,25 @@ public abstract class AbstractSessionManager extends AbstractLifeCycle implement
             }
         }
 
+        /* ------------------------------------------------------------ */
+        /** Mark the session as changed since it was last saved.
+         * This is called with the session locked whenever the session is
+         * accessed or an attribute is set or removed.
+         */
+        protected void changed()
+        {
+            _dirty=true;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the session has changed since it was last saved.
+         */
+        public boolean isDirty()
+        {
+            return _dirty;
+        }
+
         /* ------------------------------------------------------------- */
         public void setIdChanged(boolean changed)
         {
@@ -20,9 +20,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.util.Enumeration;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.StringTokenizer;
 
 import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletContext;
@@ -49,6 +52,7 @@ import org.mortbay.jetty.InclusiveByteRange;
 import org.mortbay.jetty.MimeTypes;
 import org.mortbay.jetty.ResourceCache;
 import org.mortbay.jetty.Response;
+import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.ContextHandler;
 import org.mortbay.jetty.nio.NIOConnector;
 import org.mortbay.log.Log;
@@ -103,6 +107,16 @@ import org.mortbay.util.URIUtil;
  *  maxCacheSize      The maximum total size of the cache or 0 for no cache.
  *  maxCachedFileSize The maximum size of a file to cache
  *  maxCachedFiles    The maximum number of files to cache
+ *  maxMappedFileSize The maximum size of a file to cache as a memory mapped buffer 
+ *                    if it is too large to be cached on the heap, or 0 (the default) 
+ *                    for no mapping. Only applies to the nio cache.
+ *  maxMappedSize     The maximum total size of memory mapped buffers in the nio cache.
+ *  gzipMimeTypes     A comma separated list of mime types for which a gzip compressed 
+ *                    variant of cached content is generated on the first request
+ *                    that accepts gzip, and then served from the cache.
+ *  minGzipSize       The minimum size of content compressed for gzipMimeTypes.
+ *  cachePolicy       Set to "lru" (the default), "lfu" or "tinylfu" to select the 
+ *                    eviction policy of the resource cache.
  *  cacheType         Set to "bio", "nio" or "both" to determine the type resource cache. 
  *                    A bio cached buffer may be used by nio but is not as efficient as an
  *                    nio buffer.  An nio cached buffer may not be used by bio.    
@@ -217,6 +231,11 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
             int max_cache_size=getInitInt("maxCacheSize", -2);
             int max_cached_file_size=getInitInt("maxCachedFileSize", -2);
             int max_cached_files=getInitInt("maxCachedFiles", -2);
+            int max_mapped_file_size=getInitInt("maxMappedFileSize", -2);
+            int max_mapped_size=getInitInt("maxMappedSize", -2);
+            String cache_policy=getInitParameter("cachePolicy");
+            String gzip_mime_types=getInitParameter("gzipMimeTypes");
+            int min_gzip_size=getInitInt("minGzipSize", -2);
 
             if (cache_type==null || "nio".equals(cache_type)|| "both".equals(cache_type))
             {
@@ -229,6 +248,14 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                         _nioCache.setMaxCachedFileSize(max_cached_file_size);    
                     if (max_cached_files>=-1)
                         _nioCache.setMaxCachedFiles(max_cached_files);
+                    if (max_mapped_file_size>=0)
+                        _nioCache.setMaxMappedFileSize(max_mapped_file_size);
+                    if (max_mapped_size>=0)
+                        _nioCache.setMaxMappedSize(max_mapped_size);
+                    if (cache_policy!=null)
+                        _nioCache.setPolicy(newCachePolicy(cache_policy));
+                    if (gzip_mime_types!=null)
+                        initGzip(_nioCache,gzip_mime_types,min_gzip_size);
                     _nioCache.start();
                 }
             }
@@ -243,11 +270,24 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                         _bioCache.setMaxCachedFileSize(max_cached_file_size);    
                     if (max_cached_files>=-1)
                         _bioCache.setMaxCachedFiles(max_cached_files);
+                    if (cache_policy!=null)
+                        _bioCache.setPolicy(newCachePolicy(cache_policy));
+                    if (gzip_mime_types!=null)
+                        initGzip(_bioCache,gzip_mime_types,min_gzip_size);
                     _bioCache.start();
                 }
             }
             if (_nioCache==null)
                 _bioCache=null;
+            
+            Server server=_context.getContextHandler().getServer();
+            if (server!=null)
+            {
+                if (_nioCache!=null)
+                    server.getContainer().addBean(_nioCache);
+                if (_bioCache!=null)
+                    server.getContainer().addBean(_bioCache);
+            }
         }
         catch (Exception e) 
         {
@@ -264,6 +304,34 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         if (Log.isDebugEnabled()) Log.debug("resource base = "+_resourceBase);
     }
 
+    /* ------------------------------------------------------------ */
+    private void initGzip(ResourceCache cache, String mimeTypes, int minGzipSize)
+    {
+        Set types=new HashSet();
+        StringTokenizer tok = new StringTokenizer(mimeTypes,",",false);
+        while (tok.hasMoreTokens())
+            types.add(tok.nextToken().trim());
+        cache.setGzipMimeTypes(types);
+        if (minGzipSize>=0)
+            cache.setMinGzipSize(minGzipSize);
+        
+        Object tmp=getServletContext().getAttribute(ServletHandler.__J_S_CONTEXT_TEMPDIR);
+        if (tmp instanceof File)
+            cache.setGzipDirectory((File)tmp);
+    }
+    
+    /* ------------------------------------------------------------ */
+    private ResourceCache.Policy newCachePolicy(String name)
+    {
+        if ("lru".equalsIgnoreCase(name))
+            return new ResourceCache.LRUPolicy();
+        if ("lfu".equalsIgnoreCase(name))
+            return new ResourceCache.LFUPolicy();
+        if ("tinylfu".equalsIgnoreCase(name))
+            return new ResourceCache.TinyLFUPolicy();
+        throw new IllegalArgumentException("Unknown cachePolicy "+name);
+    }
+    
     /* ------------------------------------------------------------ */
     public String getInitParameter(String name)
     {
@@ -363,13 +431,15 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
         
         // Can we gzip this request?
         String pathInContextGz=null;
-        boolean gzip=false;
-        if (!included.booleanValue() && _gzip && reqRanges==null && !endsWithSlash )
+        boolean accept_gzip=false;
+        if (!included.booleanValue() && reqRanges==null && !endsWithSlash )
         {
             String accept=request.getHeader(HttpHeaders.ACCEPT_ENCODING);
             if (accept!=null && accept.indexOf("gzip")>=0)
-                gzip=true;
+                accept_gzip=true;
         }
+        boolean gzip=_gzip && accept_gzip;
+        boolean vary=false;
         
         // Find the resource and content
         Resource resource=null;
@@ -414,7 +484,21 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
                     content=cache.lookup(pathInContext,this);
 
                     if (content!=null)
+                    {
+                        // Use the cached compressed variant?
+                        ResourceCache.Content cached=(ResourceCache.Content)content;
+                        if (cached.isGzippable())
+                        {
+                            vary=true;
+                            HttpContent gzip_content=accept_gzip?cached.getGzipContent():null;
+                            if (gzip_content!=null)
+                            {
+                                content=gzip_content;
+                                gzip=true;
+                            }
+                        }
                         resource=content.getResource();
+                    }
                     else
                         resource=getResource(pathInContext);
                 }
@@ -444,6 +528,8 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
 
                     if (included.booleanValue() || passConditionalHeaders(request,response, resource,content))  
                     {
+                        if (gzip || vary)
+                            response.setHeader(HttpHeaders.VARY,HttpHeaders.ACCEPT_ENCODING);
                         if (gzip)
                         {
                             response.setHeader(HttpHeaders.CONTENT_ENCODING,"gzip");
@@ -906,6 +992,15 @@ public class DefaultServlet extends HttpServlet implements ResourceFactory
      */
     public void destroy()
     {
+        Server server=_context.getContextHandler().getServer();
+        if (server!=null)
+        {
+            if (_nioCache!=null)
+                server.getContainer().removeBean(_nioCache);
+            if (_bioCache!=null)
+                server.getContainer().removeBean(_bioCache);
+        }
+        
         try
         {
             if (_nioCache!=null)
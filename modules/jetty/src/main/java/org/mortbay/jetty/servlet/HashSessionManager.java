@@ -22,41 +22,138 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.TreeMap;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
 
 import org.mortbay.log.Log;
+import org.mortbay.util.IO;
 import org.mortbay.util.LazyList;
 
 
 /* ------------------------------------------------------------ */
 /** An in-memory implementation of SessionManager.
+ * <p>
+ * The sessions are held in a map that is striped by session ID, with one lock
+ * per stripe, so that looking up and adding sessions does not contend on a 
+ * single lock.  
+ * <p>
+ * Sessions are scavenged incrementally. Each session is scheduled in a bucket 
+ * of sessions that will expire at the end of the same scavenge period, if they
+ * are not accessed in the meantime.  A scavenge only examines the buckets that
+ * are due and reschedules any session that has since been accessed, so the cost 
+ * of a scavenge is proportional to the number of sessions that may have expired,
+ * rather than to the total number of sessions.
+ * <p>
+ * If a store directory is set, sessions are saved when the manager is stopped 
+ * (and optionally every save period) and are restored when it is started.  By 
+ * default each session is saved in its own file with java serialization.  If 
+ * {@link #setJournal(boolean)} is true, the sessions are saved in a single 
+ * {@link SessionJournal}, which encodes common attribute types compactly, restores 
+ * in parallel and decodes the attributes of each session on first access.
+ * <p>
+ * If a save period is set, sessions are saved write-behind: a session that has 
+ * been changed by a request is queued when the request completes, and a saver 
+ * thread saves the queued sessions every save period, or sooner if the queue 
+ * is full.  Only changed sessions are saved and, in a journal, they are appended
+ * as a single batch.  If the saver falls behind so that the queue is full, 
+ * completing requests wait for it, so that unsaved changes are bounded.
+ * <p>
+ * If an idle save period or a maximum number of resident sessions is set,
+ * sessions are passivated to the store directory: a session idle for longer than
+ * the idle save period, or the least recently accessed sessions in excess of the
+ * maximum, are saved to their own file and their attributes are released.  The
+ * attributes are restored and the session is activated when it is next accessed.
  *
  * @author Greg Wilkins (gregw)
  */
 public class HashSessionManager extends AbstractSessionManager
 {
+    private static final String __JOURNAL="sessions.journal";
+    private static final Comparator __accessed=new Comparator()
+    {
+        public int compare(Object o1, Object o2)
+        {
+            long a1=((Session)o1)._accessed;
+            long a2=((Session)o2)._accessed;
+            return a1<a2?-1:(a1==a2?0:1);
+        }
+    };
+    
     private Timer _timer;
     private TimerTask _task;
     private int _scavengePeriodMs=30000;
     private int _savePeriodMs=0; //don't do period saves by default
-    private TimerTask _saveTask;
+    private Thread _saver;
+    private final ArrayList _saveQueue=new ArrayList();
+    private int _maxSaveQueue=10000;
+    private long _saves;
+    private long _savedSessions;
+    private long _savedBytes;
+    private long _savesDurationTotal;
+    private long _savesDurationMax;
     protected Map _sessions;
+    private final TreeMap[] _scavengeBuckets=new TreeMap[stripes()];
+    private final LinkedHashMap[] _residentSessions=new LinkedHashMap[stripes()];
     private File _storeDir;
     private boolean _lazyLoad=false;
     private boolean _sessionsLoaded=false;
+    private boolean _journal=false;
+    private SessionJournal.Serializer[] _serializers;
+    private SessionJournal _sessionJournal;
+    private int _idleSavePeriodMs=0; //don't passivate idle sessions by default
+    private int _maxResidentSessions=0;
+    private int _idledSessions;
+    private long _passivations;
+    private long _activations;
     
     /* ------------------------------------------------------------ */
     public HashSessionManager()
     {
         super();
+        for (int i=0;i<_scavengeBuckets.length;i++)
+            _scavengeBuckets[i]=new TreeMap();
+        for (int i=0;i<_residentSessions.length;i++)
+            _residentSessions[i]=new LinkedHashMap(16,0.75f,true);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of stripes of the session map and of the scavenge buckets.
+     */
+    private static int stripes()
+    {
+        int stripes=1;
+        while (stripes<Runtime.getRuntime().availableProcessors()*4)
+            stripes<<=1;
+        return stripes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param clusterId The cluster ID of a session
+     * @param stripes The number of stripes, which is a power of 2.
+     * @return The index of the stripe of the session.
+     */
+    private static int stripe(String clusterId, int stripes)
+    {
+        int h=clusterId==null?0:clusterId.hashCode();
+        h^=(h>>>16);
+        return h&(stripes-1);
     }
 
     /* ------------------------------------------------------------ */
@@ -65,7 +162,8 @@ public class HashSessionManager extends AbstractSessionManager
      */
     public void doStart() throws Exception
     {
-        _sessions=new HashMap();
+        _sessions=new StripedMap();
+        _idledSessions=0;
         super.doStart();
 
         _timer=new Timer(true);
@@ -77,6 +175,12 @@ public class HashSessionManager extends AbstractSessionManager
             if (!_storeDir.exists())
                 _storeDir.mkdir();
 
+            if (_journal)
+            {
+                _sessionJournal=new SessionJournal(new File(_storeDir,__JOURNAL));
+                _sessionJournal.setSerializers(_serializers);
+            }
+
             if (!_lazyLoad)
                 restoreSessions();
         }
@@ -90,6 +194,16 @@ public class HashSessionManager extends AbstractSessionManager
      */
     public void doStop() throws Exception
     {
+        // stop the saver, which saves any queued sessions
+        Thread saver;
+        synchronized (_saveQueue)
+        {
+            saver=_saver;
+            _saver=null;
+            _saveQueue.notifyAll();
+        }
+        if (saver!=null)
+            saver.join();
         
         if (_storeDir != null)
             saveSessions();
@@ -98,12 +212,27 @@ public class HashSessionManager extends AbstractSessionManager
  
         _sessions.clear();
         _sessions=null;
+        for (int i=0;i<_scavengeBuckets.length;i++)
+        {
+            synchronized (_scavengeBuckets[i])
+            {
+                _scavengeBuckets[i].clear();
+            }
+        }
+        for (int i=0;i<_residentSessions.length;i++)
+        {
+            synchronized (_residentSessions[i])
+            {
+                _residentSessions[i].clear();
+            }
+        }
+        if (_sessionJournal!=null)
+            _sessionJournal.close();
+        _sessionJournal=null;
 
         // stop the scavenger
         synchronized(this)
         {
-            if (_saveTask!=null)
-                _saveTask.cancel();
             if (_task!=null)
                 _task.cancel();
             if (_timer!=null)
@@ -147,7 +276,6 @@ public class HashSessionManager extends AbstractSessionManager
     /* ------------------------------------------------------------ */
     public void setSavePeriod (int seconds)
     {
-        int oldSavePeriod = _savePeriodMs;
         int period = (seconds * 1000);
         if (period < 0)
             period=0;
@@ -155,27 +283,33 @@ public class HashSessionManager extends AbstractSessionManager
         
         if (_timer!=null)
         {
-            synchronized (this)
+            synchronized (_saveQueue)
             {
-                if (_saveTask!=null)
-                    _saveTask.cancel();
                 if (_savePeriodMs > 0 && _storeDir!=null) //only save if we have a directory configured
                 {
-                    _saveTask = new TimerTask()
+                    if (_saver==null)
                     {
-                        public void run()
+                        _saver=new Thread(new Saver(),"HashSessionSaver");
+                        _saver.setDaemon(true);
+                        _saver.start();
+                        
+                        // queue the sessions already changed
+                        for (Iterator i=_sessions.values().iterator();i.hasNext();)
                         {
-                            try
-                            {
-                                saveSessions();
-                            }
-                            catch (Exception e)
+                            Session session=(Session)i.next();
+                            if (session.isDirty() && !session._queued)
                             {
-                                Log.warn(e);
+                                session._queued=true;
+                                _saveQueue.add(session);
                             }
-                        }   
-                    };
-                    _timer.schedule(_saveTask,_savePeriodMs,_savePeriodMs);
+                        }
+                    }
+                    _saveQueue.notifyAll();
+                }
+                else if (_saver!=null)
+                {
+                    _saver=null;
+                    _saveQueue.notifyAll();
                 }
             }
         }
@@ -189,6 +323,260 @@ public class HashSessionManager extends AbstractSessionManager
         
         return _savePeriodMs/1000;
     }
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of changed sessions queued to be saved
+     * before completing requests wait for the saver.
+     */
+    public int getMaxSaveQueue()
+    {
+        return _maxSaveQueue;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxSaveQueue The maximum number of changed sessions queued to be saved
+     * before completing requests wait for the saver.
+     */
+    public void setMaxSaveQueue(int maxSaveQueue)
+    {
+        synchronized (_saveQueue)
+        {
+            _maxSaveQueue=maxSaveQueue<1?1:maxSaveQueue;
+            _saveQueue.notifyAll();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of changed sessions queued to be saved.
+     */
+    public int getDirtySessions()
+    {
+        synchronized (_saveQueue)
+        {
+            return _saveQueue.size();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times the saver has saved changed sessions.
+     */
+    public long getSaves()
+    {
+        synchronized (_saveQueue)
+        {
+            return _saves;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of changed sessions saved by the saver.
+     */
+    public long getSavedSessions()
+    {
+        synchronized (_saveQueue)
+        {
+            return _savedSessions;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of bytes written by the saver.
+     */
+    public long getSavedBytes()
+    {
+        synchronized (_saveQueue)
+        {
+            return _savedBytes;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The average time in milliseconds taken to save changed sessions.
+     */
+    public long getSavesDurationAve()
+    {
+        synchronized (_saveQueue)
+        {
+            return _saves==0?0:_savesDurationTotal/_saves;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum time in milliseconds taken to save changed sessions.
+     */
+    public long getSavesDurationMax()
+    {
+        synchronized (_saveQueue)
+        {
+            return _savesDurationMax;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void resetStats()
+    {
+        super.resetStats();
+        synchronized (_saveQueue)
+        {
+            _saves=0;
+            _savedSessions=0;
+            _savedBytes=0;
+            _savesDurationTotal=0;
+            _savesDurationMax=0;
+            _passivations=0;
+            _activations=0;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The time in seconds that a session may be idle before it is 
+     * passivated to the store directory, or 0 if idle sessions are not passivated.
+     */
+    public int getIdleSavePeriod()
+    {
+        return _idleSavePeriodMs/1000;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param seconds The time in seconds that a session may be idle before it is 
+     * passivated to the store directory, or 0 if idle sessions are not passivated.
+     * Sessions are passivated by the scavenger, so the scavenge period should be 
+     * less than the idle save period.
+     */
+    public void setIdleSavePeriod(int seconds)
+    {
+        _idleSavePeriodMs=seconds<=0?0:seconds*1000;
+        
+        // reschedule the sessions for the new period
+        Map sessions=_sessions;
+        if (sessions!=null)
+        {
+            for (Iterator i=sessions.values().iterator();i.hasNext();)
+                schedule((Session)i.next());
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The maximum number of sessions with attributes in memory, or 0 for no 
+     * maximum.
+     */
+    public int getMaxResidentSessions()
+    {
+        return _maxResidentSessions;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param maxResidentSessions The maximum number of sessions with attributes in memory, 
+     * or 0 for no maximum. At each scavenge, the least recently accessed sessions in 
+     * excess of the maximum are passivated to the store directory. Passivated sessions
+     * stay in the session map without their attributes, so only the memory used by
+     * attributes is bounded.
+     * <p>
+     * While there is a maximum, the resident sessions are kept in access ordered 
+     * lists, striped like the session map, so that the scavenger finds the least
+     * recently accessed sessions without sorting all the sessions.
+     */
+    public void setMaxResidentSessions(int maxResidentSessions)
+    {
+        boolean was=_maxResidentSessions>0;
+        _maxResidentSessions=maxResidentSessions<0?0:maxResidentSessions;
+        
+        Map sessions=_sessions;
+        if (_maxResidentSessions>0 && !was && sessions!=null)
+        {
+            // list the resident sessions, least recently accessed first
+            ArrayList resident=new ArrayList(sessions.values());
+            Collections.sort(resident,__accessed);
+            for (Iterator i=resident.iterator();i.hasNext();)
+            {
+                Session session=(Session)i.next();
+                if (!session.isIdled())
+                    resident(session,true);
+            }
+        }
+        else if (_maxResidentSessions==0 && was)
+        {
+            for (int i=0;i<_residentSessions.length;i++)
+            {
+                synchronized (_residentSessions[i])
+                {
+                    _residentSessions[i].clear();
+                }
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Add a session to, or remove it from, the access ordered list of
+     * the resident sessions of its stripe. Adding a session that is already
+     * listed moves it to the end of the list.  The lists are only kept while
+     * there is a maximum number of resident sessions.
+     * @param session The session
+     * @param resident True if the session is resident, false if it has been 
+     * passivated or removed.
+     */
+    private void resident(Session session, boolean resident)
+    {
+        if (_maxResidentSessions<=0)
+            return;
+        String id=session.getClusterId();
+        LinkedHashMap sessions=_residentSessions[stripe(id,_residentSessions.length)];
+        synchronized (sessions)
+        {
+            if (resident)
+                sessions.put(id,session);
+            else if (sessions.get(id)==session)
+                sessions.remove(id);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of sessions that are passivated.
+     */
+    public int getIdledSessions()
+    {
+        synchronized (_saveQueue)
+        {
+            return _idledSessions;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times sessions have been passivated.
+     */
+    public long getPassivations()
+    {
+        synchronized (_saveQueue)
+        {
+            return _passivations;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of times passivated sessions have been activated.
+     */
+    public long getActivations()
+    {
+        synchronized (_saveQueue)
+        {
+            return _activations;
+        }
+    }
+
     /* ------------------------------------------------------------ */
     /**
      * @param seconds
@@ -216,7 +604,7 @@ public class HashSessionManager extends AbstractSessionManager
                 {
                     public void run()
                     {
-                        scavenge();
+                        scavenge(System.currentTimeMillis());
                     }   
                 };
                 _timer.schedule(_task,_scavengePeriodMs,_scavengePeriodMs);
@@ -228,8 +616,9 @@ public class HashSessionManager extends AbstractSessionManager
     /**
      * Find sessions that have timed out and invalidate them. This runs in the
      * SessionScavenger thread.
+     * @param now The time of the scavenge.
      */
-    private void scavenge()
+    void scavenge(long now)
     {
         //don't attempt to scavenge if we are shutting down
         if (isStopping() || isStopped())
@@ -242,8 +631,6 @@ public class HashSessionManager extends AbstractSessionManager
             if (_loader!=null)
                 thread.setContextClassLoader(_loader);
 
-            long now=System.currentTimeMillis();
-
             try
             {
                 if (!_sessionsLoaded && _lazyLoad)
@@ -254,39 +641,101 @@ public class HashSessionManager extends AbstractSessionManager
                 Log.debug(e);
             }
             
-            // Since Hashtable enumeration is not safe over deletes,
-            // we build a list of stale sessions, then go back and invalidate
-            // them
-            Object stale=null;
-
-            synchronized (HashSessionManager.this)
+            // Take the sessions from the buckets that are due
+            Object due=null;
+            for (int s=0;s<_scavengeBuckets.length;s++)
             {
-                // For each session
-                for (Iterator i=_sessions.values().iterator(); i.hasNext();)
+                TreeMap buckets=_scavengeBuckets[s];
+                synchronized (buckets)
                 {
-                    Session session=(Session)i.next();
-                    long idleTime=session._maxIdleMs;
-                    if (idleTime>0&&session._accessed+idleTime<now)
+                    while (!buckets.isEmpty())
                     {
-                        // Found a stale session, add it to the list
-                        stale=LazyList.add(stale,session);
+                        Long time=(Long)buckets.firstKey();
+                        if (time.longValue()>now)
+                            break;
+                        Object bucket=buckets.remove(time);
+                        for (int i=0;i<LazyList.size(bucket);i++)
+                        {
+                            // ignore sessions that have been rescheduled or unscheduled
+                            Session session=(Session)LazyList.get(bucket,i);
+                            if (session._scavengeTime==time.longValue())
+                            {
+                                session._scavengeTime=0;
+                                due=LazyList.add(due,session);
+                            }
+                        }
                     }
                 }
             }
 
-            // Remove the stale sessions
-            for (int i=LazyList.size(stale); i-->0;)
+            // Timeout the stale sessions and reschedule the others
+            for (int i=0;i<LazyList.size(due);i++)
             {
+                Session session=(Session)LazyList.get(due,i);
+                Map sessions=_sessions;
+                if (sessions==null || sessions.get(session.getClusterId())!=session)
+                    continue;
+
                 // check it has not been accessed in the meantime
-                Session session=(Session)LazyList.get(stale,i);
                 long idleTime=session._maxIdleMs;
-                if (idleTime>0&&session._accessed+idleTime<System.currentTimeMillis())
+                if (idleTime>0&&session._accessed+idleTime<now)
                 {
                     ((Session)session).timeout();
-                    int nbsess=this._sessions.size();
+                    int nbsess=sessions.size();
                     if (nbsess<this._minSessions)
                         this._minSessions=nbsess;
                 }
+                else
+                {
+                    // passivate the session if it has been idle for the idle save period
+                    if (_idleSavePeriodMs>0 && session._accessed+_idleSavePeriodMs<=now)
+                        session.idle();
+                    schedule(session);
+                }
+            }
+            
+            // Passivate the least recently accessed sessions in excess of the maximum.
+            // They are among the first excess sessions of the list of each stripe,
+            // so only those candidates are sorted.
+            Map sessions=_sessions;
+            if (_maxResidentSessions>0 && sessions!=null)
+            {
+                int excess=-_maxResidentSessions;
+                for (int s=0;s<_residentSessions.length;s++)
+                {
+                    synchronized (_residentSessions[s])
+                    {
+                        excess+=_residentSessions[s].size();
+                    }
+                }
+                
+                if (excess>0)
+                {
+                    ArrayList oldest=new ArrayList();
+                    for (int s=0;s<_residentSessions.length;s++)
+                    {
+                        synchronized (_residentSessions[s])
+                        {
+                            Iterator i=_residentSessions[s].values().iterator();
+                            for (int n=0;n<excess && i.hasNext();n++)
+                                oldest.add(i.next());
+                        }
+                    }
+                    Collections.sort(oldest,__accessed);
+                    
+                    for (int i=0;i<oldest.size() && excess>0;i++)
+                    {
+                        Session session=(Session)oldest.get(i);
+                        if (session.idle())
+                            excess--;
+                        else if (session.isIdled() || sessions.get(session.getClusterId())!=session)
+                        {
+                            // drop a session listed while the lists were being started
+                            resident(session,false);
+                            excess--;
+                        }
+                    }
+                }
             }
         }
         catch (Throwable t)
@@ -303,54 +752,297 @@ public class HashSessionManager extends AbstractSessionManager
     }
     
     /* ------------------------------------------------------------ */
-    protected void addSession(AbstractSessionManager.Session session)
+    /** Schedule a session to be checked by the scavenger.
+     * The session is put in the bucket of the scavenge after it would 
+     * expire, or would be passivated, if it is not accessed again.
+     * The buckets are striped by session ID, with one lock per stripe.
+     * A session that is rescheduled is left in its previous bucket, where 
+     * it is ignored by the scavenger, so scheduling does not search a bucket.
+     * @param session The session to schedule.
+     */
+    private void schedule(Session session)
     {
-        _sessions.put(session.getClusterId(),session);
+        long idleTime=session._maxIdleMs;
+        long idleSave=(_idleSavePeriodMs>0 && _storeDir!=null && !session.isIdled())?_idleSavePeriodMs:0;
+        long period=_scavengePeriodMs;
+        TreeMap buckets=_scavengeBuckets[stripe(session.getClusterId(),_scavengeBuckets.length)];
+        synchronized (buckets)
+        {
+            if (idleTime<=0 && idleSave<=0)
+            {
+                session._scavengeTime=0;
+                return;
+            }
+            
+            if (idleTime<=0 || idleSave>0 && idleSave<idleTime)
+                idleTime=idleSave;
+            long time=((session._accessed+idleTime)/period+1)*period;
+            if (session._scavengeTime==time)
+                return;
+            session._scavengeTime=time;
+            
+            Long key=new Long(time);
+            Object bucket=buckets.get(key);
+            if (bucket==null)
+                buckets.put(key,session);
+            else if (bucket instanceof ArrayList)
+                ((ArrayList)bucket).add(session);
+            else
+                buckets.put(key,LazyList.add(bucket,session));
+        }
     }
     
     /* ------------------------------------------------------------ */
-    public AbstractSessionManager.Session getSession(String idInCluster)
+    /**
+     * @return The number of sessions scheduled to be checked by the scavenger.
+     */
+    int getScavengeScheduled()
     {
-        try
+        int scheduled=0;
+        for (int s=0;s<_scavengeBuckets.length;s++)
         {
-            if (!_sessionsLoaded && _lazyLoad)
-                restoreSessions();
+            synchronized (_scavengeBuckets[s])
+            {
+                for (Iterator i=_scavengeBuckets[s].entrySet().iterator();i.hasNext();)
+                {
+                    Map.Entry entry=(Map.Entry)i.next();
+                    long time=((Long)entry.getKey()).longValue();
+                    for (int j=0;j<LazyList.size(entry.getValue());j++)
+                        if (((Session)LazyList.get(entry.getValue(),j))._scavengeTime==time)
+                            scheduled++;
+                }
+            }
         }
-        catch(Exception e)
+        return scheduled;
+    }
+    
+    /* ------------------------------------------------------------ */
+    /** Unschedule a session.
+     * The session is left in its bucket, where it is ignored by the scavenger.
+     * @param session The session to unschedule.
+     */
+    private void unschedule(Session session)
+    {
+        synchronized (_scavengeBuckets[stripe(session.getClusterId(),_scavengeBuckets.length)])
         {
-            Log.warn(e);
+            session._scavengeTime=0;
         }
-        
-        if (_sessions==null)
-            return null;
-
-        return (Session)_sessions.get(idInCluster);
     }
-
+    
     /* ------------------------------------------------------------ */
-    protected void invalidateSessions()
+    /** Complete a request to a session.
+     * If the session has been changed and sessions are saved periodically,
+     * the session is queued to be saved. If the queue is full, this waits
+     * until the saver has taken the queued sessions.
+     * @see org.mortbay.jetty.servlet.AbstractSessionManager#complete(javax.servlet.http.HttpSession)
+     */
+    public void complete(HttpSession session)
     {
-        // Invalidate all sessions to cause unbind events
-        ArrayList sessions=new ArrayList(_sessions.values());
-        for (Iterator i=sessions.iterator(); i.hasNext();)
+        super.complete(session);
+        
+        Session s=(Session)((SessionIf)session).getSession();
+        if (!s.isDirty())
+            return;
+        
+        synchronized (_saveQueue)
         {
-            Session session=(Session)i.next();
-            session.invalidate();
+            if (_saver==null || s._queued)
+                return;
+            s._queued=true;
+            _saveQueue.add(s);
+            
+            if (_saveQueue.size()>=_maxSaveQueue)
+            {
+                _saveQueue.notifyAll();
+                while (_saver!=null && _saveQueue.size()>=_maxSaveQueue)
+                {
+                    try
+                    {
+                        _saveQueue.wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Log.ignore(e);
+                        break;
+                    }
+                }
+            }
         }
-        _sessions.clear();
-        
     }
 
     /* ------------------------------------------------------------ */
-    protected AbstractSessionManager.Session newSession(HttpServletRequest request)
+    /** Save changed sessions.
+     * Each session is encoded while it is locked, but only the journal is locked
+     * while the encoded sessions are appended to it.
+     * @param sessions The changed sessions to save.
+     */
+    private void saveChanged(List sessions)
+    {
+        long start=System.currentTimeMillis();
+        long bytes=0;
+        int saved=0;
+        
+        Thread thread=Thread.currentThread();
+        ClassLoader old_loader=thread.getContextClassLoader();
+        try
+        {
+            if (_loader!=null)
+                thread.setContextClassLoader(_loader);
+            
+            SessionJournal journal=_sessionJournal;
+            List records=new ArrayList(sessions.size());
+            List journaled=new ArrayList(sessions.size());
+            for (int i=0;i<sessions.size();i++)
+            {
+                Session session=(Session)sessions.get(i);
+                
+                // A session is removed from the map before it is removed from the 
+                // store with the session locked, so it is not saved once removed.
+                synchronized (session)
+                {
+                    Map map=_sessions;
+                    if (map==null || map.get(session.getClusterId())!=session)
+                        continue;
+                    
+                    // a passivated session is already saved in its own file
+                    if (!session._dirty || !session.isValid() || session.isIdled())
+                        continue;
+                    session._dirty=false;
+                    try
+                    {
+                        if (journal!=null)
+                        {
+                            records.add(journal.encode(session));
+                            journaled.add(session);
+                        }
+                        else
+                        {
+                            File file=new File(_storeDir,session.getClusterId());
+                            FileOutputStream fos=new FileOutputStream(file);
+                            try
+                            {
+                                session.save(fos);
+                            }
+                            finally
+                            {
+                                IO.close(fos);
+                            }
+                            bytes+=file.length();
+                        }
+                        saved++;
+                    }
+                    catch (Exception e)
+                    {
+                        session._dirty=true;
+                        Log.warn("Problem persisting session "+session.getClusterId(), e);
+                    }
+                }
+            }
+
+            if (journal!=null && records.size()>0)
+            {
+                try
+                {
+                    bytes+=journal.append(records);
+                    
+                    // remove again the sessions removed while their records were appended
+                    for (int i=0;i<journaled.size();i++)
+                    {
+                        Session session=(Session)journaled.get(i);
+                        Map map=_sessions;
+                        if (map!=null && map.get(session.getClusterId())!=session)
+                            session.remove(session.getClusterId());
+                    }
+                    
+                    if (journal.isCompactable())
+                        journal.write(residentSessions());
+                }
+                catch (IOException e)
+                {
+                    Log.warn("Problem persisting sessions", e);
+                }
+            }
+        }
+        finally
+        {
+            thread.setContextClassLoader(old_loader);
+        }
+        
+        long duration=System.currentTimeMillis()-start;
+        synchronized (_saveQueue)
+        {
+            _saves++;
+            _savedSessions+=saved;
+            _savedBytes+=bytes;
+            _savesDurationTotal+=duration;
+            if (duration>_savesDurationMax)
+                _savesDurationMax=duration;
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    protected void addSession(AbstractSessionManager.Session session)
+    {
+        _sessions.put(session.getClusterId(),session);
+        schedule((Session)session);
+        if (!((Session)session).isIdled())
+            resident((Session)session,true);
+    }
+    
+    /* ------------------------------------------------------------ */
+    public AbstractSessionManager.Session getSession(String idInCluster)
+    {
+        try
+        {
+            if (!_sessionsLoaded && _lazyLoad)
+                restoreSessions();
+        }
+        catch(Exception e)
+        {
+            Log.warn(e);
+        }
+        
+        if (_sessions==null)
+            return null;
+
+        return (Session)_sessions.get(idInCluster);
+    }
+
+    /* ------------------------------------------------------------ */
+    protected void invalidateSessions()
+    {
+        // Invalidate all sessions to cause unbind events
+        ArrayList sessions=new ArrayList(_sessions.values());
+        for (Iterator i=sessions.iterator(); i.hasNext();)
+        {
+            Session session=(Session)i.next();
+            session.invalidate();
+        }
+        _sessions.clear();
+        
+    }
+
+    /* ------------------------------------------------------------ */
+    protected AbstractSessionManager.Session newSession(HttpServletRequest request)
     {
         return new Session(request);
     }
     
     /* ------------------------------------------------------------ */
+    /** Remove a session.
+     * The session is also removed from the store directory, whether it was 
+     * invalidated, timed out or removed, so that it is not restored.
+     * @see org.mortbay.jetty.servlet.AbstractSessionManager#removeSession(java.lang.String)
+     */
     protected void removeSession(String clusterId)
     {
-        _sessions.remove(clusterId);
+        Session session=(Session)_sessions.remove(clusterId);
+        if (session!=null)
+        {
+            unschedule(session);
+            resident(session,false);
+            session.remove(clusterId);
+        }
     }
     
     /* ------------------------------------------------------------ */
@@ -377,6 +1069,42 @@ public class HashSessionManager extends AbstractSessionManager
         return _lazyLoad;
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if sessions are saved in a {@link SessionJournal}
+     */
+    public boolean isJournal()
+    {
+        return _journal;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param journal True if sessions are saved in a {@link SessionJournal}
+     * in the store directory, rather than one file per session.
+     */
+    public void setJournal(boolean journal)
+    {
+        _journal=journal;
+    }
+
+    /* ------------------------------------------------------------ */
+    public SessionJournal.Serializer[] getSerializers()
+    {
+        return _serializers;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param serializers The serializers used by the {@link SessionJournal} for 
+     * attributes that are not Strings, byte arrays or primitive wrappers.
+     * @see SessionJournal#setSerializers(SessionJournal.Serializer[])
+     */
+    public void setSerializers(SessionJournal.Serializer[] serializers)
+    {
+        _serializers=serializers;
+    }
+
     /* ------------------------------------------------------------ */
     public void restoreSessions () throws Exception
     {
@@ -391,21 +1119,41 @@ public class HashSessionManager extends AbstractSessionManager
             return;
         }
 
+        if (_sessionJournal!=null)
+        {
+            Map sessions=_sessionJournal.restore(this);
+            for (Iterator i=sessions.values().iterator();i.hasNext();)
+                addSession((Session)i.next(), false);
+            // keep the journal to append changed sessions to
+            if (_savePeriodMs<=0)
+                _sessionJournal.delete();
+            // continue to restore the passivated sessions, which replace their journal records
+        }
+
         File[] files = _storeDir.listFiles();
         for (int i=0;files!=null&&i<files.length;i++)
         {
+            if (files[i].getName().startsWith(__JOURNAL))
+                continue;
+            FileInputStream in=null;
             try
             {
-                FileInputStream in = new FileInputStream(files[i]);           
+                in = new FileInputStream(files[i]);           
                 Session session = restoreSession(in);
                 in.close();          
                 addSession(session, false);
-                files[i].delete();
+                // keep the file if changed sessions are saved periodically in it
+                if (_savePeriodMs<=0 || _sessionJournal!=null)
+                    files[i].delete();
             }
             catch (Exception e)
             {
                 Log.warn("Problem restoring session "+files[i].getName(), e);
             }
+            finally
+            {
+                IO.close(in);
+            }
         }
         
         _sessionsLoaded = true;
@@ -427,12 +1175,21 @@ public class HashSessionManager extends AbstractSessionManager
  
         synchronized (this)
         {
+            if (_sessionJournal!=null)
+            {
+                _sessionJournal.write(residentSessions());
+                return;
+            }
+            
             Iterator itor = _sessions.entrySet().iterator();
             while (itor.hasNext())
             {
                 Map.Entry entry = (Map.Entry)itor.next();
                 String id = (String)entry.getKey();
                 Session session = (Session)entry.getValue();
+                // a passivated session is already saved in its own file
+                if (session.isIdled())
+                    continue;
                 try
                 {
                     File file = new File (_storeDir, id);
@@ -440,8 +1197,14 @@ public class HashSessionManager extends AbstractSessionManager
                         file.delete();
                     file.createNewFile();
                     FileOutputStream fos = new FileOutputStream (file);
-                    session.save(fos);
-                    fos.close();
+                    try
+                    {
+                        session.save(fos);
+                    }
+                    finally
+                    {
+                        IO.close(fos);
+                    }
                 }
                 catch (Exception e)
                 {
@@ -451,6 +1214,22 @@ public class HashSessionManager extends AbstractSessionManager
         }
     }
 
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The sessions that are not passivated.
+     */
+    private Collection residentSessions()
+    {
+        ArrayList resident=new ArrayList();
+        for (Iterator i=_sessions.values().iterator();i.hasNext();)
+        {
+            Session session=(Session)i.next();
+            if (!session.isIdled())
+                resident.add(session);
+        }
+        return resident;
+    }
+
     /* ------------------------------------------------------------ */
     public Session restoreSession (FileInputStream fis) 
     throws Exception
@@ -511,7 +1290,11 @@ public class HashSessionManager extends AbstractSessionManager
         /* ------------------------------------------------------------ */
         private static final long serialVersionUID=-2134521374206116367L;
         
-   
+        /** The time of the scavenge bucket of the session, or 0 if not scheduled */
+        private transient long _scavengeTime;
+        
+        /** True if the session is queued to be saved */
+        private transient boolean _queued;
 
         /* ------------------------------------------------------------- */
         protected Session(HttpServletRequest request)
@@ -529,6 +1312,11 @@ public class HashSessionManager extends AbstractSessionManager
             super.setMaxInactiveInterval(secs);
             if (_maxIdleMs>0&&(_maxIdleMs/10)<_scavengePeriodMs)
                 HashSessionManager.this.setScavengePeriod((secs+9)/10);
+            
+            // reschedule if already added, as the session may now expire sooner
+            Map sessions=_sessions;
+            if (sessions!=null && sessions.get(getClusterId())==this)
+                schedule(this);
         }
         
         /* ------------------------------------------------------------ */
@@ -536,15 +1324,173 @@ public class HashSessionManager extends AbstractSessionManager
         {
             return new HashMap(3);
         }
-        
- 
-        public void invalidate ()
-        throws IllegalStateException
+
+        /* ------------------------------------------------------------ */
+        protected void access(long time)
+        {
+            synchronized (this)
+            {
+                // activate a passivated session before it is used by a request
+                if (_values instanceof Passivated)
+                    ((Passivated)_values).activate();
+                super.access(time);
+                resident(this,true);
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        protected void doInvalidate() throws IllegalStateException
+        {
+            // A passivated session is invalidated without loading its attributes,
+            // which are not unbound. They stay in the store if the manager is stopped.
+            boolean passivated;
+            synchronized (this)
+            {
+                passivated=_values instanceof Passivated;
+                if (passivated)
+                    _values=newAttributeMap();
+            }
+            if (passivated)
+            {
+                synchronized (_saveQueue)
+                {
+                    _idledSessions--;
+                }
+            }
+            super.doInvalidate();
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the session is passivated.
+         */
+        public synchronized boolean isIdled()
+        {
+            return _values instanceof Passivated;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Passivate the session.
+         * The session is saved to its own file in the store directory and
+         * its attributes are released, unless it is being used by a request.
+         * @return True if the session was passivated.
+         */
+        protected boolean idle()
+        {
+            synchronized (this)
+            {
+                if (_storeDir==null || _invalid || _requests>0 || _values instanceof Passivated)
+                    return false;
+
+                if (_values!=null)
+                    willPassivate();
+                File file=new File(_storeDir,getClusterId());
+                FileOutputStream out=null;
+                try
+                {
+                    out=new FileOutputStream(file);
+                    save(out);
+                }
+                catch (Exception e)
+                {
+                    Log.warn("Problem passivating session "+getClusterId(), e);
+                    IO.close(out);
+                    file.delete();
+                    if (_values!=null)
+                        didActivate();
+                    return false;
+                }
+                finally
+                {
+                    IO.close(out);
+                }
+                _values=new Passivated(this,_values==null?0:_values.size());
+                _dirty=false;
+                resident(this,false);
+            }
+            
+            synchronized (_saveQueue)
+            {
+                _idledSessions++;
+                _passivations++;
+            }
+            return true;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Load the attributes of a passivated session.
+         * @return The attributes
+         * @throws Exception If the attributes could not be loaded
+         */
+        private Map load() throws Exception
         {
-            super.invalidate();
-            remove(getId());
+            try
+            {
+                Map values=newAttributeMap();
+                File file=new File(_storeDir,getClusterId());
+                DataInputStream in=new DataInputStream(new FileInputStream(file));
+                try
+                {
+                    // skip the fields that are held in memory
+                    in.readUTF();
+                    in.readUTF();
+                    in.readBoolean();
+                    for (int i=0;i<4;i++)
+                        in.readLong();
+                    in.readInt();
+
+                    int size=in.readInt();
+                    if (size>0)
+                    {
+                        String[] keys=new String[size];
+                        for (int i=0;i<size;i++)
+                            keys[i]=in.readUTF();
+                        ClassLoadingObjectInputStream ois=new ClassLoadingObjectInputStream(in);
+                        for (int i=0;i<size;i++)
+                            values.put(keys[i],ois.readObject());
+                    }
+                }
+                finally
+                {
+                    in.close();
+                }
+
+                // keep the file if changed sessions are saved periodically in it
+                if (_savePeriodMs<=0 || _sessionJournal!=null)
+                    file.delete();
+
+                synchronized (_saveQueue)
+                {
+                    _activations++;
+                }
+                return values;
+            }
+            finally
+            {
+                synchronized (_saveQueue)
+                {
+                    _idledSessions--;
+                }
+            }
+        }
+
+        /* ------------------------------------------------------------ */
+        protected synchronized void didActivate()
+        {
+            // Don't decode restored attributes just to look for listeners 
+            if (_values instanceof SessionJournal.Attributes && !((SessionJournal.Attributes)_values).isDecoded())
+                ((SessionJournal.Attributes)_values).activate();
+            else
+                super.didActivate();
         }
         
+        /* ------------------------------------------------------------ */
+        /** Remove the session from the store directory.
+         * A remove record is appended to the journal, if there is one, and 
+         * the file of the session, which is kept if it is passivated or if 
+         * changed sessions are saved periodically, is deleted.
+         * @param id The cluster id of the session.
+         */
         public void remove (String id)
         {
             if (id==null)
@@ -560,8 +1506,25 @@ public class HashSessionManager extends AbstractSessionManager
                 return;
             }
             
-            File f = new File(_storeDir, id);
-            f.delete();
+            SessionJournal journal=_sessionJournal;
+            if (journal!=null)
+            {
+                try
+                {
+                    journal.appendRemove(id);
+                }
+                catch(IOException e)
+                {
+                    Log.warn("Problem removing session "+id,e);
+                }
+            }
+            
+            // the saver only writes the file with the session locked
+            synchronized (this)
+            {
+                File f = new File(_storeDir, id);
+                f.delete();
+            }
         }
         
         public void save(FileOutputStream fos)  throws IOException 
@@ -607,6 +1570,273 @@ public class HashSessionManager extends AbstractSessionManager
         
     }
     
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The attributes of a passivated session.
+     * The attributes are loaded and the session is activated when they are 
+     * first accessed, which is always with the session locked.
+     */
+    private class Passivated extends AbstractMap
+    {
+        private final Session _session;
+        private final int _size;
+        
+        /* ------------------------------------------------------------ */
+        Passivated(Session session, int size)
+        {
+            _session=session;
+            _size=size;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Load the attributes and activate the session.
+         * @return The attributes, which replace this map in the session.
+         */
+        Map activate()
+        {
+            Map values;
+            synchronized (_session)
+            {
+                if (_session._values!=this)
+                    return _session._values;
+                try
+                {
+                    values=_session.load();
+                    _session._values=values;
+                    _session.didActivate();
+                    schedule(_session);
+                    resident(_session,true);
+                    return values;
+                }
+                catch (Exception e)
+                {
+                    Log.warn("Problem activating session "+_session.getClusterId(), e);
+                    values=_session.newAttributeMap();
+                    _session._values=values;
+                }
+            }
+            
+            // The attributes are lost, so the session is invalidated rather than
+            // continuing without them.  This is done without the session lock, as
+            // invalidating takes the manager lock.
+            try
+            {
+                _session.invalidate();
+            }
+            catch (IllegalStateException e)
+            {
+                Log.ignore(e);
+            }
+            return values;
+        }
+
+        /* ------------------------------------------------------------ */
+        public int size()
+        {
+            return _size;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object get(Object key)
+        {
+            return activate().get(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean containsKey(Object key)
+        {
+            return activate().containsKey(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object put(Object key, Object value)
+        {
+            return activate().put(key,value);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object remove(Object key)
+        {
+            return activate().remove(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public void clear()
+        {
+            activate().clear();
+        }
+
+        /* ------------------------------------------------------------ */
+        public Set entrySet()
+        {
+            return activate().entrySet();
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The saver thread.
+     * Waits for a save period, or until the save queue is full, then 
+     * takes the queued sessions and saves them.
+     */
+    private class Saver implements Runnable
+    {
+        public void run()
+        {
+            Thread thread=Thread.currentThread();
+            boolean running=true;
+            while (running)
+            {
+                ArrayList sessions;
+                synchronized (_saveQueue)
+                {
+                    long period=_savePeriodMs;
+                    long end=System.currentTimeMillis()+period;
+                    long wait=period;
+                    while (_saver==thread && _saveQueue.size()<_maxSaveQueue && wait>0)
+                    {
+                        try
+                        {
+                            _saveQueue.wait(wait);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Log.ignore(e);
+                        }
+                        wait=end-System.currentTimeMillis();
+                    }
+                    running=_saver==thread;
+                    
+                    sessions=new ArrayList(_saveQueue);
+                    _saveQueue.clear();
+                    for (int i=0;i<sessions.size();i++)
+                        ((Session)sessions.get(i))._queued=false;
+                    _saveQueue.notifyAll();
+                }
+                
+                if (sessions.size()>0)
+                {
+                    try
+                    {
+                        saveChanged(sessions);
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw ((ThreadDeath)t);
+                        Log.warn("Problem saving sessions", t);
+                    }
+                }
+            }
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** A Map striped by key, with one lock per stripe.
+     * The views of the map are snapshots, so they may be iterated while 
+     * sessions are added and removed.
+     */
+    private static class StripedMap extends AbstractMap
+    {
+        private final HashMap[] _stripes;
+        
+        /* ------------------------------------------------------------ */
+        StripedMap()
+        {
+            _stripes=new HashMap[stripes()];
+            for (int i=0;i<_stripes.length;i++)
+                _stripes[i]=new HashMap();
+        }
+        
+        /* ------------------------------------------------------------ */
+        private HashMap stripe(Object key)
+        {
+            return _stripes[HashSessionManager.stripe((String)key,_stripes.length)];
+        }
+        
+        /* ------------------------------------------------------------ */
+        public Object get(Object key)
+        {
+            HashMap stripe=stripe(key);
+            synchronized (stripe)
+            {
+                return stripe.get(key);
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        public boolean containsKey(Object key)
+        {
+            HashMap stripe=stripe(key);
+            synchronized (stripe)
+            {
+                return stripe.containsKey(key);
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        public Object put(Object key, Object value)
+        {
+            HashMap stripe=stripe(key);
+            synchronized (stripe)
+            {
+                return stripe.put(key,value);
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        public Object remove(Object key)
+        {
+            HashMap stripe=stripe(key);
+            synchronized (stripe)
+            {
+                return stripe.remove(key);
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        /** 
+         * @return The sum of the sizes of the stripes, which are read without 
+         * locking them, so the size is approximate while sessions are added or removed.
+         */
+        public int size()
+        {
+            int size=0;
+            for (int i=0;i<_stripes.length;i++)
+                size+=_stripes[i].size();
+            return size;
+        }
+        
+        /* ------------------------------------------------------------ */
+        public void clear()
+        {
+            for (int i=0;i<_stripes.length;i++)
+            {
+                synchronized (_stripes[i])
+                {
+                    _stripes[i].clear();
+                }
+            }
+        }
+        
+        /* ------------------------------------------------------------ */
+        public Set entrySet()
+        {
+            HashMap snapshot=new HashMap();
+            for (int i=0;i<_stripes.length;i++)
+            {
+                synchronized (_stripes[i])
+                {
+                    snapshot.putAll(_stripes[i]);
+                }
+            }
+            return Collections.unmodifiableMap(snapshot).entrySet();
+        }
+    }
+    
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
     protected class ClassLoadingObjectInputStream extends ObjectInputStream
     {
         public ClassLoadingObjectInputStream(java.io.InputStream in)
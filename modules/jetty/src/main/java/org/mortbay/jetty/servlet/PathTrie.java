@@ -0,0 +1,308 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.mortbay.util.LazyList;
+
+/* ------------------------------------------------------------ */
+/** Compiled URI path map.
+ * <p>
+ * A PathTrie is built from a {@link PathMap} and returns the same
+ * {@link PathMap.Entry} instances for the same paths, with the same servlet
+ * specification precedence of exact, longest prefix, longest suffix and
+ * default matches.
+ * <p>
+ * The exact and prefix specifications are held in a single character trie,
+ * so that a path is matched by one walk over its characters, with prefix
+ * matches collected at each '/' on the way. The suffix specifications are held
+ * in a trie of their reversed characters and are matched by one walk back
+ * from the end of the path. No substrings are created.
+ * <p>
+ * A PathTrie is immutable, so it may be used by concurrent threads without
+ * synchronization. To change the mappings, a new PathTrie is built from a
+ * changed PathMap.
+ *
+ * @author gregw
+ */
+public class PathTrie
+{
+    private final Node _paths=new Node();
+    private final Node _suffixes=new Node();
+    private final PathMap.Entry _prefixDefault;
+    private final PathMap.Entry _default;
+    private final List _defaultSingletonList;
+    private final String _string;
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param map The path specifications. Changes to the map after this
+     * constructor returns do not change the PathTrie.
+     */
+    public PathTrie(PathMap map)
+    {
+        synchronized (map)
+        {
+            Iterator iter = map._exactMap.entrySet().iterator();
+            while(iter.hasNext())
+            {
+                Map.Entry entry=(Map.Entry)iter.next();
+                _paths.insert((String)entry.getKey())._exact=(PathMap.Entry)entry.getValue();
+            }
+
+            iter = map._prefixMap.entrySet().iterator();
+            while(iter.hasNext())
+            {
+                Map.Entry entry=(Map.Entry)iter.next();
+                _paths.insert((String)entry.getKey())._prefix=(PathMap.Entry)entry.getValue();
+            }
+
+            iter = map._suffixMap.entrySet().iterator();
+            while(iter.hasNext())
+            {
+                Map.Entry entry=(Map.Entry)iter.next();
+                String suffix=(String)entry.getKey();
+                Node node=_suffixes;
+                for (int i=suffix.length();i-->0;)
+                    node=node.insert(suffix.charAt(i));
+                node._exact=(PathMap.Entry)entry.getValue();
+            }
+
+            _prefixDefault=map._prefixDefault;
+            _default=map._default;
+            _defaultSingletonList=map._defaultSingletonList;
+            _string=map.toString();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get object matched by the path.
+     * @param path the path.
+     * @return Best matched object or null.
+     */
+    public Object match(String path)
+    {
+        Map.Entry entry = getMatch(path);
+        if (entry!=null)
+            return entry.getValue();
+        return null;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Get the entry mapped by the best specification.
+     * @param path the path.
+     * @return Map.Entry of the best matched  or null.
+     * @see PathMap#getMatch(String)
+     */
+    public PathMap.Entry getMatch(String path)
+    {
+        if (path==null)
+            return null;
+
+        // walk the path for an exact match and the longest prefix match
+        int l=path.length();
+        PathMap.Entry prefix=null;
+        Node node=_paths;
+        for (int i=0;node!=null && i<l;i++)
+        {
+            char c=path.charAt(i);
+            if (c=='/' && node._prefix!=null)
+                prefix=node._prefix;
+            node=node.next(c);
+        }
+
+        if (node!=null && node._exact!=null)
+            return node._exact;
+        if (prefix!=null)
+            return prefix;
+        if (_prefixDefault!=null)
+            return _prefixDefault;
+
+        // walk back from the end of the path for the longest suffix match
+        PathMap.Entry suffix=null;
+        node=_suffixes;
+        for (int i=l;node!=null && i-->1;)
+        {
+            char c=path.charAt(i);
+            if (c=='.' && node._exact!=null)
+                suffix=node._exact;
+            node=node.next(c);
+        }
+        if (suffix!=null)
+            return suffix;
+
+        return _default;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Get all entries matched by the path.
+     * Best match first.
+     * @param path Path to match
+     * @return LazyList of Map.Entry instances key=pathSpec
+     * @see PathMap#getLazyMatches(String)
+     */
+    public Object getLazyMatches(String path)
+    {
+        if (path==null)
+            return LazyList.getList(null);
+
+        // walk the path for the exact match and the prefix matches, longest first
+        Object entries=null;
+        int l=path.length();
+        Node node=_paths;
+        for (int i=0;node!=null && i<l;i++)
+        {
+            char c=path.charAt(i);
+            if (c=='/' && node._prefix!=null && i<l-1)
+                entries=LazyList.add(entries,0,node._prefix);
+            node=node.next(c);
+        }
+        if (node!=null && node._exact!=null)
+            entries=LazyList.add(entries,0,node._exact);
+
+        if (_prefixDefault!=null)
+            entries=LazyList.add(entries,_prefixDefault);
+
+        // walk back from the end of the path for the suffix matches, longest first
+        Object suffixes=null;
+        node=_suffixes;
+        for (int i=l;node!=null && i-->1;)
+        {
+            char c=path.charAt(i);
+            if (c=='.' && node._exact!=null)
+                suffixes=LazyList.add(suffixes,0,node._exact);
+            node=node.next(c);
+        }
+        for (int i=0;i<LazyList.size(suffixes);i++)
+            entries=LazyList.add(entries,LazyList.get(suffixes,i));
+
+        if (_default!=null)
+        {
+            // Optimization for just the default
+            if (entries==null)
+                return _defaultSingletonList;
+            entries=LazyList.add(entries,_default);
+        }
+
+        return entries;
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Get all entries matched by the path.
+     * Best match first.
+     * @param path Path to match
+     * @return List of Map.Entry instances key=pathSpec
+     */
+    public List getMatches(String path)
+    {
+        return LazyList.getList(getLazyMatches(path));
+    }
+
+    /* --------------------------------------------------------------- */
+    /** Return whether the path matches any entries in the PathTrie,
+     * excluding the default entry
+     * @param path Path to match
+     * @return Whether the PathTrie contains any entries that match this
+     */
+    public boolean containsMatch(String path)
+    {
+        PathMap.Entry match = getMatch(path);
+        return match!=null && !match.equals(_default);
+    }
+
+    /* --------------------------------------------------------------- */
+    public String toString()
+    {
+        return _string;
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    private static final class Node
+    {
+        char[] _chars;
+        Node[] _nodes;
+        PathMap.Entry _exact;
+        PathMap.Entry _prefix;
+
+        /* ------------------------------------------------------------ */
+        Node next(char c)
+        {
+            char[] chars=_chars;
+            if (chars==null)
+                return null;
+
+            // binary search of the sorted characters
+            int lo=0;
+            int hi=chars.length-1;
+            while (lo<=hi)
+            {
+                int mid=(lo+hi)>>>1;
+                char m=chars[mid];
+                if (m<c)
+                    lo=mid+1;
+                else if (m>c)
+                    hi=mid-1;
+                else
+                    return _nodes[mid];
+            }
+            return null;
+        }
+
+        /* ------------------------------------------------------------ */
+        Node insert(String key)
+        {
+            Node node=this;
+            for (int i=0;i<key.length();i++)
+                node=node.insert(key.charAt(i));
+            return node;
+        }
+
+        /* ------------------------------------------------------------ */
+        Node insert(char c)
+        {
+            Node node=next(c);
+            if (node!=null)
+                return node;
+
+            node=new Node();
+            if (_chars==null)
+            {
+                _chars=new char[]{c};
+                _nodes=new Node[]{node};
+                return node;
+            }
+
+            int n=_chars.length;
+            int i=0;
+            while (i<n && _chars[i]<c)
+                i++;
+            char[] chars=new char[n+1];
+            Node[] nodes=new Node[n+1];
+            System.arraycopy(_chars,0,chars,0,i);
+            System.arraycopy(_nodes,0,nodes,0,i);
+            chars[i]=c;
+            nodes[i]=node;
+            System.arraycopy(_chars,i,chars,i+1,n-i);
+            System.arraycopy(_nodes,i,nodes,i+1,n-i);
+            _chars=chars;
+            _nodes=nodes;
+            return node;
+        }
+    }
+}
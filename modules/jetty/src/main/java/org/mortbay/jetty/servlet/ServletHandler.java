@@ -97,7 +97,7 @@ public class ServletHandler extends AbstractHandler
     private transient MultiMap _filterNameMappings;
     
     private transient Map _servletNameMap=new HashMap();
-    private transient PathMap _servletPathMap;
+    private transient PathTrie _servletPathMap;
     
     protected transient MruCache _chainCache[];
 
@@ -1084,7 +1084,7 @@ public class ServletHandler extends AbstractHandler
                 }
             }
             
-            _servletPathMap=pm;
+            _servletPathMap=new PathTrie(pm);
         }
         
         
@@ -0,0 +1,941 @@
+// ========================================================================
+// Copyright 2006 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import org.mortbay.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** A journal of sessions in a single file.
+ * <p>
+ * The journal is a sequence of length prefixed records, starting with a header
+ * record that names the {@link Serializer}s used by the journal. Each session record
+ * holds the session ID and times, followed by the session attributes. Attributes of
+ * type String, byte[] and the primitive wrappers are written in a compact binary
+ * encoding. Other attributes are written by the first configured {@link Serializer}
+ * that can serialize them, or else by java serialization.
+ * <p>
+ * Records are only ever appended. A later record for a session replaces any earlier
+ * record and a remove record removes the session, so a journal may be replayed after
+ * any number of appends.  A truncated record at the end of the journal, left by a
+ * crash while appending, is ignored.
+ * <p>
+ * The journal is restored by memory mapping the file and decoding the records
+ * with several threads.  The attributes of a restored session are not decoded
+ * until they are first accessed, so restoring is proportional to the number of
+ * sessions rather than to the size of their attributes.
+ *
+ * @author gregw
+ */
+public class SessionJournal
+{
+    private static final int MAGIC=0x4A534A31;
+
+    private static final byte SESSION=1;
+    private static final byte REMOVE=2;
+
+    private static final byte STRING=1;
+    private static final byte INTEGER=2;
+    private static final byte LONG=3;
+    private static final byte BOOLEAN=4;
+    private static final byte DOUBLE=5;
+    private static final byte FLOAT=6;
+    private static final byte SHORT=7;
+    private static final byte BYTE=8;
+    private static final byte CHARACTER=9;
+    private static final byte BYTES=10;
+    private static final byte SERIALIZER=11;
+    private static final byte OBJECT=12;
+
+    private final File _file;
+    private Serializer[] _serializers=new Serializer[0];
+    private int _restoreThreads=Runtime.getRuntime().availableProcessors();
+    private DataOutputStream _out;
+    private long _compactLength;
+    private List _removed;
+    private final ByteArrayOutputStream _record=new ByteArrayOutputStream(1024);
+    private final DataOutputStream _recordOut=new DataOutputStream(_record);
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param file The journal file
+     */
+    public SessionJournal(File file)
+    {
+        _file=file;
+    }
+
+    /* ------------------------------------------------------------ */
+    public File getFile()
+    {
+        return _file;
+    }
+
+    /* ------------------------------------------------------------ */
+    public Serializer[] getSerializers()
+    {
+        return _serializers;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param serializers The serializers to try, in order, for attributes
+     * that are not written in the compact encoding.  A journal can only be
+     * restored with the serializers that were used to write it.
+     */
+    public void setSerializers(Serializer[] serializers)
+    {
+        if (serializers==null)
+            serializers=new Serializer[0];
+        if (serializers.length>Byte.MAX_VALUE)
+            throw new IllegalArgumentException("Too many serializers");
+        _serializers=serializers;
+    }
+
+    /* ------------------------------------------------------------ */
+    public int getRestoreThreads()
+    {
+        return _restoreThreads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param threads The number of threads used to decode the journal
+     * when it is restored.  Defaults to the number of processors.
+     */
+    public void setRestoreThreads(int threads)
+    {
+        _restoreThreads=threads<1?1:threads;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write a new journal of sessions.
+     * The sessions are encoded without holding the journal lock, so that 
+     * removals may be appended meanwhile.  The journal is then written to a 
+     * temporary file, followed by any removals appended while encoding, and 
+     * the temporary file replaces the journal, so a crash while writing leaves 
+     * the previous journal.
+     * @param sessions The sessions to write.
+     * @throws IOException
+     */
+    public void write(Collection sessions) throws IOException
+    {
+        synchronized (this)
+        {
+            _removed=new ArrayList();
+        }
+
+        List records=new ArrayList(sessions.size());
+        for (Iterator i=sessions.iterator();i.hasNext();)
+        {
+            HashSessionManager.Session session=(HashSessionManager.Session)i.next();
+            try
+            {
+                records.add(encode(session));
+            }
+            catch (Exception e)
+            {
+                Log.warn("Problem persisting session "+session.getClusterId(), e);
+            }
+        }
+
+        synchronized (this)
+        {
+            close();
+
+            File tmp=new File(_file.getParentFile(),_file.getName()+".tmp");
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp),65536));
+            try
+            {
+                writeHeader(out);
+                for (int i=0;i<records.size();i++)
+                {
+                    byte[] record=(byte[])records.get(i);
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+                for (int i=0;_removed!=null && i<_removed.size();i++)
+                    writeRemove(out,(String)_removed.get(i));
+            }
+            finally
+            {
+                _removed=null;
+                out.close();
+            }
+
+            if (_file.exists() && !_file.delete())
+                throw new IOException("Cannot replace "+_file);
+            if (!tmp.renameTo(_file))
+                throw new IOException("Cannot rename "+tmp+" to "+_file);
+            _compactLength=2*_file.length()+65536;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Append session records to the journal.
+     * @param records Session records from {@link #encode(HashSessionManager.Session)}
+     * @return The number of bytes appended.
+     * @throws IOException
+     */
+    public synchronized long append(List records) throws IOException
+    {
+        DataOutputStream out=open();
+        long bytes=0;
+        for (int i=0;i<records.size();i++)
+        {
+            byte[] record=(byte[])records.get(i);
+            out.writeInt(record.length);
+            out.write(record);
+            bytes+=4+record.length;
+        }
+        out.flush();
+        return bytes;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return True if the journal has grown to more than twice its size
+     * when it was last written or restored, so that it should be written
+     * again to discard replaced records.
+     */
+    public synchronized boolean isCompactable()
+    {
+        return _file.length()>_compactLength;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Append the removal of a session to the journal.
+     * @param clusterId The ID of the removed session.
+     * @throws IOException
+     */
+    public synchronized void appendRemove(String clusterId) throws IOException
+    {
+        if (_removed!=null)
+            _removed.add(clusterId);
+        DataOutputStream out=open();
+        writeRemove(out,clusterId);
+        out.flush();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Close the journal file if it is open for appending.
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException
+    {
+        if (_out!=null)
+        {
+            DataOutputStream out=_out;
+            _out=null;
+            out.close();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Delete the journal.
+     * @throws IOException
+     */
+    public synchronized void delete() throws IOException
+    {
+        close();
+        if (_file.exists() && !_file.delete())
+            Log.warn("Unable to delete "+_file);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Restore the sessions in the journal.
+     * The records are decoded in parallel and the latest record of each
+     * session is returned.
+     * @param manager The manager of the restored sessions.
+     * @return The restored sessions, keyed by cluster ID.
+     * @throws IOException
+     */
+    public synchronized Map restore(final HashSessionManager manager) throws IOException
+    {
+        close();
+        final Map sessions=new HashMap();
+        _compactLength=2*_file.length()+65536;
+        if (!_file.exists())
+            return sessions;
+
+        FileInputStream in=new FileInputStream(_file);
+        try
+        {
+            FileChannel channel=in.getChannel();
+            final ByteBuffer buffer=channel.map(FileChannel.MapMode.READ_ONLY,0,channel.size());
+
+            // Find the records
+            int[] offsets=new int[1024];
+            int records=0;
+            int end=buffer.limit();
+            int pos=0;
+            while (pos+4<=end)
+            {
+                int length=buffer.getInt(pos);
+                if (length<=0 || pos+4+length>end)
+                {
+                    Log.warn("Ignoring truncated journal record at "+pos+" in "+_file);
+                    break;
+                }
+                if (records==offsets.length)
+                {
+                    int[] o=new int[records*2];
+                    System.arraycopy(offsets,0,o,0,records);
+                    offsets=o;
+                }
+                offsets[records++]=pos;
+                pos+=4+length;
+            }
+            if (records==0)
+                return sessions;
+
+            // The header names the serializers of the journal
+            DataInputStream header=new DataInputStream(new ByteArrayInputStream(read(buffer,offsets[0])));
+            if (header.readInt()!=MAGIC)
+                throw new IOException("Not a session journal: "+_file);
+            final Serializer[] serializers=new Serializer[header.readByte()];
+            for (int i=0;i<serializers.length;i++)
+            {
+                String name=header.readUTF();
+                for (int s=0;serializers[i]==null && s<_serializers.length;s++)
+                    if (_serializers[s].getClass().getName().equals(name))
+                        serializers[i]=_serializers[s];
+                if (serializers[i]==null)
+                    Log.warn("No serializer "+name+" for "+_file);
+            }
+
+            // Decode the records in parallel
+            final int[] record_offsets=offsets;
+            final Object[] results=new Object[records];
+            int threads=Math.min(_restoreThreads,1+records/1024);
+            Thread[] decoders=new Thread[threads];
+            for (int t=0;t<threads;t++)
+            {
+                final int from=1+(records-1)*t/threads;
+                final int to=1+(records-1)*(t+1)/threads;
+                decoders[t]=new Thread("SessionJournal-"+t)
+                {
+                    public void run()
+                    {
+                        for (int r=from;r<to;r++)
+                        {
+                            try
+                            {
+                                results[r]=decode(manager,serializers,read(buffer,record_offsets[r]));
+                            }
+                            catch(Exception e)
+                            {
+                                Log.warn("Problem restoring session record "+r+" of "+_file,e);
+                            }
+                        }
+                    }
+                };
+                decoders[t].start();
+            }
+            for (int t=0;t<threads;t++)
+            {
+                try
+                {
+                    decoders[t].join();
+                }
+                catch(InterruptedException e)
+                {
+                    throw new IOException("Interrupted restoring "+_file);
+                }
+            }
+
+            // replay the records in order
+            for (int r=1;r<records;r++)
+            {
+                Object result=results[r];
+                if (result instanceof HashSessionManager.Session)
+                {
+                    HashSessionManager.Session session=(HashSessionManager.Session)result;
+                    sessions.put(session.getClusterId(),session);
+                }
+                else if (result instanceof String)
+                    sessions.remove(result);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        return sessions;
+    }
+
+    /* ------------------------------------------------------------ */
+    private DataOutputStream open() throws IOException
+    {
+        if (_out==null)
+        {
+            boolean exists=_file.exists() && _file.length()>0;
+            _out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(_file,exists),65536));
+            if (!exists)
+                writeHeader(_out);
+        }
+        return _out;
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writeHeader(DataOutputStream out) throws IOException
+    {
+        _record.reset();
+        _recordOut.writeInt(MAGIC);
+        _recordOut.writeByte(_serializers.length);
+        for (int i=0;i<_serializers.length;i++)
+            _recordOut.writeUTF(_serializers[i].getClass().getName());
+        writeRecord(out);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Encode a session record.
+     * Only the session is locked while it is encoded, so sessions may be encoded
+     * while records are appended to the journal.
+     * @param session The session to encode
+     * @return The session record.
+     * @throws IOException
+     */
+    public byte[] encode(HashSessionManager.Session session) throws IOException
+    {
+        ByteArrayOutputStream record=new ByteArrayOutputStream(256);
+        DataOutputStream out=new DataOutputStream(record);
+        synchronized (session)
+        {
+            out.writeByte(SESSION);
+            out.writeUTF(session.getClusterId());
+            out.writeLong(session._created);
+            out.writeLong(session._cookieSet);
+            out.writeLong(session._accessed);
+            out.writeLong(session._lastAccessed);
+            out.writeLong(session._maxIdleMs);
+
+            Map values=session._values;
+            if (values instanceof Attributes && ((Attributes)values)._map==null)
+                writeUndecoded(out,(Attributes)values);
+            else if (values==null)
+                out.writeInt(0);
+            else
+            {
+                out.writeInt(values.size());
+                for (Iterator i=values.entrySet().iterator();i.hasNext();)
+                {
+                    Map.Entry entry=(Map.Entry)i.next();
+                    out.writeUTF((String)entry.getKey());
+                    writeValue(out,entry.getValue());
+                }
+            }
+        }
+        out.flush();
+        return record.toByteArray();
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Write attributes that have not been decoded.
+     * The attributes are written as they were read, except that the serializer
+     * index of each value is remapped from the serializers of the journal they
+     * were read from to the serializers of this journal.  A value whose serializer
+     * is not used by this journal is decoded and written again.
+     * @param out The session record
+     * @param attributes The undecoded attributes
+     * @throws IOException
+     */
+    private void writeUndecoded(DataOutputStream out, Attributes attributes) throws IOException
+    {
+        Serializer[] serializers=attributes._serializers;
+        int[] index=new int[serializers.length];
+        boolean remap=false;
+        for (int i=0;i<serializers.length;i++)
+        {
+            index[i]=-1;
+            for (int s=0;index[i]<0 && serializers[i]!=null && s<_serializers.length;s++)
+                if (_serializers[s].getClass().getName().equals(serializers[i].getClass().getName()))
+                    index[i]=s;
+            remap|=index[i]!=i;
+        }
+        
+        byte[] data=attributes._data;
+        int offset=attributes._offset;
+        if (!remap)
+        {
+            out.write(data,offset,data.length-offset);
+            return;
+        }
+        
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(data,offset,data.length-offset));
+        ByteArrayOutputStream buf=new ByteArrayOutputStream(data.length-offset);
+        DataOutputStream values=new DataOutputStream(buf);
+        int size=in.readInt();
+        int written=0;
+        for (int i=0;i<size;i++)
+        {
+            String name=in.readUTF();
+            byte type=in.readByte();
+            if (type!=SERIALIZER)
+            {
+                values.writeUTF(name);
+                values.writeByte(type);
+                copyValue(in,values,type);
+                written++;
+                continue;
+            }
+            
+            int s=in.readByte();
+            byte[] bytes=new byte[in.readInt()];
+            in.readFully(bytes);
+            if (index[s]>=0)
+            {
+                values.writeUTF(name);
+                values.writeByte(SERIALIZER);
+                values.writeByte(index[s]);
+                values.writeInt(bytes.length);
+                values.write(bytes);
+                written++;
+            }
+            else if (serializers[s]!=null)
+            {
+                try
+                {
+                    Object value=serializers[s].deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+                    ByteArrayOutputStream vbuf=new ByteArrayOutputStream();
+                    DataOutputStream vout=new DataOutputStream(vbuf);
+                    writeValue(vout,value);
+                    vout.flush();
+                    values.writeUTF(name);
+                    vbuf.writeTo(values);
+                    written++;
+                }
+                catch(IOException e)
+                {
+                    Log.warn("Problem saving attribute "+name+" of session "+attributes._session.getClusterId(),e);
+                }
+            }
+            else
+                Log.warn("No serializer to save attribute "+name+" of session "+attributes._session.getClusterId());
+        }
+        values.flush();
+        out.writeInt(written);
+        buf.writeTo(out);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Copy an encoded value that does not use a serializer.
+     */
+    private static void copyValue(DataInputStream in, DataOutputStream out, byte type) throws IOException
+    {
+        int length;
+        switch(type)
+        {
+            case STRING: 
+                out.writeUTF(in.readUTF());
+                return;
+            case BOOLEAN: case BYTE: length=1; break;
+            case SHORT: case CHARACTER: length=2; break;
+            case INTEGER: case FLOAT: length=4; break;
+            case LONG: case DOUBLE: length=8; break;
+            case BYTES: case OBJECT:
+                length=in.readInt();
+                out.writeInt(length);
+                break;
+            default:
+                throw new IOException("Unknown attribute type "+type);
+        }
+        byte[] bytes=new byte[length];
+        in.readFully(bytes);
+        out.write(bytes);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writeRemove(DataOutputStream out, String clusterId) throws IOException
+    {
+        _record.reset();
+        _recordOut.writeByte(REMOVE);
+        _recordOut.writeUTF(clusterId);
+        writeRecord(out);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writeRecord(DataOutputStream out) throws IOException
+    {
+        _recordOut.flush();
+        out.writeInt(_record.size());
+        _record.writeTo(out);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void writeValue(DataOutputStream out, Object value) throws IOException
+    {
+        if (value instanceof String && ((String)value).length()<=0xffff/3)
+        {
+            out.writeByte(STRING);
+            out.writeUTF((String)value);
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt(((Integer)value).intValue());
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong(((Long)value).longValue());
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean)value).booleanValue());
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double)value).doubleValue());
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat(((Float)value).floatValue());
+        }
+        else if (value instanceof Short)
+        {
+            out.writeByte(SHORT);
+            out.writeShort(((Short)value).shortValue());
+        }
+        else if (value instanceof Byte)
+        {
+            out.writeByte(BYTE);
+            out.writeByte(((Byte)value).byteValue());
+        }
+        else if (value instanceof Character)
+        {
+            out.writeByte(CHARACTER);
+            out.writeChar(((Character)value).charValue());
+        }
+        else if (value instanceof byte[])
+        {
+            byte[] bytes=(byte[])value;
+            out.writeByte(BYTES);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+        else
+        {
+            // Serialized values are length prefixed, so they can be skipped if they cannot be read
+            ByteArrayOutputStream buf=new ByteArrayOutputStream();
+            int s=0;
+            while (s<_serializers.length && !_serializers[s].canSerialize(value))
+                s++;
+            if (s<_serializers.length)
+            {
+                DataOutputStream dout=new DataOutputStream(buf);
+                _serializers[s].serialize(value,dout);
+                dout.flush();
+                out.writeByte(SERIALIZER);
+                out.writeByte(s);
+            }
+            else
+            {
+                ObjectOutputStream oout=new ObjectOutputStream(buf);
+                oout.writeObject(value);
+                oout.flush();
+                out.writeByte(OBJECT);
+            }
+            out.writeInt(buf.size());
+            buf.writeTo(out);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static byte[] read(ByteBuffer buffer, int offset)
+    {
+        ByteBuffer record=buffer.duplicate();
+        record.position(offset);
+        byte[] data=new byte[record.getInt()];
+        record.get(data);
+        return data;
+    }
+
+    /* ------------------------------------------------------------ */
+    private static Object decode(HashSessionManager manager, Serializer[] serializers, byte[] data) throws IOException
+    {
+        ByteArrayInputStream bin=new ByteArrayInputStream(data);
+        DataInputStream in=new DataInputStream(bin);
+        switch(in.readByte())
+        {
+            case REMOVE:
+                return in.readUTF();
+
+            case SESSION:
+            {
+                String clusterId=in.readUTF();
+                long created=in.readLong();
+                HashSessionManager.Session session=manager.new Session(created,clusterId);
+                session._cookieSet=in.readLong();
+                session._accessed=in.readLong();
+                session._lastAccessed=in.readLong();
+                session._maxIdleMs=in.readLong();
+
+                // The attributes are decoded when first accessed
+                int offset=data.length-bin.available();
+                if (in.readInt()==0)
+                    session.initValues();
+                else
+                    session._values=new Attributes(manager,session,serializers,data,offset);
+                return session;
+            }
+
+            default:
+                throw new IOException("Unknown session journal record");
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private static Object readValue(HashSessionManager manager, DataInputStream in, Serializer[] serializers) throws IOException, ClassNotFoundException
+    {
+        byte type=in.readByte();
+        switch(type)
+        {
+            case STRING: return in.readUTF();
+            case INTEGER: return new Integer(in.readInt());
+            case LONG: return new Long(in.readLong());
+            case BOOLEAN: return in.readBoolean()?Boolean.TRUE:Boolean.FALSE;
+            case DOUBLE: return new Double(in.readDouble());
+            case FLOAT: return new Float(in.readFloat());
+            case SHORT: return new Short(in.readShort());
+            case BYTE: return new Byte(in.readByte());
+            case CHARACTER: return new Character(in.readChar());
+            case BYTES:
+            {
+                byte[] bytes=new byte[in.readInt()];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case SERIALIZER:
+            {
+                Serializer serializer=serializers[in.readByte()];
+                byte[] bytes=new byte[in.readInt()];
+                in.readFully(bytes);
+                if (serializer==null)
+                    throw new IOException("No serializer");
+                return serializer.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+            }
+            case OBJECT:
+            {
+                byte[] bytes=new byte[in.readInt()];
+                in.readFully(bytes);
+                return manager.new ClassLoadingObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+            }
+            default:
+                throw new IOException("Unknown attribute type "+type);
+        }
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Serializer of session attribute values.
+     * The serializer is identified in the journal by its class name.
+     */
+    public interface Serializer
+    {
+        /* ------------------------------------------------------------ */
+        /**
+         * @param value An attribute value
+         * @return True if this serializer can serialize the value
+         */
+        public boolean canSerialize(Object value);
+
+        /* ------------------------------------------------------------ */
+        public void serialize(Object value, DataOutputStream out) throws IOException;
+
+        /* ------------------------------------------------------------ */
+        public Object deserialize(DataInputStream in) throws IOException;
+    }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Session attributes that are decoded when first accessed.
+     * As the attributes are accessed by the synchronized methods of the session,
+     * they are decoded with the context class loader of the first request to
+     * access them.
+     */
+    static class Attributes extends AbstractMap
+    {
+        private final HashSessionManager _manager;
+        private final HashSessionManager.Session _session;
+        private final Serializer[] _serializers;
+        private byte[] _data;
+        private int _offset;
+        private Map _map;
+        private boolean _activate;
+
+        /* ------------------------------------------------------------ */
+        Attributes(HashSessionManager manager, HashSessionManager.Session session, Serializer[] serializers, byte[] data, int offset)
+        {
+            _manager=manager;
+            _session=session;
+            _serializers=serializers;
+            _data=data;
+            _offset=offset;
+        }
+
+        /* ------------------------------------------------------------ */
+        /**
+         * @return True if the attributes have been decoded
+         */
+        boolean isDecoded()
+        {
+            return _map!=null;
+        }
+
+        /* ------------------------------------------------------------ */
+        /** Notify the activation listeners of the session once the attributes
+         * are decoded.
+         */
+        void activate()
+        {
+            _activate=true;
+        }
+
+        /* ------------------------------------------------------------ */
+        private Map map()
+        {
+            if (_map==null)
+            {
+                DataInputStream in=new DataInputStream(new ByteArrayInputStream(_data,_offset,_data.length-_offset));
+                Map map=_session.newAttributeMap();
+                String name=null;
+                try
+                {
+                    int size=in.readInt();
+                    for (int i=0;i<size;i++)
+                    {
+                        name=in.readUTF();
+                        try
+                        {
+                            map.put(name,readValue(_manager,in,_serializers));
+                        }
+                        catch(ClassNotFoundException e)
+                        {
+                            Log.warn("Problem restoring attribute "+name+" of session "+_session.getClusterId(),e);
+                        }
+                        catch(IOException e)
+                        {
+                            Log.warn("Problem restoring attribute "+name+" of session "+_session.getClusterId(),e);
+                        }
+                    }
+                }
+                catch(IOException e)
+                {
+                    Log.warn("Problem restoring session "+_session.getClusterId(),e);
+                }
+                _map=map;
+                _data=null;
+
+                if (_activate)
+                {
+                    _activate=false;
+                    Object[] values=_map.values().toArray();
+                    for (int i=0;i<values.length;i++)
+                    {
+                        if (values[i] instanceof HttpSessionActivationListener)
+                            ((HttpSessionActivationListener)values[i]).sessionDidActivate(new HttpSessionEvent(_session));
+                    }
+                }
+            }
+            return _map;
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object get(Object key)
+        {
+            return map().get(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public boolean containsKey(Object key)
+        {
+            return map().containsKey(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object put(Object key, Object value)
+        {
+            return map().put(key,value);
+        }
+
+        /* ------------------------------------------------------------ */
+        public Object remove(Object key)
+        {
+            return map().remove(key);
+        }
+
+        /* ------------------------------------------------------------ */
+        public int size()
+        {
+            if (_map==null)
+                return ((_data[_offset]&0xff)<<24)|((_data[_offset+1]&0xff)<<16)|((_data[_offset+2]&0xff)<<8)|(_data[_offset+3]&0xff);
+            return _map.size();
+        }
+
+        /* ------------------------------------------------------------ */
+        public void clear()
+        {
+            map().clear();
+        }
+
+        /* ------------------------------------------------------------ */
+        public Set keySet()
+        {
+            return map().keySet();
+        }
+
+        /* ------------------------------------------------------------ */
+        public Collection values()
+        {
+            return map().values();
+        }
+
+        /* ------------------------------------------------------------ */
+        public Set entrySet()
+        {
+            return map().entrySet();
+        }
+    }
+}
@@ -15,13 +15,25 @@
 
 package org.mortbay.jetty.webapp;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Enumeration;
 import java.util.EventListener;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.jar.JarFile;
 import java.util.regex.Pattern;
@@ -42,6 +54,12 @@ import org.mortbay.xml.XmlParser;
  * The "org.mortbay.jetty.webapp.NoTLDJarPattern" context init parameter, if set, is used as a 
  * regular expression to match commonly known jar files known not to contain TLD files (and 
  * thus not needed to be scanned).
+ * <p>
+ * The names of the TLDs found in each jar are cached in the {@link #__TLD_CACHE} file of the 
+ * webapp temp directory, keyed by the path, size and modification time of the jar, so that
+ * only new or changed jars are scanned when the webapp is redeployed or the server restarted 
+ * with a persistent temp directory.  Jars that are not cached are scanned in parallel by up 
+ * to the number of available processors threads.
  * 
  * &lt;bile&gt;Scanning for TLDs is total rubbish special case for JSPs! If there was a general use-case for web app
  * frameworks to register listeners directly, then a generic mechanism could have been added to the servlet
@@ -55,7 +73,12 @@ import org.mortbay.xml.XmlParser;
  */
 public class TagLibConfiguration implements Configuration
 {
+    /** The name of the file in the webapp temp directory that caches the TLDs found in jars */
+    public final static String __TLD_CACHE="tld-scan.cache";
+    private final static int __TLD_CACHE_MAGIC=0x544C4443;
+    
     WebAppContext _context;
+    int _jarsScanned;
     
     /* ------------------------------------------------------------ */
     public void setWebAppContext(WebAppContext context)
@@ -138,21 +161,23 @@ public class TagLibConfiguration implements Configuration
  
         ClassLoader loader = Thread.currentThread().getContextClassLoader();
         boolean parent=false;
+        List files=new ArrayList();
+        Map urls=new HashMap();
         
         while (loader!=null)
         {
             if (loader instanceof URLClassLoader)
             {
-                URL[] urls = ((URLClassLoader)loader).getURLs();
+                URL[] loader_urls = ((URLClassLoader)loader).getURLs();
 
-                if (urls!=null)
+                if (loader_urls!=null)
                 {
-                    for (int i=0;i<urls.length;i++)
+                    for (int i=0;i<loader_urls.length;i++)
                     {   
-                        if (urls[i].toString().toLowerCase().endsWith(".jar"))
+                        if (loader_urls[i].toString().toLowerCase().endsWith(".jar"))
                         {
 
-                            String jar = urls[i].toString();
+                            String jar = loader_urls[i].toString();
                             int slash=jar.lastIndexOf('/');
                             jar=jar.substring(slash+1);
 
@@ -162,40 +187,11 @@ public class TagLibConfiguration implements Configuration
                                 continue;
                             jars.add(jar);
                             
-                            Log.debug("TLD search of {}",urls[i]);
-                            
-                            File file=Resource.newResource(urls[i]).getFile();
-                            if (file==null || !file.exists() || !file.canRead())
+                            File file=Resource.newResource(loader_urls[i]).getFile();
+                            if (file==null || !file.exists() || !file.canRead() || urls.containsKey(file))
                                 continue;
-                            
-                            JarFile jarfile = null;
-                            try
-                            {
-                                jarfile = new JarFile(file);
-                                Enumeration e = jarfile.entries();
-                                while (e.hasMoreElements())
-                                {
-                                    ZipEntry entry = (ZipEntry)e.nextElement();
-                                    String name = entry.getName();
-                                    if (name.startsWith("META-INF/") && name.toLowerCase().endsWith(".tld"))
-                                    {
-                                        Resource tld=Resource.newResource("jar:"+urls[i]+"!/"+name);
-                                        tlds.add(tld);
-                                        Log.debug("TLD found {}",tld);
-                                    }
-                                }
-                            }
-                            catch (Exception e)
-                            {
-                                Log.warn("Failed to read file: " + file, e); 
-                            }
-                            finally
-                            {
-                                if (jarfile != null)
-                                {
-                                    jarfile.close();
-                                }
-                            }   
+                            files.add(file);
+                            urls.put(file,loader_urls[i]);
                         }
                     }
                 }
@@ -206,6 +202,19 @@ public class TagLibConfiguration implements Configuration
             
         }
         
+        Map jar_tlds=scanJars(files);
+        for (int i=0;i<files.size();i++)
+        {
+            File file=(File)files.get(i);
+            String[] names=(String[])jar_tlds.get(file);
+            for (int j=0;names!=null && j<names.length;j++)
+            {
+                Resource tld=Resource.newResource("jar:"+urls.get(file)+"!/"+names[j]);
+                tlds.add(tld);
+                Log.debug("TLD found {}",tld);
+            }
+        }
+        
         // Create a TLD parser
         XmlParser parser = new XmlParser(false);
         parser.redirectEntity("web-jsptaglib_1_1.dtd",Loader.getResource(TagLibConfiguration.class,"javax/servlet/jsp/resources/web-jsptaglibrary_1_1.dtd", false));
@@ -286,6 +295,245 @@ public class TagLibConfiguration implements Configuration
     public void deconfigureWebApp() throws Exception
     {
     }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of jars scanned, rather than found in the TLD cache, by the last scan.
+     */
+    int getJarsScanned()
+    {
+        return _jarsScanned;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Find the TLDs in jars.
+     * Jars that are not in the TLD cache, or that have changed since they
+     * were cached, are scanned in parallel and the cache is updated.
+     * @param files The jar files
+     * @return A map of jar File to an array of the names of TLD entries in it.
+     */
+    Map scanJars(List files) throws Exception
+    {
+        File tmp=_context.getTempDirectory();
+        File cache_file=tmp==null?null:new File(tmp,__TLD_CACHE);
+        Map cache=loadCache(cache_file);
+        
+        final Map results=new HashMap();
+        final List uncached=new ArrayList();
+        for (int i=0;i<files.size();i++)
+        {
+            File file=(File)files.get(i);
+            JarTlds cached=(JarTlds)cache.get(file.getPath());
+            if (cached!=null && cached._length==file.length() && cached._lastModified==file.lastModified())
+                results.put(file,cached);
+            else
+                uncached.add(file);
+        }
+        
+        _jarsScanned=uncached.size();
+        if (uncached.size()>0)
+        {
+            Runnable scanner = new Runnable()
+            {
+                public void run()
+                {
+                    while (true)
+                    {
+                        File file;
+                        synchronized (uncached)
+                        {
+                            if (uncached.isEmpty())
+                                return;
+                            file=(File)uncached.remove(uncached.size()-1);
+                        }
+                        
+                        Log.debug("TLD search of {}",file);
+                        JarTlds jar_tlds=scanJar(file);
+                        if (jar_tlds!=null)
+                        {
+                            synchronized (results)
+                            {
+                                results.put(file,jar_tlds);
+                            }
+                        }
+                    }
+                }
+            };
+            
+            int threads=Math.min(uncached.size(),Runtime.getRuntime().availableProcessors());
+            Thread[] scanners=new Thread[threads-1];
+            for (int i=0;i<scanners.length;i++)
+            {
+                scanners[i]=new Thread(scanner,"TLDScanner-"+i);
+                scanners[i].setDaemon(true);
+                scanners[i].start();
+            }
+            scanner.run();
+            for (int i=0;i<scanners.length;i++)
+                scanners[i].join();
+            
+            saveCache(cache_file,results.values());
+        }
+        
+        Map names=new HashMap();
+        for (Iterator i=results.entrySet().iterator();i.hasNext();)
+        {
+            Map.Entry entry=(Map.Entry)i.next();
+            names.put(entry.getKey(),((JarTlds)entry.getValue())._tlds);
+        }
+        return names;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Scan a jar for TLDs.
+     * @param file The jar file
+     * @return The TLDs in the jar, or null if it could not be read.
+     */
+    private static JarTlds scanJar(File file)
+    {
+        JarTlds jar_tlds=new JarTlds(file.getPath(),file.length(),file.lastModified());
+        JarFile jarfile = null;
+        try
+        {
+            List names=new ArrayList();
+            jarfile = new JarFile(file);
+            Enumeration e = jarfile.entries();
+            while (e.hasMoreElements())
+            {
+                ZipEntry entry = (ZipEntry)e.nextElement();
+                String name = entry.getName();
+                if (name.startsWith("META-INF/") && name.toLowerCase().endsWith(".tld"))
+                    names.add(name);
+            }
+            jar_tlds._tlds=(String[])names.toArray(new String[names.size()]);
+            return jar_tlds;
+        }
+        catch (Exception e)
+        {
+            Log.warn("Failed to read file: " + file, e); 
+            return null;
+        }
+        finally
+        {
+            if (jarfile != null)
+            {
+                try
+                {
+                    jarfile.close();
+                }
+                catch (IOException e)
+                {
+                    Log.ignore(e);
+                }
+            }
+        }   
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Load the TLD cache.
+     * @param file The cache file, which may be null or not exist.
+     * @return A map of jar path to {@link JarTlds}
+     */
+    private static Map loadCache(File file)
+    {
+        Map cache=new HashMap();
+        if (file==null || !file.exists())
+            return cache;
+        
+        try
+        {
+            DataInputStream in=new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt()!=__TLD_CACHE_MAGIC)
+                    return cache;
+                int jars=in.readInt();
+                for (int i=0;i<jars;i++)
+                {
+                    JarTlds jar_tlds=new JarTlds(in.readUTF(),in.readLong(),in.readLong());
+                    jar_tlds._tlds=new String[in.readInt()];
+                    for (int t=0;t<jar_tlds._tlds.length;t++)
+                        jar_tlds._tlds[t]=in.readUTF();
+                    cache.put(jar_tlds._path,jar_tlds);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.debug("Ignoring TLD cache "+file,e);
+            cache.clear();
+        }
+        return cache;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Save the TLD cache.
+     * The cache is written to a temporary file that then replaces the cache.
+     * @param file The cache file, or null if there is no temp directory.
+     * @param jars The {@link JarTlds} of the scanned jars.
+     */
+    private static void saveCache(File file, Collection jars)
+    {
+        if (file==null)
+            return;
+        
+        File tmp=new File(file.getParentFile(),file.getName()+".tmp");
+        try
+        {
+            DataOutputStream out=new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try
+            {
+                out.writeInt(__TLD_CACHE_MAGIC);
+                out.writeInt(jars.size());
+                for (Iterator i=jars.iterator();i.hasNext();)
+                {
+                    JarTlds jar_tlds=(JarTlds)i.next();
+                    out.writeUTF(jar_tlds._path);
+                    out.writeLong(jar_tlds._length);
+                    out.writeLong(jar_tlds._lastModified);
+                    out.writeInt(jar_tlds._tlds.length);
+                    for (int t=0;t<jar_tlds._tlds.length;t++)
+                        out.writeUTF(jar_tlds._tlds[t]);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            
+            file.delete();
+            if (!tmp.renameTo(file))
+                Log.warn("Cannot rename "+tmp+" to "+file);
+        }
+        catch (IOException e)
+        {
+            Log.warn("Failed to write TLD cache "+file,e);
+            tmp.delete();
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** The TLDs found in a jar.
+     */
+    private static class JarTlds
+    {
+        final String _path;
+        final long _length;
+        final long _lastModified;
+        String[] _tlds;
+        
+        JarTlds(String path, long length, long lastModified)
+        {
+            _path=path;
+            _length=length;
+            _lastModified=lastModified;
+        }
+    }
     
 
 }
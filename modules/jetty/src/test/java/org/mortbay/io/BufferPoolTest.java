@@ -0,0 +1,138 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.io;
+
+import junit.framework.TestCase;
+
+/* ------------------------------------------------------------------------------- */
+/**
+ *
+ * @author gregw
+ */
+public class BufferPoolTest extends TestCase
+{
+    BufferPool pool;
+
+    /* ------------------------------------------------------------ */
+    protected void setUp() throws Exception
+    {
+        pool=new BufferPool(1024,16*1024,new int[]{6*1024},1024*1024)
+        {
+            protected Buffer newBuffer(int size)
+            {
+                return new ByteArrayBuffer(size);
+            }
+        };
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testSizeClasses()
+    {
+        int[] classes=pool.getSizeClasses();
+        assertEquals(6,classes.length);
+        assertEquals(1024,classes[0]);
+        assertEquals(4096,classes[2]);
+        assertEquals(6144,classes[3]);
+        assertEquals(16384,classes[5]);
+
+        assertEquals(1024,pool.getBuffer(10).capacity());
+        assertEquals(4096,pool.getBuffer(4096).capacity());
+        assertEquals(6144,pool.getBuffer(5000).capacity());
+        assertEquals(8192,pool.getBuffer(6145).capacity());
+        assertEquals(20000,pool.getBuffer(20000).capacity());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testPooling()
+    {
+        Buffer b1=pool.getBuffer(4096);
+        Buffer b2=pool.getBuffer(4096);
+        assertEquals(2,pool.getMisses());
+        assertEquals(2,pool.getAllocations());
+        assertEquals(0,pool.getHits());
+
+        b1.put((byte)'x');
+        pool.returnBuffer(b1);
+        pool.returnBuffer(b2);
+        assertEquals(8192,pool.getRetainedBytes());
+
+        Buffer b3=pool.getBuffer(3000);
+        assertTrue(b3==b1 || b3==b2);
+        assertEquals(0,b3.length());
+        assertEquals(1,pool.getHits());
+        assertEquals(4096,pool.getRetainedBytes());
+
+        // Buffers that are not of a size class are not retained
+        pool.returnBuffer(new ByteArrayBuffer(3000));
+        pool.returnBuffer(pool.getBuffer(20000));
+        assertEquals(4096,pool.getRetainedBytes());
+        assertEquals(2,pool.getMisses());
+        assertEquals(3,pool.getAllocations());
+
+        pool.statsReset();
+        assertEquals(0,pool.getHits());
+        pool.clear();
+        assertEquals(0,pool.getRetainedBytes());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testMaxRetainedBytes()
+    {
+        Buffer[] buffers=new Buffer[200];
+        for (int i=0;i<buffers.length;i++)
+            buffers[i]=pool.getBuffer(16*1024);
+        for (int i=0;i<buffers.length;i++)
+            pool.returnBuffer(buffers[i]);
+
+        assertTrue(pool.getRetainedBytes()>0);
+        assertTrue(pool.getRetainedBytes()<=pool.getMaxRetainedBytes());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testConcurrentAccess() throws Exception
+    {
+        final Throwable[] failure=new Throwable[1];
+        Thread[] threads=new Thread[8];
+        for (int t=0;t<threads.length;t++)
+        {
+            threads[t]=new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i=0;i<10000;i++)
+                        {
+                            Buffer b=pool.getBuffer(1024<<(i%5));
+                            b.put((byte)i);
+                            pool.returnBuffer(b);
+                        }
+                    }
+                    catch(Throwable th)
+                    {
+                        failure[0]=th;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t=0;t<threads.length;t++)
+            threads[t].join();
+
+        assertTrue(failure[0]==null);
+        assertEquals(80000,pool.getHits()+pool.getMisses());
+        assertTrue(pool.getRetainedBytes()<=pool.getMaxRetainedBytes());
+    }
+}
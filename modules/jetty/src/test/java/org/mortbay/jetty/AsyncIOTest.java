@@ -0,0 +1,241 @@
+// ========================================================================
+// Copyright 2011 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+package org.mortbay.jetty;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+import org.mortbay.io.nio.SelectChannelEndPoint;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.util.IO;
+import org.mortbay.util.ajax.ContinuationSupport;
+
+/**
+ * Test threadless waits for request content and response flushes.
+ */
+public class AsyncIOTest extends TestCase
+{
+    protected Server _server = new Server();
+    protected SelectChannelConnector _connector;
+    protected QueuedThreadPool _threads=new QueuedThreadPool();
+    protected AsyncHandler _handler=new AsyncHandler();
+
+    protected void setUp() throws Exception
+    {
+        _threads.setMaxThreads(8);
+        _server.setThreadPool(_threads);
+        _connector = new SelectChannelConnector();
+        _server.setConnectors(new Connector[]{ _connector });
+        _server.setHandler(_handler);
+        _server.start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        _server.stop();
+    }
+
+    public void testSlowUploads() throws Exception
+    {
+        // more slow uploads than there are threads
+        int clients=20;
+        Socket[] sockets=new Socket[clients];
+        for (int i=0;i<clients;i++)
+        {
+            sockets[i]=new Socket("localhost",_connector.getLocalPort());
+            sockets[i].setSoTimeout(10000);
+            OutputStream out=sockets[i].getOutputStream();
+            out.write(("POST /upload HTTP/1.0\r\nContent-Length: 10\r\n\r\n01234").getBytes());
+            out.flush();
+        }
+
+        // no thread waits for the rest of the content
+        for (int i=0;i<50 && _handler._suspends<clients;i++)
+            Thread.sleep(100);
+        assertTrue(_handler._suspends>=clients);
+        assertEquals(0,_handler._handling);
+
+        for (int i=0;i<clients;i++)
+        {
+            OutputStream out=sockets[i].getOutputStream();
+            out.write("56789".getBytes());
+            out.flush();
+        }
+        for (int i=0;i<clients;i++)
+        {
+            String response=IO.toString(sockets[i].getInputStream());
+            sockets[i].close();
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertTrue(response.endsWith("\r\n\r\n0123456789"));
+        }
+    }
+
+    public void testSlowDownload() throws Exception
+    {
+        Socket socket=new Socket("localhost",_connector.getLocalPort());
+        socket.setSoTimeout(10000);
+        socket.getOutputStream().write("GET /download HTTP/1.0\r\n\r\n".getBytes());
+        socket.getOutputStream().flush();
+
+        // the download waits without a thread for the client to read
+        for (int i=0;i<50 && _handler._suspends==0;i++)
+            Thread.sleep(100);
+        assertTrue(_handler._suspends>0);
+        assertEquals(0,_handler._handling);
+
+        InputStream in=socket.getInputStream();
+        ByteArrayOutputStream header=new ByteArrayOutputStream();
+        while (!header.toString().endsWith("\r\n\r\n"))
+            header.write(in.read());
+        assertTrue(header.toString().startsWith("HTTP/1.1 200"));
+        
+        long length=0;
+        byte[] buf=new byte[8192];
+        for (int len=in.read(buf);len>=0;len=in.read(buf))
+            length+=len;
+        socket.close();
+        assertEquals(AsyncHandler.DOWNLOAD,length);
+    }
+
+    public void testOnlyScheduledOpSelected() throws Exception
+    {
+        Socket socket=new Socket("localhost",_connector.getLocalPort());
+        socket.setSoTimeout(10000);
+        OutputStream out=socket.getOutputStream();
+        out.write(("POST /unflushed HTTP/1.0\r\nContent-Length: 10\r\n\r\n01234").getBytes());
+        out.flush();
+
+        for (int i=0;i<50 && _handler._suspends==0;i++)
+            Thread.sleep(100);
+        assertTrue(_handler._suspends>0);
+        
+        // the writable channel is not selected while waiting to read, so it cannot spin the selector 
+        Thread.sleep(200);
+        assertEquals(SelectionKey.OP_READ,_handler._endp.getSelectionKey().interestOps());
+
+        out.write("56789".getBytes());
+        out.flush();
+        String response=IO.toString(socket.getInputStream());
+        socket.close();
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.endsWith("\r\n\r\n0123456789"));
+    }
+
+    private static class AsyncHandler extends AbstractHandler
+    {
+        final static int DOWNLOAD=32*1024*1024;
+        volatile int _handling;
+        volatile int _suspends;
+        volatile SelectChannelEndPoint _endp;
+
+        public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+        {
+            Request base_request = (request instanceof Request)?((Request)request):HttpConnection.getCurrentConnection().getRequest();
+            SelectChannelConnector.RetryContinuation continuation =
+                (SelectChannelConnector.RetryContinuation)ContinuationSupport.getContinuation(request,null);
+            synchronized (this)
+            {
+                _handling++;
+            }
+            try
+            {
+                if ("/upload".equals(target) || "/unflushed".equals(target))
+                {
+                    if ("/unflushed".equals(target))
+                    {
+                        // as if a flush had not completed
+                        _endp=(SelectChannelEndPoint)HttpConnection.getCurrentConnection().getEndPoint();
+                        _endp.setWritable(false);
+                    }
+
+                    ByteArrayOutputStream content=(ByteArrayOutputStream)continuation.getObject();
+                    if (content==null)
+                    {
+                        content=new ByteArrayOutputStream();
+                        continuation.setObject(content);
+                    }
+
+                    InputStream in=request.getInputStream();
+                    byte[] buf=new byte[1024];
+                    while (content.size()<request.getContentLength())
+                    {
+                        if (!continuation.suspendUntilReadable(10000))
+                        {
+                            response.sendError(HttpServletResponse.SC_REQUEST_TIMEOUT);
+                            return;
+                        }
+                        int len=Math.min(buf.length,in.available());
+                        if (len>0)
+                        {
+                            len=in.read(buf,0,len);
+                            content.write(buf,0,len);
+                        }
+                    }
+
+                    response.setStatus(200);
+                    response.getOutputStream().write(content.toByteArray());
+                }
+                else
+                {
+                    int[] written=(int[])continuation.getObject();
+                    if (written==null)
+                    {
+                        written=new int[1];
+                        continuation.setObject(written);
+                        response.setStatus(200);
+                        response.setBufferSize(8192);
+                    }
+
+                    OutputStream out=response.getOutputStream();
+                    byte[] buf=new byte[4096];
+                    while (written[0]<DOWNLOAD)
+                    {
+                        if (!continuation.suspendUntilWritable(10000))
+                            throw new IOException("timeout");
+                        out.write(buf);
+                        written[0]+=buf.length;
+                    }
+                }
+                base_request.setHandled(true);
+            }
+            catch (RetryRequest r)
+            {
+                synchronized (this)
+                {
+                    _suspends++;
+                }
+                throw r;
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    _handling--;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+//========================================================================
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty;
+
+import javax.servlet.http.Cookie;
+
+import junit.framework.TestCase;
+
+import org.mortbay.io.Buffer;
+import org.mortbay.io.ByteArrayBuffer;
+import org.mortbay.io.View;
+
+public class CookieCacheTest extends TestCase
+{
+    /* ------------------------------------------------------------ */
+    public void testGetPut()
+    {
+        CookieCache cache = new CookieCache(4);
+        ByteArrayBuffer buffer = new ByteArrayBuffer("XXXname=valueXXX");
+        View header = new View(buffer,3,3,13,Buffer.READONLY);
+
+        assertNull(cache.get(header));
+        cache.put(header,new Cookie[]{new Cookie("name","value")});
+
+        // the key is copied
+        buffer.poke(3,"other".getBytes(),0,5);
+        assertNull(cache.get(header));
+
+        Cookie[] cookies = cache.get(new ByteArrayBuffer("name=value"));
+        assertEquals(1,cookies.length);
+        assertEquals("value",cookies[0].getValue());
+
+        // the cookies are copied
+        cookies[0].setValue("changed");
+        cookies = cache.get(new ByteArrayBuffer("name=value"));
+        assertEquals("value",cookies[0].getValue());
+
+        assertEquals(2,cache.getHits());
+        assertEquals(2,cache.getMisses());
+        cache.statsReset();
+        assertEquals(0,cache.getHits());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testEviction()
+    {
+        // a single stripe, so eviction does not depend on the number of CPUs
+        CookieCache cache = new CookieCache(16,1);
+        Cookie[] cookies = new Cookie[0];
+        for (int i=0;i<16;i++)
+            cache.put(new ByteArrayBuffer("n="+i),cookies);
+        assertEquals(16,cache.getSize());
+
+        // a hit entry gets a second chance
+        assertNotNull(cache.get(new ByteArrayBuffer("n=0")));
+        for (int i=16;i<20;i++)
+            cache.put(new ByteArrayBuffer("n="+i),cookies);
+        assertNotNull(cache.get(new ByteArrayBuffer("n=0")));
+        assertTrue(cache.getSize()<=16);
+
+        for (int i=20;i<100;i++)
+        {
+            cache.put(new ByteArrayBuffer("n="+i),cookies);
+            assertNotNull(cache.get(new ByteArrayBuffer("n="+i)));
+            assertTrue(cache.getSize()<=16);
+        }
+        assertNull(cache.get(new ByteArrayBuffer("n=15")));
+
+        cache.clear();
+        assertEquals(0,cache.getSize());
+        assertNull(cache.get(new ByteArrayBuffer("n=99")));
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testStripes()
+    {
+        CookieCache cache = new CookieCache(8,3);
+        assertEquals(4,cache.getStripes());
+
+        // short headers that differ only in the last byte are spread over the stripes
+        Cookie[] cookies = new Cookie[0];
+        for (int i=0;i<4;i++)
+            cache.put(new ByteArrayBuffer("n="+i),cookies);
+        assertEquals(4,cache.getSize());
+        for (int i=0;i<4;i++)
+            assertNotNull(cache.get(new ByteArrayBuffer("n="+i)));
+    }
+}
@@ -275,6 +275,63 @@ public class HttpFieldsTest extends TestCase
         assertEquals(false, e.hasMoreElements());
     }
     
+    public void testRecycle()
+        throws Exception
+    {
+        HttpFields header = new HttpFields();
+        ByteArrayBuffer raw = new ByteArrayBuffer("X-Custom-Header: some valueHost: localhost");
+        
+        for (int i=0;i<3;i++)
+        {
+            header.clear();
+            header.add(new View.CaseInsensitive(raw,-1,0,15,Buffer.READWRITE),new View(raw,-1,17,27,Buffer.READWRITE));
+            header.add(new View.CaseInsensitive(raw,-1,27,31,Buffer.READWRITE),new View(raw,-1,33,42,Buffer.READWRITE));
+            
+            assertEquals("some value",header.getStringField("x-custom-header"));
+            assertEquals("some value",header.getStringField(new ByteArrayBuffer("X-Custom-Header")));
+            assertEquals("localhost",header.getStringField(HttpHeaders.HOST_BUFFER));
+            assertNull(header.getStringField("X-Other"));
+        }
+        
+        // values are converted to strings only once
+        String value=header.getStringField(HttpHeaders.HOST_BUFFER);
+        header.clear();
+        header.add(new View.CaseInsensitive(raw,-1,27,31,Buffer.READWRITE),new View(raw,-1,33,42,Buffer.READWRITE));
+        assertSame(value,header.getStringField(HttpHeaders.HOST_BUFFER));
+        assertSame(value,header.getStringField("Host"));
+        assertNull(header.getStringField("X-Custom-Header"));
+        assertEquals(2,header._fields.size());
+        
+        // only the first message allocated fields
+        assertEquals(2,header.getFieldsAllocated());
+        assertEquals(5,header.getFieldsReused());
+    }
+    
+    public void testDiscard()
+        throws Exception
+    {
+        HttpFields header = new HttpFields();
+        
+        for (int i=0;i<HttpFields.__maxRecycledFields*3;i++)
+        {
+            header.clear();
+            header.add("X-Request-"+i, "value"+i);
+            header.add("X-Multi", "a"+i);
+            if (i%2==0)
+                header.add("X-Multi", "b"+i);
+            
+            assertEquals("value"+i,header.getStringField("X-Request-"+i));
+            assertNull(header.getStringField("X-Request-"+(i-1)));
+            Enumeration e = header.getValues("X-Multi");
+            assertEquals("a"+i,e.nextElement());
+            if (i%2==0)
+                assertEquals("b"+i,e.nextElement());
+            assertFalse(e.hasMoreElements());
+        }
+        
+        assertTrue(header._fields.size()<=HttpFields.__maxRecycledFields+3);
+    }
+    
     public void testDestroy()
         throws Exception
     {
@@ -461,6 +461,34 @@ public class HttpParserTest extends TestCase
 	assertTrue(messageCompleted);
     }
 
+    public void testReturnBuffers()
+        throws Exception
+    {
+        StringEndPoint io=new StringEndPoint();
+        io.setInput("GET /one HTTP/1.1\015\012Host: localhost\015\012\015\012");
+        ByteArrayBuffer buffer= new ByteArrayBuffer(4096);
+        SimpleBuffers buffers=new SimpleBuffers(new Buffer[]{buffer});
+
+        Handler handler = new Handler();
+        HttpParser parser= new HttpParser(buffers,io, handler, buffer.capacity(), 0);
+        parser.parse();
+        assertEquals("/one", f1);
+        parser.reset(false);
+        assertEquals(0,parser.returnBuffers());
+        assertTrue(buffer==buffers.getBuffer(4096));
+        buffers.returnBuffer(buffer);
+
+        // buffers are acquired again when next needed
+        io.setInput("GET /two HTTP/1.1\015\012Host: localhost\015\012\015\012GET /thr");
+        parser.parse();
+        assertEquals("/two", f1);
+
+        // a partial pipelined request keeps the buffer
+        parser.reset(false);
+        assertEquals(1,parser.returnBuffers());
+        assertTrue(parser.isMoreInBuffer());
+    }
+
     String _content;
     String f0;
     String f1;
@@ -16,6 +16,9 @@ package org.mortbay.jetty;
 
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -35,6 +38,10 @@ import javax.servlet.http.HttpServletResponse;
 import junit.framework.TestCase;
 
 import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.handler.ResourceHandler;
+import org.mortbay.jetty.nio.AbstractNIOConnector;
+import org.mortbay.resource.FileResource;
+import org.mortbay.resource.Resource;
 import org.mortbay.thread.BoundedThreadPool;
 import org.mortbay.util.IO;
 
@@ -546,6 +553,99 @@ public class HttpServerTestBase extends TestCase
 
     }
 
+    public void testBigFile() throws Exception
+    {
+        File file=File.createTempFile("HSTB",".bin");
+        file.deleteOnExit();
+        byte[] content=new byte[2*1024*1024+17];
+        for (int i=0;i<content.length;i++)
+            content[i]=(byte)('0'+(i%79));
+        FileOutputStream fout=new FileOutputStream(file);
+        fout.write(content);
+        fout.close();
+        
+        if (_connector instanceof AbstractNIOConnector)
+            ((AbstractNIOConnector)_connector).setUseFileTransfer(true);
+        ResourceHandler handler=new ResourceHandler();
+        handler.setResourceBase(file.getParentFile().getAbsolutePath());
+        Server server=startServer(handler);
+        try
+        {
+            for (int i=0;i<2;i++)
+            {
+                URL url=new URL("http://"+HOST+":"+port+"/"+file.getName());
+                InputStream in=url.openStream();
+                ByteArrayOutputStream bout=new ByteArrayOutputStream();
+                IO.copy(in,bout);
+                in.close();
+                assertTrue(Arrays.equals(content,bout.toByteArray()));
+            }
+        }
+        finally
+        {
+            server.stop();
+            if (_connector instanceof AbstractNIOConnector)
+                ((AbstractNIOConnector)_connector).setUseFileTransfer(false);
+        }
+    }
+
+    public void testResourceStreamClosed() throws Exception
+    {
+        File file=File.createTempFile("HSTB",".txt");
+        file.deleteOnExit();
+        FileOutputStream fout=new FileOutputStream(file);
+        fout.write("Resource Content".getBytes());
+        fout.close();
+
+        final int[] closed=new int[1];
+        final Resource resource=new FileResource(file.toURI().toURL())
+        {
+            public InputStream getInputStream() throws IOException
+            {
+                return new FilterInputStream(super.getInputStream())
+                {
+                    public void close() throws IOException
+                    {
+                        synchronized(closed)
+                        {
+                            closed[0]++;
+                        }
+                        super.close();
+                    }
+                };
+            }
+        };
+
+        Server server=startServer(new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                Request base_request=(request instanceof Request)?(Request)request:HttpConnection.getCurrentConnection().getRequest();
+                base_request.setHandled(true);
+                response.setStatus(200);
+                ((HttpConnection.Output)response.getOutputStream()).sendContent(resource);
+            }
+        });
+        try
+        {
+            for (int i=0;i<2;i++)
+            {
+                URL url=new URL("http://"+HOST+":"+port+"/resource");
+                InputStream in=url.openStream();
+                assertEquals("Resource Content",IO.toString(in));
+                in.close();
+            }
+            synchronized(closed)
+            {
+                assertEquals(2,closed[0]);
+            }
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+
     public void testStoppable() throws Exception
     {
         Server server=startServer(null);
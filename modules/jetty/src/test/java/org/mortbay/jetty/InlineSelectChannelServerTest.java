@@ -0,0 +1,159 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.io.nio.SelectorManager;
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.thread.QueuedThreadPool;
+import org.mortbay.util.IO;
+
+/**
+ * HttpServer Tester with connections handled by the selecting thread.
+ */
+public class InlineSelectChannelServerTest extends HttpServerTestBase
+{
+    public InlineSelectChannelServerTest()
+    {
+        super(inline(new SelectChannelConnector()));
+    }   
+    
+    private static Connector inline(SelectChannelConnector connector)
+    {
+        connector.setExecuteInline(true);
+        return connector;
+    }
+    
+    public void testInlineExecutions() throws Exception
+    {
+        Server server=new Server();
+        SelectChannelConnector connector=(SelectChannelConnector)inline(new SelectChannelConnector());
+        server.setConnectors(new Connector[]{connector});
+        server.setHandler(new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                response.setContentLength(2);
+                response.getOutputStream().print("OK");
+            }
+        });
+        server.start();
+        try
+        {
+            Socket socket=new Socket("localhost",connector.getLocalPort());
+            socket.setSoTimeout(10000);
+            OutputStream out=socket.getOutputStream();
+            InputStream in=socket.getInputStream();
+            byte[] buf=new byte[4096];
+            for (int i=0;i<100;i++)
+            {
+                out.write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                out.flush();
+                String response="";
+                while (!response.endsWith("OK"))
+                {
+                    int len=in.read(buf);
+                    assertTrue(len>0);
+                    response+=new String(buf,0,len);
+                }
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+            }
+            socket.close();
+            
+            // each request after the first, which is dispatched on accept, is handled on the selecting thread
+            assertTrue(connector.getInlineExecutions()>=99);
+            assertEquals(0,connector.getDispatchedExecutions());
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+    
+    public void testNoProducerThread() throws Exception
+    {
+        Server server=new Server();
+        // a pool that cannot run another selecting thread, but can run endpoints 
+        server.setThreadPool(new QueuedThreadPool()
+        {
+            public boolean dispatch(Runnable job)
+            {
+                if (job.getClass().getName().startsWith(SelectorManager.class.getName()+"$"))
+                    return false;
+                return super.dispatch(job);
+            }
+        });
+        SelectChannelConnector connector=(SelectChannelConnector)inline(new SelectChannelConnector());
+        server.setConnectors(new Connector[]{connector});
+        server.setHandler(new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                String content=IO.toString(request.getInputStream());
+                response.setContentLength(content.length());
+                response.getOutputStream().print(content);
+            }
+        });
+        server.start();
+        try
+        {
+            Socket socket=new Socket("localhost",connector.getLocalPort());
+            socket.setSoTimeout(10000);
+            OutputStream out=socket.getOutputStream();
+            InputStream in=socket.getInputStream();
+            
+            // the first request is dispatched on accept
+            out.write("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 2\r\n\r\nOK".getBytes());
+            out.flush();
+            byte[] buf=new byte[4096];
+            String response="";
+            while (!response.endsWith("OK"))
+            {
+                int len=in.read(buf);
+                assertTrue(len>0);
+                response+=new String(buf,0,len);
+            }
+            
+            // the second is selected, and its handler blocks for the second half of the content
+            out.write("POST / HTTP/1.1\r\nHost: localhost\r\nContent-Length: 10\r\nConnection: close\r\n\r\n01234".getBytes());
+            out.flush();
+            Thread.sleep(200);
+            out.write("56789".getBytes());
+            out.flush();
+            
+            response=IO.toString(in);
+            assertTrue(response.startsWith("HTTP/1.1 200"));
+            assertTrue(response.endsWith("0123456789"));
+            socket.close();
+            
+            assertEquals(0,connector.getInlineExecutions());
+            assertTrue(connector.getDispatchedExecutions()>0);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+}
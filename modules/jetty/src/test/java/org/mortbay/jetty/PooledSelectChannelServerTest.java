@@ -0,0 +1,33 @@
+//========================================================================
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+
+/**
+ * HttpServer Tester with a shared buffer pool.
+ */
+public class PooledSelectChannelServerTest extends HttpServerTestBase
+{
+    public PooledSelectChannelServerTest()
+    {
+        super(pooled(new SelectChannelConnector()));
+    }   
+    
+    private static Connector pooled(SelectChannelConnector connector)
+    {
+        connector.setUseBufferPool(true);
+        return connector;
+    }
+}
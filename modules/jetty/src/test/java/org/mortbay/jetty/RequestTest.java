@@ -260,6 +260,65 @@ public class RequestTest extends TestCase
     }
     
     
+    public void testParameters()
+        throws Exception
+    {
+        final ArrayList results = new ArrayList();
+        _handler._checker = null;
+        Handler handler = new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                results.add(request.getParameter("a"));
+                results.add(request.getParameter("b"));
+                results.add(request.getParameter("c"));
+                results.add(request.getParameter("\u00e3"));
+                results.add(request.getParameter("x"));
+                results.add(String.valueOf(request.getParameterValues("a").length));
+                results.add(request.getParameter("a"));
+            }
+        };
+        _server.stop();
+        _server.setHandler(handler);
+        _server.start();
+
+        String request="GET /?a=1&b=two+words&%C3%A3=%C3%A3&a=3&c HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Connection: close\r\n"+
+        "\r\n";
+        _connector.getResponses(request);
+        assertEquals("[1, two words, , \u00e3, null, 2, 1]",results.toString());
+
+        results.clear();
+        request="POST /?a=1 HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Content-Type: application/x-www-form-urlencoded; charset=utf-8\r\n"+
+        "Content-Length: 13\r\n"+
+        "Connection: close\r\n"+
+        "\r\n"+
+        "a=2&b=3&x=%20\r\n";
+        _connector.reopen();
+        _connector.getResponses(request);
+        assertEquals("[1, 3, null, null,  , 2, 1]",results.toString());
+
+        // large forms are decoded while they are read
+        StringBuffer form = new StringBuffer("a=4");
+        while (form.length()<20000)
+            form.append("&b=").append(form.length());
+        results.clear();
+        request="POST /?a=1 HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Content-Type: application/x-www-form-urlencoded\r\n"+
+        "Content-Length: "+form.length()+"\r\n"+
+        "Connection: close\r\n"+
+        "\r\n"+
+        form;
+        _connector.reopen();
+        _connector.getResponses(request);
+        assertEquals("[1, 6, null, null, null, 2, 1]",results.toString());
+    }
+
     public void testConnectionClose()
         throws Exception
     {
@@ -481,7 +540,63 @@ public class RequestTest extends TestCase
         assertEquals("name7" ,name[7]);
         assertEquals("value7" ,cookie[7]);
     }
-    
+
+    public void testCookieCache()
+        throws Exception
+    {
+        _server.stop();
+        _connector.setCookieCacheSize(16);
+        _server.start();
+
+        final ArrayList values = new ArrayList();
+        _handler._checker = new RequestTester()
+        {
+            public boolean check(HttpServletRequest request,HttpServletResponse response)
+            {
+                Cookie[] cookies = request.getCookies();
+                for (int i=0;cookies!=null && i<cookies.length; i++)
+                {
+                    values.add(cookies[i].getName()+"="+cookies[i].getValue());
+                    cookies[i].setValue("changed");
+                }
+                return true;
+            }
+        };
+
+        String request="GET / HTTP/1.1\r\n"+
+        "Host: whatever\r\n"+
+        "Cookie: a=1; b=2\r\n"+
+        "Connection: close\r\n"+
+        "\r\n";
+
+        for (int i=0;i<3;i++)
+        {
+            _connector.reopen();
+            _connector.getResponses(request);
+        }
+        assertEquals("[a=1, b=2, a=1, b=2, a=1, b=2]",values.toString());
+        assertEquals(1,_connector.getCookieCacheMisses());
+        assertEquals(2,_connector.getCookieCacheHits());
+
+        // cookie values are case sensitive
+        values.clear();
+        _connector.reopen();
+        _connector.getResponses(request.replaceAll("b=2","B=2"));
+        assertEquals("[a=1, B=2]",values.toString());
+        assertEquals(2,_connector.getCookieCacheMisses());
+
+        // multiple cookie headers are not cached
+        values.clear();
+        _connector.reopen();
+        _connector.getResponses(request.replaceAll("; b=2","\r\nCookie: b=2"));
+        assertEquals("[a=1, b=2]",values.toString());
+        assertEquals(2,_connector.getCookieCacheMisses());
+        assertEquals(2,_connector.getCookieCache().getSize());
+
+        _server.stop();
+        _connector.setCookieCacheSize(0);
+    }
+
     
     
     
@@ -14,12 +14,19 @@
 
 package org.mortbay.jetty;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
 
+import org.mortbay.io.nio.NIOBuffer;
 import org.mortbay.jetty.ResourceCache.Content;
 import org.mortbay.resource.Resource;
 import org.mortbay.resource.ResourceFactory;
+import org.mortbay.util.IO;
 
 import junit.framework.TestCase;
 
@@ -152,4 +159,250 @@ public class ResourceCacheTest extends TestCase
         
         
     }
+
+    /* ------------------------------------------------------------ */
+    public void testMappedResourceCache() throws Exception
+    {
+        cache.setMaxCachedFileSize(55);
+        cache.setMaxMappedFileSize(100);
+        cache.setMaxMappedSize(160);
+        
+        Content content;
+        content=cache.lookup(names[1],factory);
+        assertFalse(content.isMapped());
+        assertEquals(10,cache.getCachedSize());
+        assertEquals(0,cache.getMappedSize());
+        
+        content=cache.lookup(names[9],factory);
+        assertTrue(content.isMapped());
+        assertTrue(content.getBuffer().buffer() instanceof NIOBuffer);
+        assertEquals(90,content.getContentLength());
+        assertEquals(10,cache.getCachedSize());
+        assertEquals(90,cache.getMappedSize());
+        assertEquals(1,cache.getMappedFiles());
+        assertEquals(2,cache.getCachedFiles());
+        
+        content=cache.lookup(names[7],factory);
+        assertTrue(content.isMapped());
+        assertEquals(160,cache.getMappedSize());
+        assertEquals(3,cache.getCachedFiles());
+
+        // only the least recently used mapped content is evicted
+        content=cache.lookup(names[8],factory);
+        assertTrue(content.isMapped());
+        assertEquals(10,cache.getCachedSize());
+        assertEquals(150,cache.getMappedSize());
+        assertEquals(2,cache.getMappedFiles());
+        assertEquals(3,cache.getCachedFiles());
+        assertTrue(cache.lookup(names[1],factory).isCached());
+        
+        cache.flushCache();
+        assertEquals(0,cache.getCachedSize());
+        assertEquals(0,cache.getMappedSize());
+        assertEquals(0,cache.getMappedFiles());
+        assertEquals(0,cache.getCachedFiles());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testStatistics() throws Exception
+    {
+        assertTrue(cache.lookup("does not exist",factory)==null);
+        cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        cache.lookup(names[2],factory);
+        cache.lookup(names[3],factory);
+        assertEquals(2,cache.getHits());
+        assertEquals(4,cache.getMisses());
+        assertEquals(0,cache.getEvictions());
+        
+        cache.lookup(names[4],factory);
+        assertEquals(5,cache.getMisses());
+        assertEquals(1,cache.getEvictions());
+        
+        cache.statsReset();
+        assertEquals(0,cache.getHits());
+        assertEquals(0,cache.getMisses());
+        assertEquals(0,cache.getEvictions());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testLRUPolicy() throws Exception
+    {
+        Content one=cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        Content two=cache.lookup(names[2],factory);
+        cache.lookup(names[3],factory);
+        cache.lookup(names[4],factory);
+        
+        assertFalse(one.isCached());
+        assertTrue(two.isCached());
+        assertEquals(90,cache.getCachedSize());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testLFUPolicy() throws Exception
+    {
+        cache.setPolicy(new ResourceCache.LFUPolicy());
+        
+        Content one=cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        cache.lookup(names[1],factory);
+        Content two=cache.lookup(names[2],factory);
+        cache.lookup(names[3],factory);
+        cache.lookup(names[4],factory);
+        
+        assertTrue(one.isCached());
+        assertFalse(two.isCached());
+        assertEquals(80,cache.getCachedSize());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testSampledEviction() throws Exception
+    {
+        cache.setMaxCacheSize(1000);
+        cache.setEvictionSamples(2);
+        
+        // more files than the cache holds, and more than the sample
+        int size=0;
+        for (int n=0;n<3;n++)
+        {
+            for (int i=1;i<9;i++)
+            {
+                Content content=cache.lookup(names[i],factory);
+                assertTrue(content.isCached());
+                assertTrue(cache.getCachedFiles()<=4);
+                if (n==2 && i==8)
+                    size=(int)content.getContentLength();
+            }
+        }
+        assertEquals(4,cache.getCachedFiles());
+        assertTrue(cache.getCachedSize()>=size);
+        assertEquals(8*3-4,cache.getEvictions()+cache.getHits());
+        
+        cache.flushCache();
+        assertEquals(0,cache.getCachedSize());
+        assertEquals(0,cache.getCachedFiles());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testSampledMappedEviction() throws Exception
+    {
+        cache.setMaxCachedFiles(10);
+        cache.setMaxCachedFileSize(55);
+        cache.setMaxMappedFileSize(100);
+        cache.setMaxMappedSize(100);
+        cache.setEvictionSamples(1);
+        
+        // samples of heap content hold no mapped content to evict
+        for (int i=1;i<4;i++)
+            assertFalse(cache.lookup(names[i],factory).isMapped());
+        assertTrue(cache.lookup(names[9],factory).isMapped());
+        assertTrue(cache.lookup(names[8],factory).isMapped());
+        assertEquals(60,cache.getCachedSize());
+        assertEquals(80,cache.getMappedSize());
+        assertEquals(1,cache.getMappedFiles());
+        assertEquals(4,cache.getCachedFiles());
+        assertEquals(1,cache.getEvictions());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testTinyLFUPolicy() throws Exception
+    {
+        cache.setPolicy(new ResourceCache.TinyLFUPolicy());
+        
+        Content content=cache.lookup(names[8],factory);
+        assertTrue(content.isCached());
+        assertEquals(80,cache.getCachedSize());
+        
+        // not admitted as it is no more popular than the content it would evict
+        assertTrue(cache.lookup(names[2],factory)==null);
+        assertTrue(content.isCached());
+        assertEquals(80,cache.getCachedSize());
+        assertEquals(0,cache.getEvictions());
+        
+        // admitted once it is more popular
+        assertTrue(cache.lookup(names[2],factory).isCached());
+        assertFalse(content.isCached());
+        assertEquals(20,cache.getCachedSize());
+        assertEquals(1,cache.getEvictions());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testGzip() throws Exception
+    {
+        Set types=new HashSet();
+        types.add("text/plain");
+        cache.setGzipMimeTypes(types);
+        cache.setMaxCacheSize(120);
+        
+        Content three=cache.lookup(names[3],factory);
+        Content content=cache.lookup(names[8],factory);
+        assertTrue(content.isGzippable());
+        assertEquals(110,cache.getCachedSize());
+        
+        // other content is evicted to make room for the variant
+        HttpContent gzip=content.getGzipContent();
+        assertTrue(gzip!=null);
+        assertTrue(gzip==content.getGzipContent());
+        assertTrue(gzip.getContentLength()<80);
+        assertFalse(three.isCached());
+        assertTrue(content.isCached());
+        assertEquals(80+gzip.getContentLength(),cache.getCachedSize());
+        assertEquals(content.getContentType(),gzip.getContentType());
+        
+        byte[] bytes=IO.readBytes(new GZIPInputStream(gzip.getInputStream()));
+        assertEquals(80,bytes.length);
+        assertEquals(' ',bytes[0]);
+        
+        // the resource of the variant is the compressed content
+        assertEquals(gzip.getContentLength(),gzip.getResource().length());
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        gzip.getResource().writeTo(out,0,gzip.getContentLength());
+        bytes=IO.readBytes(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertEquals(80,bytes.length);
+        gzip.release();
+        gzip.release();
+        
+        content.invalidate();
+        assertEquals(0,cache.getCachedSize());
+        assertTrue(content.getGzipContent()==null);
+        
+        cache.setMinGzipSize(100);
+        content=cache.lookup(names[8],factory);
+        assertFalse(content.isGzippable());
+        assertTrue(content.getGzipContent()==null);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testGzipMapped() throws Exception
+    {
+        Set types=new HashSet();
+        types.add("text/plain");
+        cache.setGzipMimeTypes(types);
+        cache.setMaxCachedFileSize(55);
+        cache.setMaxMappedFileSize(100);
+        
+        // mapped content is only compressed to a file 
+        Content content=cache.lookup(names[9],factory);
+        assertTrue(content.isMapped());
+        assertFalse(content.isGzippable());
+        
+        cache.setGzipDirectory(files[0].getParentFile());
+        content=cache.lookup(names[9],factory);
+        assertTrue(content.isGzippable());
+        HttpContent gzip=content.getGzipContent();
+        assertTrue(gzip.getBuffer()==null);
+        File file=gzip.getResource().getFile();
+        assertTrue(file.exists());
+        assertEquals(file.length(),gzip.getContentLength());
+        assertEquals(0,cache.getCachedSize());
+        
+        // the file is deleted once it is no longer in use
+        cache.flushCache();
+        assertTrue(file.exists());
+        gzip.release();
+        assertFalse(file.exists());
+    }
 }
@@ -0,0 +1,84 @@
+//========================================================================
+//Copyright 2011 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty;
+import java.io.IOException;
+import java.net.Socket;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.mortbay.jetty.handler.AbstractHandler;
+import org.mortbay.jetty.nio.SelectChannelConnector;
+import org.mortbay.util.IO;
+
+/**
+ * HttpServer Tester with connections accepted by all acceptors.
+ */
+public class ShardedSelectChannelServerTest extends HttpServerTestBase
+{
+    public ShardedSelectChannelServerTest()
+    {
+        super(sharded(new SelectChannelConnector()));
+    }   
+    
+    private static Connector sharded(SelectChannelConnector connector)
+    {
+        connector.setAcceptors(4);
+        connector.setAcceptSharding(true);
+        connector.setAcceptBatch(8);
+        return connector;
+    }
+    
+    public void testAccepts() throws Exception
+    {
+        Server server=new Server();
+        SelectChannelConnector connector=(SelectChannelConnector)sharded(new SelectChannelConnector());
+        server.setConnectors(new Connector[]{connector});
+        server.setHandler(new AbstractHandler()
+        {
+            public void handle(String target, HttpServletRequest request, HttpServletResponse response, int dispatch) throws IOException, ServletException
+            {
+                ((Request)request).setHandled(true);
+                response.getWriter().print("OK");
+            }
+        });
+        server.start();
+        try
+        {
+            Socket[] sockets=new Socket[100];
+            for (int i=0;i<sockets.length;i++)
+            {
+                sockets[i]=new Socket("localhost",connector.getLocalPort());
+                sockets[i].setSoTimeout(10000);
+                sockets[i].getOutputStream().write("GET / HTTP/1.0\r\n\r\n".getBytes());
+            }
+            for (int i=0;i<sockets.length;i++)
+            {
+                String response=IO.toString(sockets[i].getInputStream());
+                sockets[i].close();
+                assertTrue(response.startsWith("HTTP/1.1 200"));
+                assertTrue(response.endsWith("OK"));
+            }
+            
+            assertEquals(sockets.length,connector.getAccepts());
+            assertEquals(4,connector.getAcceptRates().length);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+}
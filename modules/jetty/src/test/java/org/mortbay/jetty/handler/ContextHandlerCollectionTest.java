@@ -9,6 +9,7 @@ import javax.servlet.http.HttpServletResponse;
 import junit.framework.TestCase;
 
 import org.mortbay.jetty.Connector;
+import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.HttpConnection;
 import org.mortbay.jetty.LocalConnector;
 import org.mortbay.jetty.Request;
@@ -115,6 +116,67 @@ public class ContextHandlerCollectionTest extends TestCase
         }
     }
 
+    public void testVirtualHostDispatch() throws Exception
+    {
+        Server server = new Server();
+        LocalConnector connector = new LocalConnector();
+        server.setConnectors(new Connector[] { connector });
+
+        ContextHandlerCollection c = new ContextHandlerCollection();
+        
+        // many virtual hosts, each with its own root context
+        for (int i=0;i<1000;i++)
+        {
+            ContextHandler context = new ContextHandler("/");
+            context.setVirtualHosts(new String[] {"host"+i+".example.com"});
+            context.setHandler(new IsHandledHandler());
+            c.addHandler(context);
+        }
+        
+        ContextHandler any = new ContextHandler("/");
+        any.setHandler(new IsHandledHandler());
+        c.addHandler(any);
+        ContextHandler wild = new ContextHandler("/");
+        wild.setVirtualHosts(new String[] {"*.example.com"});
+        wild.setHandler(new IsHandledHandler());
+        c.addHandler(wild);
+        ContextHandler other = new ContextHandler("/other");
+        other.setHandler(new IsHandledHandler());
+        c.addHandler(other);
+
+        server.setHandler(c);
+
+        try
+        {
+            server.start();
+            
+            // longest context path first
+            checkDispatch(connector,c,"host7.example.com","/other/x",other);
+            // then explicit host, then wildcard, then any host
+            checkDispatch(connector,c,"host7.example.com","/x",(ContextHandler)c.getHandlers()[7]);
+            checkDispatch(connector,c,"host999.example.com.","/x",(ContextHandler)c.getHandlers()[999]);
+            checkDispatch(connector,c,"host1000.example.com","/x",wild);
+            checkDispatch(connector,c,"host7.example.org","/x",any);
+            checkDispatch(connector,c,"localhost","/x",any);
+        }
+        finally
+        {
+            server.stop();
+        }
+    }
+    
+    private void checkDispatch(LocalConnector connector, ContextHandlerCollection collection, String host, String uri, ContextHandler expected) throws Exception
+    {
+        connector.getResponses("GET "+uri+" HTTP/1.1\n" + "Host: "+host+"\n\n");
+        Handler[] handlers = collection.getHandlers();
+        for (int i=0;i<handlers.length;i++)
+        {
+            IsHandledHandler handler = (IsHandledHandler)((ContextHandler)handlers[i]).getHandler();
+            assertEquals(host+uri+" "+i,handlers[i]==expected,handler.isHandled());
+            handler.reset();
+        }
+    }
+
     private void checkWildcardHost(boolean succeed, Server server, String[] contextHosts, String[] requestHosts) throws Exception
     {
         LocalConnector connector = (LocalConnector)server.getConnectors()[0];
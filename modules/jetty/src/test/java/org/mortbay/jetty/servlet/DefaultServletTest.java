@@ -5,9 +5,20 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
 import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 
+import org.mortbay.jetty.Handler;
 import org.mortbay.jetty.LocalConnector;
 import org.mortbay.jetty.Server;
 import org.mortbay.servlet.NoJspServlet;
@@ -495,6 +506,100 @@ public class DefaultServletTest extends TestCase
         assertTrue(body.endsWith(boundary+"--\r\n"));
     }
 
+    public void testCachedGzip() throws Exception
+    {
+        File testDir = new File("target/tests/" + getName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        resBase.mkdirs();
+        File data = new File(resBase, "data.txt");
+        StringBuffer content = new StringBuffer();
+        for (int i=0;i<100;i++)
+            content.append("0123456789");
+        createFile(data,content.toString());
+        String resBasePath = resBase.getAbsolutePath();
+
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("resourceBase",resBasePath);
+        defholder.setInitParameter("cacheType","both");
+        defholder.setInitParameter("gzipMimeTypes","text/plain,text/html");
+        
+        String response;
+
+        connector.reopen();
+        response= connector.getResponses("GET /context/data.txt HTTP/1.0\r\n\r\n");
+        assertResponseContains("200 OK",response);
+        assertResponseContains("Vary: Accept-Encoding",response);
+        assertResponseNotContains("Content-Encoding",response);
+        assertResponseContains(content.toString(),response);
+
+        connector.reopen();
+        response= connector.getResponses("GET /context/data.txt HTTP/1.0\r\nAccept-Encoding: gzip\r\n\r\n");
+        assertResponseContains("200 OK",response);
+        assertResponseContains("Vary: Accept-Encoding",response);
+        assertResponseContains("Content-Encoding: gzip",response);
+        assertResponseNotContains(content.toString(),response);
+        
+        connector.reopen();
+        response= connector.getResponses("GET /context/data.txt HTTP/1.0\r\nAccept-Encoding: gzip\r\n\r\n");
+        assertResponseContains("Content-Encoding: gzip",response);
+    }
+
+    public void testCachedGzipWrapped() throws Exception
+    {
+        File testDir = new File("target/tests/" + getName());
+        prepareEmptyTestDir(testDir);
+        File resBase = new File(testDir, "docroot");
+        resBase.mkdirs();
+        File data = new File(resBase, "data.txt");
+        StringBuffer content = new StringBuffer();
+        for (int i=0;i<100;i++)
+            content.append("0123456789");
+        createFile(data,content.toString());
+
+        // a wrapped output stream is written from the resource of the compressed variant
+        context.addFilter(WrapFilter.class,"/*",Handler.DEFAULT);
+        ServletHolder defholder = context.addServlet(DefaultServlet.class,"/");
+        defholder.setInitParameter("resourceBase",resBase.getAbsolutePath());
+        defholder.setInitParameter("cacheType","both");
+        defholder.setInitParameter("gzipMimeTypes","text/plain");
+        
+        connector.reopen();
+        String response= connector.getResponses("GET /context/data.txt HTTP/1.0\r\nAccept-Encoding: gzip\r\n\r\n");
+        assertResponseContains("Content-Encoding: gzip",response);
+        String body=response.substring(response.indexOf("\r\n\r\n")+4);
+        assertResponseContains("Content-Length: "+body.length(),response);
+        assertEquals(0x1f,body.charAt(0));
+    }
+
+    public static class WrapFilter implements Filter
+    {
+        public void init(FilterConfig config)
+        {
+        }
+
+        public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException
+        {
+            final ServletOutputStream out=response.getOutputStream();
+            chain.doFilter(request,new HttpServletResponseWrapper((HttpServletResponse)response)
+            {
+                public ServletOutputStream getOutputStream()
+                {
+                    return new ServletOutputStream()
+                    {
+                        public void write(int b) throws IOException
+                        {
+                            out.write(b);
+                        }
+                    };
+                }
+            });
+        }
+
+        public void destroy()
+        {
+        }
+    }
 
     private void createFile(File file, String str) throws IOException
     {
@@ -0,0 +1,97 @@
+//========================================================================
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import junit.framework.TestCase;
+
+/* ------------------------------------------------------------ */
+/** Check that a {@link PathTrie} matches the same entries as its {@link PathMap}.
+ */
+public class PathTrieTest extends TestCase
+{
+    String[] paths = {
+        null, "", "/", "//", "/abs", "/abs/path", "/abs/path/", "/abs/path/xxx", "/abs/pith",
+        "/abs/path/longer", "/animal", "/animal/", "/animal/x", "/animal/*", "/animal/fish",
+        "/animal/fish/", "/animal/bird/eagle/bald", "/animal/insect/bug", "/animal/path.gz",
+        "/suffix/path.tar.gz", "/suffix/path.gz", "/suffix/.gz", ".gz", "/a.gz/b", "/a.tar/b.gz",
+        "/path.", "/Other/path", "/XXX", "/YYY/", "/YYY/zzz", "/a/b/c/d.jsp", "/a/b/c/d.jspx"
+    };
+
+    /* --------------------------------------------------------------- */
+    public void testDefault() throws Exception
+    {
+        PathMap p = new PathMap();
+        p.put("/abs/path", "1");
+        p.put("/abs/path/longer", "2");
+        p.put("/animal/bird/*", "3");
+        p.put("/animal/fish/*", "4");
+        p.put("/animal/*", "5");
+        p.put("*.tar.gz", "6");
+        p.put("*.gz", "7");
+        p.put("/", "8");
+        p.put("/XXX:/YYY/*", "9");
+        p.put("*.jsp", "10");
+        p.put("*.", "11");
+        check(p);
+
+        PathTrie trie = new PathTrie(p);
+        assertEquals("[/animal/bird/*=3, /animal/*=5, *.tar.gz=6, *.gz=7, /=8]",
+                     trie.getMatches("/animal/bird/path.tar.gz").toString());
+        assertTrue(trie.containsMatch("/animal"));
+        assertFalse(trie.containsMatch("/other"));
+
+        // The trie does not change with the map
+        p.put("/other","12");
+        assertEquals("8",trie.match("/other"));
+    }
+
+    /* --------------------------------------------------------------- */
+    public void testPrefixDefault() throws Exception
+    {
+        PathMap p = new PathMap();
+        p.put("/*", "0");
+        p.put("/abs/path", "1");
+        p.put("/animal/*", "5");
+        p.put("*.gz", "7");
+        check(p);
+    }
+
+    /* --------------------------------------------------------------- */
+    public void testNoDefault() throws Exception
+    {
+        PathMap p = new PathMap(true);
+        p.put("/", "0");
+        p.put("/animal/*", "5");
+        p.put("*.gz", "7");
+        check(p);
+
+        p = new PathMap();
+        check(p);
+    }
+
+    /* --------------------------------------------------------------- */
+    private void check(PathMap p)
+    {
+        PathTrie trie = new PathTrie(p);
+        for (int i=0;i<paths.length;i++)
+        {
+            assertEquals(paths[i],p.getMatch(paths[i]),trie.getMatch(paths[i]));
+            assertEquals(paths[i],p.match(paths[i]),trie.match(paths[i]));
+            assertEquals(paths[i],p.getMatches(paths[i]),trie.getMatches(paths[i]));
+            if (paths[i]!=null)
+                assertEquals(paths[i],p.containsMatch(paths[i]),trie.containsMatch(paths[i]));
+        }
+    }
+}
@@ -0,0 +1,514 @@
+// ========================================================================
+// Copyright 2006 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.servlet;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionActivationListener;
+import javax.servlet.http.HttpSessionEvent;
+
+import junit.framework.TestCase;
+
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.ContextHandler;
+import org.mortbay.util.IO;
+
+public class SessionJournalTest extends TestCase
+{
+    File _dir;
+    Server _server;
+    HashSessionManager _manager;
+    boolean _journal=true;
+    SessionJournal.Serializer[] _serializers={new PointSerializer()};
+
+    protected void setUp() throws Exception
+    {
+        _dir=File.createTempFile("sessions",".dir");
+        _dir.delete();
+        _dir.mkdir();
+        start();
+    }
+
+    protected void tearDown() throws Exception
+    {
+        if (_server!=null)
+            _server.stop();
+        IO.delete(_dir);
+    }
+
+    private void start() throws Exception
+    {
+        _server=new Server();
+        _manager=new HashSessionManager();
+        _manager.setIdManager(new IdManager());
+        _manager.setStoreDirectory(_dir);
+        _manager.setJournal(_journal);
+        _manager.setSerializers(_serializers);
+        ContextHandler context=new ContextHandler();
+        context.setHandler(new SessionHandler(_manager));
+        _server.setHandler(context);
+        _server.start();
+    }
+
+    private void restart() throws Exception
+    {
+        _server.stop();
+        _server=null;
+        assertEquals(_journal,new File(_dir,"sessions.journal").exists());
+        start();
+    }
+
+    public void testSaveRestore() throws Exception
+    {
+        HttpSession session=_manager.newHttpSession(null);
+        session.setMaxInactiveInterval(1234);
+        session.setAttribute("string","value");
+        session.setAttribute("integer",new Integer(42));
+        session.setAttribute("long",new Long(-1));
+        session.setAttribute("boolean",Boolean.TRUE);
+        session.setAttribute("double",new Double(0.5));
+        session.setAttribute("bytes",new byte[]{1,2,3});
+        session.setAttribute("point",new Point(3,4));
+        session.setAttribute("list",new ArrayList(Arrays.asList(new String[]{"a","b"})));
+        Listener listener=new Listener();
+        session.setAttribute("listener",listener);
+        String id=session.getId();
+        long created=session.getCreationTime();
+
+        HttpSession empty=_manager.newHttpSession(null);
+        String emptyId=empty.getId();
+
+        restart();
+        assertEquals(2,_manager.getSessions());
+
+        HashSessionManager.Session restored=(HashSessionManager.Session)_manager.getSession(id);
+        assertNotNull(restored);
+        assertEquals(created,restored.getCreationTime());
+        assertEquals(1234,restored.getMaxInactiveInterval());
+
+        // attributes are decoded on first access
+        assertTrue(restored._values instanceof SessionJournal.Attributes);
+        assertFalse(((SessionJournal.Attributes)restored._values).isDecoded());
+        assertEquals("value",restored.getAttribute("string"));
+        assertTrue(((SessionJournal.Attributes)restored._values).isDecoded());
+
+        assertEquals(new Integer(42),restored.getAttribute("integer"));
+        assertEquals(new Long(-1),restored.getAttribute("long"));
+        assertEquals(Boolean.TRUE,restored.getAttribute("boolean"));
+        assertEquals(new Double(0.5),restored.getAttribute("double"));
+        assertTrue(Arrays.equals(new byte[]{1,2,3},(byte[])restored.getAttribute("bytes")));
+        assertEquals(new Point(3,4),restored.getAttribute("point"));
+        assertEquals(Arrays.asList(new String[]{"a","b"}),restored.getAttribute("list"));
+        assertTrue(((Listener)restored.getAttribute("listener")).activated);
+
+        assertNotNull(_manager.getSession(emptyId));
+        assertFalse(_manager.getSession(emptyId).getAttributeNames().hasMoreElements());
+    }
+
+    public void testUndecodedSave() throws Exception
+    {
+        HttpSession session=_manager.newHttpSession(null);
+        session.setAttribute("string","value");
+        session.setAttribute("point",new Point(1,2));
+        String id=session.getId();
+
+        // saved again without being decoded
+        restart();
+        restart();
+        assertEquals("value",_manager.getSession(id).getAttribute("string"));
+        assertEquals(new Point(1,2),_manager.getSession(id).getAttribute("point"));
+    }
+
+    public void testUndecodedSaveWithOtherSerializers() throws Exception
+    {
+        HttpSession session=_manager.newHttpSession(null);
+        session.setAttribute("string","value");
+        session.setAttribute("point",new Point(1,2));
+        String id=session.getId();
+
+        // saved again without being decoded, with the serializers in another order
+        _serializers=new SessionJournal.Serializer[]{new NoSerializer(),new PointSerializer()};
+        restart();
+        restart();
+        assertEquals("value",_manager.getSession(id).getAttribute("string"));
+        assertEquals(new Point(1,2),_manager.getSession(id).getAttribute("point"));
+    }
+
+    public void testRemoveAndTruncated() throws Exception
+    {
+        HttpSession session0=_manager.newHttpSession(null);
+        HttpSession session1=_manager.newHttpSession(null);
+        File file=new File(_dir,"test.journal");
+        SessionJournal journal=new SessionJournal(file);
+        journal.write(_manager.getSessionMap().values());
+
+        // a removal is appended to the journal, which is then truncated by a crash
+        journal.appendRemove(session0.getId());
+        journal.close();
+        FileOutputStream out=new FileOutputStream(file,true);
+        out.write(new byte[]{0,0,1,0,1,2});
+        out.close();
+
+        journal=new SessionJournal(file);
+        journal.setRestoreThreads(4);
+        java.util.Map sessions=journal.restore(_manager);
+        assertEquals(1,sessions.size());
+        assertNotNull(sessions.get(session1.getId()));
+    }
+
+    public void testManySessions() throws Exception
+    {
+        for (int i=0;i<5000;i++)
+            _manager.newHttpSession(null).setAttribute("i",new Integer(i));
+        restart();
+        assertEquals(5000,_manager.getSessions());
+        int total=0;
+        for (java.util.Iterator i=_manager.getSessionMap().values().iterator();i.hasNext();)
+            total+=((Integer)((HttpSession)i.next()).getAttribute("i")).intValue();
+        assertEquals(4999*5000/2,total);
+    }
+
+    public void testWriteBehind() throws Exception
+    {
+        _manager.setSavePeriod(1);
+        HttpSession changed=_manager.newHttpSession(null);
+        HttpSession unchanged=_manager.newHttpSession(null);
+        changed.setAttribute("count",new Integer(1));
+        _manager.complete(changed);
+        _manager.complete(unchanged);
+        waitForSaves(1);
+        assertEquals(1,_manager.getSavedSessions());
+        assertEquals(0,_manager.getDirtySessions());
+        assertTrue(_manager.getSavedBytes()>0);
+
+        // only the changed session is saved again
+        changed.setAttribute("count",new Integer(2));
+        _manager.complete(changed);
+        _manager.complete(unchanged);
+        waitForSaves(2);
+        assertEquals(2,_manager.getSavedSessions());
+
+        // a full queue is saved without waiting for the save period
+        _manager.setSavePeriod(60);
+        _manager.setMaxSaveQueue(1);
+        _manager.access(unchanged,false);
+        _manager.complete(unchanged);
+        waitForSaves(3);
+        assertEquals(3,_manager.getSavedSessions());
+
+        // the journal holds the changes without a full save
+        SessionJournal journal=new SessionJournal(new File(_dir,"sessions.journal"));
+        java.util.Map sessions=journal.restore(_manager);
+        assertEquals(2,sessions.size());
+        assertEquals(new Integer(2),((HttpSession)sessions.get(changed.getId())).getAttribute("count"));
+    }
+
+    public void testRemovedFromJournal() throws Exception
+    {
+        _manager.setSavePeriod(60);
+        HttpSession timedout=_manager.newHttpSession(null);
+        HttpSession passivated=_manager.newHttpSession(null);
+        HttpSession removed=_manager.newHttpSession(null);
+        HttpSession kept=_manager.newHttpSession(null);
+        _manager.saveSessions();
+        passivated.setAttribute("string","value");
+        _manager.complete(passivated);
+        assertTrue(((HashSessionManager.Session)passivated).idle());
+        File file=new File(_dir,passivated.getId());
+        assertTrue(file.exists());
+
+        // every removal is journaled
+        ((HashSessionManager.Session)timedout).timeout();
+        ((HashSessionManager.Session)passivated).timeout();
+        _manager.removeSession(removed,true);
+        assertFalse(file.exists());
+        assertEquals(0,_manager.getActivations());
+
+        SessionJournal journal=new SessionJournal(new File(_dir,"sessions.journal"));
+        java.util.Map sessions=journal.restore(_manager);
+        assertEquals(1,sessions.size());
+        assertNotNull(sessions.get(kept.getId()));
+    }
+
+    public void testRemovedFiles() throws Exception
+    {
+        _server.stop();
+        new File(_dir,"sessions.journal").delete();
+        _journal=false;
+        start();
+        _manager.setSavePeriod(1);
+        HttpSession timedout=_manager.newHttpSession(null);
+        HttpSession removed=_manager.newHttpSession(null);
+        HttpSession kept=_manager.newHttpSession(null);
+        timedout.setAttribute("string","timedout");
+        removed.setAttribute("string","removed");
+        kept.setAttribute("string","kept");
+        _manager.complete(timedout);
+        _manager.complete(removed);
+        _manager.complete(kept);
+        waitForSaves(1);
+        assertEquals(3,_manager.getSavedSessions());
+        assertTrue(new File(_dir,timedout.getId()).exists());
+        assertTrue(new File(_dir,removed.getId()).exists());
+
+        // the files of removed sessions are deleted, so they are not restored
+        ((HashSessionManager.Session)timedout).timeout();
+        _manager.removeSession(removed,false);
+        assertFalse(new File(_dir,timedout.getId()).exists());
+        assertFalse(new File(_dir,removed.getId()).exists());
+        restart();
+        assertEquals(1,_manager.getSessions());
+        assertEquals("kept",_manager.getSession(kept.getId()).getAttribute("string"));
+    }
+
+    private void waitForSaves(long saves) throws InterruptedException
+    {
+        for (int i=0;i<50 && _manager.getSaves()<saves;i++)
+            Thread.sleep(100);
+        assertEquals(saves,_manager.getSaves());
+    }
+
+    public void testPassivation() throws Exception
+    {
+        _manager.setScavengePeriod(1);
+        _manager.setMaxResidentSessions(1);
+        HttpSession old=_manager.newHttpSession(null);
+        old.setAttribute("string","old");
+        Listener listener=new Listener();
+        old.setAttribute("listener",listener);
+        _manager.complete(old);
+        Thread.sleep(10);
+        HttpSession recent=_manager.newHttpSession(null);
+        recent.setAttribute("string","recent");
+        _manager.complete(recent);
+
+        // the least recently accessed session is passivated
+        waitForPassivations(1);
+        assertTrue(listener.passivated);
+        assertEquals(1,_manager.getIdledSessions());
+        File file=new File(_dir,old.getId());
+        assertTrue(file.exists());
+
+        // and activated when it is used
+        assertEquals("old",_manager.getSession(old.getId()).getAttribute("string"));
+        assertTrue(((Listener)old.getAttribute("listener")).activated);
+        assertEquals(1,_manager.getActivations());
+        assertEquals(0,_manager.getIdledSessions());
+        assertFalse(file.exists());
+
+        // an idle session is passivated and restored from its file
+        _manager.setMaxResidentSessions(0);
+        _manager.setIdleSavePeriod(1);
+        waitForPassivations(3);
+        assertEquals(2,_manager.getIdledSessions());
+        restart();
+        assertEquals(2,_manager.getSessions());
+        assertEquals("old",_manager.getSession(old.getId()).getAttribute("string"));
+        assertEquals("recent",_manager.getSession(recent.getId()).getAttribute("string"));
+    }
+
+    public void testPassivationFailure() throws Exception
+    {
+        HttpSession session=_manager.newHttpSession(null);
+        session.setAttribute("string","value");
+        session.setAttribute("unserializable",new Object());
+        _manager.complete(session);
+
+        // the session stays resident and no partial file is left
+        assertFalse(((HashSessionManager.Session)session).idle());
+        assertFalse(new File(_dir,session.getId()).exists());
+        assertEquals(0,_manager.getIdledSessions());
+        assertEquals("value",session.getAttribute("string"));
+    }
+
+    public void testActivationFailure() throws Exception
+    {
+        HttpSession session=_manager.newHttpSession(null);
+        session.setAttribute("string","value");
+        _manager.complete(session);
+        assertTrue(((HashSessionManager.Session)session).idle());
+        assertEquals(1,_manager.getIdledSessions());
+
+        // corrupt the passivated attributes
+        FileOutputStream out=new FileOutputStream(new File(_dir,session.getId()));
+        out.write("corrupt".getBytes());
+        out.close();
+
+        // the session is invalidated rather than activated without its attributes
+        assertNull(session.getAttribute("string"));
+        assertNull(_manager.getSession(session.getId()));
+        assertEquals(0,_manager.getIdledSessions());
+        assertEquals(0,_manager.getActivations());
+        try
+        {
+            session.getAttribute("string");
+            fail();
+        }
+        catch(IllegalStateException e)
+        {
+        }
+    }
+
+    public void testInvalidatePassivated() throws Exception
+    {
+        HttpSession session=_manager.newHttpSession(null);
+        session.setAttribute("string","value");
+        _manager.complete(session);
+        assertTrue(((HashSessionManager.Session)session).idle());
+        assertEquals(1,_manager.getIdledSessions());
+
+        // the passivated attributes are not loaded just to be discarded
+        ((HashSessionManager.Session)session).timeout();
+        assertNull(_manager.getSession(session.getId()));
+        assertEquals(0,_manager.getActivations());
+        assertEquals(0,_manager.getIdledSessions());
+    }
+
+    public void testPassivateLeastRecentlyAccessed() throws Exception
+    {
+        HashSessionManager.Session[] sessions=new HashSessionManager.Session[3];
+        for (int i=0;i<sessions.length;i++)
+        {
+            sessions[i]=(HashSessionManager.Session)_manager.newHttpSession(null);
+            sessions[i].setAttribute("string","value"+i);
+            _manager.complete(sessions[i]);
+            Thread.sleep(10);
+        }
+
+        // the resident sessions are listed in access order when a maximum is set
+        _manager.setMaxResidentSessions(2);
+        _manager.access(sessions[0],false);
+        _manager.complete(sessions[0]);
+        _manager.scavenge(System.currentTimeMillis());
+        assertFalse(sessions[0].isIdled());
+        assertTrue(sessions[1].isIdled());
+        assertFalse(sessions[2].isIdled());
+
+        // an activated session becomes the most recently accessed
+        Thread.sleep(10);
+        _manager.access(sessions[1],false);
+        _manager.complete(sessions[1]);
+        _manager.scavenge(System.currentTimeMillis());
+        assertFalse(sessions[0].isIdled());
+        assertFalse(sessions[1].isIdled());
+        assertTrue(sessions[2].isIdled());
+        assertEquals(2,_manager.getPassivations());
+        assertEquals(1,_manager.getIdledSessions());
+    }
+
+    private void waitForPassivations(long passivations) throws InterruptedException
+    {
+        for (int i=0;i<50 && _manager.getPassivations()<passivations;i++)
+            Thread.sleep(100);
+        assertEquals(passivations,_manager.getPassivations());
+    }
+
+    static class IdManager extends HashSessionIdManager
+    {
+        static int __id;
+
+        public String newSessionId(HttpServletRequest request, long created)
+        {
+            synchronized (IdManager.class)
+            {
+                return "session"+(__id++);
+            }
+        }
+    }
+
+    public static class Point
+    {
+        final int x;
+        final int y;
+
+        Point(int x, int y)
+        {
+            this.x=x;
+            this.y=y;
+        }
+
+        public boolean equals(Object o)
+        {
+            return o instanceof Point && ((Point)o).x==x && ((Point)o).y==y;
+        }
+
+        public int hashCode()
+        {
+            return x^y;
+        }
+    }
+
+    public static class PointSerializer implements SessionJournal.Serializer
+    {
+        public boolean canSerialize(Object value)
+        {
+            return value instanceof Point;
+        }
+
+        public void serialize(Object value, DataOutputStream out) throws IOException
+        {
+            out.writeInt(((Point)value).x);
+            out.writeInt(((Point)value).y);
+        }
+
+        public Object deserialize(DataInputStream in) throws IOException
+        {
+            return new Point(in.readInt(),in.readInt());
+        }
+    }
+
+    public static class NoSerializer implements SessionJournal.Serializer
+    {
+        public boolean canSerialize(Object value)
+        {
+            return false;
+        }
+
+        public void serialize(Object value, DataOutputStream out) throws IOException
+        {
+            throw new IOException();
+        }
+
+        public Object deserialize(DataInputStream in) throws IOException
+        {
+            throw new IOException();
+        }
+    }
+
+    public static class Listener implements HttpSessionActivationListener, Serializable
+    {
+        transient boolean activated;
+        transient boolean passivated;
+
+        public void sessionDidActivate(HttpSessionEvent event)
+        {
+            activated=true;
+        }
+
+        public void sessionWillPassivate(HttpSessionEvent event)
+        {
+            passivated=true;
+        }
+    }
+}
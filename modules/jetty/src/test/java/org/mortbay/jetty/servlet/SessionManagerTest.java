@@ -104,6 +104,89 @@ public class SessionManagerTest extends TestCase
         assertNull(listener.passivateEvent);
     }
     
+    public void testScavenge() throws Exception
+    {
+        // give each session a different id
+        sessionManager.setIdManager(new TestSessionIdManager()
+        {
+            int _id;
+            public String newSessionId(HttpServletRequest request, long created)
+            {
+                return "xyzzy"+(_id++);
+            }
+        });
+        sessionManager.setScavengePeriod(1);
+        
+        HttpSession expiring = sessionManager.newHttpSession(null);
+        expiring.setMaxInactiveInterval(1);
+        HttpSession accessed = sessionManager.newHttpSession(null);
+        accessed.setMaxInactiveInterval(2);
+        HttpSession immortal = sessionManager.newHttpSession(null);
+        immortal.setMaxInactiveInterval(-1);
+        HttpSession later = sessionManager.newHttpSession(null);
+        later.setMaxInactiveInterval(60);
+        assertEquals(4,sessionManager.getSessions());
+        
+        // the scavenges are driven with the time of the test, rather than waiting for the timer
+        long now=System.currentTimeMillis();
+        
+        // keep accessing one session past its original expiry
+        for (int i=1;i<=8;i++)
+        {
+            long time=now+i*500;
+            ((Session)accessed).access(time);
+            sessionManager.complete(accessed);
+            sessionManager.scavenge(time);
+        }
+        
+        assertNull(sessionManager.getSession(expiring.getId()));
+        assertEquals(accessed,sessionManager.getSession(accessed.getId()));
+        assertEquals(immortal,sessionManager.getSession(immortal.getId()));
+        assertEquals(later,sessionManager.getSession(later.getId()));
+        
+        // a session that will now expire sooner is rescheduled
+        later.setMaxInactiveInterval(1);
+        sessionManager.scavenge(now+4000);
+        assertNull(sessionManager.getSession(later.getId()));
+        assertEquals(accessed,sessionManager.getSession(accessed.getId()));
+        
+        sessionManager.scavenge(now+7000);
+        assertNull(sessionManager.getSession(accessed.getId()));
+        assertNull(sessionManager.getSession(later.getId()));
+        assertEquals(immortal,sessionManager.getSession(immortal.getId()));
+        assertEquals(1,sessionManager.getSessions());
+    }
+    
+    public void testRescheduleLeavesStaleEntry() throws Exception
+    {
+        sessionManager.setScavengePeriod(1);
+        HttpSession session = sessionManager.newHttpSession(null);
+        session.setMaxInactiveInterval(1);
+        session.setMaxInactiveInterval(60);
+        assertEquals(1,sessionManager.getScavengeScheduled());
+        
+        // the entry in the earlier bucket is ignored
+        long now=System.currentTimeMillis();
+        sessionManager.scavenge(now+5000);
+        assertEquals(session,sessionManager.getSession(session.getId()));
+        assertEquals(1,sessionManager.getScavengeScheduled());
+        
+        sessionManager.scavenge(now+62000);
+        assertNull(sessionManager.getSession(session.getId()));
+        assertEquals(0,sessionManager.getScavengeScheduled());
+    }
+    
+    public void testInvalidateUnschedules() throws Exception
+    {
+        sessionManager.setScavengePeriod(1);
+        HttpSession session = sessionManager.newHttpSession(null);
+        session.setMaxInactiveInterval(10);
+        assertTrue(sessionManager.getScavengeScheduled()>0);
+        
+        session.invalidate();
+        assertEquals(0,sessionManager.getScavengeScheduled());
+    }
+    
     public void testWorker() throws Exception
     {
         try
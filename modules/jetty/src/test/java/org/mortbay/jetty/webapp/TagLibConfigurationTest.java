@@ -0,0 +1,143 @@
+// ========================================================================
+// Copyright 2011 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.jetty.webapp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.mortbay.util.IO;
+
+public class TagLibConfigurationTest extends TestCase
+{
+    File _dir;
+    File _tmp;
+    File _a;
+    File _b;
+    List _jars;
+
+    protected void setUp() throws Exception
+    {
+        _dir=File.createTempFile("tldtest",null);
+        _dir.delete();
+        _dir.mkdir();
+        _tmp=new File(_dir,"tmp");
+        _tmp.mkdir();
+        _a=new File(_dir,"a.jar");
+        _b=new File(_dir,"b.jar");
+        jar(_a,new String[]{"META-INF/a.tld","org/example/A.class"});
+        jar(_b,new String[]{"org/example/B.class"});
+        _jars=new ArrayList();
+        _jars.add(_a);
+        _jars.add(_b);
+    }
+
+    protected void tearDown() throws Exception
+    {
+        IO.delete(_dir);
+    }
+
+    private void jar(File file, String[] entries) throws Exception
+    {
+        JarOutputStream out=new JarOutputStream(new FileOutputStream(file));
+        try
+        {
+            for (int i=0;i<entries.length;i++)
+            {
+                out.putNextEntry(new ZipEntry(entries[i]));
+                out.write(entries[i].getBytes());
+                out.closeEntry();
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    private TagLibConfiguration newConfiguration()
+    {
+        WebAppContext context=new WebAppContext();
+        context.setTempDirectory(_tmp);
+        TagLibConfiguration configuration=new TagLibConfiguration();
+        configuration.setWebAppContext(context);
+        return configuration;
+    }
+
+    private void assertTlds(Map tlds, File jar, String[] expected)
+    {
+        assertTrue(Arrays.equals(expected,(String[])tlds.get(jar)));
+    }
+
+    public void testCache() throws Exception
+    {
+        File cache=new File(_tmp,TagLibConfiguration.__TLD_CACHE);
+        assertFalse(cache.exists());
+
+        TagLibConfiguration configuration=newConfiguration();
+        Map tlds=configuration.scanJars(_jars);
+        assertEquals(2,configuration.getJarsScanned());
+        assertTlds(tlds,_a,new String[]{"META-INF/a.tld"});
+        assertTlds(tlds,_b,new String[0]);
+        assertTrue(cache.exists());
+        long saved=cache.lastModified();
+
+        // a new configuration, as on redeploy, loads the TLDs from the cache
+        configuration=newConfiguration();
+        tlds=configuration.scanJars(_jars);
+        assertEquals(0,configuration.getJarsScanned());
+        assertTlds(tlds,_a,new String[]{"META-INF/a.tld"});
+        assertTlds(tlds,_b,new String[0]);
+        assertEquals(saved,cache.lastModified());
+    }
+
+    public void testInvalidate() throws Exception
+    {
+        newConfiguration().scanJars(_jars);
+
+        // a changed size invalidates the cached jar
+        jar(_b,new String[]{"META-INF/b.tld","org/example/B.class"});
+        TagLibConfiguration configuration=newConfiguration();
+        Map tlds=configuration.scanJars(_jars);
+        assertEquals(1,configuration.getJarsScanned());
+        assertTlds(tlds,_a,new String[]{"META-INF/a.tld"});
+        assertTlds(tlds,_b,new String[]{"META-INF/b.tld"});
+
+        // a changed modification time invalidates the cached jar
+        long length=_a.length();
+        jar(_a,new String[]{"META-INF/c.tld","org/example/A.class"});
+        assertEquals(length,_a.length());
+        _a.setLastModified(_a.lastModified()+10000);
+        configuration=newConfiguration();
+        tlds=configuration.scanJars(_jars);
+        assertEquals(1,configuration.getJarsScanned());
+        assertTlds(tlds,_a,new String[]{"META-INF/c.tld"});
+        assertTlds(tlds,_b,new String[]{"META-INF/b.tld"});
+
+        // the rescanned jars were saved to the cache
+        configuration=newConfiguration();
+        tlds=configuration.scanJars(_jars);
+        assertEquals(0,configuration.getJarsScanned());
+        assertTlds(tlds,_a,new String[]{"META-INF/c.tld"});
+        assertTlds(tlds,_b,new String[]{"META-INF/b.tld"});
+    }
+}
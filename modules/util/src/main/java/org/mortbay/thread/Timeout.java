@@ -32,7 +32,7 @@ import org.mortbay.log.Log;
  */
 public class Timeout
 {
-    private Object _lock;
+    Object _lock;
     private long _duration;
     private volatile long _now=System.currentTimeMillis();
     private Task _head=new Task();
@@ -284,7 +284,7 @@ public class Timeout
         }
 
         /* ------------------------------------------------------------ */
-        private void unlink()
+        void unlink()
         {
             _next._prev=_prev;
             _prev._next=_next;
@@ -293,7 +293,7 @@ public class Timeout
         }
 
         /* ------------------------------------------------------------ */
-        private void link(Task task)
+        void link(Task task)
         {
             Task next_next = _next;
             _next._prev=task;
@@ -0,0 +1,310 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.thread;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mortbay.log.Log;
+
+
+/* ------------------------------------------------------------ */
+/** Hashed timing wheel timeout queue.
+ * <p>
+ * A {@link Timeout} with the same {@link Timeout.Task} API, for large numbers of tasks.
+ * Instead of a single sorted list, tasks are hashed by their timestamp into a ring of
+ * unsorted buckets, each covering a period of the wheel resolution. Scheduling and
+ * cancelling a task are constant time operations. A tick only visits the buckets that
+ * have become due since the previous tick. A bucket may also hold tasks due in later
+ * rotations of the wheel, so the exact timestamp of each task is checked before it is
+ * expired.
+ * <p>
+ * Tasks are hashed by their timestamp rather than their expiry time, so
+ * that changing the duration of the timeout (as is done for low resources) does not
+ * require the tasks to be rehashed.
+ *
+ * @author gregw
+ *
+ */
+public class TimeoutWheel extends Timeout
+{
+    private final Task[] _buckets;
+    private final int _mask;
+    private final long _resolution;
+    private long _cursor=Long.MAX_VALUE;
+
+    /* ------------------------------------------------------------ */
+    /** Construct a wheel of 1024 buckets with a resolution of 100ms.
+     */
+    public TimeoutWheel()
+    {
+        this(null,1024,100);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Construct a wheel of 1024 buckets with a resolution of 100ms.
+     * @param lock The lock to synchronize on, or null for a private lock.
+     */
+    public TimeoutWheel(Object lock)
+    {
+        this(lock,1024,100);
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param lock The lock to synchronize on, or null for a private lock.
+     * @param buckets The number of buckets in the wheel, rounded up to a power of 2.
+     * @param resolution The period in ms of each bucket.
+     */
+    public TimeoutWheel(Object lock, int buckets, long resolution)
+    {
+        super(lock==null?new Object():lock);
+        if (resolution<=0)
+            throw new IllegalArgumentException("resolution");
+        int size=1;
+        while (size<buckets)
+            size<<=1;
+        _buckets=new Task[size];
+        for (int i=0;i<size;i++)
+            _buckets[i]=new Task();
+        _mask=size-1;
+        _resolution=resolution;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of buckets in the wheel.
+     */
+    public int getBuckets()
+    {
+        return _buckets.length;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The period in ms of each bucket.
+     */
+    public long getResolution()
+    {
+        return _resolution;
+    }
+
+    /* ------------------------------------------------------------ */
+    public Task expired()
+    {
+        synchronized (_lock)
+        {
+            long expiry=getNow()-getDuration();
+            long slot=slot(expiry);
+            long from=Math.min(_cursor,slot);
+            if (slot-from>_mask)
+                from=slot-_mask;
+
+            for (;from<=slot;from++)
+            {
+                Task head=_buckets[(int)(from&_mask)];
+                for (Task task=head._next;task!=head;task=task._next)
+                {
+                    if (task._timestamp<=expiry)
+                    {
+                        _cursor=from;
+                        task.unlink();
+                        task._expired=true;
+                        return task;
+                    }
+                }
+            }
+            _cursor=slot;
+            return null;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void tick()
+    {
+        List expired=null;
+        synchronized (_lock)
+        {
+            long expiry=getNow()-getDuration();
+            long slot=slot(expiry);
+            long from=Math.min(_cursor,slot);
+            if (slot-from>_mask)
+                from=slot-_mask;
+
+            for (;from<=slot;from++)
+            {
+                Task head=_buckets[(int)(from&_mask)];
+                for (Task task=head._next;task!=head;task=task._next)
+                {
+                    if (task._timestamp<=expiry)
+                    {
+                        if (expired==null)
+                            expired=new ArrayList();
+                        expired.add(task);
+                    }
+                }
+            }
+            _cursor=slot;
+
+            for (int i=0;expired!=null && i<expired.size();i++)
+            {
+                Task task=(Task)expired.get(i);
+
+                // An earlier expire() may have cancelled or rescheduled the task
+                if (task._next==task || task._timeout!=this || task._timestamp>expiry)
+                {
+                    expired.set(i,null);
+                    continue;
+                }
+
+                task.unlink();
+                task._expired=true;
+                try
+                {
+                    task.expire();
+                }
+                catch(Throwable th)
+                {
+                    Log.warn(Log.EXCEPTION,th);
+                }
+            }
+        }
+
+        for (int i=0;expired!=null && i<expired.size();i++)
+        {
+            Task task=(Task)expired.get(i);
+            try
+            {
+                if (task!=null)
+                    task.expired();
+            }
+            catch(Throwable th)
+            {
+                Log.warn(Log.EXCEPTION,th);
+            }
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @param task
+     * @param delay A delay in addition to the default duration of the timeout
+     */
+    public void schedule(Task task,long delay)
+    {
+        synchronized (_lock)
+        {
+            if (task._timestamp!=0)
+            {
+                task.unlink();
+                task._timestamp=0;
+            }
+            task._timeout=this;
+            task._expired=false;
+            task._delay=delay;
+            task._timestamp = getNow()+delay;
+
+            long slot=slot(task._timestamp);
+            if (slot<_cursor)
+                _cursor=slot;
+            _buckets[(int)(slot&_mask)]._prev.link(task);
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public void cancelAll()
+    {
+        synchronized (_lock)
+        {
+            for (int i=0;i<_buckets.length;i++)
+                _buckets[i]._next=_buckets[i]._prev=_buckets[i];
+            _cursor=Long.MAX_VALUE;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    public boolean isEmpty()
+    {
+        synchronized (_lock)
+        {
+            for (int i=0;i<_buckets.length;i++)
+                if (_buckets[i]._next!=_buckets[i])
+                    return false;
+            return true;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get the time to the next expiry.
+     * Only the buckets from the current position to the first non empty bucket are
+     * visited.
+     * @return the time in ms until the next task expires, or -1 if there are no tasks.
+     */
+    public long getTimeToNext()
+    {
+        synchronized (_lock)
+        {
+            if (_cursor==Long.MAX_VALUE)
+                return -1;
+
+            for (int i=0;i<=_mask;i++)
+            {
+                long slot=_cursor+i;
+                Task head=_buckets[(int)(slot&_mask)];
+                if (head._next==head)
+                    continue;
+
+                // Later buckets only hold tasks from the next slot onwards
+                long next=(slot+1)*_resolution;
+                for (Task task=head._next;task!=head;task=task._next)
+                    if (task._timestamp<next)
+                        next=task._timestamp;
+
+                long to_next=getDuration()+next-getNow();
+                return to_next<0?0:to_next;
+            }
+            _cursor=Long.MAX_VALUE;
+            return -1;
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    private long slot(long timestamp)
+    {
+        return timestamp/_resolution;
+    }
+
+    /* ------------------------------------------------------------ */
+    public String toString()
+    {
+        StringBuffer buf = new StringBuffer();
+        buf.append(getClass().getName()).append('@').append(Integer.toHexString(hashCode()));
+
+        synchronized (_lock)
+        {
+            for (int i=0;i<_buckets.length;i++)
+            {
+                Task head=_buckets[i];
+                for (Task task=head._next;task!=head;task=task._next)
+                {
+                    buf.append("-->");
+                    buf.append(task);
+                }
+            }
+        }
+
+        return buf.toString();
+    }
+}
@@ -327,6 +327,7 @@ public class UrlEncoded extends MultiMap
     {
         synchronized(map)
         {
+            Input input = new Input(in);
             StringBuffer buffer = new StringBuffer();
             String key = null;
             String value = null;
@@ -335,7 +336,7 @@ public class UrlEncoded extends MultiMap
 
             // TODO cache of parameter names ???
             int totalLength=0;
-            while ((b=in.read())>=0)
+            while ((b=input.read())>=0)
             {
                 switch ((char) b)
                 {
@@ -369,10 +370,11 @@ public class UrlEncoded extends MultiMap
                         break;
                         
                     case '%':
-                        int dh=in.read();
-                        int dl=in.read();
+                        int dh=input.read();
+                        int dl=input.read();
                         if (dh<0||dl<0)
                             break;
+                        totalLength+=2;
                         buffer.append((char)((TypeUtil.convertHexDigit((byte)dh)<<4) + TypeUtil.convertHexDigit((byte)dl)));
                         break;
                     default:
@@ -407,6 +409,7 @@ public class UrlEncoded extends MultiMap
     {
         synchronized(map)
         {
+            Input input = new Input(in);
             Utf8StringBuffer buffer = new Utf8StringBuffer();
             String key = null;
             String value = null;
@@ -415,7 +418,7 @@ public class UrlEncoded extends MultiMap
             
             // TODO cache of parameter names ???
             int totalLength=0;
-            while ((b=in.read())>=0)
+            while ((b=input.read())>=0)
             {
                 switch ((char) b)
                 {
@@ -449,10 +452,11 @@ public class UrlEncoded extends MultiMap
                         break;
                         
                     case '%':
-                        int dh=in.read();
-                        int dl=in.read();
+                        int dh=input.read();
+                        int dl=input.read();
                         if (dh<0||dl<0)
                             break;
+                        totalLength+=2;
                         buffer.append((byte)((TypeUtil.convertHexDigit((byte)dh)<<4) + TypeUtil.convertHexDigit((byte)dl)));
                         break;
                     default:
@@ -523,6 +527,7 @@ public class UrlEncoded extends MultiMap
 
         synchronized(map)
         {
+            Input input = new Input(in);
             String key = null;
             String value = null;
             
@@ -535,7 +540,7 @@ public class UrlEncoded extends MultiMap
             
             int size=0;
             
-            while ((c=in.read())>0)
+            while ((c=input.read())>0)
             {
                 switch ((char) c)
                 {
@@ -862,4 +867,39 @@ public class UrlEncoded extends MultiMap
     {
         return new UrlEncoded(this);
     }
+
+
+    /* ------------------------------------------------------------ */
+    /* ------------------------------------------------------------ */
+    /** Chunked reads from a stream.
+     * Content is decoded as it is read a chunk at a time, so that large forms are
+     * neither buffered nor read a byte at a time from the underlying stream.
+     */
+    private static final class Input
+    {
+        private final InputStream _in;
+        private final byte[] _chunk=new byte[1024];
+        private int _index;
+        private int _length;
+
+        Input(InputStream in)
+        {
+            _in=in;
+        }
+
+        int read() throws IOException
+        {
+            while (_index==_length)
+            {
+                _length=_in.read(_chunk,0,_chunk.length);
+                _index=0;
+                if (_length<0)
+                {
+                    _length=0;
+                    return -1;
+                }
+            }
+            return 0xff&_chunk[_index++];
+        }
+    }
 }
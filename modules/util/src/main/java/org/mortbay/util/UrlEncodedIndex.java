@@ -0,0 +1,234 @@
+// ========================================================================
+// Copyright 2008 Mort Bay Consulting Pty. Ltd.
+// ------------------------------------------------------------------------
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// ========================================================================
+
+package org.mortbay.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/* ------------------------------------------------------------ */
+/** Lazy view of UTF-8 "x-www-form-urlencoded" parameters.
+ * <p>
+ * The parameters are indexed by the offsets of their names and values
+ * in the raw bytes and are only decoded when they are looked up by
+ * {@link #getValue(String)}, so that a request that reads a few parameters
+ * does not create Strings for all of them. Names that are not encoded are
+ * compared with the raw bytes without being decoded.
+ * <p>
+ * The parameters decoded by {@link #decodeTo(MultiMap)} are the same as those decoded by
+ * {@link UrlEncoded#decodeUtf8To(byte[], int, int, MultiMap)}.
+ * <p>
+ * An index may be reused after {@link #clear()}. It is not synchronized.
+ *
+ * @author gregw
+ */
+public class UrlEncodedIndex
+{
+    private byte[] _raw;
+    private int _end;
+    private byte[] _content;
+    private int[] _index=new int[3*8]; // start, '=' or -1, end of each parameter
+    private int _size;
+    private final Utf8StringBuffer _buffer=new Utf8StringBuffer();
+
+    /* ------------------------------------------------------------ */
+    /** Index encoded parameters.
+     * The bytes are not copied and must not be changed while the index is used.
+     * @param raw The encoded parameters
+     * @param offset The offset of the parameters in raw
+     * @param length The length of the parameters
+     */
+    public void index(byte[] raw, int offset, int length)
+    {
+        _raw=raw;
+        _end=offset+length;
+        _size=0;
+
+        int start=offset;
+        int equals=-1;
+        for (int i=offset;i<_end;i++)
+        {
+            switch(raw[i])
+            {
+                case '&':
+                    add(start,equals,i);
+                    start=i+1;
+                    equals=-1;
+                    break;
+                case '=':
+                    if (equals<0)
+                        equals=i;
+                    break;
+                case '%':
+                    if (i+2<_end)
+                        i+=2;
+                    break;
+            }
+        }
+        if (start<_end)
+            add(start,equals,_end);
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Read and index encoded parameters.
+     * The content is read into a buffer that is kept for reuse by the index.
+     * @param in The stream of encoded parameters
+     * @param length The number of bytes to read. Less may be read if the stream ends.
+     */
+    public void index(InputStream in, int length) throws IOException
+    {
+        if (_content==null || _content.length<length)
+            _content=new byte[length];
+        int read=0;
+        while (read<length)
+        {
+            int len=in.read(_content,read,length-read);
+            if (len<0)
+                break;
+            read+=len;
+        }
+        index(_content,0,read);
+    }
+
+    /* ------------------------------------------------------------ */
+    private void add(int start, int equals, int end)
+    {
+        if (_size*3==_index.length)
+        {
+            int[] index=new int[_index.length*2];
+            System.arraycopy(_index,0,index,0,_index.length);
+            _index=index;
+        }
+        int i=_size++*3;
+        _index[i]=start;
+        _index[i+1]=equals;
+        _index[i+2]=end;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Clear the index.
+     * The index may be reused to index other parameters.
+     */
+    public void clear()
+    {
+        _raw=null;
+        _end=0;
+        _size=0;
+    }
+
+    /* ------------------------------------------------------------ */
+    /**
+     * @return The number of indexed parameters, including any empty parameters between
+     * consecutive '&amp;' characters.
+     */
+    public int size()
+    {
+        return _size;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Get a parameter value.
+     * @param name The decoded parameter name
+     * @return The first decoded value of the parameter or null if there is no such parameter.
+     */
+    public String getValue(String name)
+    {
+        for (int p=0;p<_size;p++)
+        {
+            int i=p*3;
+            int start=_index[i];
+            int equals=_index[i+1];
+            int end=_index[i+2];
+
+            if (equals<0)
+            {
+                // A parameter without a value is only added if its name is not empty
+                if (name.length()>0 && matches(start,end,name))
+                    return "";
+            }
+            else if (matches(start,equals,name))
+                return decode(equals+1,end);
+        }
+        return null;
+    }
+
+    /* ------------------------------------------------------------ */
+    /** Decode all the parameters.
+     * @param map The map to add the parameters to
+     */
+    public void decodeTo(MultiMap map)
+    {
+        for (int p=0;p<_size;p++)
+        {
+            int i=p*3;
+            int start=_index[i];
+            int equals=_index[i+1];
+            int end=_index[i+2];
+
+            if (equals<0)
+            {
+                String name=decode(start,end);
+                if (name.length()>0)
+                    map.add(name,"");
+            }
+            else
+                map.add(decode(start,equals),decode(equals+1,end));
+        }
+    }
+
+    /* ------------------------------------------------------------ */
+    /* Compare encoded bytes with a decoded name. The bytes are only decoded if
+     * they contain an encoded character before any mismatch.
+     */
+    private boolean matches(int start, int end, String name)
+    {
+        int l=name.length();
+        int n=0;
+        for (int i=start;i<end;i++)
+        {
+            byte b=_raw[i];
+            if (b=='%' || b=='+' || b<0)
+                return name.equals(decode(start,end));
+            if (n==l || name.charAt(n++)!=b)
+                return false;
+        }
+        return n==l;
+    }
+
+    /* ------------------------------------------------------------ */
+    private String decode(int start, int end)
+    {
+        if (start==end)
+            return "";
+        _buffer.reset();
+        for (int i=start;i<end;i++)
+        {
+            byte b=_raw[i];
+            switch (b)
+            {
+                case '+':
+                    _buffer.append((byte)' ');
+                    break;
+                case '%':
+                    if (i+2<_end)
+                        _buffer.append((byte)((TypeUtil.convertHexDigit(_raw[++i])<<4) + TypeUtil.convertHexDigit(_raw[++i])));
+                    break;
+                default:
+                    _buffer.append(b);
+            }
+        }
+        return _buffer.toString();
+    }
+}
@@ -31,7 +31,7 @@ public class TimeoutTest extends TestCase
     {
         super.setUp();
         
-        timeout=new Timeout(lock);
+        timeout=newTimeout(lock);
         tasks= new Timeout.Task[10]; 
         
         for (int i=0;i<tasks.length;i++)
@@ -43,6 +43,12 @@ public class TimeoutTest extends TestCase
         timeout.setNow(100);
     }
 
+    /* ------------------------------------------------------------ */
+    protected Timeout newTimeout(Object lock)
+    {
+        return new Timeout(lock);
+    }
+
     /* ------------------------------------------------------------ */
     /* 
      * @see junit.framework.TestCase#tearDown()
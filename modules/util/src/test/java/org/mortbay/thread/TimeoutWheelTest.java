@@ -0,0 +1,103 @@
+//========================================================================
+//Copyright 2008 Mort Bay Consulting Pty. Ltd.
+//------------------------------------------------------------------------
+//Licensed under the Apache License, Version 2.0 (the "License");
+//you may not use this file except in compliance with the License.
+//You may obtain a copy of the License at 
+//http://www.apache.org/licenses/LICENSE-2.0
+//Unless required by applicable law or agreed to in writing, software
+//distributed under the License is distributed on an "AS IS" BASIS,
+//WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//See the License for the specific language governing permissions and
+//limitations under the License.
+//========================================================================
+
+package org.mortbay.thread;
+
+/* ------------------------------------------------------------ */
+/** Run the {@link TimeoutTest} tests against a small {@link TimeoutWheel},
+ * so that the tasks wrap around the wheel.
+ */
+public class TimeoutWheelTest extends TimeoutTest
+{
+    /* ------------------------------------------------------------ */
+    protected Timeout newTimeout(Object lock)
+    {
+        return new TimeoutWheel(lock,4,50);
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testRotations()
+    {
+        Timeout wheel = new TimeoutWheel(lock,4,10);
+        Timeout.Task[] tasks = new Timeout.Task[100];
+        wheel.setNow(10000);
+        wheel.setDuration(100);
+        for (int i=0;i<tasks.length;i++)
+        {
+            tasks[i]=new Timeout.Task();
+            wheel.schedule(tasks[i],i*7);
+        }
+
+        for (long now=10000;now<=10800;now+=13)
+        {
+            wheel.tick(now);
+            for (int i=0;i<tasks.length;i++)
+                assertEquals("isExpired "+i+" at "+now,10000+i*7+100<=now,tasks[i].isExpired());
+        }
+        assertTrue(wheel.isEmpty());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testTimeToNext()
+    {
+        Timeout wheel = new TimeoutWheel(lock,8,100);
+        wheel.setNow(10000);
+        wheel.setDuration(1000);
+        assertEquals(-1,wheel.getTimeToNext());
+
+        Timeout.Task task = new Timeout.Task();
+        wheel.schedule(task,5000);
+        assertEquals(6000,wheel.getTimeToNext());
+
+        Timeout.Task near = new Timeout.Task();
+        wheel.schedule(near,250);
+        assertEquals(1250,wheel.getTimeToNext());
+
+        wheel.setNow(11250);
+        assertEquals(0,wheel.getTimeToNext());
+        wheel.tick();
+        assertTrue(near.isExpired());
+        assertFalse(task.isExpired());
+        assertTrue(wheel.getTimeToNext()>0);
+        assertTrue(wheel.getTimeToNext()<=4750);
+
+        task.cancel();
+        assertEquals(-1,wheel.getTimeToNext());
+    }
+
+    /* ------------------------------------------------------------ */
+    public void testDuration()
+    {
+        Timeout wheel = new TimeoutWheel(lock,16,10);
+        Timeout.Task task = new Timeout.Task();
+        wheel.setNow(10000);
+        wheel.setDuration(1000);
+        wheel.schedule(task);
+
+        wheel.tick(10500);
+        assertFalse(task.isExpired());
+
+        // low resources
+        wheel.setDuration(400);
+        wheel.tick(10500);
+        assertTrue(task.isExpired());
+
+        wheel.schedule(task);
+        wheel.setDuration(1000);
+        wheel.tick(11000);
+        assertFalse(task.isExpired());
+        wheel.tick(11500);
+        assertTrue(task.isExpired());
+    }
+}
@@ -208,6 +208,77 @@ public class URLEncodedTest extends junit.framework.TestCase
             assertTrue("Charset Shift_JIS not supported by jvm", true);
     }
 
+    /* -------------------------------------------------------------- */
+    public void testLargeUrlEncodedStream()
+        throws Exception
+    {
+        StringBuffer form = new StringBuffer();
+        for (int i=0;i<1000;i++)
+            form.append("name"+i+"=value+%3"+(i%10)+"&");
+        byte[] bytes = form.toString().getBytes(StringUtil.__UTF8);
+
+        MultiMap m = new MultiMap();
+        UrlEncoded.decodeTo(new ByteArrayInputStream(bytes), m, null, bytes.length);
+        assertEquals(1000,m.size());
+        assertEquals("value 9",m.getString("name999"));
+
+        try
+        {
+            UrlEncoded.decodeTo(new ByteArrayInputStream(bytes), new MultiMap(), null, bytes.length-1);
+            fail("Form too large");
+        }
+        catch(IllegalStateException e)
+        {
+            assertTrue(true);
+        }
+    }
+
+    /* -------------------------------------------------------------- */
+    public void testUrlEncodedIndex()
+        throws Exception
+    {
+        String[] queries = new String[]
+        {
+            "",
+            "&",
+            "name=value",
+            "name=value&&name=other&=empty&flag&=&x=a=b",
+            "Name+1=value+%30&n%C3%A3me=v%C3%A3lue&n\u00e3me3=3&",
+            "plus=%2B&amp=%26&eq=%3D&last=%",
+            "x=%4",
+        };
+
+        UrlEncodedIndex index = new UrlEncodedIndex();
+        for (int i=0;i<queries.length;i++)
+        {
+            byte[] bytes = ("??"+queries[i]+"#").getBytes(StringUtil.__UTF8);
+            index.index(bytes,2,bytes.length-3);
+
+            MultiMap expected = new MultiMap();
+            UrlEncoded.decodeUtf8To(bytes,2,bytes.length-3,expected);
+            MultiMap decoded = new MultiMap();
+            index.decodeTo(decoded);
+            assertEquals(queries[i],expected,decoded);
+
+            for (java.util.Iterator iter=expected.keySet().iterator();iter.hasNext();)
+            {
+                String name=(String)iter.next();
+                assertEquals(queries[i]+" "+name,expected.getValue(name,0),index.getValue(name));
+            }
+            assertNull(index.getValue("unknown"));
+            index.clear();
+        }
+
+        byte[] bytes = "a=1&a=2&b=%20&c".getBytes(StringUtil.__UTF8);
+        index.index(new ByteArrayInputStream(bytes),bytes.length);
+        assertEquals(4,index.size());
+        assertEquals("1",index.getValue("a"));
+        assertEquals(" ",index.getValue("b"));
+        assertEquals("",index.getValue("c"));
+        assertNull(index.getValue(""));
+        assertNull(index.getValue("a=1"));
+    }
+
 
     
     /* -------------------------------------------------------------- */